@@ -20,10 +20,14 @@ package org.apache.aries.rsa.provider.fastbin;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.aries.rsa.provider.fastbin.io.ClientInvoker;
 import org.apache.aries.rsa.provider.fastbin.io.ServerInvoker;
+import org.apache.aries.rsa.provider.fastbin.tcp.ServerInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.TransportPool;
+import org.apache.aries.rsa.provider.fastbin.util.ExecutorSupport;
 import org.apache.aries.rsa.provider.fastbin.util.UuidGenerator;
 import org.apache.aries.rsa.spi.DistributionProvider;
 import org.osgi.annotation.bundle.Capability;
@@ -63,7 +67,13 @@ public class Activator extends BaseActivator implements ManagedService {
             exportedAddress = UuidGenerator.getHostName();
         }
         long timeout = getLong("timeout", TimeUnit.MINUTES.toMillis(5));
-        provider = new FastBinProvider(uri, exportedAddress, timeout);
+        int dispatchQueues = getInt("dispatchQueues", FastBinProvider.DEFAULT_DISPATCH_QUEUES);
+        int poolSize = getInt("poolSize", TransportPool.DEFAULT_POOL_SIZE);
+        ExecutorService executor = ExecutorSupport.newExecutor("fastbin-executor",
+            getInt("executorThreads", ServerInvokerImpl.DEFAULT_EXECUTOR_THREADS),
+            getInt("executorQueueSize", 0),
+            "virtual".equals(getString("executor", "platform")));
+        provider = new FastBinProvider(uri, exportedAddress, timeout, dispatchQueues, poolSize, executor);
         client = provider.getClient();
         server = provider.getServer();
         Dictionary<String, Object> props = new Hashtable<>();
@@ -24,6 +24,8 @@ import java.lang.reflect.Proxy;
 import java.net.URI;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -32,6 +34,8 @@ import org.apache.aries.rsa.provider.fastbin.io.ClientInvoker;
 import org.apache.aries.rsa.provider.fastbin.io.ServerInvoker;
 import org.apache.aries.rsa.provider.fastbin.tcp.ClientInvokerImpl;
 import org.apache.aries.rsa.provider.fastbin.tcp.ServerInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.TransportPool;
+import org.apache.aries.rsa.provider.fastbin.util.ExecutorSupport;
 import org.apache.aries.rsa.provider.fastbin.util.UuidGenerator;
 import org.apache.aries.rsa.spi.DistributionProvider;
 import org.apache.aries.rsa.spi.Endpoint;
@@ -54,23 +58,69 @@ public class FastBinProvider implements DistributionProvider {
 
     public static final String FASTBIN_ADDRESS = FASTBIN_CONFIG_TYPE + ".address";
 
+    public static final String FASTBIN_POOL_SIZE = FASTBIN_CONFIG_TYPE + ".poolSize";
+
+    public static final String FASTBIN_EXECUTOR = FASTBIN_CONFIG_TYPE + ".executor";
+
+    public static final String FASTBIN_EXECUTOR_THREADS = FASTBIN_CONFIG_TYPE + ".executorThreads";
+
+    public static final String FASTBIN_EXECUTOR_QUEUE_SIZE = FASTBIN_CONFIG_TYPE + ".executorQueueSize";
+
+    public static final int DEFAULT_DISPATCH_QUEUES = Runtime.getRuntime().availableProcessors();
+
     private final String uri;
     private final String exportedAddress;
     private final long timeout;
+    private final int poolSize;
 
     private final DispatchQueue queue = Dispatch.createQueue();
+    private final DispatchQueue[] transportQueues;
     private final Map<String, SerializationStrategy> serializationStrategies = new ConcurrentHashMap<>();
 
     private ClientInvoker client;
     private ServerInvoker server;
 
     public FastBinProvider(java.lang.String uri, java.lang.String exportedAddress, long timeout) throws Exception {
+        this(uri, exportedAddress, timeout, DEFAULT_DISPATCH_QUEUES);
+    }
+
+    /**
+     * Creates a provider whose connections are spread across the given number of
+     * dispatch queues, so that requests on different connections are processed
+     * concurrently rather than all on a single queue.
+     */
+    public FastBinProvider(java.lang.String uri, java.lang.String exportedAddress, long timeout, int dispatchQueues) throws Exception {
+        this(uri, exportedAddress, timeout, dispatchQueues, TransportPool.DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Creates a provider whose connections are spread across the given number of
+     * dispatch queues, and which opens at most the given number of connections to
+     * each server (unless the imported endpoint specifies another pool size).
+     */
+    public FastBinProvider(java.lang.String uri, java.lang.String exportedAddress, long timeout, int dispatchQueues, int poolSize) throws Exception {
+        this(uri, exportedAddress, timeout, dispatchQueues, poolSize,
+            Executors.newFixedThreadPool(ServerInvokerImpl.DEFAULT_EXECUTOR_THREADS));
+    }
+
+    /**
+     * Creates a provider which executes the calls to exported services by the given
+     * executor, unless they are {@link org.apache.aries.rsa.provider.fastbin.api.Dispatched}
+     * or the exported endpoint asks for an executor of its own.
+     */
+    public FastBinProvider(java.lang.String uri, java.lang.String exportedAddress, long timeout, int dispatchQueues, int poolSize,
+            ExecutorService executor) throws Exception {
         this.uri = uri;
         this.exportedAddress = exportedAddress;
         this.timeout = timeout;
+        this.poolSize = Math.max(1, poolSize);
+        this.transportQueues = new DispatchQueue[Math.max(1, dispatchQueues)];
+        for (int i = 0; i < transportQueues.length; i++) {
+            transportQueues[i] = Dispatch.createQueue("fastbin-transport-" + i);
+        }
         // Create client and server
-        this.client = new ClientInvokerImpl(queue, timeout, serializationStrategies);
-        this.server = new ServerInvokerImpl(uri, queue, serializationStrategies);
+        this.client = new ClientInvokerImpl(queue, transportQueues, timeout, this.poolSize, serializationStrategies);
+        this.server = new ServerInvokerImpl(uri, queue, transportQueues, executor, serializationStrategies);
         this.client.start();
         this.server.start();
     }
@@ -151,13 +201,19 @@ public class FastBinProvider implements DistributionProvider {
         final EndpointDescription description = new EndpointDescription(effectiveProperties);
 
         // Export it
-        server.registerService(description.getId(), new ServerInvoker.ServiceFactory() {
+        ServerInvoker.ServiceFactory factory = new ServerInvoker.ServiceFactory() {
             public Object get() {
                 return serviceO;
             }
             public void unget() {
             }
-        }, serviceO.getClass().getClassLoader());
+        };
+        ExecutorService executor = createExecutor(description);
+        if (executor != null) {
+            server.registerService(description.getId(), factory, serviceO.getClass().getClassLoader(), executor);
+        } else {
+            server.registerService(description.getId(), factory, serviceO.getClass().getClassLoader());
+        }
 
         return new Endpoint() {
             @Override
@@ -172,6 +228,40 @@ public class FastBinProvider implements DistributionProvider {
         };
     }
 
+    /**
+     * Creates the executor of its own an exported endpoint asks for (a bulkhead), so
+     * that its calls neither wait for nor hold up the calls to other services.
+     *
+     * @return the executor, or null if the endpoint's calls use the shared executor
+     */
+    private ExecutorService createExecutor(EndpointDescription endpoint) {
+        boolean virtual = "virtual".equals(endpoint.getProperties().get(FASTBIN_EXECUTOR));
+        int threads = getInt(endpoint, FASTBIN_EXECUTOR_THREADS, 0);
+        if (!virtual && threads <= 0) {
+            return null;
+        }
+        int queueSize = getInt(endpoint, FASTBIN_EXECUTOR_QUEUE_SIZE, 0);
+        return ExecutorSupport.newExecutor("fastbin-" + endpoint.getId(),
+            threads > 0 ? threads : ServerInvokerImpl.DEFAULT_EXECUTOR_THREADS, queueSize, virtual);
+    }
+
+    private int getPoolSize(EndpointDescription endpoint) {
+        return Math.max(1, getInt(endpoint, FASTBIN_POOL_SIZE, poolSize));
+    }
+
+    private static int getInt(EndpointDescription endpoint, String key, int def) {
+        Object value = endpoint.getProperties().get(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value {} for {}, using {}", value, key, def);
+            return def;
+        }
+    }
+
     @Override
     public ImportedService importEndpoint(ClassLoader cl,
                                           BundleContext consumerContext,
@@ -180,7 +270,8 @@ public class FastBinProvider implements DistributionProvider {
             throws IntentUnsatisfiedException {
 
         String address = (String) endpoint.getProperties().get(FASTBIN_ADDRESS);
-        InvocationHandler handler = client.getProxy(address, endpoint.getId(), cl);
+        // the connections to a server are shared, so the first imported endpoint determines their pool size
+        InvocationHandler handler = client.getProxy(address, endpoint.getId(), cl, getPoolSize(endpoint));
         Object service = Proxy.newProxyInstance(cl, interfaces, handler);
         return () -> service;
     }
@@ -24,4 +24,12 @@ public interface ClientInvoker extends Service {
 
     InvocationHandler getProxy(String address, String service, ClassLoader classLoader);
 
+    /**
+     * Returns a proxy for a service, whose connections to the given address are pooled
+     * with the given maximum size if no pool exists for the address yet.
+     */
+    default InvocationHandler getProxy(String address, String service, ClassLoader classLoader, int poolSize) {
+        return getProxy(address, service, classLoader);
+    }
+
 }
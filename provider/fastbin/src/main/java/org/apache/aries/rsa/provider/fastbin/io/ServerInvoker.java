@@ -18,6 +18,8 @@
  */
 package org.apache.aries.rsa.provider.fastbin.io;
 
+import java.util.concurrent.ExecutorService;
+
 import org.apache.aries.rsa.provider.fastbin.streams.StreamProvider;
 
 public interface ServerInvoker extends Service {
@@ -26,6 +28,17 @@ public interface ServerInvoker extends Service {
 
     void registerService(String id, ServiceFactory service, ClassLoader classLoader);
 
+    /**
+     * Registers a service whose calls are executed by its own executor, isolating
+     * it from the other services, rather than by the shared one. The executor is
+     * shut down when the service is unregistered. Invokers which do not support
+     * this execute the calls by their shared executor instead.
+     */
+    default void registerService(String id, ServiceFactory service, ClassLoader classLoader, ExecutorService executor) {
+        executor.shutdown();
+        registerService(id, service, classLoader);
+    }
+
     void unregisterService(String id);
 
     StreamProvider getStreamProvider();
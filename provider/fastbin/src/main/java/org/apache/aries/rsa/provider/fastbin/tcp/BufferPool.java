@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.fastbin.tcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * A pool of byte arrays in power-of-two size classes, which the codecs and invokers
+ * borrow frames and encoding buffers from, and return them to once they are no longer
+ * referenced, so that each call does not allocate new arrays.
+ * <p>
+ * An array is returned only by the code that knows nobody else references it anymore;
+ * arrays that are never returned are simply garbage collected. Arrays larger than the
+ * largest size class are not pooled.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 8; // 256 bytes
+    private static final int MAX_SHIFT = 16; // 64k
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private static class SizeClass {
+        final int size;
+        final int max;
+        final Queue<byte[]> arrays = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int size) {
+            this.size = size;
+            this.max = Math.max(4, MAX_POOLED_BYTES_PER_CLASS / size);
+        }
+    }
+
+    public BufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * @return the pool shared by all codecs and invokers
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    private SizeClass sizeClass(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? null : classes[shift - MIN_SHIFT];
+    }
+
+    /**
+     * Borrows an array.
+     *
+     * @param size the minimum size of the array
+     * @return an array of at least the given size (whose content is undefined)
+     */
+    public byte[] borrow(int size) {
+        SizeClass sizeClass = sizeClass(size);
+        if (sizeClass == null) {
+            return new byte[size];
+        }
+        byte[] array = sizeClass.arrays.poll();
+        if (array == null) {
+            return new byte[sizeClass.size];
+        }
+        sizeClass.count.decrementAndGet();
+        return array;
+    }
+
+    /**
+     * Returns an array to the pool, if it has the size of a size class and the
+     * class is not full already. The array must no longer be referenced by the caller.
+     *
+     * @param array the array
+     */
+    public void release(byte[] array) {
+        SizeClass sizeClass = sizeClass(array.length);
+        if (sizeClass == null || sizeClass.size != array.length) {
+            return;
+        }
+        if (sizeClass.count.incrementAndGet() > sizeClass.max) {
+            sizeClass.count.decrementAndGet();
+            return;
+        }
+        sizeClass.arrays.offer(array);
+    }
+
+    /**
+     * A buffer whose array was borrowed from the default pool, and is returned to it
+     * once the buffer was written to the channel. It must not be used after it was
+     * offered to a transport.
+     */
+    public static class PooledBuffer extends Buffer {
+
+        public PooledBuffer(byte[] data, int offset, int length) {
+            super(data, offset, length);
+        }
+    }
+
+    /**
+     * @return the number of arrays currently in the pool
+     */
+    public int getPooled() {
+        int pooled = 0;
+        for (SizeClass sizeClass : classes) {
+            pooled += sizeClass.count.get();
+        }
+        return pooled;
+    }
+}
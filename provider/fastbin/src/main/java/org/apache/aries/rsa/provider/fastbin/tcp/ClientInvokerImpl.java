@@ -22,10 +22,13 @@ import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -69,10 +72,17 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
     protected final AtomicLong correlationGenerator = new AtomicLong();
     protected final DispatchQueue queue;
-    protected final Map<String, TransportPool> transports = new HashMap<>();
+    /**
+     * The queues the transport pools are spread across, so that the pools for
+     * different servers decode responses and do their I/O concurrently.
+     */
+    protected final DispatchQueue[] transportQueues;
+    private final AtomicInteger nextTransportQueue = new AtomicInteger();
+    protected final Map<String, TransportPool> transports = new ConcurrentHashMap<>();
     protected final AtomicBoolean running = new AtomicBoolean(false);
-    protected final Map<Long, ResponseFuture> requests = new HashMap<>();
+    protected final Map<Long, ResponseFuture> requests = new ConcurrentHashMap<>();
     protected final long timeout;
+    protected final int poolSize;
     protected final Map<String, SerializationStrategy> serializationStrategies;
 
     public ClientInvokerImpl(DispatchQueue queue, Map<String, SerializationStrategy> serializationStrategies) {
@@ -80,8 +90,18 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     }
 
     public ClientInvokerImpl(DispatchQueue queue, long timeout, Map<String, SerializationStrategy> serializationStrategies) {
+        this(queue, new DispatchQueue[] {queue}, timeout, serializationStrategies);
+    }
+
+    public ClientInvokerImpl(DispatchQueue queue, DispatchQueue[] transportQueues, long timeout, Map<String, SerializationStrategy> serializationStrategies) {
+        this(queue, transportQueues, timeout, TransportPool.DEFAULT_POOL_SIZE, serializationStrategies);
+    }
+
+    public ClientInvokerImpl(DispatchQueue queue, DispatchQueue[] transportQueues, long timeout, int poolSize, Map<String, SerializationStrategy> serializationStrategies) {
         this.queue = queue;
+        this.transportQueues = transportQueues;
         this.timeout = timeout;
+        this.poolSize = poolSize;
         this.serializationStrategies = serializationStrategies;
     }
 
@@ -89,6 +109,13 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         return queue;
     }
 
+    /**
+     * Returns the queue for a new transport pool, assigning the queues round-robin.
+     */
+    protected DispatchQueue nextTransportQueue() {
+        return transportQueues[Math.floorMod(nextTransportQueue.getAndIncrement(), transportQueues.length)];
+    }
+
     public void start() throws Exception {
         start(null);
     }
@@ -131,7 +158,26 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     }
 
     public InvocationHandler getProxy(String address, String service, ClassLoader classLoader) {
-        return new ProxyInvocationHandler(address, service, classLoader);
+        return getProxy(address, service, classLoader, poolSize);
+    }
+
+    @Override
+    public InvocationHandler getProxy(String address, String service, ClassLoader classLoader, int poolSize) {
+        return new ProxyInvocationHandler(address, service, classLoader, poolSize);
+    }
+
+    /**
+     * Returns the current load of each transport, by the address it is connected to,
+     * which shows how evenly the requests are spread across the pooled transports.
+     *
+     * @return the transport loads by address
+     */
+    public Map<String, List<TransportPool.TransportLoad>> getTransportLoads() {
+        Map<String, List<TransportPool.TransportLoad>> loads = new HashMap<>();
+        for (Map.Entry<String, TransportPool> entry : transports.entrySet()) {
+            loads.put(entry.getKey(), entry.getValue().getLoads());
+        }
+        return loads;
     }
 
     protected void onCommand(TransportPool pool, Object data) {
@@ -232,7 +278,7 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         // and #2 reduce CPU load done in the execution queue since it's
         // serially executed.
 
-        DataByteArrayOutputStream baos = new DataByteArrayOutputStream((int) (handler.lastRequestSize * 1.10));
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream(BufferPool.getDefault().borrow((int) (handler.lastRequestSize * 1.10)));
         baos.writeInt(0); // we don't know the size yet...
         baos.writeVarLong(correlation);
         writeBuffer(baos, service);
@@ -242,35 +288,71 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
         final ResponseFuture future = methodData.invocationStrategy.request(methodData.serializationStrategy, classLoader, method, args, baos);
 
-        // toBuffer() is better than toByteArray() since it avoids an
-        // array copy.
-        final Buffer command = baos.toBuffer();
+        // wrapping the array is better than toByteArray() since it avoids an
+        // array copy, and lets the codec return the array to the pool once it was written.
+        final Buffer command = new BufferPool.PooledBuffer(baos.getData(), 0, baos.size());
 
         // Update the field size.
         BufferEditor editor = command.buffer().bigEndianEditor();
         editor.writeInt(command.length);
         handler.lastRequestSize = command.length;
 
-        queue().execute(new Runnable() {
-            public void run() {
-                try {
-                    TransportPool pool = transports.get(address);
-                    if (pool == null) {
-                        pool = new InvokerTransportPool(address, queue());
-                        transports.put(address, pool);
-                        pool.start();
-                    }
-                    requests.put(correlation, future);
-                    pool.offer(command, correlation);
-                } catch (Exception e) {
-                    LOG.info("Error while sending request", e);
-                    future.fail(e);
-                }
-            }
-        });
+        // the request is handed straight to the pool's own queue, so that requests
+        // to different servers are not serialized on a single queue
+        requests.put(correlation, future);
+        TransportPool pool = null;
+        try {
+            pool = transports.computeIfAbsent(address, a -> startTransportPool(a, handler.poolSize));
+            pool.offer(command, correlation);
+        } catch (Exception e) {
+            LOG.info("Error while sending request", e);
+            requests.remove(correlation);
+            future.fail(e);
+        }
 
         // TODO: make that configurable, that's only for tests
-        return future.get(timeout, TimeUnit.MILLISECONDS);
+        Object result;
+        try {
+            result = future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(pool, correlation);
+            throw e;
+        }
+        if (pool != null && requests.containsKey(correlation)) {
+            // an asynchronous call returns before its response, so it is timed out on the pool's queue instead
+            final TransportPool asyncPool = pool;
+            pool.executeAfter(timeout, () -> {
+                ResponseFuture pending = abandon(asyncPool, correlation);
+                if (pending != null) {
+                    pending.fail(new TimeoutException("No response within " + timeout + " ms"));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Stops waiting for the response to a request, so that it no longer counts towards
+     * the load of its transport (the response is ignored should it arrive after all).
+     *
+     * @return the future of the request, or null if it was already completed
+     */
+    private ResponseFuture abandon(TransportPool pool, long correlation) {
+        ResponseFuture future = requests.remove(correlation);
+        if (future != null && pool != null) {
+            pool.abandon(correlation);
+        }
+        return future;
+    }
+
+    private TransportPool startTransportPool(String address, int poolSize) {
+        TransportPool pool = new InvokerTransportPool(address, nextTransportQueue(), poolSize);
+        try {
+            pool.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not start transport pool for " + address, e);
+        }
+        return pool;
     }
 
     private void writeBuffer(DataByteArrayOutputStream baos, Buffer value) throws IOException {
@@ -283,12 +365,18 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         final String address;
         final UTF8Buffer service;
         final ClassLoader classLoader;
+        final int poolSize;
         int lastRequestSize = 250;
 
         public ProxyInvocationHandler(String address, String service, ClassLoader classLoader) {
+            this(address, service, classLoader, ClientInvokerImpl.this.poolSize);
+        }
+
+        public ProxyInvocationHandler(String address, String service, ClassLoader classLoader, int poolSize) {
             this.address = address;
             this.service = new UTF8Buffer(service);
             this.classLoader = classLoader;
+            this.poolSize = poolSize;
         }
 
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
@@ -332,13 +420,16 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     protected class InvokerTransportPool extends TransportPool {
 
         public InvokerTransportPool(String uri, DispatchQueue queue) {
+            this(uri, queue, TransportPool.DEFAULT_POOL_SIZE);
+        }
+
+        public InvokerTransportPool(String uri, DispatchQueue queue, int poolSize) {
             /*
-             * the evict time needs to be 0. Otherwise, the client will
-             * evict transport objects which breaks the connection for
-             * long-running async calls.
-             * Since there is limit of 2 transports per uri it shouldn't be that many objects
+             * only transports without calls in flight are evicted, so
+             * long-running async calls keep their connection, and the
+             * pool shrinks back to a single transport when it is idle
              */
-            super(uri, queue, TransportPool.DEFAULT_POOL_SIZE, 0);
+            super(uri, queue, poolSize, TransportPool.DEFAULT_EVICTION_DELAY);
         }
 
         @Override
@@ -23,25 +23,53 @@ import java.io.IOException;
 import java.net.ProtocolException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
 
 import org.apache.aries.rsa.provider.fastbin.io.ProtocolCodec;
 import org.fusesource.hawtbuf.Buffer;
 
+/**
+ * Encodes frames which are prefixed by their size (including the size field).
+ * <p>
+ * Incoming data is read in large chunks into a read buffer (which is allocated off-heap
+ * if the {@code aries.fastbin.direct.buffers} system property is set), so that several
+ * small frames are received with a single read, and each frame is copied into an array
+ * borrowed from the {@link BufferPool}. Written {@link BufferPool.PooledBuffer}s are
+ * returned to the pool once they were written completely.
+ * <p>
+ * Unless the {@code aries.fastbin.gathering.writes} system property is set to false,
+ * all queued frames are written with a single gathering write, rather than one write
+ * per frame.
+ */
 public class LengthPrefixedCodec implements ProtocolCodec {
 
     /** prevent DOS attacks in case a very large size field is sent. Default is 10MB */
     private static final int MAX_PACKET_SIZE = Integer.getInteger("aries.fastbin.max.packet.bytes", 1024 * 1024 * 10) <= 0 ? Integer.MAX_VALUE : Integer.getInteger("aries.fastbin.max.packet.bytes", 1024 * 1024 * 10);
 
+    private static final boolean DIRECT_BUFFERS = Boolean.getBoolean("aries.fastbin.direct.buffers");
+
+    private static final boolean GATHERING_WRITES = Boolean.parseBoolean(System.getProperty("aries.fastbin.gathering.writes", "true"));
+
+    /** the maximum number of buffers passed to a single gathering write */
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    final BufferPool pool = BufferPool.getDefault();
     final int write_buffer_size = 1024 * 64;
     long write_counter = 0L;
     WritableByteChannel write_channel;
     final Queue<ByteBuffer> next_write_buffers = new LinkedList<>();
+    // the pooled arrays of the buffers being written, or null for those which are not pooled
+    final Queue<byte[]> next_write_arrays = new LinkedList<>();
     int next_write_size = 0;
+    boolean gathering_writes = GATHERING_WRITES;
+    final ByteBuffer[] gathered_buffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    long write_calls = 0L;
 
     public boolean full() {
         return false;
@@ -80,22 +108,44 @@ public class LengthPrefixedCodec implements ProtocolCodec {
             Buffer buffer = (Buffer) value;
             next_write_size += buffer.length;
             next_write_buffers.add(buffer.toByteBuffer());
+            next_write_arrays.add(buffer instanceof BufferPool.PooledBuffer ? buffer.data : null);
             return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
         }
     }
 
     public BufferState flush() throws IOException {
         final long writeCounterBeforeFlush = write_counter;
-        while(!next_write_buffers.isEmpty()) {
-            final ByteBuffer nextBuffer = next_write_buffers.peek();
-            if (nextBuffer.remaining() < 1) {
-                next_write_buffers.remove();
-                continue;
+        boolean gather = gathering_writes && write_channel instanceof GatheringByteChannel;
+        while(true) {
+            releaseWritten();
+            if (next_write_buffers.isEmpty()) {
+                break;
             }
-            int bytesWritten = write_channel.write(nextBuffer);
+            long bytesWritten;
+            boolean partial;
+            if (gather) {
+                int count = 0;
+                long remaining = 0;
+                for (ByteBuffer buffer : next_write_buffers) {
+                    if (count == gathered_buffers.length) {
+                        break;
+                    }
+                    gathered_buffers[count++] = buffer;
+                    remaining += buffer.remaining();
+                }
+                bytesWritten = ((GatheringByteChannel) write_channel).write(gathered_buffers, 0, count);
+                Arrays.fill(gathered_buffers, 0, count, null);
+                partial = bytesWritten < remaining;
+            } else {
+                final ByteBuffer nextBuffer = next_write_buffers.peek();
+                bytesWritten = write_channel.write(nextBuffer);
+                partial = nextBuffer.remaining() > 0;
+            }
+            write_calls++;
             write_counter += bytesWritten;
             next_write_size -= bytesWritten;
-            if (nextBuffer.remaining() > 0) {
+            if (partial) {
+                releaseWritten();
                 break;
             }
         }
@@ -109,6 +159,37 @@ public class LengthPrefixedCodec implements ProtocolCodec {
         return BufferState.NOT_EMPTY;
     }
 
+    /**
+     * Removes the buffers which were written completely from the head of the queue,
+     * and returns their arrays to the pool if they were pooled.
+     */
+    private void releaseWritten() {
+        while (!next_write_buffers.isEmpty() && !next_write_buffers.peek().hasRemaining()) {
+            next_write_buffers.remove();
+            byte[] array = next_write_arrays.remove();
+            if (array != null) {
+                pool.release(array);
+            }
+        }
+    }
+
+    /**
+     * Sets whether all queued frames are written with a single gathering write (if the
+     * channel supports it), rather than one write per frame.
+     *
+     * @param gatheringWrites whether to use gathering writes
+     */
+    public void setGatheringWrites(boolean gatheringWrites) {
+        this.gathering_writes = gatheringWrites;
+    }
+
+    /**
+     * @return the number of writes to the channel, i.e. the number of write system calls made
+     */
+    public long getWriteCalls() {
+        return write_calls;
+    }
+
     public long getWriteCounter() {
         return write_counter;
     }
@@ -116,7 +197,12 @@ public class LengthPrefixedCodec implements ProtocolCodec {
     long read_counter = 0L;
     int read_buffer_size = 1024 * 64;
     ReadableByteChannel read_channel = null;
-    ByteBuffer read_buffer = ByteBuffer.allocate(4);
+    // the data read but not decoded yet, between its position and limit
+    final ByteBuffer read_buffer = (DIRECT_BUFFERS ? ByteBuffer.allocateDirect(read_buffer_size) : ByteBuffer.allocate(read_buffer_size)).flip();
+    // the frame being decoded, if its size is known
+    byte[] read_frame;
+    int read_frame_size;
+    int read_frame_position;
 
     public void setReadableByteChannel(ReadableByteChannel channel) {
         read_channel = channel;
@@ -131,47 +217,68 @@ public class LengthPrefixedCodec implements ProtocolCodec {
 
     public Object read() throws IOException {
         while(true) {
-            if( read_buffer.remaining()!=0 ) {
-                // keep reading from the channel until we fill the read buffer
-                int count = read_channel.read(read_buffer);
-                if (count == -1) {
-                    throw new EOFException("Peer disconnected");
-                } else if (count == 0) {
-                    return null;
+            Buffer frame = decodeFrame();
+            if( frame!=null ) {
+                return frame;
+            }
+            int count;
+            if( read_frame!=null && !read_buffer.hasRemaining() && read_frame_size - read_frame_position >= read_buffer.capacity() ) {
+                // the rest of a large frame is read directly into place, rather than through the read buffer
+                count = read_channel.read(ByteBuffer.wrap(read_frame, read_frame_position, read_frame_size - read_frame_position));
+                if (count > 0) {
+                    read_frame_position += count;
                 }
-                read_counter += count;
             } else {
-                //read buffer is full... interpret it
-                read_buffer.flip();
-
-                if( read_buffer.capacity() == 4 ) {
-                    // Finding out the
-                    int size = read_buffer.getInt(0);
-                    if( size < 4 ) {
-                        throw new ProtocolException("Expecting a size greater than 3");
-                    }
-                    else if( size > MAX_PACKET_SIZE ) {
-                        throw new ProtocolException("Packet length was declared as " + size + " but at most " + MAX_PACKET_SIZE + "is allowed. You can configure this limit with the system property aries.fastbin.max.packet.bytes");
-                    }
-                    if( size == 4 ) {
-                        // weird... empty frame... guess it could happen.
-                        Buffer rc = new Buffer(read_buffer);
-                        read_buffer = ByteBuffer.allocate(4);
-                        return rc;
-                    } else {
-                        // Resize to the right size... this resumes the reads
-                        ByteBuffer next = ByteBuffer.allocate(size);
-                        next.putInt(size);
-                        read_buffer = next;
-                    }
-                } else {
-                    // finish loading the rest of the buffer
-                    Buffer rc = new Buffer(read_buffer);
-                    read_buffer = ByteBuffer.allocate(4);
-                    return rc;
+                read_buffer.compact();
+                try {
+                    count = read_channel.read(read_buffer);
+                } finally {
+                    read_buffer.flip();
                 }
             }
+            if (count == -1) {
+                throw new EOFException("Peer disconnected");
+            } else if (count == 0) {
+                return null;
+            }
+            read_counter += count;
+        }
+    }
+
+    /**
+     * Decodes the next frame from the read buffer.
+     *
+     * @return the frame, or null if it was not received completely yet
+     */
+    private Buffer decodeFrame() throws ProtocolException {
+        if( read_frame==null ) {
+            if( read_buffer.remaining() < 4 ) {
+                return null;
+            }
+            int size = read_buffer.getInt();
+            if( size < 4 ) {
+                throw new ProtocolException("Expecting a size greater than 3");
+            }
+            else if( size > MAX_PACKET_SIZE ) {
+                throw new ProtocolException("Packet length was declared as " + size + " but at most " + MAX_PACKET_SIZE + "is allowed. You can configure this limit with the system property aries.fastbin.max.packet.bytes");
+            }
+            read_frame = pool.borrow(size);
+            read_frame_size = size;
+            read_frame[0] = (byte) (size >>> 24);
+            read_frame[1] = (byte) (size >>> 16);
+            read_frame[2] = (byte) (size >>> 8);
+            read_frame[3] = (byte) size;
+            read_frame_position = 4;
+        }
+        int length = Math.min(read_buffer.remaining(), read_frame_size - read_frame_position);
+        read_buffer.get(read_frame, read_frame_position, length);
+        read_frame_position += length;
+        if( read_frame_position < read_frame_size ) {
+            return null;
         }
+        Buffer rc = new Buffer(read_frame, 0, read_frame_size);
+        read_frame = null;
+        return rc;
     }
 
     public long getReadCounter() {
@@ -25,9 +25,12 @@ import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.aries.rsa.provider.fastbin.api.Dispatched;
 import org.apache.aries.rsa.provider.fastbin.api.ObjectSerializationStrategy;
@@ -66,11 +69,25 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         PRIMITIVE_TO_CLASS.put("D", double.class);
     }
 
-    protected final ExecutorService blockingExecutor = Executors.newFixedThreadPool(8);
+    public static final int DEFAULT_EXECUTOR_THREADS = 8;
+
+    // the initial size of the (pooled) buffer responses are encoded into
+    private static final int RESPONSE_BUFFER_SIZE = 1024 * 8;
+
+    /**
+     * Executes the calls to services which are neither {@link Dispatched} nor have their own executor.
+     */
+    protected final ExecutorService blockingExecutor;
     protected final DispatchQueue queue;
+    /**
+     * The queues the accepted transports are spread across, so that requests
+     * from different connections are decoded and dispatched concurrently.
+     */
+    protected final DispatchQueue[] transportQueues;
+    private final AtomicInteger nextTransportQueue = new AtomicInteger();
     private final Map<String, SerializationStrategy> serializationStrategies;
     protected final TransportServer server;
-    protected final Map<UTF8Buffer, ServiceFactoryHolder> holders = new HashMap<>();
+    protected final Map<UTF8Buffer, ServiceFactoryHolder> holders = new ConcurrentHashMap<>();
     private StreamProvider streamProvider;
 
     static class MethodData {
@@ -90,12 +107,14 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
         private final ServiceFactory factory;
         private final ClassLoader loader;
+        private final ExecutorService executor; // or null to use the shared executor
         private final Class clazz;
-        private HashMap<Buffer, MethodData> method_cache = new HashMap<>();
+        private final Map<Buffer, MethodData> method_cache = new ConcurrentHashMap<>();
 
-        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader) {
+        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader, ExecutorService executor) {
             this.factory = factory;
             this.loader = loader;
+            this.executor = executor;
             Object o = factory.get();
             clazz = o.getClass();
             factory.unget();
@@ -126,7 +145,8 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                 final InvocationStrategy invocationStrategy = InvocationType.forMethod(method);
 
                 rc = new MethodData(invocationStrategy, serializationStrategy, method);
-                method_cache.put(data, rc);
+                // the data is a slice of the request frame, which may be reused
+                method_cache.put(data.deepCopy(), rc);
             }
             return rc;
         }
@@ -147,7 +167,17 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
     public ServerInvokerImpl(String address, DispatchQueue queue, Map<String, SerializationStrategy> serializationStrategies) throws Exception {
+        this(address, queue, new DispatchQueue[] {queue}, serializationStrategies);
+    }
+
+    public ServerInvokerImpl(String address, DispatchQueue queue, DispatchQueue[] transportQueues, Map<String, SerializationStrategy> serializationStrategies) throws Exception {
+        this(address, queue, transportQueues, Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS), serializationStrategies);
+    }
+
+    public ServerInvokerImpl(String address, DispatchQueue queue, DispatchQueue[] transportQueues, ExecutorService blockingExecutor, Map<String, SerializationStrategy> serializationStrategies) throws Exception {
         this.queue = queue;
+        this.transportQueues = transportQueues;
+        this.blockingExecutor = blockingExecutor;
         this.serializationStrategies = serializationStrategies;
         this.server = new TcpTransportFactory().bind(address);
         this.server.setDispatchQueue(queue);
@@ -162,6 +192,13 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         return queue;
     }
 
+    /**
+     * Returns the queue for a newly accepted transport, assigning the queues round-robin.
+     */
+    protected DispatchQueue nextTransportQueue() {
+        return transportQueues[Math.floorMod(nextTransportQueue.getAndIncrement(), transportQueues.length)];
+    }
+
     public String getConnectAddress() {
         return this.server.getConnectAddress();
     }
@@ -172,19 +209,26 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
     public void registerService(final String id, final ServiceFactory service, final ClassLoader classLoader) {
-        queue().execute(new Runnable() {
-            public void run() {
-                holders.put(new UTF8Buffer(id), new ServiceFactoryHolder(service, classLoader));
-            }
-        });
+        registerHolder(id, new ServiceFactoryHolder(service, classLoader, null));
+    }
+
+    @Override
+    public void registerService(String id, ServiceFactory service, ClassLoader classLoader, ExecutorService executor) {
+        registerHolder(id, new ServiceFactoryHolder(service, classLoader, executor));
+    }
+
+    private void registerHolder(String id, ServiceFactoryHolder holder) {
+        ServiceFactoryHolder previous = holders.put(new UTF8Buffer(id), holder);
+        if (previous != null && previous.executor != null) {
+            previous.executor.shutdown();
+        }
     }
 
     public void unregisterService(final String id) {
-        queue().execute(new Runnable() {
-            public void run() {
-                holders.remove(new UTF8Buffer(id));
-            }
-        });
+        ServiceFactoryHolder holder = holders.remove(new UTF8Buffer(id));
+        if (holder != null && holder.executor != null) {
+            holder.executor.shutdown(); // calls already accepted still complete
+        }
     }
 
     public void start() throws Exception {
@@ -221,6 +265,11 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         this.server.stop(new Runnable() {
             public void run() {
                 blockingExecutor.shutdown();
+                for (ServiceFactoryHolder holder : holders.values()) {
+                    if (holder.executor != null) {
+                        holder.executor.shutdown();
+                    }
+                }
                 if (onComplete != null) {
                     onComplete.run();
                 }
@@ -263,10 +312,23 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
             Executor executor;
             if( svc instanceof Dispatched ) {
                 executor = ((Dispatched)svc).queue();
+            } else if( holder!=null && holder.executor!=null ) {
+                executor = holder.executor;
             } else {
                 executor = blockingExecutor;
             }
-            executor.execute(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the executor's queue is full (or it was shut down) - fail the call right away
+                // rather than letting the client wait for its timeout
+                if(holder!=null) {
+                    holder.factory.unget();
+                }
+                String message = "The request to service {"+service+"} was rejected: the service is overloaded";
+                LOG.debug(message);
+                new SendTask(bais, correlation, transport, message).run();
+            }
 
         } catch (Exception e) {
             LOG.info("Error while reading request", e);
@@ -274,16 +336,21 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
     private Buffer readBuffer(DataByteArrayInputStream bais) throws IOException {
-        byte[] b = new byte[bais.readVarInt()];
-        bais.readFully(b);
-        return new Buffer(b);
+        // a slice of the request frame rather than a copy
+        int length = bais.readVarInt();
+        if (length < 0 || length > bais.available()) {
+            throw new EOFException();
+        }
+        Buffer rc = new Buffer(bais.getRawData(), bais.getPos(), length);
+        bais.skip(length);
+        return rc;
     }
 
     class InvokerAcceptListener implements TransportAcceptListener {
 
         public void onAccept(TransportServer transportServer, TcpTransport transport) {
             transport.setProtocolCodec(new LengthPrefixedCodec());
-            transport.setDispatchQueue(queue());
+            transport.setDispatchQueue(nextTransportQueue());
             transport.setTransportListener(new InvokerTransportListener());
             transport.start();
         }
@@ -339,7 +406,7 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
         public void run() {
 
-            final DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+            final DataByteArrayOutputStream baos = new DataByteArrayOutputStream(BufferPool.getDefault().borrow(RESPONSE_BUFFER_SIZE));
             try {
                 baos.writeInt(0); // make space for the size field.
                 baos.writeVarLong(correlation);
@@ -356,13 +423,18 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                 public void run() {
                     if(holder!=null)
                         holder.factory.unget();
-                    final Buffer command = baos.toBuffer();
+                    if(methodData.serializationStrategy == ObjectSerializationStrategy.INSTANCE) {
+                        // the arguments were deserialized into objects, so the request frame
+                        // is no longer referenced (other strategies may still refer to it)
+                        BufferPool.getDefault().release(bais.getRawData());
+                    }
+                    final Buffer command = new BufferPool.PooledBuffer(baos.getData(), 0, baos.size());
 
                     // Update the size field.
                     BufferEditor editor = command.buffer().bigEndianEditor();
                     editor.writeInt(command.length);
 
-                    queue().execute(new Runnable() {
+                    transport.queue().execute(new Runnable() {
                         public void run() {
                             transport.offer(command);
                         }
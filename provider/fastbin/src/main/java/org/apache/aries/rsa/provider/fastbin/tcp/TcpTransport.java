@@ -67,6 +67,7 @@ public class TcpTransport implements Transport {
 
     int max_read_rate;
     int max_write_rate;
+    int coalesceWindowMicros = Integer.getInteger("aries.fastbin.coalesce.micros", 0);
     protected RateLimitingChannel rateLimitingChannel;
 
     boolean drained = true;
@@ -340,7 +341,16 @@ public class TcpTransport implements Transport {
                 default:
                     if( drained ) {
                         drained = false;
-                        resumeWrite();
+                        if( coalesceWindowMicros > 0 ) {
+                            // let the commands offered shortly after this one be written along with it
+                            dispatchQueue.executeAfter(coalesceWindowMicros, TimeUnit.MICROSECONDS, new Runnable() {
+                                public void run() {
+                                    resumeWrite();
+                                }
+                            });
+                        } else {
+                            resumeWrite();
+                        }
                     }
                     return true;
             }
@@ -400,6 +410,13 @@ public class TcpTransport implements Transport {
                     return;
                 }
             }
+            // the codec may hold further frames which were already read from the socket,
+            // which would not trigger the read source again
+            dispatchQueue.execute(new Runnable() {
+                public void run() {
+                    drainInbound();
+                }
+            });
         } catch (IOException e) {
             onTransportFailure(e);
         }
@@ -540,6 +557,22 @@ public class TcpTransport implements Transport {
         this.max_write_rate = max_write_rate;
     }
 
+    public int getCoalesceWindowMicros() {
+        return coalesceWindowMicros;
+    }
+
+    /**
+     * Sets the time for which the commands offered to an idle transport are held back, so
+     * that a burst of commands is written with few large writes rather than one write each.
+     * Defaults to the {@code aries.fastbin.coalesce.micros} system property, or 0 (commands
+     * are written right away). The dispatch timer's resolution is about a millisecond.
+     *
+     * @param coalesceWindowMicros the window in microseconds
+     */
+    public void setCoalesceWindowMicros(int coalesceWindowMicros) {
+        this.coalesceWindowMicros = coalesceWindowMicros;
+    }
+
     class RateLimitingChannel implements ReadableByteChannel, WritableByteChannel {
 
         int read_allowance = max_read_rate;
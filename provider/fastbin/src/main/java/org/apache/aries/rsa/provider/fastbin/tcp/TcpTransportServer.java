@@ -210,7 +210,8 @@ public class TcpTransportServer implements TransportServer {
             IntrospectionSupport.setProperties(transport, options);
         }
         if (transportOptions != null) {
-            IntrospectionSupport.setProperties(transport, transportOptions);
+            // setProperties removes the options it applied, which must apply to every accepted transport
+            IntrospectionSupport.setProperties(transport, new HashMap<>(transportOptions));
         }
         return transport;
     }
@@ -19,11 +19,13 @@
 package org.apache.aries.rsa.provider.fastbin.tcp;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -32,10 +34,20 @@ import org.apache.aries.rsa.provider.fastbin.io.ProtocolCodec;
 import org.apache.aries.rsa.provider.fastbin.io.Service;
 import org.apache.aries.rsa.provider.fastbin.io.Transport;
 import org.apache.aries.rsa.provider.fastbin.io.TransportListener;
+import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A pool of transports to a single uri.
+ * <p>
+ * Each command is sent over the connected transport with the fewest commands in flight
+ * (and then the fewest bytes in flight). The pool starts with a single transport, and
+ * grows up to its maximum size while all of its transports have commands in flight.
+ * Transports beyond the first that had nothing in flight for the eviction delay are
+ * stopped again, so the pool shrinks back once the load drops.
+ */
 public abstract class TransportPool implements Service {
 
     protected static final Logger LOG = LoggerFactory.getLogger(TransportPool.class);
@@ -47,7 +59,8 @@ public abstract class TransportPool implements Service {
     protected final String uri;
     protected final DispatchQueue queue;
     protected final LinkedList<Pair> pending = new LinkedList<>();
-    protected final Map<Transport, TransportState> transports = new HashMap<>();
+    // modified on the queue only, but concurrent so that the loads can be read from any thread
+    protected final Map<Transport, TransportState> transports = new ConcurrentHashMap<>();
     protected AtomicBoolean running = new AtomicBoolean(false);
 
     protected int poolSize;
@@ -73,13 +86,37 @@ public abstract class TransportPool implements Service {
     protected abstract void onFailure(Object id, Throwable throwable);
 
     protected void onDone(Object id) {
-        for (TransportState state : transports.values()) {
-            if (state.inflight.remove(id)) {
+        for (Map.Entry<Transport, TransportState> entry : transports.entrySet()) {
+            TransportState state = entry.getValue();
+            if (state.done(id)) {
+                if (state.inflight.isEmpty() && state.time > 0) {
+                    scheduleEviction(entry.getKey(), state);
+                }
                 break;
             }
         }
     }
 
+    /**
+     * Returns the current load of each transport in this pool.
+     *
+     * @return the loads, which may be read from any thread
+     */
+    public List<TransportLoad> getLoads() {
+        List<TransportLoad> loads = new ArrayList<>();
+        for (Map.Entry<Transport, TransportState> entry : transports.entrySet()) {
+            TransportState state = entry.getValue();
+            String address = entry.getKey().getRemoteAddress();
+            loads.add(new TransportLoad(address != null ? address : uri,
+                state.inflightCount, state.inflightBytes, state.sent));
+        }
+        return loads;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
     public void offer(final Object data, final Object id) {
         if (!running.get()) {
             throw new IllegalStateException("Transport pool stopped");
@@ -99,25 +136,93 @@ public abstract class TransportPool implements Service {
         });
     }
 
+    /**
+     * Forgets a command whose response is no longer waited for (e.g. because it timed out),
+     * so that it no longer counts towards the load of its transport.
+     */
+    public void abandon(final Object id) {
+        queue.execute(new Runnable() {
+            public void run() {
+                Iterator<Pair> it = pending.iterator();
+                while (it.hasNext()) {
+                    if (it.next().id.equals(id)) {
+                        it.remove();
+                        return;
+                    }
+                }
+                onDone(id);
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on the pool's queue after the given delay (in milliseconds).
+     */
+    public void executeAfter(long delay, Runnable task) {
+        queue.executeAfter(delay, TimeUnit.MILLISECONDS, task);
+    }
+
     protected boolean doOffer(Transport transport, Object command, Object id) {
-        transports.get(transport).inflight.add(id);
+        transports.get(transport).offered(id, command instanceof Buffer ? ((Buffer) command).length : 0);
         return transport.offer(command);
     }
 
+    /**
+     * Returns the connected (and not full) transport with the fewest commands in flight,
+     * starting another transport if all of them are busy and the pool is not full.
+     */
     protected Transport getIdleTransport() {
+        Transport best = null;
+        TransportState bestState = null;
         for (Map.Entry<Transport, TransportState> entry : transports.entrySet()) {
-            if (entry.getValue().time > 0) {
-                return entry.getKey();
+            TransportState state = entry.getValue();
+            if (state.time > 0 && (bestState == null || state.isLessLoadedThan(bestState))) {
+                best = entry.getKey();
+                bestState = state;
             }
         }
-        if (transports.size() < poolSize) {
+        if ((bestState == null || bestState.inflightCount > 0) && !isConnecting() && transports.size() < poolSize) {
             try {
                 startNewTransport();
             } catch (Exception e) {
                 LOG.info("Unable to start new transport", e);
             }
         }
-        return null;
+        return best;
+    }
+
+    /**
+     * Returns whether a transport is still being connected, in which case the pool
+     * does not grow further until it is known whether the new transport helps.
+     */
+    private boolean isConnecting() {
+        for (TransportState state : transports.values()) {
+            if (!state.connected) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the given transport once it had nothing in flight for the eviction delay,
+     * unless it is the last transport of the pool.
+     */
+    protected void scheduleEviction(final Transport transport, TransportState state) {
+        final long time = System.currentTimeMillis();
+        state.idleSince = time;
+        if (evictionDelay > 0) {
+            queue.executeAfter(evictionDelay, TimeUnit.MILLISECONDS, new Runnable() {
+                public void run() {
+                    TransportState state = transports.get(transport);
+                    if (state != null && state.idleSince == time && state.inflight.isEmpty() && transports.size() > 1) {
+                        LOG.debug("Evicting idle transport to: {}", uri);
+                        transports.remove(transport);
+                        transport.stop();
+                    }
+                }
+            });
+        }
     }
 
     public void start() throws Exception {
@@ -152,7 +257,7 @@ public abstract class TransportPool implements Service {
                         Transport transport = transports.keySet().iterator().next();
                         TransportState state = transports.remove(transport);
                         if (state != null) {
-                            for (Object id : state.inflight) {
+                            for (Object id : state.inflight.keySet()) {
                                 onFailure(id, new IOException("Transport stopped"));
                             }
                         }
@@ -187,11 +292,86 @@ public abstract class TransportPool implements Service {
 
     protected static class TransportState {
         long time;
-        final Set<Object> inflight;
+        long idleSince;
+        boolean connected;
+        // the ids of the commands in flight, with their sizes
+        final Map<Object, Integer> inflight;
+        volatile int inflightCount;
+        volatile long inflightBytes;
+        volatile long sent;
 
         public TransportState() {
             time = 0;
-            inflight = new HashSet<>();
+            inflight = new HashMap<>();
+        }
+
+        void offered(Object id, int size) {
+            inflight.put(id, size);
+            inflightCount = inflight.size();
+            inflightBytes += size;
+            sent++;
+        }
+
+        boolean done(Object id) {
+            Integer size = inflight.remove(id);
+            if (size == null) {
+                return false;
+            }
+            inflightCount = inflight.size();
+            inflightBytes -= size;
+            return true;
+        }
+
+        boolean isLessLoadedThan(TransportState other) {
+            return inflightCount < other.inflightCount
+                || inflightCount == other.inflightCount && inflightBytes < other.inflightBytes;
+        }
+    }
+
+    /**
+     * A snapshot of the load of a transport.
+     */
+    public static class TransportLoad {
+        private final String remoteAddress;
+        private final int inflight;
+        private final long inflightBytes;
+        private final long sent;
+
+        public TransportLoad(String remoteAddress, int inflight, long inflightBytes, long sent) {
+            this.remoteAddress = remoteAddress;
+            this.inflight = inflight;
+            this.inflightBytes = inflightBytes;
+            this.sent = sent;
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /**
+         * @return the number of commands that were sent but not answered yet
+         */
+        public int getInflight() {
+            return inflight;
+        }
+
+        /**
+         * @return the total size of the commands in flight
+         */
+        public long getInflightBytes() {
+            return inflightBytes;
+        }
+
+        /**
+         * @return the total number of commands sent over the transport
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        @Override
+        public String toString() {
+            return remoteAddress + " [inflight=" + inflight + ", inflightBytes=" + inflightBytes + ", sent=" + sent + "]";
         }
     }
 
@@ -202,6 +382,10 @@ public abstract class TransportPool implements Service {
         }
 
         public void onRefill(final Transport transport) {
+            TransportState state = transports.get(transport);
+            if (state == null) {
+                return; // evicted or failed, so the pending commands wait for a live transport
+            }
             while (pending.size() > 0 && !transport.full()) {
                 Pair pair = pending.removeFirst();
                 boolean accepted = doOffer(transport, pair.command, pair.id);
@@ -209,20 +393,11 @@ public abstract class TransportPool implements Service {
             }
 
             if( transport.full() ) {
-                transports.get(transport).time = 0L;
+                state.time = 0L;
             } else {
-                final long time = System.currentTimeMillis();
-                transports.get(transport).time = time;
-                if (evictionDelay > 0) {
-                    queue.executeAfter(evictionDelay, TimeUnit.MILLISECONDS, new Runnable() {
-                        public void run() {
-                            TransportState state = transports.get(transport);
-                            if (state != null && state.time == time) {
-                                transports.remove(transport);
-                                transport.stop();
-                            }
-                        }
-                    });
+                state.time = System.currentTimeMillis();
+                if (state.inflight.isEmpty()) {
+                    scheduleEviction(transport, state);
                 }
             }
 
@@ -233,7 +408,7 @@ public abstract class TransportPool implements Service {
                 LOG.info("Transport failure", error);
                 TransportState state = transports.remove(transport);
                 if (state != null) {
-                    for (Object id : state.inflight) {
+                    for (Object id : state.inflight.keySet()) {
                         onFailure(id, error);
                     }
                 }
@@ -248,6 +423,10 @@ public abstract class TransportPool implements Service {
         }
 
         public void onTransportConnected(Transport transport) {
+            TransportState state = transports.get(transport);
+            if (state != null) {
+                state.connected = true;
+            }
             transport.resumeRead();
             onRefill(transport);
         }
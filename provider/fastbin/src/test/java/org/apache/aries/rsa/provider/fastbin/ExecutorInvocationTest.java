@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.fastbin;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.aries.rsa.provider.fastbin.api.SerializationStrategy;
+import org.apache.aries.rsa.provider.fastbin.io.ServerInvoker;
+import org.apache.aries.rsa.provider.fastbin.tcp.ClientInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.ServerInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.TransportPool;
+import org.apache.aries.rsa.provider.fastbin.util.ExecutorSupport;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceException;
+
+public class ExecutorInvocationTest {
+
+    private static final int SLOW = 1000;
+
+    private ServerInvokerImpl server;
+    private ClientInvokerImpl client;
+    private ExecutorService callers;
+
+    @Before
+    public void setup() throws Exception {
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<>();
+        // a single shared thread, which a slow call occupies
+        ExecutorService shared = ExecutorSupport.newExecutor("shared", 1, 0, false);
+        server = new ServerInvokerImpl("tcp://localhost:0", queue, new DispatchQueue[] {queue}, shared, map);
+        server.start();
+        client = new ClientInvokerImpl(queue, map);
+        client.start();
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        server.stop();
+        client.stop();
+    }
+
+    private TestService register(String id, ExecutorService executor) {
+        ServerInvoker.ServiceFactory factory = new ServerInvoker.ServiceFactory() {
+            public Object get() {
+                return new TestServiceImpl();
+            }
+            public void unget() {
+            }
+        };
+        if (executor == null) {
+            server.registerService(id, factory, TestServiceImpl.class.getClassLoader());
+        } else {
+            server.registerService(id, factory, TestServiceImpl.class.getClassLoader(), executor);
+        }
+        InvocationHandler handler = client.getProxy(server.getConnectAddress(), id, TestServiceImpl.class.getClassLoader());
+        return (TestService) Proxy.newProxyInstance(TestServiceImpl.class.getClassLoader(), new Class[]{TestService.class}, handler);
+    }
+
+    @Test(timeout=30*1000)
+    public void testServiceWithOwnExecutorIsIsolated() throws Exception {
+        TestService batch = register("batch", null);
+        TestService critical = register("critical", ExecutorSupport.newExecutor("critical", 1, 0, false));
+        Future<String> slow = callers.submit(() -> batch.sleep(SLOW));
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        assertEquals("0", critical.sleep(0)); // not queued behind the slow call
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(SLOW / 2));
+        assertEquals(String.valueOf(SLOW), slow.get());
+    }
+
+    @Test(timeout=30*1000)
+    public void testCallsBeyondQueueSizeAreRejected() throws Exception {
+        TestService service = register("bounded", ExecutorSupport.newExecutor("bounded", 1, 1, false));
+        List<Future<String>> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            calls.add(callers.submit(() -> service.sleep(SLOW)));
+            Thread.sleep(50);
+        }
+        int rejected = 0;
+        for (Future<String> call : calls) {
+            try {
+                assertEquals(String.valueOf(SLOW), call.get());
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ServiceException);
+                rejected++;
+            }
+        }
+        assertEquals(2, rejected); // one executing, one queued
+    }
+
+    @Test(timeout=30*1000)
+    public void testTimedOutCallLeavesNoLoad() throws Exception {
+        register("timeout", null);
+        ClientInvokerImpl impatient = new ClientInvokerImpl(Dispatch.createQueue(), SLOW / 5, new HashMap<>());
+        impatient.start();
+        try {
+            InvocationHandler handler = impatient.getProxy(server.getConnectAddress(), "timeout", TestServiceImpl.class.getClassLoader());
+            TestService service = (TestService) Proxy.newProxyInstance(TestServiceImpl.class.getClassLoader(), new Class[]{TestService.class}, handler);
+            try {
+                service.sleep(SLOW);
+                fail("Expected the call to time out");
+            } catch (ServiceException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            // the load is released on the pool's queue, so wait for it
+            long deadline = System.currentTimeMillis() + SLOW / 2;
+            while (inflight(impatient) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, inflight(impatient));
+            for (TransportPool.TransportLoad load : impatient.getTransportLoads().get(server.getConnectAddress())) {
+                assertEquals(0, load.getInflightBytes());
+            }
+        } finally {
+            impatient.stop();
+        }
+    }
+
+    private static int inflight(ClientInvokerImpl client) {
+        int inflight = 0;
+        for (List<TransportPool.TransportLoad> loads : client.getTransportLoads().values()) {
+            for (TransportPool.TransportLoad load : loads) {
+                inflight += load.getInflight();
+            }
+        }
+        return inflight;
+    }
+
+    public interface TestService {
+        String sleep(int millis);
+    }
+
+    public static class TestServiceImpl implements TestService {
+
+        @Override
+        public String sleep(int millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return String.valueOf(millis);
+        }
+    }
+}
@@ -27,8 +27,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -38,8 +40,11 @@ import java.util.concurrent.TimeUnit;
 import org.apache.aries.rsa.provider.fastbin.InvocationTest.HelloImpl;
 import org.apache.aries.rsa.provider.fastbin.api.SerializationStrategy;
 import org.apache.aries.rsa.provider.fastbin.io.ServerInvoker;
+import org.apache.aries.rsa.provider.fastbin.io.Transport;
 import org.apache.aries.rsa.provider.fastbin.tcp.ClientInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.LengthPrefixedCodec;
 import org.apache.aries.rsa.provider.fastbin.tcp.ServerInvokerImpl;
+import org.apache.aries.rsa.provider.fastbin.tcp.TransportPool;
 import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.junit.After;
@@ -126,6 +131,90 @@ public class FutureInvocationTest {
         }
     }
 
+    @Test
+    public void testFanOutIsSpreadAcrossPool() throws Exception {
+        int poolSize = 4;
+        InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", TestServiceImpl.class.getClassLoader(), poolSize);
+        TestService service = (TestService)Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[]{TestService.class}, handler);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(service.helloAsyncStandardFuture()); // each call stays in flight for a while
+            Thread.sleep(20);
+        }
+        List<TransportPool.TransportLoad> loads = client.getTransportLoads().get(server.getConnectAddress());
+        assertEquals(poolSize, loads.size());
+        for (TransportPool.TransportLoad load : loads) {
+            assertTrue(load.toString(), load.getSent() > 0);
+        }
+        for (Future<String> future : results) {
+            assertEquals("Hello", future.get(5, TimeUnit.SECONDS));
+        }
+        for (TransportPool.TransportLoad load : client.getTransportLoads().get(server.getConnectAddress())) {
+            assertEquals(0, load.getInflight());
+            assertEquals(0, load.getInflightBytes());
+        }
+    }
+
+    @Test(timeout=60*1000)
+    public void testCoalescingWindowReducesWrites() throws Exception {
+        long[] writeCalls = new long[2];
+        // a window longer than it takes to answer a burst, so that the difference does not depend on timing
+        int[] windows = {0, 20000};
+        for (int w = 0; w < windows.length; w++) {
+            int window = windows[w];
+            DispatchQueue queue = Dispatch.createQueue();
+            HashMap<String, SerializationStrategy> map = new HashMap<>();
+            // the transports accepted by the server, whose codecs count their writes
+            Set<Transport> accepted = ConcurrentHashMap.newKeySet();
+            ServerInvokerImpl coalescingServer = new ServerInvokerImpl("tcp://localhost:0?transport.coalesceWindowMicros=" + window, queue, map) {
+                @Override
+                protected void onCommand(Transport transport, Object data) {
+                    accepted.add(transport);
+                    super.onCommand(transport, data);
+                }
+            };
+            coalescingServer.start();
+            ClientInvokerImpl coalescingClient = new ClientInvokerImpl(queue, map);
+            coalescingClient.start();
+            try {
+                coalescingServer.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                    public Object get() {
+                        return new TestServiceImpl();
+                    }
+
+                    public void unget() {
+                    }
+                }, TestServiceImpl.class.getClassLoader());
+                InvocationHandler handler = coalescingClient.getProxy(coalescingServer.getConnectAddress(), "service-id", TestServiceImpl.class.getClassLoader());
+                TestService service = (TestService)Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[]{TestService.class}, handler);
+
+                int bursts = 10;
+                int burstSize = 200;
+                long start = System.nanoTime();
+                for (int b = 0; b < bursts; b++) {
+                    List<CompletableFuture<String>> results = new ArrayList<>();
+                    for (int i = 0; i < burstSize; i++) {
+                        results.add(service.helloAsync());
+                    }
+                    for (CompletableFuture<String> result : results) {
+                        assertEquals("Hello", result.get(5, TimeUnit.SECONDS));
+                    }
+                }
+                long end = System.nanoTime();
+                for (Transport transport : accepted) {
+                    writeCalls[w] += ((LengthPrefixedCodec) transport.getProtocolCodec()).getWriteCalls();
+                }
+                System.err.printf("Coalescing window %dus: %d writes, %,.2f calls/second%n", window, writeCalls[w],
+                        bursts * burstSize * (double) TimeUnit.SECONDS.toNanos(1) / (end - start));
+            } finally {
+                coalescingServer.stop();
+                coalescingClient.stop();
+            }
+        }
+        assertTrue("responses were not coalesced: " + writeCalls[0] + " vs " + writeCalls[1] + " writes",
+                writeCalls[1] < writeCalls[0]);
+    }
+
     @Test
     public void testInvokeFutureExceptionally() throws Exception {
 
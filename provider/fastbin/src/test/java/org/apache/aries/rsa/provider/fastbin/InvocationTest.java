@@ -111,6 +111,60 @@ public class InvocationTest {
         }
     }
 
+    @Test(timeout=30*1000)
+    public void testInvokeOnShardedQueues() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        DispatchQueue[] transportQueues = new DispatchQueue[4];
+        for (int i = 0; i < transportQueues.length; i++) {
+            transportQueues[i] = Dispatch.createQueue("transport-" + i);
+        }
+        HashMap<String, SerializationStrategy> map = new HashMap<>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, transportQueues, map);
+        server.start();
+
+        // each client opens its own connections, which the server spreads across its queues
+        List<ClientInvokerImpl> clients = new ArrayList<>();
+        for (int i = 0; i < transportQueues.length; i++) {
+            ClientInvokerImpl client = new ClientInvokerImpl(queue, transportQueues, ClientInvokerImpl.DEFAULT_TIMEOUT, map);
+            client.start();
+            clients.add(client);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients.size());
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (ClientInvokerImpl client : clients) {
+                InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+                Hello hello = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        assertEquals("Hello " + i + "!", hello.hello(String.valueOf(i)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+            server.stop();
+            for (ClientInvokerImpl client : clients) {
+                client.stop();
+            }
+        }
+    }
+
     /**
      * tests that requests to an unknown ID throw an exception instead of deadlocking the request
      * @throws Exception
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.fastbin.tcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testBorrowRoundsUpToSizeClass() {
+        BufferPool pool = new BufferPool();
+        assertEquals(256, pool.borrow(0).length);
+        assertEquals(256, pool.borrow(256).length);
+        assertEquals(512, pool.borrow(257).length);
+        assertEquals(64 * 1024, pool.borrow(64 * 1024).length);
+        assertEquals(64 * 1024 + 1, pool.borrow(64 * 1024 + 1).length);
+    }
+
+    @Test
+    public void testReleasedArrayIsReused() {
+        BufferPool pool = new BufferPool();
+        byte[] array = pool.borrow(1000);
+        pool.release(array);
+        assertEquals(1, pool.getPooled());
+
+        assertSame(array, pool.borrow(600));
+        assertEquals(0, pool.getPooled());
+        assertNotSame(array, pool.borrow(600));
+    }
+
+    @Test
+    public void testOnlySizeClassArraysArePooled() {
+        BufferPool pool = new BufferPool();
+        pool.release(new byte[1000]);
+        pool.release(new byte[128 * 1024]);
+        assertEquals(0, pool.getPooled());
+    }
+
+    @Test
+    public void testSizeClassIsBounded() {
+        BufferPool pool = new BufferPool();
+        for (int i = 0; i < 100; i++) {
+            pool.release(new byte[64 * 1024]);
+        }
+        assertEquals(16, pool.getPooled());
+    }
+}
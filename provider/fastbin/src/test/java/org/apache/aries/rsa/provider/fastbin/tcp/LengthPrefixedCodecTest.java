@@ -18,11 +18,17 @@
  */
 package org.apache.aries.rsa.provider.fastbin.tcp;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.aries.rsa.provider.fastbin.io.ProtocolCodec.BufferState;
 import org.easymock.EasyMock;
@@ -157,6 +163,119 @@ public class LengthPrefixedCodecTest {
         codec.read();
     }
 
+    @Test
+    public void testRead$SeveralFramesInOneRead() throws Exception {
+        expect(readableByteChannel.read(EasyMock.anyObject())).andAnswer(new IAnswer<Integer>() {
+
+            @Override
+            public Integer answer() throws Throwable {
+                ByteBuffer buffer = (ByteBuffer)EasyMock.getCurrentArguments()[0];
+                buffer.putInt(6).put((byte) 1).put((byte) 2);
+                buffer.putInt(5).put((byte) 3);
+                buffer.putInt(8); // the start of a third frame
+                return 14;
+            }
+        });
+        expect(readableByteChannel.read(EasyMock.anyObject())).andReturn(0);
+        replay(readableByteChannel);
+
+        Buffer first = (Buffer) codec.read();
+        assertEquals(6, first.length);
+        assertEquals(1, first.get(4));
+        assertEquals(2, first.get(5));
+        Buffer second = (Buffer) codec.read();
+        assertEquals(5, second.length);
+        assertEquals(3, second.get(4));
+        assertNull(codec.read());
+        assertEquals(14L, codec.getReadCounter());
+    }
+
+    @Test
+    public void testFlush$ReleasesPooledBuffer() throws Exception {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] array = pool.borrow(256);
+        codec.write(new BufferPool.PooledBuffer(array, 0, 8));
+        expect(writableByteChannel.write(anyObject())).andAnswer(createWriteAnswer(8));
+        replay(writableByteChannel);
+
+        assertEquals(BufferState.EMPTY, codec.flush());
+
+        assertSame(array, pool.borrow(256));
+    }
+
+    @Test
+    public void testFlush$Gathering() throws Exception {
+        GatheringByteChannel gatheringByteChannel = createMock(GatheringByteChannel.class);
+        codec.setWritableByteChannel(gatheringByteChannel);
+        for (int i = 0; i < 10; i++) {
+            codec.write(Buffer.ascii("TESTDATA"));
+        }
+        expect(gatheringByteChannel.write(anyObject(ByteBuffer[].class), EasyMock.eq(0), EasyMock.eq(10))).andAnswer(new IAnswer<Long>() {
+            @Override
+            public Long answer() throws Throwable {
+                ByteBuffer[] buffers = (ByteBuffer[]) getCurrentArguments()[0];
+                // only part of the sixth frame fits into the socket buffer
+                for (int i = 0; i < 5; i++) {
+                    buffers[i].position(buffers[i].limit());
+                }
+                buffers[5].position(buffers[5].position() + 3);
+                return 43L;
+            }
+        });
+        replay(gatheringByteChannel);
+
+        assertEquals(BufferState.NOT_EMPTY, codec.flush());
+        assertEquals(43L, codec.getWriteCounter());
+        assertEquals(1L, codec.getWriteCalls());
+        assertEquals(5, codec.next_write_buffers.size());
+        assertEquals(5, codec.next_write_arrays.size());
+    }
+
+    @Test
+    public void testFlush$GatheringBenchmark() throws Exception {
+        int frames = 200000;
+        int burst = 32;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            for (boolean gathering : new boolean[] {false, true}) {
+                try (SocketChannel out = SocketChannel.open(server.getLocalAddress());
+                     SocketChannel in = server.accept()) {
+                    Thread reader = new Thread(() -> {
+                        ByteBuffer sink = ByteBuffer.allocate(1024 * 64);
+                        try {
+                            while (in.read(sink) >= 0) {
+                                sink.clear();
+                            }
+                        } catch (Exception e) {
+                            // closed
+                        }
+                    });
+                    reader.start();
+
+                    LengthPrefixedCodec codec = new LengthPrefixedCodec();
+                    codec.setWritableByteChannel(out);
+                    codec.setGatheringWrites(gathering);
+                    byte[] frame = new byte[64];
+                    long start = System.nanoTime();
+                    for (int i = 0; i < frames; i += burst) {
+                        for (int j = 0; j < burst; j++) {
+                            codec.write(new Buffer(frame));
+                        }
+                        codec.flush(); // the channel is blocking, so this writes everything
+                    }
+                    long end = System.nanoTime();
+                    out.shutdownOutput();
+                    reader.join();
+
+                    assertEquals((long) frames * frame.length, codec.getWriteCounter());
+                    assertEquals(gathering ? frames / burst : frames, codec.getWriteCalls());
+                    System.err.printf("Gathering writes %s: %,d write calls, %,.2f frames/second%n", gathering,
+                            codec.getWriteCalls(), frames * (double) TimeUnit.SECONDS.toNanos(1) / (end - start));
+                }
+            }
+        }
+    }
+
     private IAnswer<Integer> createWriteAnswer(final int length) {
         return new IAnswer<Integer>() {
             @Override
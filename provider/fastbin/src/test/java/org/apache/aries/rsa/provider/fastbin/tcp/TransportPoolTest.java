@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.fastbin.tcp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.aries.rsa.provider.fastbin.io.ProtocolCodec;
+import org.apache.aries.rsa.provider.fastbin.io.Transport;
+import org.easymock.EasyMock;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.junit.Test;
+
+public class TransportPoolTest {
+
+    private static class TestPool extends TransportPool {
+
+        final List<Object> failed = new ArrayList<>();
+
+        TestPool() {
+            super("tcp://localhost:0", Dispatch.createQueue());
+        }
+
+        @Override
+        protected Transport createTransport(String uri) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected ProtocolCodec createCodec() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void onCommand(Object command) {
+        }
+
+        @Override
+        protected void onFailure(Object id, Throwable throwable) {
+            failed.add(id);
+        }
+    }
+
+    @Test
+    public void testRefillOfRemovedTransportKeepsPendingCommands() {
+        TestPool pool = new TestPool();
+        pool.pending.add(new TransportPool.Pair("command", 1L));
+        // a transport that was evicted or failed, so it is no longer part of the pool
+        Transport transport = EasyMock.createMock(Transport.class);
+        EasyMock.replay(transport);
+
+        pool.new Listener().onRefill(transport);
+
+        assertEquals(1, pool.pending.size());
+        assertEquals(0, pool.failed.size());
+        EasyMock.verify(transport); // nothing was offered to it
+    }
+}
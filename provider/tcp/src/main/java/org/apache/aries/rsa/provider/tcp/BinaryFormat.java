@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.aries.rsa.provider.tcp.Protocol.FrameOutputStream;
+
+/**
+ * The compact binary encoding of call arguments and results.
+ * <p>
+ * A list of values is encoded as a count followed by each value's tag byte.
+ * Primitive wrappers, strings, byte arrays and byte buffers are encoded directly after their tag,
+ * while any other object is only tagged as such, and all of these objects are
+ * then written together in a single serialized section at the end (using the
+ * endpoint's serializer or Java serialization), so that they still share class
+ * descriptors and object references.
+ * <p>
+ * Large strings, byte arrays and buffers are added to the frame as segments, which
+ * are written to the connection from where they are rather than copied into the frame,
+ * and received buffers share the content of the received frame, so that large
+ * binary values are not copied on either side (other than into a byte array
+ * parameter or result of the exact size).
+ */
+final class BinaryFormat {
+
+    // value tags
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte BYTE = 3;
+    static final byte SHORT = 4;
+    static final byte CHAR = 5;
+    static final byte INT = 6;
+    static final byte LONG = 7;
+    static final byte FLOAT = 8;
+    static final byte DOUBLE = 9;
+    static final byte STRING = 10;
+    static final byte BYTES = 11;
+    static final byte OBJECT = 12;
+    static final byte BUFFER = 13;
+
+    private BinaryFormat() {
+        // utility class
+    }
+
+    /**
+     * Writes a list of values.
+     *
+     * @param out the frame to write to
+     * @param codec the codec used to write serialized objects
+     * @param format the endpoint's call format
+     * @param values the values to write (may be null, which is written as an empty list)
+     * @throws IOException if an error occurs
+     */
+    static void writeValues(FrameOutputStream out, CallCodec codec, CallFormat format, Object... values) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        int count = values == null ? 0 : values.length;
+        dos.writeInt(count);
+        List<Object> objects = null;
+        for (int i = 0; i < count; i++) {
+            if (!writeValue(out, dos, values[i])) {
+                dos.writeByte(OBJECT);
+                if (objects == null) {
+                    objects = new ArrayList<>();
+                }
+                objects.add(values[i]);
+            }
+        }
+        if (objects != null) {
+            codec.writeObjects(out, format, objects.toArray());
+        }
+    }
+
+    private static boolean writeValue(FrameOutputStream frame, DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            frame.writeSegment(bytes);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[])value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            frame.writeSegment(bytes);
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer)value;
+            out.writeByte(BUFFER);
+            out.writeInt(buffer.remaining());
+            frame.writeSegment(buffer);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float)value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short)value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte)value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character)value);
+        } else {
+            return false; // written by the serializer
+        }
+        return true;
+    }
+
+    /**
+     * Reads a list of values.
+     *
+     * @param in the stream to read from, which must contain only the values
+     * @param codec the codec used to read serialized objects
+     * @param format the endpoint's call format
+     * @return the values
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if the class of a serialized object cannot be resolved
+     */
+    static Object[] readValues(ByteArrayInputStream in, CallCodec codec, CallFormat format) throws IOException, ClassNotFoundException {
+        DataInputStream dis = new DataInputStream(in);
+        int count = dis.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new StreamCorruptedException("invalid value count " + count);
+        }
+        Object[] values = new Object[count];
+        int objectCount = 0;
+        for (int i = 0; i < count; i++) {
+            byte tag = dis.readByte();
+            if (tag == OBJECT) {
+                objectCount++;
+                values[i] = ObjectPlaceholder.INSTANCE;
+            } else {
+                values[i] = readValue(in, dis, tag);
+            }
+        }
+        if (objectCount > 0) {
+            Object[] objects = codec.readObjects(in, format, objectCount);
+            for (int i = 0, j = 0; i < count; i++) {
+                if (values[i] == ObjectPlaceholder.INSTANCE) {
+                    values[i] = objects[j++];
+                }
+            }
+        }
+        return values;
+    }
+
+    private static Object readValue(ByteArrayInputStream payload, DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case NULL: return null;
+            case FALSE: return Boolean.FALSE;
+            case TRUE: return Boolean.TRUE;
+            case BYTE: return in.readByte();
+            case SHORT: return in.readShort();
+            case CHAR: return in.readChar();
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case FLOAT: return in.readFloat();
+            case DOUBLE: return in.readDouble();
+            case STRING: return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES: return readBytes(in);
+            case BUFFER: return payload instanceof Protocol.PayloadInputStream
+                ? ((Protocol.PayloadInputStream)payload).slice(in.readInt())
+                : ByteBuffer.wrap(readBytes(in));
+            default: throw new StreamCorruptedException("invalid value tag " + tag);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available()) {
+            throw new StreamCorruptedException("invalid length " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Marks the position of a value that is read from the serialized objects section.
+     */
+    private enum ObjectPlaceholder {
+        INSTANCE
+    }
+}
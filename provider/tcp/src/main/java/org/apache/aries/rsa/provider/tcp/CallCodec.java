@@ -0,0 +1,544 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.aries.rsa.provider.tcp.Protocol.FrameOutputStream;
+import org.apache.aries.rsa.provider.tcp.ser.BasicObjectInputStream;
+import org.apache.aries.rsa.provider.tcp.ser.BasicObjectOutputStream;
+import org.apache.aries.rsa.provider.tcp.ser.ClassDescriptorTable;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+
+/**
+ * Encodes and decodes the calls and results sent over a single connection,
+ * in the {@link CallFormat} of the endpoint they are sent to.
+ * <p>
+ * Java serialized objects are written with a {@link ClassDescriptorTable} per direction
+ * of the connection, so that class descriptors are only sent the first time they are
+ * used, and are referred to by id after that. As a result, a frame which contains
+ * new definitions must be read before the frames that follow it on the connection.
+ * Such frames are flagged, so that a connection which hands off received frames to
+ * other threads can first {@link #readDefinitions read their definitions} in order,
+ * while frames without new definitions (which are the vast majority once a connection
+ * is warmed up) can be decoded by any thread at any time.
+ * <p>
+ * Similarly, each frame must be sent ahead of any frame that is created after
+ * it on the same connection, once {@link FrameOutputStream#sent()} is called.
+ * <p>
+ * If the endpoint selected a {@link Serializer}, it is used instead of Java serialization.
+ */
+class CallCodec {
+
+    /**
+     * A received {@link Protocol#RESULT} (or {@link Protocol#CHUNK}) frame, which can be decoded by any thread
+     * once its connection has read its definitions.
+     */
+    static class EncodedResult {
+
+        private final CallCodec codec;
+        private final CallFormat format;
+        private final byte[] payload;
+
+        EncodedResult(CallCodec codec, CallFormat format, byte[] payload) {
+            this.codec = codec;
+            this.format = format;
+            this.payload = payload;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Decodes the result.
+         *
+         * @return an array containing the error thrown by the call (or null if it succeeded),
+         *         followed by the value returned by the call
+         * @throws IOException if an error occurs
+         * @throws ClassNotFoundException if a class cannot be resolved
+         */
+        Object[] decode() throws IOException, ClassNotFoundException {
+            return codec.readResult(payload, format);
+        }
+
+        /**
+         * Decodes the results of a batch.
+         *
+         * @param count the number of calls in the batch
+         * @return the errors and values of the calls (see {@link CallCodec#readResults})
+         * @throws IOException if an error occurs
+         * @throws ClassNotFoundException if a class cannot be resolved
+         */
+        Object[] decode(int count) throws IOException, ClassNotFoundException {
+            return codec.readResults(payload, format, count);
+        }
+
+        /**
+         * Decodes a chunk of a streamed result.
+         *
+         * @return the chunk
+         * @throws IOException if an error occurs
+         * @throws ClassNotFoundException if a class cannot be resolved
+         */
+        Protocol.Chunk decodeChunk() throws IOException, ClassNotFoundException {
+            return codec.readChunk(payload, format);
+        }
+    }
+
+    private final ClassDescriptorTable outDescriptors = new ClassDescriptorTable();
+    private final ClassDescriptorTable inDescriptors = new ClassDescriptorTable();
+
+    /**
+     * Writes a number of objects into a frame, using the serializer if there is one,
+     * or Java serialization otherwise.
+     *
+     * @param frame the frame
+     * @param format the endpoint's call format
+     * @param objects the objects
+     * @throws IOException if an error occurs
+     */
+    void writeObjects(FrameOutputStream frame, CallFormat format, Object... objects) throws IOException {
+        if (format.serializer != null) {
+            format.serializer.writeObjects(frame, objects);
+            return;
+        }
+        BasicObjectOutputStream out = new BasicObjectOutputStream(frame, outDescriptors);
+        frame.setObjectOutput(out);
+        for (Object o : objects) {
+            out.writeObject(o);
+        }
+        out.close();
+    }
+
+    /**
+     * Reads the objects written by {@link #writeObjects}. When using Java serialization,
+     * all objects are read even if some of them fail, so that all of the stream's class
+     * descriptor definitions are read.
+     *
+     * @param in the stream containing the objects
+     * @param format the endpoint's call format
+     * @param count the number of objects
+     * @return the objects
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Object[] readObjects(InputStream in, CallFormat format, int count) throws IOException, ClassNotFoundException {
+        Serializer serializer = format.serializer;
+        if (serializer != null) {
+            Object[] objects = serializer.readObjects(in, count, format.loader);
+            if (objects == null || objects.length != count) {
+                throw new StreamCorruptedException("serializer " + serializer.name() + " read an invalid number of objects");
+            }
+            return objects;
+        }
+        BasicObjectInputStream ois = new BasicObjectInputStream(in, inDescriptors, format.classCache);
+        ois.addClassLoader(format.loader);
+        Object[] objects = new Object[count];
+        ClassNotFoundException error = null;
+        for (int i = 0; i < count; i++) {
+            try {
+                objects[i] = ois.readObject();
+            } catch (ClassNotFoundException e) {
+                // the object was read in full, so we can continue to the next one
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return objects;
+    }
+
+    /**
+     * Copies values by writing them in one call format and reading them in another
+     * (whose class loader may resolve classes differently), just as if they were sent
+     * over a connection, for calls to an endpoint exported in the same JVM.
+     *
+     * @param values the values
+     * @param from the call format the values are written in
+     * @param to the call format the copies are read in
+     * @return the copies
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    static Object[] copy(Object[] values, CallFormat from, CallFormat to) throws IOException, ClassNotFoundException {
+        CallCodec codec = new CallCodec(); // all class descriptors are written in full
+        FrameOutputStream frame = new FrameOutputStream(Protocol.RESULT, 0, true);
+        BinaryFormat.writeValues(frame, codec, from, values);
+        ByteBuffer buffer = frame.toFrame();
+        byte[] payload = Arrays.copyOfRange(buffer.array(), 4, buffer.limit());
+        return BinaryFormat.readValues(payloadInput(payload, Protocol.CALL_HEADER_SIZE), codec, to);
+    }
+
+    /**
+     * Creates a {@link Protocol#CALL} frame.
+     *
+     * @param callId the call id
+     * @param endpoint the invoked endpoint
+     * @param format the endpoint's call format
+     * @param method the invoked method
+     * @param args the method arguments
+     * @param timeoutMillis the time remaining until the caller stops waiting for the result,
+     *                      or 0 if it waits indefinitely
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    FrameOutputStream callFrame(long callId, RemoteEndpoint endpoint, CallFormat format,
+            Method method, Object[] args, int timeoutMillis) throws IOException {
+        FrameOutputStream frame = new FrameOutputStream(Protocol.CALL, callId, format.binary);
+        if (Protocol.isStreamed(method.getReturnType())) {
+            frame.setFlag(Protocol.FLAG_STREAM);
+        }
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(endpoint.handle);
+        out.writeInt(timeoutMillis);
+        if (format.binary) {
+            int methodId = endpoint.getMethodId(method);
+            out.writeInt(methodId);
+            if (methodId < 0) {
+                out.writeUTF(method.getName());
+            }
+            BinaryFormat.writeValues(frame, this, format, args);
+        } else {
+            writeObjects(frame, format, method.getName(), args);
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a {@link Protocol#CALL} frame.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the endpoint (see {@link Protocol#endpointHandle})
+     * @return the call
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Protocol.Call readCall(byte[] payload, CallFormat format) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream in = payloadInput(payload, Protocol.CALL_HEADER_SIZE + 8); // after the endpoint handle and timeout
+        if (Protocol.isBinary(payload)) {
+            DataInputStream din = new DataInputStream(in);
+            int methodId = din.readInt();
+            String methodName = methodId < 0 ? din.readUTF() : null;
+            return new Protocol.Call(methodId, methodName, BinaryFormat.readValues(in, this, format));
+        }
+        Object[] values = readObjects(in, format, 2);
+        if (!(values[0] instanceof String) || values[1] != null && !(values[1] instanceof Object[])) {
+            throw new StreamCorruptedException("invalid call");
+        }
+        return new Protocol.Call(-1, (String)values[0], (Object[])values[1]);
+    }
+
+    /**
+     * Creates a {@link Protocol#BATCH} frame. In the binary format, the arguments of all
+     * calls are written as a single sequence of values, following the method ids and
+     * argument counts of the calls.
+     *
+     * @param callId the call id
+     * @param endpoint the invoked endpoint
+     * @param format the endpoint's call format
+     * @param methods the invoked methods
+     * @param args the arguments of each invoked method
+     * @param parallel whether the server may execute the calls concurrently
+     *                 rather than one after the other
+     * @param timeoutMillis the time remaining until the caller stops waiting for the results,
+     *                      or 0 if it waits indefinitely
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    FrameOutputStream batchFrame(long callId, RemoteEndpoint endpoint, CallFormat format,
+            List<Method> methods, List<Object[]> args, boolean parallel, int timeoutMillis) throws IOException {
+        int count = methods.size();
+        FrameOutputStream frame = new FrameOutputStream(Protocol.BATCH, callId, format.binary);
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(endpoint.handle);
+        out.writeInt(timeoutMillis);
+        out.writeBoolean(parallel);
+        out.writeInt(count);
+        if (format.binary) {
+            List<Object> values = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Method method = methods.get(i);
+                Object[] callArgs = args.get(i);
+                int methodId = endpoint.getMethodId(method);
+                out.writeInt(methodId);
+                if (methodId < 0) {
+                    out.writeUTF(method.getName());
+                }
+                out.writeInt(callArgs == null ? 0 : callArgs.length);
+                if (callArgs != null) {
+                    values.addAll(Arrays.asList(callArgs));
+                }
+            }
+            BinaryFormat.writeValues(frame, this, format, values.toArray());
+        } else {
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = methods.get(i).getName();
+            }
+            writeObjects(frame, format, names, args.toArray(new Object[count][]));
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a {@link Protocol#BATCH} frame.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the endpoint (see {@link Protocol#endpointHandle})
+     * @return the batch
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Protocol.Batch readBatch(byte[] payload, CallFormat format) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream in = payloadInput(payload, Protocol.CALL_HEADER_SIZE + 8); // after the endpoint handle and timeout
+        DataInputStream din = new DataInputStream(in);
+        boolean parallel = din.readBoolean();
+        int count = din.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new StreamCorruptedException("invalid batch size " + count);
+        }
+        Protocol.Call[] calls = new Protocol.Call[count];
+        if (Protocol.isBinary(payload)) {
+            int[] methodIds = new int[count];
+            String[] methodNames = new String[count];
+            int[] argCounts = new int[count];
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                methodIds[i] = din.readInt();
+                methodNames[i] = methodIds[i] < 0 ? din.readUTF() : null;
+                argCounts[i] = din.readInt();
+                if (argCounts[i] < 0) {
+                    throw new StreamCorruptedException("invalid batch");
+                }
+                total += argCounts[i];
+            }
+            Object[] values = BinaryFormat.readValues(in, this, format);
+            if (values.length != total) {
+                throw new StreamCorruptedException("invalid batch");
+            }
+            for (int i = 0, offset = 0; i < count; offset += argCounts[i++]) {
+                Object[] args = Arrays.copyOfRange(values, offset, offset + argCounts[i]);
+                calls[i] = new Protocol.Call(methodIds[i], methodNames[i], args);
+            }
+        } else {
+            Object[] values = readObjects(in, format, 2);
+            if (!(values[0] instanceof String[]) || !(values[1] instanceof Object[][])
+                    || ((String[])values[0]).length != count || ((Object[][])values[1]).length != count) {
+                throw new StreamCorruptedException("invalid batch");
+            }
+            for (int i = 0; i < count; i++) {
+                calls[i] = new Protocol.Call(-1, ((String[])values[0])[i], ((Object[][])values[1])[i]);
+            }
+        }
+        return new Protocol.Batch(parallel, calls);
+    }
+
+    /**
+     * Creates a {@link Protocol#RESULT} frame.
+     *
+     * @param callId the call id
+     * @param binary whether to use the binary format (as the call did)
+     * @param format the endpoint's call format
+     * @param error the error thrown by the call, or null if it succeeded
+     * @param result the value returned by the call
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    FrameOutputStream resultFrame(long callId, boolean binary, CallFormat format,
+            Throwable error, Object result) throws IOException {
+        return resultsFrame(callId, binary, format, error, result);
+    }
+
+    /**
+     * Creates a {@link Protocol#RESULT} frame for a call or a batch of calls.
+     * The results of a batch are written as the error and value of each call in turn
+     * (which the Java format wraps in an array, following a null error),
+     * while a batch which failed as a whole is answered with a single error and value,
+     * like a single call.
+     *
+     * @param callId the call id
+     * @param binary whether to use the binary format (as the call did)
+     * @param format the endpoint's call format
+     * @param values the error (or null) and value of each call
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    FrameOutputStream resultsFrame(long callId, boolean binary, CallFormat format,
+            Object... values) throws IOException {
+        FrameOutputStream frame = new FrameOutputStream(Protocol.RESULT, callId, binary);
+        if (binary) {
+            BinaryFormat.writeValues(frame, this, format, values);
+        } else if (values.length == 2) {
+            writeObjects(frame, format, values);
+        } else {
+            writeObjects(frame, format, null, values);
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a {@link Protocol#RESULT} frame.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the invoked endpoint
+     * @return an array containing the error thrown by the call (or null if it succeeded),
+     *         followed by the value returned by the call
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Object[] readResult(byte[] payload, CallFormat format) throws IOException, ClassNotFoundException {
+        Object[] values = decodeResult(payload, format);
+        if (values.length != 2 || values[0] != null && !(values[0] instanceof Throwable)) {
+            throw new StreamCorruptedException("invalid result");
+        }
+        return values;
+    }
+
+    /**
+     * Reads a {@link Protocol#RESULT} frame which answers a {@link Protocol#BATCH}.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the invoked endpoint
+     * @param count the number of calls in the batch
+     * @return an array containing the error thrown by each call (or null if it succeeded),
+     *         followed by the value it returned, or an array containing a single error
+     *         and null if the batch failed as a whole
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Object[] readResults(byte[] payload, CallFormat format, int count) throws IOException, ClassNotFoundException {
+        Object[] values = decodeResult(payload, format);
+        if (!Protocol.isBinary(payload) && values.length == 2 && values[0] == null && count != 1) {
+            values = values[1] instanceof Object[] ? (Object[])values[1] : null;
+        }
+        if (values == null || values.length != 2 * count && (values.length != 2 || values[0] == null)) {
+            throw new StreamCorruptedException("invalid batch result");
+        }
+        for (int i = 0; i < values.length; i += 2) {
+            if (values[i] != null && !(values[i] instanceof Throwable)) {
+                throw new StreamCorruptedException("invalid batch result");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Creates a {@link Protocol#CHUNK} frame.
+     *
+     * @param callId the id of the streaming call
+     * @param binary whether to use the binary format (as the call did)
+     * @param format the endpoint's call format
+     * @param status the chunk status
+     * @param elements the elements of the chunk, or the error if the status is {@link Protocol#CHUNK_ERROR}
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    FrameOutputStream chunkFrame(long callId, boolean binary, CallFormat format,
+            byte status, Object[] elements) throws IOException {
+        FrameOutputStream frame = new FrameOutputStream(Protocol.CHUNK, callId, binary);
+        frame.write(status);
+        if (binary) {
+            BinaryFormat.writeValues(frame, this, format, elements);
+        } else {
+            writeObjects(frame, format, (Object) elements);
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a {@link Protocol#CHUNK} frame.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the invoked endpoint
+     * @return the chunk
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Protocol.Chunk readChunk(byte[] payload, CallFormat format) throws IOException, ClassNotFoundException {
+        if (payload[0] != Protocol.CHUNK || payload.length <= Protocol.CALL_HEADER_SIZE) {
+            throw new IOException("unexpected frame type " + payload[0]);
+        }
+        byte status = payload[Protocol.CALL_HEADER_SIZE];
+        ByteArrayInputStream in = payloadInput(payload, Protocol.CALL_HEADER_SIZE + 1);
+        Object[] elements;
+        if (Protocol.isBinary(payload)) {
+            elements = BinaryFormat.readValues(in, this, format);
+        } else {
+            Object value = readObjects(in, format, 1)[0];
+            elements = value instanceof Object[] ? (Object[]) value : null;
+        }
+        if (status < Protocol.CHUNK_MORE || status > Protocol.CHUNK_ERROR || elements == null
+                || status == Protocol.CHUNK_ERROR && (elements.length != 1 || !(elements[0] instanceof Throwable))) {
+            throw new StreamCorruptedException("invalid chunk");
+        }
+        return new Protocol.Chunk(status, elements);
+    }
+
+    private Object[] decodeResult(byte[] payload, CallFormat format) throws IOException, ClassNotFoundException {
+        if (payload[0] != Protocol.RESULT) {
+            throw new IOException("unexpected frame type " + payload[0]);
+        }
+        ByteArrayInputStream in = payloadInput(payload, Protocol.CALL_HEADER_SIZE);
+        return Protocol.isBinary(payload)
+            ? BinaryFormat.readValues(in, this, format)
+            : readObjects(in, format, 2);
+    }
+
+    /**
+     * Reads the class descriptor definitions contained in a {@link Protocol#RESULT}
+     * or {@link Protocol#CHUNK} frame
+     * (if any), so that subsequent frames can be decoded before this one.
+     * This must be called on received frames in order.
+     *
+     * @param payload the frame payload
+     * @param format the call format of the invoked endpoint
+     */
+    void readDefinitions(byte[] payload, CallFormat format) {
+        if (Protocol.hasDefinitions(payload)) {
+            try {
+                // the definitions are only found by decoding the whole frame
+                if (payload[0] == Protocol.CHUNK) {
+                    readChunk(payload, format);
+                } else {
+                    decodeResult(payload, format);
+                }
+            } catch (Exception ignore) {
+                // the error is reported when the result is decoded again by its caller
+            }
+        }
+    }
+
+    private static ByteArrayInputStream payloadInput(byte[] payload, int offset) {
+        return new Protocol.PayloadInputStream(payload, offset);
+    }
+}
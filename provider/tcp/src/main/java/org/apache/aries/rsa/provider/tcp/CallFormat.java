@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.util.Map;
+
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+
+/**
+ * The settings used to encode and decode the calls to a single endpoint,
+ * which apply to all of the connections it uses.
+ */
+class CallFormat {
+
+    /**
+     * The format used when the endpoint is unknown (e.g. to report an error).
+     */
+    static final CallFormat DEFAULT = new CallFormat(false, null, null, null);
+
+    final boolean binary;
+    final Serializer serializer;
+    final ClassLoader loader;
+    final Map<String, Class<?>> classCache;
+
+    /**
+     * Creates a call format.
+     *
+     * @param binary whether calls are sent in the binary format
+     *               (on the server side, results use the format of their call)
+     * @param serializer the serializer used for objects, or null to use Java serialization
+     * @param loader the primary class loader used to resolve classes
+     * @param classCache a cache of the classes resolved by the loader, or null
+     */
+    CallFormat(boolean binary, Serializer serializer, ClassLoader loader, Map<String, Class<?>> classCache) {
+        this.binary = binary;
+        this.serializer = serializer;
+        this.loader = loader;
+        this.classCache = classCache;
+    }
+}
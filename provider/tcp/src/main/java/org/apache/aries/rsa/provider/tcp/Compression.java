@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the {@link Protocol#CALL}, {@link Protocol#BATCH}, {@link Protocol#RESULT}
+ * and {@link Protocol#CHUNK} frames sent over a connection, as negotiated by its handshake.
+ * <p>
+ * A frame whose body (the part following the call header) is at least as large as
+ * the threshold is sent compressed, unless compression does not make it smaller.
+ * The header of a compressed frame is left as is, so that its call id and flags can
+ * be read without decompressing it, and it is flagged as {@link Protocol#FLAG_COMPRESSED}.
+ * Its body consists of the uncompressed body size followed by the compressed body.
+ */
+final class Compression {
+
+    // algorithm ids
+    static final byte ALGORITHM_NONE = 0;
+    static final byte ALGORITHM_DEFLATE = 1;
+
+    static final Compression NONE = new Compression(ALGORITHM_NONE, 0);
+
+    // compressors hold native memory and are expensive to create, so a few of them are
+    // shared by all threads (which may be short-lived virtual threads) rather than per thread
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    final byte algorithm;
+    final int threshold;
+
+    private Compression(byte algorithm, int threshold) {
+        this.algorithm = algorithm;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compression with the given algorithm.
+     *
+     * @param algorithm the algorithm id
+     * @param threshold the minimum size of frame bodies that are compressed
+     * @return the compression, or {@link #NONE} if the algorithm is not supported
+     */
+    static Compression of(byte algorithm, int threshold) {
+        return algorithm == ALGORITHM_DEFLATE ? new Compression(algorithm, Math.max(0, threshold)) : NONE;
+    }
+
+    /**
+     * Completes a frame and compresses it, if it is large enough and compressible.
+     * Frames that are not compressed keep their segments, which are sent without copying.
+     *
+     * @param frame a {@link Protocol#CALL}, {@link Protocol#BATCH}, {@link Protocol#RESULT}
+     *              or {@link Protocol#CHUNK} frame
+     * @return the buffers containing the frame to send
+     */
+    ByteBuffer[] compress(Protocol.FrameOutputStream frame) {
+        if (algorithm == ALGORITHM_NONE || frame.frameSize() - 4 - Protocol.CALL_HEADER_SIZE < threshold) {
+            return frame.toBuffers();
+        }
+        return new ByteBuffer[] { compress(frame.toFrame()) };
+    }
+
+    /**
+     * Compresses a frame, if it is large enough and compressible.
+     *
+     * @param frame a {@link Protocol#CALL}, {@link Protocol#BATCH}, {@link Protocol#RESULT}
+     *              or {@link Protocol#CHUNK} frame, including its length prefix
+     * @return the compressed frame, or the given frame if it is not compressed
+     */
+    ByteBuffer compress(ByteBuffer frame) {
+        int offset = frame.arrayOffset() + frame.position() + 4 + Protocol.CALL_HEADER_SIZE;
+        int size = frame.remaining() - 4 - Protocol.CALL_HEADER_SIZE;
+        if (algorithm == ALGORITHM_NONE || size < threshold || size <= 4) {
+            return frame;
+        }
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        int headerSize = 4 + Protocol.CALL_HEADER_SIZE + 4; // including the uncompressed size
+        byte[] buf = new byte[headerSize + size]; // worth sending only if smaller than the original
+        int count = headerSize;
+        boolean smaller;
+        try {
+            deflater.setInput(frame.array(), offset, size);
+            deflater.finish();
+            while (!deflater.finished() && count < buf.length) {
+                count += deflater.deflate(buf, count, buf.length - count);
+            }
+            smaller = deflater.finished() && count < headerSize + size - 4;
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        if (!smaller) {
+            return frame;
+        }
+        System.arraycopy(frame.array(), frame.arrayOffset() + frame.position(), buf, 0, 4 + Protocol.CALL_HEADER_SIZE);
+        buf[4 + Protocol.CALL_HEADER_SIZE - 1] |= Protocol.FLAG_COMPRESSED;
+        return ByteBuffer.wrap(buf, 0, count)
+            .putInt(0, count - 4)
+            .putInt(4 + Protocol.CALL_HEADER_SIZE, size);
+    }
+
+    /**
+     * Decompresses a frame, if it is compressed.
+     *
+     * @param payload the payload of a received frame
+     * @return the decompressed payload, or the given payload if it is not compressed
+     * @throws StreamCorruptedException if the compressed frame is invalid
+     */
+    static byte[] decompress(byte[] payload) throws StreamCorruptedException {
+        if (payload.length < Protocol.CALL_HEADER_SIZE + 4
+                || (payload[0] != Protocol.CALL && payload[0] != Protocol.RESULT && payload[0] != Protocol.BATCH
+                    && payload[0] != Protocol.CHUNK)
+                || (payload[Protocol.CALL_HEADER_SIZE - 1] & Protocol.FLAG_COMPRESSED) == 0) {
+            return payload;
+        }
+        int size = ByteBuffer.wrap(payload, Protocol.CALL_HEADER_SIZE, 4).getInt();
+        if (size < 0 || size > Protocol.MAX_FRAME_SIZE - Protocol.CALL_HEADER_SIZE) {
+            throw new StreamCorruptedException("invalid uncompressed size " + size);
+        }
+        byte[] result = Arrays.copyOf(payload, Protocol.CALL_HEADER_SIZE + size);
+        result[Protocol.CALL_HEADER_SIZE - 1] &= ~Protocol.FLAG_COMPRESSED;
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            int offset = Protocol.CALL_HEADER_SIZE + 4;
+            inflater.setInput(payload, offset, payload.length - offset);
+            int count = Protocol.CALL_HEADER_SIZE;
+            while (count < result.length) {
+                int n = inflater.inflate(result, count, result.length - count);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != result.length) {
+                throw new StreamCorruptedException("invalid compressed frame");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("invalid compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        return result;
+    }
+}
@@ -35,6 +35,24 @@ public class Config {
     static final String ID = PREFIX + "id";
     static final String THREADS = PREFIX + "numThreads";
     static final String TIMEOUT = "osgi.basic.timeout";
+    static final String MULTIPLEX = PREFIX + "multiplex";
+    static final String MULTIPLEX_CONNECTIONS = PREFIX + "multiplexConnections";
+    static final String FORMAT = PREFIX + "format";
+    static final String SERIALIZER = PREFIX + "serializer";
+    static final String EXECUTOR = PREFIX + "executor";
+    static final String MAX_CONCURRENCY = PREFIX + "maxConcurrency";
+    static final String MAX_CONNECTIONS = PREFIX + "maxConnections";
+    static final String MAX_WAIT = PREFIX + "maxWaitMillis";
+    static final String MIN_IDLE_CONNECTIONS = PREFIX + "minIdleConnections";
+    static final String IDLE_TIMEOUT = PREFIX + "idleTimeoutMillis";
+    static final String PING_INTERVAL = PREFIX + "pingIntervalMillis";
+    static final String QUEUE_SIZE = PREFIX + "queueSize";
+    static final String ENDPOINT_CONCURRENCY = PREFIX + "endpointConcurrency";
+    static final String COMPRESSION = PREFIX + "compression";
+    static final String COMPRESSION_THRESHOLD = PREFIX + "compressionThreshold";
+    static final String UNIX_SOCKET = PREFIX + "unixSocket";
+    static final String UNIX_SOCKET_DIR = PREFIX + "unixSocketDir";
+    static final String LOCAL_CALLS = PREFIX + "localCalls";
 
     // provider component properties
     static final String KEYSTORE = PREFIX + "keyStore";
@@ -43,13 +61,29 @@ public class Config {
     static final String TRUSTSTORE_PASSWORD = PREFIX + "trustStorePassword";
     static final String KEY_ALIAS = PREFIX + "keyAlias";
     static final String MTLS = PREFIX + "mtls";
+    static final String CALLBACK_THREADS = PREFIX + "callbackThreads";
 
     // endpoint service runtime properties
     static final String URI = PREFIX + "uri";
+    static final String UNIX_SOCKET_PATH = PREFIX + "unixSocketPath";
 
     static final int DYNAMIC_PORT = 0;
     static final int DEFAULT_TIMEOUT_MILLIS = 300000;
     static final int DEFAULT_NUM_THREADS = 10;
+    static final int DEFAULT_MULTIPLEX_CONNECTIONS = 2;
+    static final String FORMAT_BINARY = "binary";
+    static final String FORMAT_JAVA = "java";
+    static final String DEFAULT_SERIALIZER = "java";
+    static final String EXECUTOR_PLATFORM = "platform";
+    static final String EXECUTOR_VIRTUAL = "virtual";
+    static final int DEFAULT_MAX_CONCURRENCY = 1000;
+    static final int DEFAULT_QUEUE_SIZE = 1000;
+    static final String COMPRESSION_NONE = "none";
+    static final String COMPRESSION_DEFLATE = "deflate";
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    static final String LOCAL_CALLS_NONE = "none";
+    static final String LOCAL_CALLS_SERIALIZE = "serialize";
+    static final String LOCAL_CALLS_COPY = "copy";
 
     private final Map<String, Object> props;
     private final String fallbackId = UUID.randomUUID().toString();
@@ -67,6 +101,11 @@ public class Config {
         return value != null ? Integer.parseInt(value.toString()) : defaultValue;
     }
 
+    boolean getBoolean(String key, boolean defaultValue) {
+        Object value = props.get(key);
+        return value != null ? Boolean.parseBoolean(value.toString()) : defaultValue;
+    }
+
     String getString(String key, String defaultValue) {
         Object value = props.get(key);
         if (value == null)
@@ -100,6 +139,217 @@ public class Config {
         return getInt(THREADS, DEFAULT_NUM_THREADS);
     }
 
+    /**
+     * Returns whether connections and calls run on virtual threads rather than
+     * on platform threads (if supported by the JVM).
+     *
+     * @return whether virtual threads are used
+     */
+    public boolean isVirtualThreads() {
+        String executor = getString(EXECUTOR, EXECUTOR_PLATFORM);
+        if (!executor.equals(EXECUTOR_PLATFORM) && !executor.equals(EXECUTOR_VIRTUAL)) {
+            throw new IllegalArgumentException(EXECUTOR + " must be either " + EXECUTOR_PLATFORM + " or " + EXECUTOR_VIRTUAL);
+        }
+        return executor.equals(EXECUTOR_VIRTUAL);
+    }
+
+    /**
+     * Returns the maximum number of calls that are executed concurrently when using
+     * virtual threads (which replaces the number of threads as the limit).
+     *
+     * @return the maximum number of concurrent calls
+     */
+    public int getMaxConcurrency() {
+        return Math.max(1, getInt(MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY));
+    }
+
+    /**
+     * Returns the maximum number of received calls that wait for a thread (or for a permit,
+     * when using virtual threads) to execute them. Calls that are received while the queue
+     * is full are rejected immediately.
+     *
+     * @return the maximum number of queued calls, or 0 if there is no limit
+     */
+    public int getQueueSize() {
+        return Math.max(0, getInt(QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+    }
+
+    /**
+     * Returns the maximum number of calls to the endpoint that are queued or executing
+     * concurrently. Calls that are received while the limit is reached are rejected immediately.
+     *
+     * @return the maximum number of concurrent calls to the endpoint, or 0 if there is no limit
+     */
+    public int getEndpointConcurrency() {
+        return Math.max(0, getInt(ENDPOINT_CONCURRENCY, 0));
+    }
+
+    /**
+     * Returns whether synchronous calls to an imported endpoint share the multiplexed
+     * connections, rather than each using a pooled connection exclusively
+     * (asynchronous calls always use the multiplexed connections).
+     *
+     * @return whether synchronous calls are multiplexed
+     */
+    public boolean isMultiplex() {
+        return getBoolean(MULTIPLEX, false);
+    }
+
+    /**
+     * Returns the number of multiplexed connections shared by concurrent calls to an imported endpoint.
+     *
+     * @return the number of multiplexed connections
+     */
+    public int getMultiplexConnections() {
+        return Math.max(1, getInt(MULTIPLEX_CONNECTIONS, DEFAULT_MULTIPLEX_CONNECTIONS));
+    }
+
+    /**
+     * Returns the maximum number of pooled connections used by synchronous calls
+     * to an imported endpoint.
+     *
+     * @return the maximum number of connections, or 0 if there is no limit
+     */
+    public int getMaxConnections() {
+        return Math.max(0, getInt(MAX_CONNECTIONS, 0));
+    }
+
+    /**
+     * Returns the maximum time a call waits for a pooled connection when all of them are in use.
+     *
+     * @return the maximum wait time in millis, 0 to fail immediately, or a negative value to
+     *         wait indefinitely (the default is the call timeout)
+     */
+    public int getMaxWaitMillis() {
+        int timeout = getTimeoutMillis();
+        return getInt(MAX_WAIT, timeout > 0 ? timeout : -1);
+    }
+
+    /**
+     * Returns the minimum number of idle pooled connections that are kept open
+     * to an imported endpoint, starting when it is imported.
+     *
+     * @return the minimum number of idle connections
+     */
+    public int getMinIdleConnections() {
+        return Math.max(0, getInt(MIN_IDLE_CONNECTIONS, 0));
+    }
+
+    /**
+     * Returns the time after which idle pooled connections are closed. By default, this is
+     * half of the endpoint's timeout, so that connections are closed before the server
+     * closes them due to the timeout.
+     *
+     * @return the idle timeout in millis, or 0 if idle connections are not closed
+     */
+    public int getIdleTimeoutMillis() {
+        return Math.max(0, getInt(IDLE_TIMEOUT, getTimeoutMillis() / 2));
+    }
+
+    /**
+     * Returns the interval at which importers ping their idle connections to the
+     * endpoint's server, so that connections to a server that vanished (without
+     * closing them) are discarded before calls are sent over them. A server which
+     * does not answer a ping within the same interval is considered gone.
+     *
+     * @return the ping interval in millis, or 0 to not ping connections
+     */
+    public int getPingIntervalMillis() {
+        return Math.max(0, getInt(PING_INTERVAL, 0));
+    }
+
+    /**
+     * Returns whether calls to the endpoint are encoded in the compact binary format
+     * (with Java serialization used only for values that it does not support),
+     * rather than entirely using Java serialization.
+     *
+     * @return whether the binary call format is used
+     */
+    public boolean isBinaryFormat() {
+        String format = getString(FORMAT, FORMAT_BINARY);
+        if (!format.equals(FORMAT_BINARY) && !format.equals(FORMAT_JAVA)) {
+            throw new IllegalArgumentException(FORMAT + " must be either " + FORMAT_BINARY + " or " + FORMAT_JAVA);
+        }
+        return format.equals(FORMAT_BINARY);
+    }
+
+    /**
+     * Returns the compression requested by importers for the calls and results
+     * sent over their connections, whose bodies are compressed if they are at least
+     * as large as the compression threshold.
+     *
+     * @return the compression
+     */
+    Compression getCompression() {
+        String compression = getString(COMPRESSION, COMPRESSION_NONE);
+        if (compression.equals(COMPRESSION_NONE)) {
+            return Compression.NONE;
+        }
+        if (!compression.equals(COMPRESSION_DEFLATE)) {
+            throw new IllegalArgumentException(COMPRESSION + " must be either " + COMPRESSION_NONE + " or " + COMPRESSION_DEFLATE);
+        }
+        return Compression.of(Compression.ALGORITHM_DEFLATE, getInt(COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD));
+    }
+
+    /**
+     * Returns whether the server also listens on a Unix domain socket, which is preferred
+     * by importers running on the same host (when supported by the JVM, and TLS is not used).
+     *
+     * @return whether a Unix domain socket is used
+     */
+    public boolean isUnixSocket() {
+        return getBoolean(UNIX_SOCKET, false);
+    }
+
+    /**
+     * Returns the directory in which the server creates its Unix domain socket file.
+     *
+     * @return the socket directory
+     */
+    public String getUnixSocketDir() {
+        return getString(UNIX_SOCKET_DIR, System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Returns the path of the Unix domain socket the endpoint's server listens on,
+     * as published by the exporter.
+     *
+     * @return the socket path, or null if the server does not listen on one
+     */
+    public String getUnixSocketPath() {
+        return getString(UNIX_SOCKET_PATH, null);
+    }
+
+    /**
+     * Returns how endpoints exported in the same JVM are invoked: over a connection
+     * ({@code none}), or directly, with the arguments and results copied either by
+     * serializing them ({@code serialize}) or by deep copying them in memory ({@code copy}).
+     *
+     * @return the local calls mode
+     */
+    public String getLocalCalls() {
+        String mode = getString(LOCAL_CALLS, LOCAL_CALLS_NONE);
+        if (!mode.equals(LOCAL_CALLS_NONE) && !mode.equals(LOCAL_CALLS_SERIALIZE) && !mode.equals(LOCAL_CALLS_COPY)) {
+            throw new IllegalArgumentException(LOCAL_CALLS + " must be either " + LOCAL_CALLS_NONE + ", "
+                + LOCAL_CALLS_SERIALIZE + " or " + LOCAL_CALLS_COPY);
+        }
+        return mode;
+    }
+
+    /**
+     * Returns the name of the {@link org.apache.aries.rsa.provider.tcp.serializer.Serializer Serializer}
+     * used for the objects passed to and returned from the endpoint's methods.
+     *
+     * @return the serializer name
+     */
+    public String getSerializer() {
+        return getString(SERIALIZER, DEFAULT_SERIALIZER);
+    }
+
+    public int getCallbackThreads() {
+        return getInt(CALLBACK_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
     public String getKeyStore() {
         return getString(KEYSTORE, System.getProperty(KEYSTORE));
     }
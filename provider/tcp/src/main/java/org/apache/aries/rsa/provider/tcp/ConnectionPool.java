@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of connections which are each used exclusively by a single call at a time.
+ * <p>
+ * The number of connections can be limited, in which case callers wait (up to a
+ * maximum time) for a connection to be released once the limit is reached.
+ * If a scheduler is given, idle connections are periodically maintained in the
+ * background: connections that were idle for too long (e.g. before the server
+ * times them out) or were closed by the server are discarded, and a minimum number
+ * of idle connections is kept open, so that calls after a quiet period do not pay
+ * for opening a new connection or for retrying on a stale one.
+ * <p>
+ * Optionally, idle connections are also pinged, which tells a server that vanished
+ * without closing them (e.g. after a network partition) from an idle one. If the
+ * server does not answer, all of the idle connections to it are purged, so that calls
+ * are not sent over them only to wait until they time out.
+ */
+class ConnectionPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final long MAX_MAINTENANCE_PERIOD_MILLIS = 10000;
+
+    /**
+     * A pooled connection.
+     */
+    static class Connection implements Closeable {
+        final Socket socket;
+        final OutputStream out;
+        final DataInputStream in;
+        CallCodec codec;
+        long serverInstance; // the id of the server instance, from the handshake
+        Compression compression = Compression.NONE; // accepted by the server
+        long lastUsed; // in nanos
+        long lastPinged; // in nanos
+        private long pings;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * Returns whether an idle connection is still open, i.e. the server did not close it.
+         * No data is expected on an idle connection, so any data also invalidates it.
+         */
+        boolean isAlive() {
+            try {
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                try {
+                    in.read();
+                    return false; // end of stream, or unexpected data
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (SocketTimeoutException ste) {
+                return true; // nothing to read, as expected
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        /**
+         * Pings the server over an idle connection.
+         *
+         * @param timeoutMillis the time to wait for the server's answer
+         * @return whether the server answered, or false if the connection was closed
+         *         (or unexpected data was received)
+         * @throws SocketTimeoutException if the server did not answer in time
+         */
+        boolean ping(int timeoutMillis) throws SocketTimeoutException {
+            long id = ++pings;
+            try {
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(timeoutMillis);
+                try {
+                    Protocol.writeFrame(out, Protocol.pingFrame(id));
+                    byte[] reply = Compression.decompress(Protocol.readFrame(in));
+                    lastPinged = System.nanoTime();
+                    return reply[0] == Protocol.PING && Protocol.callId(reply) == id;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (SocketTimeoutException ste) {
+                throw ste;
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                // we want it closed - nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Opens new connections.
+     */
+    interface Connector {
+        Connection connect() throws IOException;
+    }
+
+    private final Connector connector;
+    private final int maxConnections;
+    private final long maxWaitMillis;
+    private final int minIdle;
+    private final long idleTimeoutNanos;
+    private final int pingIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The available (idle) connections, most recently used first.
+     */
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    /**
+     * Counts connections currently in use (not in pool).
+     */
+    private int acquired;
+
+    /**
+     * Counts connections which are being opened or validated - they
+     * count towards the maximum, but are neither idle nor in use.
+     */
+    private int pending;
+
+    /**
+     * Counts the pending connections which are idle ones being validated, which
+     * callers wait for rather than failing when the maximum is reached.
+     */
+    private int validating;
+
+    private boolean closed;
+    private final ScheduledFuture<?> maintenance;
+
+    ConnectionPool(Connector connector, int maxConnections, long maxWaitMillis,
+            int minIdle, long idleTimeoutMillis, ScheduledExecutorService scheduler) {
+        this(connector, maxConnections, maxWaitMillis, minIdle, idleTimeoutMillis, 0, scheduler);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param connector opens new connections
+     * @param maxConnections the maximum number of connections, or 0 for no limit
+     * @param maxWaitMillis the maximum time to wait for a connection when the limit is reached,
+     *                      0 to fail immediately (unless an idle connection is being validated),
+     *                      or a negative value to wait indefinitely
+     * @param minIdle the minimum number of idle connections kept open
+     * @param idleTimeoutMillis the time after which idle connections are closed, or 0 for never
+     * @param pingIntervalMillis the interval at which idle connections are pinged (which is also
+     *                           the time to wait for the answer), or 0 to not ping them
+     * @param scheduler the scheduler used to maintain idle connections in the background,
+     *                  or null if they are not maintained
+     */
+    ConnectionPool(Connector connector, int maxConnections, long maxWaitMillis,
+            int minIdle, long idleTimeoutMillis, int pingIntervalMillis, ScheduledExecutorService scheduler) {
+        this.connector = connector;
+        this.maxConnections = maxConnections;
+        this.maxWaitMillis = maxWaitMillis;
+        this.minIdle = maxConnections > 0 ? Math.min(minIdle, maxConnections) : minIdle;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.scheduler = scheduler;
+        if (scheduler != null && (minIdle > 0 || idleTimeoutMillis > 0 || pingIntervalMillis > 0)) {
+            long period = idleTimeoutMillis > 0
+                ? Math.max(1, Math.min(idleTimeoutMillis / 2, MAX_MAINTENANCE_PERIOD_MILLIS))
+                : MAX_MAINTENANCE_PERIOD_MILLIS;
+            if (pingIntervalMillis > 0) {
+                period = Math.min(period, pingIntervalMillis);
+            }
+            // the first run opens the minimum idle connections right away
+            maintenance = scheduler.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+        } else {
+            maintenance = null;
+        }
+    }
+
+    /**
+     * Acquires a connection - either from the pool if there is one available,
+     * or a new one if the pool is empty (waiting for one to be released if the
+     * maximum number of connections is reached).
+     * <p>
+     * Each acquired connection must be {@link #release released} exactly once.
+     *
+     * @return a connection
+     * @throws IOException if an error occurs
+     */
+    Connection acquire() throws IOException {
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (true) {
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                Connection conn = idle.pollFirst(); // reuse most recently used connection
+                if (conn != null) {
+                    acquired++;
+                    return conn;
+                }
+                if (maxConnections <= 0 || acquired + pending < maxConnections) {
+                    pending++; // reserve a new connection
+                    break;
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                // an idle connection that is being validated is about to be available again
+                boolean validated = maxWaitMillis == 0 && validating > 0;
+                if (maxWaitMillis == 0 && !validated || maxWaitMillis > 0 && remaining <= 0) {
+                    throw new IOException("Connection pool exhausted (all " + maxConnections + " connections are in use)");
+                }
+                try {
+                    wait(maxWaitMillis <= 0 ? 0 : Math.max(1, remaining));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for a connection", ie);
+                }
+            }
+        }
+        // if the pool is empty, create a new connection
+        Connection conn = null;
+        try {
+            conn = connector.connect();
+            return conn;
+        } finally {
+            synchronized (this) {
+                pending--;
+                if (conn != null) {
+                    acquired++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Releases the given connection and returns it to the pool.
+     *
+     * @param conn the released connection
+     * @param reusable whether the connection can be reused, or was closed
+     *                 (e.g. due to an error, when its state is unknown)
+     */
+    void release(Connection conn, boolean reusable) {
+        boolean close = !reusable;
+        synchronized (this) {
+            acquired--;
+            if (reusable && !closed) {
+                conn.lastUsed = System.nanoTime();
+                idle.offerFirst(conn); // add to front of queue so old idle ones can expire
+            } else {
+                close = true;
+            }
+            notifyAll();
+        }
+        if (close) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Returns the number of connections, both idle and in use.
+     *
+     * @return the number of connections
+     */
+    synchronized int size() {
+        return idle.size() + acquired;
+    }
+
+    /**
+     * Validates the idle connections in the background right away (if they are pinged),
+     * e.g. after a call timed out because the server may be gone, so that the next
+     * calls are not sent over them if it is.
+     */
+    void check() {
+        if (maintenance != null && pingIntervalMillis > 0) {
+            try {
+                scheduler.execute(this::maintain);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections which have expired, were closed by the server or whose
+     * server did not answer a ping, and opens new connections up to the minimum number
+     * of idle connections.
+     * <p>
+     * The idle connections are validated one at a time, least recently used first, so
+     * that the others remain available to callers meanwhile.
+     */
+    void maintain() {
+        List<Connection> expired = new ArrayList<>();
+        List<Connection> checked = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // the least recently used connections are at the end
+            long now = System.nanoTime();
+            for (Iterator<Connection> it = idle.descendingIterator(); it.hasNext(); ) {
+                Connection conn = it.next();
+                if (idleTimeoutNanos > 0 && now - conn.lastUsed > idleTimeoutNanos) {
+                    expired.add(conn);
+                    it.remove();
+                } else {
+                    checked.add(conn);
+                }
+            }
+        }
+        expired.forEach(Connection::close);
+        for (int i = 0; i < checked.size(); i++) {
+            Connection conn = checked.get(i);
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (!idle.remove(conn)) {
+                    continue; // it was acquired in the meantime, so it is checked when it is used
+                }
+                // it is validated outside the lock, so it is reserved meanwhile
+                pending++;
+                validating++;
+            }
+            boolean alive = false;
+            boolean serverGone = false;
+            try {
+                alive = validate(conn);
+            } catch (SocketTimeoutException e) {
+                LOG.debug("Server did not answer ping on {}, closing idle connections", conn.socket);
+                serverGone = true;
+            }
+            List<Connection> purged = new ArrayList<>();
+            synchronized (this) {
+                pending--;
+                validating--;
+                if (alive && !closed) {
+                    idle.offerLast(conn); // it remains the least recently used
+                } else {
+                    purged.add(conn);
+                }
+                if (serverGone) {
+                    // the server is gone, so the rest of the checked connections are purged
+                    // without waiting on each (connections released since are kept)
+                    for (Connection other : checked.subList(i + 1, checked.size())) {
+                        if (idle.remove(other)) {
+                            purged.add(other);
+                        }
+                    }
+                }
+                notifyAll();
+            }
+            purged.forEach(Connection::close);
+            if (serverGone) {
+                break;
+            }
+        }
+        openMinIdle();
+    }
+
+    /**
+     * Checks whether an idle connection is still alive, pinging it if it has been
+     * idle (and not pinged) for the ping interval.
+     */
+    private boolean validate(Connection conn) throws SocketTimeoutException {
+        long idleNanos = System.nanoTime() - Math.max(conn.lastUsed, conn.lastPinged);
+        if (pingIntervalMillis > 0 && idleNanos >= TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis)) {
+            return conn.ping(pingIntervalMillis);
+        }
+        return conn.isAlive();
+    }
+
+    private void openMinIdle() {
+        while (true) {
+            synchronized (this) {
+                if (closed || idle.size() >= minIdle
+                        || maxConnections > 0 && idle.size() + acquired + pending >= maxConnections) {
+                    return;
+                }
+                pending++;
+            }
+            Connection conn = null;
+            try {
+                conn = connector.connect();
+            } catch (Exception e) {
+                LOG.debug("Error opening idle connection", e);
+                return; // try again next time
+            } finally {
+                synchronized (this) {
+                    pending--;
+                    if (conn != null && !closed) {
+                        conn.lastUsed = System.nanoTime();
+                        idle.offerLast(conn);
+                        conn = null;
+                    }
+                    notifyAll();
+                }
+            }
+            if (conn != null) {
+                conn.close(); // the pool was closed
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (maintenance != null) {
+            maintenance.cancel(false);
+        }
+        synchronized (this) {
+            closed = true; // first prevent acquiring new connections
+            while (true) {
+                // close all idle connections
+                idle.forEach(Connection::close);
+                idle.clear();
+                if (acquired == 0) {
+                    break; // all closed
+                }
+                // wait for additional active connections to be released
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new IOException("interrupted while closing connections", ie);
+                }
+            }
+        }
+    }
+}
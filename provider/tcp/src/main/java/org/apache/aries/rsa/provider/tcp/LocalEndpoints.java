@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.aries.rsa.provider.tcp.ser.ObjectCopier;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+import org.osgi.service.remoteserviceadmin.EndpointDescription;
+
+/**
+ * The registry of the endpoints exported by all of the servers in this JVM,
+ * which allows them to be invoked directly by the endpoints imported in the
+ * same JVM (e.g. by another framework) rather than over a connection.
+ * <p>
+ * The registry is shared by the providers loaded by the same class loader, i.e. the
+ * frameworks sharing the provider classes (such as frameworks embedded in the same
+ * application) - endpoints exported by other providers are invoked over connections.
+ */
+final class LocalEndpoints {
+
+    /**
+     * An exported endpoint.
+     */
+    static class Target {
+
+        final String frameworkUUID;
+        final MethodInvoker invoker;
+        final CallFormat format;
+        final ObjectCopier copier; // copies arguments into the exporter's class loader
+
+        Target(String frameworkUUID, MethodInvoker invoker, CallFormat format) {
+            this.frameworkUUID = frameworkUUID;
+            this.invoker = invoker;
+            this.format = format;
+            this.copier = new ObjectCopier(format.loader);
+        }
+    }
+
+    private static final Map<String, Target> TARGETS = new ConcurrentHashMap<>(); // by endpoint id
+
+    private LocalEndpoints() {
+        // utility class
+    }
+
+    /**
+     * Adds an exported endpoint (replacing an existing one with the same id).
+     *
+     * @param endpoint the endpoint
+     * @param invoker the invoker of the exported service
+     * @param format the exporter's call format
+     */
+    static void add(EndpointDescription endpoint, MethodInvoker invoker, CallFormat format) {
+        TARGETS.put(endpoint.getId(), new Target(endpoint.getFrameworkUUID(), invoker, format));
+    }
+
+    /**
+     * Removes an exported endpoint, unless it was already replaced.
+     *
+     * @param endpointId the endpoint id
+     * @param invoker the invoker of the removed service
+     */
+    static void remove(String endpointId, MethodInvoker invoker) {
+        TARGETS.computeIfPresent(endpointId, (id, target) -> target.invoker == invoker ? null : target);
+    }
+
+    /**
+     * Returns an endpoint exported in this JVM.
+     *
+     * @param endpointId the endpoint id
+     * @return the endpoint, or null if it is not (or no longer) exported in this JVM
+     */
+    static Target get(String endpointId) {
+        return TARGETS.get(endpointId);
+    }
+
+    /**
+     * Returns whether an imported endpoint was exported in this JVM, by the same
+     * framework which it was described by, using the same serializer as the importer.
+     *
+     * @param endpoint the imported endpoint
+     * @param serializer the importer's serializer, or null for Java serialization
+     * @return whether the endpoint can be invoked directly
+     */
+    static boolean contains(EndpointDescription endpoint, Serializer serializer) {
+        Target target = TARGETS.get(endpoint.getId());
+        return target != null && target.frameworkUUID != null
+            && target.frameworkUUID.equals(endpoint.getFrameworkUUID())
+            && Protocol.serializerName(target.format.serializer).equals(Protocol.serializerName(serializer));
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.apache.aries.rsa.provider.tcp.batch.BatchInvoker;
+import org.apache.aries.rsa.provider.tcp.ser.ObjectCopier;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+import org.osgi.framework.ServiceException;
+import org.osgi.util.promise.Deferred;
+import org.osgi.util.promise.Promise;
+
+/**
+ * The InvocationHandler backing the client-side service proxy of an endpoint
+ * that is exported in the same JVM (see {@link LocalEndpoints}), which invokes
+ * the exported service directly on the calling thread, rather than sending the
+ * invocations over a connection.
+ * <p>
+ * The arguments and results are still passed by value: they are either copied in
+ * memory by an {@link ObjectCopier} (falling back to serialization for values that
+ * it cannot copy), or serialized and deserialized just as if they were sent over a
+ * connection, but without the framing, socket I/O and thread hand-offs.
+ */
+class LocalInvocationHandler implements InvocationHandler, BatchInvoker, Closeable {
+
+    private final String endpointId;
+
+    /**
+     * The format in which the results are copied for the caller.
+     */
+    private final CallFormat format;
+
+    /**
+     * Copies the results into the caller's class loader, or null if values are serialized.
+     */
+    private final ObjectCopier copier;
+
+    /**
+     * The executor used to complete the futures returned by asynchronous calls.
+     */
+    private final Executor callbackExecutor;
+
+    /**
+     * Creates an invocation handler.
+     *
+     * @param cl the primary class loader used to resolve classes
+     * @param endpointId the id of the invoked endpoint
+     * @param serializer the serializer used for objects, or null to use Java serialization
+     * @param copy whether values are copied in memory when possible, rather than serialized
+     * @param callbackExecutor the executor used to complete asynchronous calls
+     */
+    LocalInvocationHandler(ClassLoader cl, String endpointId, Serializer serializer, boolean copy,
+            Executor callbackExecutor) {
+        this.endpointId = endpointId;
+        this.format = new CallFormat(true, serializer, cl, new ConcurrentHashMap<>());
+        this.copier = copy ? new ObjectCopier(cl) : null;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // handle Object methods locally so we can use equals, HashMap, etc. normally
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals": return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                case "toString": return proxy.getClass().getName() + "@"
+                    + Integer.toHexString(System.identityHashCode(proxy));
+            }
+        }
+        if (Future.class.isAssignableFrom(method.getReturnType()) ||
+            CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            return createFutureResult(method, args);
+        } else if (Promise.class.isAssignableFrom(method.getReturnType())) {
+            return createPromiseResult(method, args);
+        }
+        LocalEndpoints.Target target = target(method);
+        try {
+            return copyResult(target, method, invoke(target, method, args));
+        } catch (InvocationTargetException e) {
+            throw e.getCause(); // exception thrown from the invoked method
+        }
+    }
+
+    private LocalEndpoints.Target target(Method method) {
+        LocalEndpoints.Target target = LocalEndpoints.get(endpointId);
+        if (target == null) {
+            throw new ServiceException("Error invoking " + method.getName() + " on " + endpointId
+                + ": the endpoint is no longer exported", ServiceException.REMOTE);
+        }
+        return target;
+    }
+
+    /**
+     * Invokes the exported service with copies of the arguments.
+     *
+     * @param target the exported endpoint
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return the value returned by the invoked method
+     * @throws InvocationTargetException wrapping (a copy of) the exception thrown by the invoked method
+     * @throws ServiceException if the method could not be invoked
+     */
+    private Object invoke(LocalEndpoints.Target target, Method method, Object[] args) throws InvocationTargetException {
+        Object[] copies;
+        try {
+            copies = args == null ? null : copy(args, copier == null ? null : target.copier, format, target.format);
+        } catch (Exception e) {
+            throw error(method, e);
+        }
+        try {
+            return target.invoker.invoke(method.getName(), copies);
+        } catch (InvocationTargetException e) {
+            throw new InvocationTargetException(copyError(target, method, e.getCause()));
+        } catch (Exception e) {
+            // e.g. no matching method
+            throw error(method, e);
+        }
+    }
+
+    /**
+     * Invokes a method returning a Future, CompletionStage or Promise. The returned
+     * future is completed by the callback executor once the service's result is done,
+     * and cancelling it cancels the service's result (if it is a Future).
+     *
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return a future that will be completed with the method result
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Object> createFutureResult(Method method, Object[] args) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        LocalEndpoints.Target target;
+        Object result;
+        try {
+            target = target(method);
+            result = invoke(target, method, args);
+        } catch (ServiceException | InvocationTargetException e) {
+            future.completeExceptionally(e instanceof InvocationTargetException ? e.getCause() : e);
+            return future;
+        }
+        if (result instanceof Future) {
+            future.whenComplete((value, t) -> {
+                if (t instanceof CancellationException) {
+                    ((Future<?>) result).cancel(true);
+                }
+            });
+        }
+        if (result instanceof CompletionStage) {
+            ((CompletionStage<Object>) result).whenCompleteAsync((value, t) ->
+                complete(future, target, method, value, t), callbackExecutor);
+        } else if (result instanceof Promise) {
+            Promise<Object> promise = (Promise<Object>) result;
+            promise.onResolve(() -> callbackExecutor.execute(() -> {
+                try {
+                    Throwable t = promise.getFailure();
+                    complete(future, target, method, t == null ? promise.getValue() : null, t);
+                } catch (InterruptedException | InvocationTargetException e) {
+                    future.completeExceptionally(error(method, e)); // never happens once resolved
+                }
+            }));
+        } else if (result instanceof Future) {
+            // a plain Future has no completion callback, so we have no choice but to wait for it
+            callbackExecutor.execute(() -> {
+                try {
+                    complete(future, target, method, ((Future<Object>) result).get(), null);
+                } catch (ExecutionException e) {
+                    complete(future, target, method, null, e.getCause());
+                } catch (Throwable t) {
+                    future.completeExceptionally(error(method, t));
+                }
+            });
+        } else {
+            complete(future, target, method, result, null);
+        }
+        return future;
+    }
+
+    private void complete(CompletableFuture<Object> future, LocalEndpoints.Target target, Method method,
+            Object value, Throwable t) {
+        if (t != null) {
+            t = t instanceof CompletionException ? t.getCause() : t;
+            future.completeExceptionally(copyError(target, method, t));
+            return;
+        }
+        try {
+            future.complete(copyValue(target, method, value));
+        } catch (ServiceException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private Object createPromiseResult(Method method, Object[] args) {
+        final Deferred<Object> deferred = new Deferred<>();
+        createFutureResult(method, args).whenComplete((result, e) -> {
+            if (e == null) {
+                deferred.resolve(result);
+            } else {
+                deferred.fail(e instanceof CompletionException ? e.getCause() : e);
+            }
+        });
+        return deferred.getPromise();
+    }
+
+    /**
+     * Returns a copy of the result of a call, whose elements are copied
+     * as they are consumed if it is a Stream or Iterator.
+     */
+    private Object copyResult(LocalEndpoints.Target target, Method method, Object result) {
+        if (Protocol.isStreamed(method.getReturnType())) {
+            if (result instanceof Stream) {
+                return ((Stream<?>) result).map(element -> copyValue(target, method, element));
+            } else if (result instanceof Iterator) {
+                return new CopyingIterator(target, method, (Iterator<?>) result);
+            } else if (result instanceof InputStream) {
+                return new CallerInputStream((InputStream) result);
+            }
+        }
+        return copyValue(target, method, result);
+    }
+
+    /**
+     * Returns a copy of a value returned by the exported service.
+     *
+     * @throws ServiceException if the value cannot be copied
+     */
+    private Object copyValue(LocalEndpoints.Target target, Method method, Object value) {
+        try {
+            return copy(new Object[] { value }, copier, target.format, format)[0];
+        } catch (Exception e) {
+            throw error(method, e);
+        }
+    }
+
+    /**
+     * Returns a copy of an exception thrown by the exported service (which is always serialized),
+     * or the exception to throw instead if it cannot be copied.
+     */
+    private Throwable copyError(LocalEndpoints.Target target, Method method, Throwable t) {
+        try {
+            return (Throwable) CallCodec.copy(new Object[] { t }, target.format, format)[0];
+        } catch (Exception e) {
+            return error(method, e);
+        }
+    }
+
+    private static Object[] copy(Object[] values, ObjectCopier copier, CallFormat from, CallFormat to)
+            throws Exception {
+        Object[] copies = copier == null ? null : copier.copy(values);
+        return copies != null ? copies : CallCodec.copy(values, from, to);
+    }
+
+    private ServiceException error(Method method, Throwable cause) {
+        return new ServiceException("Error invoking " + method.getName() + " on " + endpointId,
+            ServiceException.REMOTE, cause);
+    }
+
+    /**
+     * Invokes a batch of calls one after the other on the calling thread
+     * (even if the batch is parallel).
+     */
+    @Override
+    public CompletionStage<Void> invokeBatch(List<Method> methods, List<Object[]> args, boolean parallel,
+            List<CompletableFuture<Object>> results) {
+        LocalEndpoints.Target target = LocalEndpoints.get(endpointId);
+        if (target == null) {
+            ServiceException error = new ServiceException("Error invoking batch of " + methods.size()
+                + " calls on " + endpointId + ": the endpoint is no longer exported", ServiceException.REMOTE);
+            results.forEach(result -> result.completeExceptionally(error));
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(error);
+            return failed;
+        }
+        for (int i = 0; i < methods.size(); i++) {
+            Method method = methods.get(i);
+            try {
+                results.get(i).complete(copyValue(target, method, invoke(target, method, args.get(i))));
+            } catch (ServiceException | InvocationTargetException e) {
+                results.get(i).completeExceptionally(e instanceof InvocationTargetException ? e.getCause() : e);
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+        // nothing to release - the exported endpoint is looked up by each call
+    }
+
+    /**
+     * The caller's side of an input stream returned by a service. Its bytes are read from
+     * the service's stream into the caller's buffers, and closing it closes the service's
+     * stream, just as cancelling a remote stream does. The caller does not get the service's
+     * stream object itself though, so it cannot use its mark or any other methods beyond those
+     * of a remote stream.
+     */
+    private static class CallerInputStream extends FilterInputStream {
+
+        CallerInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            // not supported
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+
+    /**
+     * An iterator over the copies of the elements returned by a service's iterator.
+     */
+    private class CopyingIterator implements Iterator<Object>, AutoCloseable {
+
+        private final LocalEndpoints.Target target;
+        private final Method method;
+        private final Iterator<?> iterator;
+
+        CopyingIterator(LocalEndpoints.Target target, Method method, Iterator<?> iterator) {
+            this.target = target;
+            this.method = method;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            return copyValue(target, method, iterator.next());
+        }
+
+        @Override
+        public void close() {
+            if (iterator instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) iterator).close();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new ServiceException("Error closing the result of " + method.getName()
+                        + " on " + endpointId, ServiceException.REMOTE, e);
+                }
+            }
+        }
+    }
+}
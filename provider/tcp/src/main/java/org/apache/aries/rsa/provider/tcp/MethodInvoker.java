@@ -18,35 +18,156 @@
  */
 package org.apache.aries.rsa.provider.tcp;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Reflectively invokes the methods of a service object
+ * Invokes the methods of a service object
  * given the method name and parameter values.
+ * <p>
+ * The invocable methods (those of the exported interfaces, or all public
+ * methods if there are no restrictions) are resolved once when the invoker
+ * is created into an indexed table of method handles, and the overload
+ * resolution for each distinct call signature is memoized, so that
+ * invocations do not perform any reflective lookups.
  */
 public class MethodInvoker {
 
-    private Map<Object, Object> primTypes;
+    /**
+     * The maximum number of memoized call signatures, which protects against
+     * unbounded growth when callers use many different argument types.
+     */
+    private static final int MAX_SIGNATURES = 1024;
+
+    private static final Map<Class<?>, Class<?>> PRIM_TYPES = new HashMap<>();
+
+    static {
+        PRIM_TYPES.put(Byte.TYPE, Byte.class);
+        PRIM_TYPES.put(Short.TYPE, Short.class);
+        PRIM_TYPES.put(Integer.TYPE, Integer.class);
+        PRIM_TYPES.put(Long.TYPE, Long.class);
+        PRIM_TYPES.put(Float.TYPE, Float.class);
+        PRIM_TYPES.put(Double.TYPE, Double.class);
+        PRIM_TYPES.put(Boolean.TYPE, Boolean.class);
+        PRIM_TYPES.put(Character.TYPE, Character.class);
+    }
+
+    /**
+     * An invocable method and its method handle.
+     */
+    static class MethodEntry {
+        final Method method;
+        final Class<?>[] parameterTypes;
+        private final MethodHandle handle; // (Object, Object[])Object, or null if inaccessible
+
+        MethodEntry(Method method) {
+            this.method = method;
+            this.parameterTypes = method.getParameterTypes();
+            this.handle = createHandle(method);
+        }
+
+        private static MethodHandle createHandle(Method method) {
+            try {
+                return MethodHandles.lookup().unreflect(method)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+            } catch (IllegalAccessException e) {
+                return null; // fall back to reflection, which reports the access error when invoked
+            }
+        }
+
+        Object invoke(Object service, Object[] args) throws Exception {
+            if (handle == null) {
+                return method.invoke(service, args);
+            }
+            try {
+                return handle.invokeExact(service, args);
+            } catch (Throwable t) {
+                // exceptions are wrapped just like in a reflective invoke
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        boolean matches(Class<?>[] types) {
+            if (types.length != parameterTypes.length)
+                return false;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (!MethodInvoker.matches(parameterTypes[i], types[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isMoreSpecificThan(MethodEntry other) {
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (!other.parameterTypes[i].isAssignableFrom(parameterTypes[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The key for memoizing the method resolved for a given call signature.
+     */
+    private static class Signature {
+        private final String name;
+        private final Class<?>[] types;
+        private final int hash;
+
+        Signature(String name, Class<?>[] types) {
+            this.name = name;
+            this.types = types;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature))
+                return false;
+            Signature other = (Signature)obj;
+            return name.equals(other.name) && Arrays.equals(types, other.types);
+        }
+    }
+
     private Object service;
-    private Class<?>[] interfaces;
+    private final MethodEntry[] table;
+    private final String[] signatures;
+    private final Map<String, MethodEntry[]> byName = new HashMap<>();
+    private final Map<Signature, MethodEntry> resolved = new ConcurrentHashMap<>();
 
     public MethodInvoker(Object service, Class<?>[] interfaces) {
         this.service = service;
-        this.interfaces = interfaces;
-        this.primTypes = new HashMap<>();
-        this.primTypes.put(Byte.TYPE, Byte.class);
-        this.primTypes.put(Short.TYPE, Short.class);
-        this.primTypes.put(Integer.TYPE, Integer.class);
-        this.primTypes.put(Long.TYPE, Long.class);
-        this.primTypes.put(Float.TYPE, Float.class);
-        this.primTypes.put(Double.TYPE, Double.class);
-        this.primTypes.put(Boolean.TYPE, Boolean.class);
-        this.primTypes.put(Character.TYPE, Character.class);
+        this.table = createTable(service, interfaces);
+        this.signatures = new String[table.length];
+        for (int i = 0; i < table.length; i++) {
+            signatures[i] = signature(table[i].method);
+        }
+        Map<String, List<MethodEntry>> names = new HashMap<>();
+        for (MethodEntry entry : table) {
+            names.computeIfAbsent(entry.method.getName(), k -> new ArrayList<>()).add(entry);
+        }
+        for (Map.Entry<String, List<MethodEntry>> entry : names.entrySet()) {
+            byName.put(entry.getKey(), entry.getValue().toArray(new MethodEntry[0]));
+        }
     }
 
     protected MethodInvoker(Object service) {
@@ -69,66 +190,155 @@ public class MethodInvoker {
         return classes.toArray(new Class<?>[0]);
     }
 
+    /**
+     * Creates the table of invocable methods, in a deterministic order.
+     *
+     * @param service the service
+     * @param interfaces the exported interfaces, or null if there are no restrictions
+     * @return the invocable methods
+     */
+    private static MethodEntry[] createTable(Object service, Class<?>[] interfaces) {
+        Map<String, Method> methods = new HashMap<>(); // by signature, removing duplicates
+        if (interfaces == null) { // if there are no restrictions, allow everything
+            for (Method method : service.getClass().getMethods()) {
+                methods.putIfAbsent(signature(method), method);
+            }
+        } else { // for security, allow only methods in the exported interfaces
+            for (Class<?> iface : interfaces) {
+                for (Method method : iface.getMethods()) {
+                    if (!Modifier.isStatic(method.getModifiers())) {
+                        methods.putIfAbsent(signature(method), method);
+                    }
+                }
+            }
+        }
+        return methods.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey(Comparator.naturalOrder()))
+            .map(e -> new MethodEntry(e.getValue()))
+            .toArray(MethodEntry[]::new);
+    }
+
+    /**
+     * Returns a string that uniquely identifies a method within an interface
+     * (consisting of its name and parameter types).
+     *
+     * @param method the method
+     * @return the method signature
+     */
+    static String signature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        for (Class<?> type : method.getParameterTypes()) {
+            sb.append(type.getName()).append(',');
+        }
+        return sb.append(')').toString();
+    }
+
     public Object getService() {
         return service;
     }
 
+    /**
+     * Returns the signatures of the invocable methods, whose indices are the
+     * method ids accepted by {@link #invoke(int, Object[])}.
+     *
+     * @return the method signatures
+     */
+    String[] getSignatures() {
+        return signatures;
+    }
+
     public Object invoke(String methodName, Object[] args) throws Exception {
-        Class<?>[] parameterTypesAr = getTypes(args);
-        Method method = getMethod(methodName, parameterTypesAr);
-        return method.invoke(service, args);
+        return getMethod(methodName, args).invoke(service, args);
     }
 
-    private Method verifyInterface(Method method) throws NoSuchMethodException {
-        if (interfaces == null) // if there are no restrictions, allow everything
-            return method;
-        // for security, make sure it's in the exported interfaces
-        for (Class<?> iface : interfaces) {
-            try {
-                iface.getMethod(method.getName(), method.getParameterTypes());
-                return method;
-            } catch (NoSuchMethodException ignore) {}
-        }
-        throw new NoSuchMethodException("method is not in any interface");
-    }
-
-    private Method getMethod(String methodName, Class<?>[] parameterTypesAr) throws NoSuchMethodException {
-        try {
-            // fast path - exact match
-            Method method = service.getClass().getMethod(methodName, parameterTypesAr);
-            return verifyInterface(method);
-        } catch (NoSuchMethodException e) {
-            // fallback - search all methods for name, params count, assignable param types, null values, etc.
-            Method[] methods = service.getClass().getMethods();
-            for (Method method : methods) {
-                if (method.getName().equals(methodName) && allParamsMatch(method.getParameterTypes(), parameterTypesAr)) {
-                    return verifyInterface(method);
+    /**
+     * Invokes a method given its id.
+     *
+     * @param methodId the method id, which is its index within the {@link #getSignatures() signatures}
+     * @param args the method arguments
+     * @return the value returned by the invoked method
+     * @throws Exception if an error occurs
+     */
+    public Object invoke(int methodId, Object[] args) throws Exception {
+        if (methodId < 0 || methodId >= table.length) {
+            throw new NoSuchMethodException("No method found with id " + methodId);
+        }
+        MethodEntry entry = table[methodId];
+        if (!matches(entry, args)) {
+            throw noSuchMethod(entry.method.getName(), getTypes(args));
+        }
+        return entry.invoke(service, args);
+    }
+
+    private MethodEntry getMethod(String methodName, Object[] args) throws NoSuchMethodException {
+        MethodEntry[] candidates = byName.get(methodName);
+        if (candidates != null && candidates.length == 1) {
+            // fast path - no overloads, so there's nothing to resolve or memoize
+            MethodEntry entry = candidates[0];
+            if (matches(entry, args)) {
+                return entry;
+            }
+            throw noSuchMethod(methodName, getTypes(args));
+        }
+        Signature signature = new Signature(methodName, getTypes(args));
+        MethodEntry entry = resolved.get(signature);
+        if (entry == null) {
+            entry = resolve(candidates, signature.types);
+            if (entry == null) {
+                throw noSuchMethod(methodName, signature.types);
+            }
+            if (resolved.size() >= MAX_SIGNATURES) {
+                resolved.clear();
+            }
+            resolved.put(signature, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Finds the most specific method that can be invoked with the given argument types.
+     *
+     * @param candidates the methods with the invoked name
+     * @param types the argument types (with nulls for null arguments)
+     * @return the method, or null if there is no matching method
+     */
+    private static MethodEntry resolve(MethodEntry[] candidates, Class<?>[] types) {
+        MethodEntry best = null;
+        if (candidates != null) {
+            for (MethodEntry entry : candidates) {
+                if (entry.matches(types) && (best == null || entry.isMoreSpecificThan(best))) {
+                    best = entry;
                 }
             }
-            throw new NoSuchMethodException(String.format("No method found that matches name %s, types %s",
-                                                             methodName, Arrays.toString(parameterTypesAr)));
         }
+        return best;
     }
 
-    private boolean allParamsMatch(Class<?>[] methodParamTypes, Class<?>[] parameterTypesAr) {
-        if (parameterTypesAr.length != methodParamTypes.length)
+    private static NoSuchMethodException noSuchMethod(String methodName, Class<?>[] types) {
+        return new NoSuchMethodException(String.format("No method found that matches name %s, types %s",
+                                                       methodName, Arrays.toString(types)));
+    }
+
+    private static boolean matches(MethodEntry entry, Object[] args) {
+        int len = args == null ? 0 : args.length;
+        if (len != entry.parameterTypes.length)
             return false;
-        for (int i = 0; i < methodParamTypes.length; i++) {
-            if (!matches(methodParamTypes[i], parameterTypesAr[i])) {
+        for (int i = 0; i < len; i++) {
+            if (!matches(entry.parameterTypes[i], args[i] == null ? null : args[i].getClass())) {
                 return false;
             }
         }
         return true;
     }
 
-    private boolean matches(Class<?> type, Class<?> paramType) {
+    private static boolean matches(Class<?> type, Class<?> paramType) {
         if (type.isPrimitive()) {
-            return paramType == primTypes.get(type);
+            return paramType == PRIM_TYPES.get(type);
         }
         return paramType == null || type.isAssignableFrom(paramType);
     }
 
-    private Class<?>[] getTypes(Object[] args) {
+    private static Class<?>[] getTypes(Object[] args) {
         int len = args == null ? 0 : args.length;
         Class<?>[] types = new Class<?>[len];
         for (int i = 0; i < len; i++) {
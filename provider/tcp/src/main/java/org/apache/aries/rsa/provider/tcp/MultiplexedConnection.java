@@ -0,0 +1,457 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client connection which is shared by concurrent callers.
+ * <p>
+ * Each call frame carries a call id that is unique within the connection,
+ * and a reader thread matches the result frames (which may arrive in any order)
+ * to the pending calls, so that callers do not need exclusive use of the
+ * connection for the whole round trip. The calls may invoke any of the server's
+ * endpoints, which are first described on the connection.
+ * <p>
+ * A call may also be answered by a {@link StreamedResult streamed result}, whose
+ * chunks are passed on to it by the reader thread.
+ * <p>
+ * If pinging is enabled, the reader pings the server whenever nothing was received
+ * for the ping interval, and fails the connection (and its pending calls) if the
+ * server does not answer within another interval, rather than waiting for each
+ * call to time out on a server that is gone.
+ */
+class MultiplexedConnection implements Closeable, Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiplexedConnection.class);
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final AtomicLong callIds = new AtomicLong();
+    private final Map<Long, PendingCall> calls = new ConcurrentHashMap<>();
+    private final Map<Long, StreamedResult> streams = new ConcurrentHashMap<>();
+    private final CallCodec codec = new CallCodec();
+    private final long serverInstance;
+    private final Compression compression;
+    private final int pingIntervalMillis;
+    private long pings;
+    private volatile IOException failure;
+
+    /**
+     * A call awaiting its result.
+     */
+    private static class PendingCall extends CompletableFuture<CallCodec.EncodedResult> {
+
+        final CallFormat format; // of the invoked endpoint, or null for a describe request
+
+        PendingCall(CallFormat format) {
+            this.format = format;
+        }
+    }
+
+    /**
+     * Creates a connection over the given socket and performs the handshake.
+     * The {@link #run} method must then be invoked on a dedicated thread to read results.
+     *
+     * @param socket the connected socket
+     * @param timeoutMillis the socket timeout
+     * @param compression the requested compression
+     * @param pingIntervalMillis the time without receiving anything after which the server
+     *                           is pinged, or 0 to not ping it
+     * @throws IOException if an error occurs
+     */
+    MultiplexedConnection(Socket socket, int timeoutMillis, Compression compression,
+            int pingIntervalMillis) throws IOException {
+        this.socket = socket;
+        this.pingIntervalMillis = pingIntervalMillis;
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Protocol.ServerHello hello = Protocol.handshake(out, in, compression, pingIntervalMillis);
+            serverInstance = hello.instanceId;
+            this.compression = hello.compression;
+            if (pingIntervalMillis > 0 && (timeoutMillis == 0 || pingIntervalMillis < timeoutMillis)) {
+                socket.setSoTimeout(pingIntervalMillis); // the reader pings when it times out
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the id of the server instance this connection is connected to.
+     *
+     * @return the server instance id
+     */
+    long getServerInstance() {
+        return serverInstance;
+    }
+
+    /**
+     * Returns whether this connection uses a Unix domain socket rather than TCP.
+     *
+     * @return whether this connection uses a Unix domain socket
+     */
+    boolean isUnixSocket() {
+        return socket instanceof UnixDomainSockets.ChannelSocket;
+    }
+
+    boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Returns the number of calls sent on this connection that are still awaiting their result.
+     *
+     * @return the number of pending calls
+     */
+    int getPending() {
+        return calls.size();
+    }
+
+    /**
+     * Sends a call.
+     *
+     * @param endpoint the invoked endpoint, as described by the server this connection is connected to
+     * @param format the endpoint's call format
+     * @param method the invoked method
+     * @param args the method arguments
+     * @param timeoutMillis the time remaining until the caller stops waiting for the result,
+     *                      or 0 if it waits indefinitely
+     * @return a future that is completed with the (still encoded) result,
+     *         or exceptionally if the connection fails before the result is received
+     *         (cancelling it, or timing it out, cancels the call on the server)
+     * @throws IOException if an error occurs
+     */
+    CompletableFuture<CallCodec.EncodedResult> call(RemoteEndpoint endpoint, CallFormat format,
+            Method method, Object[] args, int timeoutMillis) throws IOException {
+        return send(format, callId -> codec.callFrame(callId, endpoint, format, method, args, timeoutMillis));
+    }
+
+    /**
+     * Sends a batch of calls to the same endpoint.
+     *
+     * @param endpoint the invoked endpoint, as described by the server this connection is connected to
+     * @param format the endpoint's call format
+     * @param methods the invoked methods
+     * @param args the arguments of each invoked method
+     * @param parallel whether the server may execute the calls concurrently
+     * @param timeoutMillis the time remaining until the caller stops waiting for the results,
+     *                      or 0 if it waits indefinitely
+     * @return a future that is completed with the (still encoded) results of all calls,
+     *         or exceptionally if the connection fails before they are received
+     * @throws IOException if an error occurs
+     */
+    CompletableFuture<CallCodec.EncodedResult> batch(RemoteEndpoint endpoint, CallFormat format,
+            List<Method> methods, List<Object[]> args, boolean parallel, int timeoutMillis) throws IOException {
+        return send(format, callId -> codec.batchFrame(callId, endpoint, format, methods, args, parallel, timeoutMillis));
+    }
+
+    /**
+     * Sends a call to a method which returns a {@link Protocol#isStreamed streamed} type.
+     *
+     * @param endpoint the invoked endpoint, as described by the server this connection is connected to
+     * @param format the endpoint's call format
+     * @param method the invoked method
+     * @param args the method arguments
+     * @param timeoutMillis the time remaining until the caller stops waiting for the first chunk,
+     *                      or 0 if it waits indefinitely
+     * @param stream receives the chunks of the result, if it is streamed
+     * @return a future that is completed with the first chunk of the result if it is streamed
+     *         (which is also passed on to the stream), or with the (still encoded) result otherwise
+     * @throws IOException if an error occurs
+     */
+    CompletableFuture<CallCodec.EncodedResult> stream(RemoteEndpoint endpoint, CallFormat format,
+            Method method, Object[] args, int timeoutMillis, StreamedResult stream) throws IOException {
+        CompletableFuture<CallCodec.EncodedResult> future;
+        try {
+            future = send(format, callId -> {
+                stream.setCallId(callId);
+                streams.put(callId, stream); // before the call is sent, so that no chunk is missed
+                return codec.callFrame(callId, endpoint, format, method, args, timeoutMillis);
+            });
+        } catch (IOException e) {
+            streams.remove(stream.getCallId());
+            throw e;
+        }
+        future.whenComplete((first, t) -> {
+            if (t != null) {
+                cancelStream(stream.getCallId()); // e.g. timed out
+            } else if (first.getPayload()[0] != Protocol.CHUNK) {
+                streams.remove(stream.getCallId()); // not streamed after all
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Grants the server credit for more chunks of a streamed result.
+     *
+     * @param callId the id of the streaming call
+     * @param credit the number of chunks
+     * @throws IOException if an error occurs
+     */
+    void credit(long callId, int credit) throws IOException {
+        ByteBuffer frame = Protocol.creditFrame(callId, credit);
+        synchronized (out) {
+            checkOpen();
+            Protocol.writeFrame(out, frame);
+        }
+    }
+
+    /**
+     * Stops receiving a streamed result which ended.
+     *
+     * @param callId the id of the streaming call
+     */
+    void endStream(long callId) {
+        streams.remove(callId);
+    }
+
+    /**
+     * Stops receiving a streamed result before it ended, and lets the server know.
+     *
+     * @param callId the id of the streaming call
+     */
+    void cancelStream(long callId) {
+        if (streams.remove(callId) != null && isOpen()) {
+            try {
+                credit(callId, -1);
+            } catch (IOException e) {
+                LOG.trace("Error cancelling stream", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a frame with a given call id.
+     */
+    private interface FrameFactory {
+        Protocol.FrameOutputStream create(long callId) throws IOException;
+    }
+
+    private CompletableFuture<CallCodec.EncodedResult> send(CallFormat format, FrameFactory factory) throws IOException {
+        long callId = callIds.incrementAndGet();
+        PendingCall future = register(callId, format);
+        try {
+            Protocol.FrameOutputStream frame = factory.create(callId);
+            synchronized (out) {
+                checkOpen();
+                Protocol.writeFrame(out, compression.compress(frame));
+                frame.sent();
+            }
+        } catch (IOException e) {
+            throw failed(future, e);
+        }
+        return checkFailure(future);
+    }
+
+    /**
+     * Requests the description of an endpoint.
+     *
+     * @param endpointId the endpoint id
+     * @return a future that is completed with the server's {@link Protocol#DESCRIBE} reply,
+     *         or exceptionally if the connection fails before it is received
+     * @throws IOException if an error occurs
+     */
+    CompletableFuture<CallCodec.EncodedResult> describe(String endpointId) throws IOException {
+        long callId = callIds.incrementAndGet();
+        PendingCall future = register(callId, null);
+        try {
+            ByteBuffer frame = Protocol.describeFrame(callId, endpointId);
+            synchronized (out) {
+                checkOpen();
+                Protocol.writeFrame(out, frame);
+            }
+        } catch (IOException e) {
+            throw failed(future, e);
+        }
+        return checkFailure(future);
+    }
+
+    private PendingCall register(long callId, CallFormat format) {
+        PendingCall future = new PendingCall(format);
+        // however the call ends (result, failure, timeout or cancellation) it is no longer pending
+        future.whenComplete((result, t) -> {
+            calls.remove(callId);
+            if (format != null && (t instanceof CancellationException || t instanceof TimeoutException)) {
+                cancel(callId); // the caller gave up, so the server can stop working on it
+            }
+        });
+        calls.put(callId, future);
+        return future;
+    }
+
+    /**
+     * Lets the server know that the caller is no longer waiting for the result of a call.
+     *
+     * @param callId the call id
+     */
+    private void cancel(long callId) {
+        if (!isOpen()) {
+            return; // the server cancels the calls of a closed connection by itself
+        }
+        ByteBuffer frame = Protocol.cancelFrame(callId);
+        try {
+            synchronized (out) {
+                checkOpen();
+                Protocol.writeFrame(out, frame);
+            }
+        } catch (IOException e) {
+            LOG.trace("Error cancelling call", e);
+        }
+    }
+
+    private IOException failed(PendingCall future, IOException e) {
+        future.completeExceptionally(e);
+        if (e instanceof SocketException) {
+            fail(e);
+        }
+        return e;
+    }
+
+    private PendingCall checkFailure(PendingCall future) {
+        // the connection may have failed just before the call was registered
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        }
+        return future;
+    }
+
+    private void checkOpen() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new SocketException("Connection is closed: " + e);
+        }
+    }
+
+    /**
+     * Pings the server, unless a previous ping was not answered yet.
+     *
+     * @return whether the server answered the previous ping
+     * @throws IOException if an error occurs
+     */
+    private boolean ping() throws IOException {
+        if (pings > 0) {
+            return false;
+        }
+        ByteBuffer frame = Protocol.pingFrame(++pings);
+        synchronized (out) {
+            checkOpen();
+            Protocol.writeFrame(out, frame);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isOpen()) {
+                byte[] payload;
+                try {
+                    payload = Compression.decompress(Protocol.readFrame(in));
+                } catch (SocketTimeoutException ste) {
+                    if (pingIntervalMillis > 0 && !ping()) {
+                        throw new SocketTimeoutException("Server did not answer ping");
+                    }
+                    continue; // idle - pending calls time out individually
+                }
+                pings = 0; // the server is alive
+                if (payload[0] == Protocol.PING) {
+                    continue;
+                }
+                if (payload[0] != Protocol.RESULT && payload[0] != Protocol.DESCRIBE && payload[0] != Protocol.CHUNK) {
+                    throw new IOException("unexpected frame type " + payload[0]);
+                }
+                long callId = Protocol.callId(payload);
+                PendingCall future = calls.get(callId);
+                StreamedResult stream = payload[0] == Protocol.CHUNK ? streams.get(callId) : null;
+                CallFormat format = future != null && future.format != null ? future.format
+                    : stream != null ? stream.getFormat()
+                    : CallFormat.DEFAULT;
+                if (payload[0] != Protocol.DESCRIBE) {
+                    // results are decoded by their callers, but definitions must be read in order
+                    // (even for calls that are no longer pending)
+                    codec.readDefinitions(payload, format);
+                }
+                CallCodec.EncodedResult encoded = new CallCodec.EncodedResult(codec, format, payload);
+                if (stream != null) {
+                    stream.received(encoded);
+                }
+                if (future != null) {
+                    future.complete(encoded);
+                }
+            }
+        } catch (IOException e) {
+            LOG.trace("Connection closed", e);
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+            // we want it closed - nothing else to do
+        }
+        for (PendingCall future : calls.values()) {
+            future.completeExceptionally(e);
+        }
+        for (StreamedResult stream : streams.values()) {
+            stream.failed(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new SocketException("Connection closed"));
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(socket);
+    }
+}
@@ -26,6 +26,7 @@ import java.net.*;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -85,6 +86,27 @@ public final class NetUtil {
         }
     }
 
+    /**
+     * Returns whether a host name or address refers to this machine,
+     * i.e. it is a loopback address or one of the addresses of its network interfaces.
+     *
+     * @param host the host name or address
+     * @return whether the host is this machine, or false if it cannot be resolved
+     */
+    public static boolean isLocalHost(String host) {
+        try {
+            List<InetAddress> local = Arrays.asList(getAllLocalUsingNetworkInterface());
+            for (InetAddress addr : InetAddress.getAllByName(host)) {
+                if (addr.isLoopbackAddress() || addr.isAnyLocalAddress() || local.contains(addr)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            // not resolvable, so not known to be local
+        }
+        return false;
+    }
+
     public static String getLocalIp() {
         String localIP;
         try {
@@ -0,0 +1,819 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.aries.rsa.provider.tcp.ser.BasicObjectOutputStream;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+
+/**
+ * Constants and helpers for the framed wire protocol spoken between
+ * a {@link TcpInvocationHandler} and a {@link TcpServer}.
+ * <p>
+ * Every message is sent as a frame consisting of a 4-byte big-endian length followed
+ * by that many bytes of payload. The first payload byte is the frame type. A
+ * connection starts with a {@link #HELLO} frame from the client carrying the protocol
+ * magic and version, as well as the {@link Compression} it requests, which the server
+ * answers with its own {@link #HELLO} carrying the id of the server instance and the
+ * compression it accepts (or an {@link #ERROR} frame followed by closing the
+ * connection). The compression fields are optional, so that peers which do not support
+ * compression ignore them or leave them out. A connection is not bound to any
+ * endpoint, so that a client can share its connections to a server among all of the
+ * endpoints it imports from it. Instead, a client first sends a {@link #DESCRIBE}
+ * frame with an endpoint id, which the server answers with a handle for the endpoint
+ * (that is valid on all connections to the same server instance), the name of its
+ * serializer and the signatures of its methods. After that, each {@link #CALL} frame
+ * carries the handle of the invoked endpoint, and is answered by a {@link #RESULT}
+ * frame carrying the same call id. Since the server executes calls concurrently, a
+ * client may send multiple calls over the same connection without waiting, and their
+ * results may arrive in any order. A {@link #BATCH} frame carries several calls to the
+ * same endpoint, and is answered by a single {@link #RESULT} frame carrying the
+ * results of all of them (or a single error, if the batch as a whole failed).
+ * <p>
+ * A call to a method returning a {@link #isStreamed streamed type} is flagged as such,
+ * and if it returns a stream, the server answers it with a sequence of {@link #CHUNK}
+ * frames rather than a single {@link #RESULT} frame. The server sends at most
+ * {@link #STREAM_WINDOW} chunks ahead of the client, which grants more by sending
+ * {@link #CREDIT} frames as it consumes them (or cancels the stream).
+ * <p>
+ * Each {@link #CALL} and {@link #BATCH} frame also carries the time remaining until
+ * the client stops waiting for its result, so that the server can skip calls that
+ * expired while they were queued. A client which gives up on a call earlier (or times
+ * out while it is executing) sends a {@link #CANCEL} frame with its call id, which
+ * the server uses to interrupt or skip it. Either way, the call is still answered.
+ * <p>
+ * A client may send a {@link #PING} frame at any time, which the server answers right
+ * away with a {@link #PING} frame carrying the same id, so that the client can tell a
+ * live server from one that vanished without closing the connection. A client which
+ * pings its idle connections states its ping interval in its {@link #HELLO}, so that the
+ * server can likewise close the idle connections it no longer hears from.
+ * <p>
+ * Calls are encoded in one of two formats, which is flagged in each call (and
+ * mirrored by its result). In the Java format, the method name, arguments and
+ * results are written using Java serialization. In the {@link #FLAG_BINARY binary}
+ * format, calls refer to a method by its index in the endpoint's signature table,
+ * and the values are encoded by {@link BinaryFormat}. In both formats, the Java
+ * serialization class descriptors are written only once per connection
+ * (see {@link CallCodec}).
+ * <p>
+ * Framing allows the server to read complete messages using non-blocking I/O
+ * and only hand fully received calls over to its worker threads.
+ */
+final class Protocol {
+
+    static final int MAGIC = 0x41525341; // "ARSA"
+    static final byte VERSION = 7;
+
+    // frame types
+    static final byte HELLO = 1;
+    static final byte ERROR = 2;
+    static final byte CALL = 3;
+    static final byte RESULT = 4;
+    static final byte DESCRIBE = 5;
+    static final byte BATCH = 6;
+    static final byte CHUNK = 7;
+    static final byte CREDIT = 8;
+    static final byte CANCEL = 9;
+    static final byte PING = 10;
+
+    // chunk status
+    static final byte CHUNK_MORE = 0;
+    static final byte CHUNK_END = 1;
+    static final byte CHUNK_ERROR = 2;
+
+    /**
+     * The number of chunks a server may send before the client grants it more credit.
+     */
+    static final int STREAM_WINDOW = 8;
+
+    /**
+     * The maximum number of elements (or bytes, for an InputStream) in a chunk.
+     */
+    static final int CHUNK_ELEMENTS = 256;
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    // describe reply status
+    static final byte DESCRIBE_OK = 0;
+    static final byte DESCRIBE_ERROR = 1;
+
+    /**
+     * The size of the {@link #CALL}, {@link #RESULT} and {@link #DESCRIBE} frame header,
+     * consisting of the frame type, call id and flags.
+     */
+    static final int CALL_HEADER_SIZE = 10;
+
+    // call frame flags
+    static final byte FLAG_DEFINITIONS = 1; // the frame contains new class descriptor definitions
+    static final byte FLAG_BINARY = 2; // the frame uses the binary format
+    static final byte FLAG_COMPRESSED = 4; // the frame body is compressed (see Compression)
+    static final byte FLAG_STREAM = 8; // the call accepts a streamed result
+
+    /** prevent DOS attacks in case a very large size field is sent */
+    static final int MAX_FRAME_SIZE = Integer.getInteger("aries.tcp.maxFrameSize", 256 * 1024 * 1024);
+
+    private Protocol() {
+        // utility class
+    }
+
+    /**
+     * The minimum size of the byte arrays and buffers which are sent as separate
+     * segments of a frame, rather than copied into it.
+     */
+    static final int SEGMENT_THRESHOLD = 16 * 1024;
+
+    /**
+     * A byte array output stream which builds a frame in place, reserving room for the
+     * length prefix so that the frame can be sent without copying its content.
+     * <p>
+     * Large byte arrays and buffers can be {@link #writeSegment added as segments}, which
+     * are not copied into the frame, but sent from where they are by a gathering write
+     * (see {@link #toBuffers()}) - so they must not be modified until the frame is sent.
+     * On the wire, the frame is the same as if they were copied.
+     */
+    static class FrameOutputStream extends ByteArrayOutputStream {
+
+        private BasicObjectOutputStream objectOutput;
+        private List<Integer> segmentPositions; // the positions in buf at which the segments are inserted
+        private List<ByteBuffer> segments;
+        private int segmentsSize;
+
+        FrameOutputStream(byte type) {
+            super(256);
+            count = 4; // length prefix placeholder
+            write(type);
+        }
+
+        /**
+         * Creates a {@link #CALL}, {@link #RESULT} or {@link #DESCRIBE} frame.
+         *
+         * @param type the frame type
+         * @param callId the call id
+         * @param binary whether the frame uses the binary format
+         */
+        FrameOutputStream(byte type, long callId, boolean binary) {
+            this(type);
+            // the definitions flag is set in toFrame
+            ByteBuffer.wrap(buf, count, 9).putLong(callId).put(binary ? FLAG_BINARY : 0);
+            count += 9;
+        }
+
+        /**
+         * Sets a flag of a frame created with a call id.
+         *
+         * @param flag the flag
+         */
+        void setFlag(byte flag) {
+            buf[4 + CALL_HEADER_SIZE - 1] |= flag;
+        }
+
+        /**
+         * Sets the stream used to write Java serialized objects into this frame.
+         *
+         * @param objectOutput the object output stream
+         */
+        void setObjectOutput(BasicObjectOutputStream objectOutput) {
+            this.objectOutput = objectOutput;
+        }
+
+        /**
+         * Writes a byte array, as a segment if it is large enough.
+         *
+         * @param data the data
+         */
+        void writeSegment(byte[] data) {
+            if (data.length < SEGMENT_THRESHOLD) {
+                write(data, 0, data.length);
+            } else {
+                writeSegment(ByteBuffer.wrap(data));
+            }
+        }
+
+        /**
+         * Writes the remaining content of a buffer, as a segment if it is large enough.
+         *
+         * @param data the data (whose position is not modified)
+         */
+        void writeSegment(ByteBuffer data) {
+            int size = data.remaining();
+            if (size < SEGMENT_THRESHOLD) {
+                ensureCapacity(size);
+                data.duplicate().get(buf, count, size);
+                count += size;
+                return;
+            }
+            if (segments == null) {
+                segmentPositions = new ArrayList<>();
+                segments = new ArrayList<>();
+            }
+            segmentPositions.add(count);
+            segments.add(data.duplicate());
+            segmentsSize += size;
+        }
+
+        private void ensureCapacity(int size) {
+            if (count + size > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + size));
+            }
+        }
+
+        /**
+         * Completes the frame by filling in its length prefix (and flags).
+         *
+         * @return a buffer containing the whole frame, including the length prefix
+         *         (into which the segments are copied, if there are any)
+         */
+        ByteBuffer toFrame() {
+            ByteBuffer[] buffers = toBuffers();
+            if (buffers.length == 1) {
+                return buffers[0];
+            }
+            ByteBuffer frame = ByteBuffer.allocate(count + segmentsSize);
+            for (ByteBuffer buffer : buffers) {
+                frame.put(buffer);
+            }
+            return frame.flip();
+        }
+
+        /**
+         * Completes the frame by filling in its length prefix (and flags).
+         *
+         * @return the buffers containing the whole frame, including the length prefix,
+         *         in which the segments are interleaved with the rest of the frame
+         */
+        ByteBuffer[] toBuffers() {
+            ByteBuffer.wrap(buf).putInt(0, count - 4 + segmentsSize);
+            if (objectOutput != null && objectOutput.hasDefinitions()) {
+                buf[4 + CALL_HEADER_SIZE - 1] |= FLAG_DEFINITIONS;
+            }
+            if (segments == null) {
+                return new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count) };
+            }
+            ByteBuffer[] buffers = new ByteBuffer[2 * segments.size() + 1];
+            int start = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                int position = segmentPositions.get(i);
+                buffers[2 * i] = ByteBuffer.wrap(buf, start, position - start);
+                buffers[2 * i + 1] = segments.get(i).duplicate();
+                start = position;
+            }
+            buffers[buffers.length - 1] = ByteBuffer.wrap(buf, start, count - start);
+            return buffers;
+        }
+
+        /**
+         * Returns the size of the frame, including the length prefix.
+         *
+         * @return the frame size
+         */
+        int frameSize() {
+            return count + segmentsSize;
+        }
+
+        /**
+         * Must be called once the frame was sent (or queued to be sent)
+         * ahead of any frame created later on the same connection.
+         */
+        void sent() {
+            if (objectOutput != null) {
+                objectOutput.publishDefinitions();
+            }
+        }
+    }
+
+    /**
+     * A byte array input stream over a received frame payload, from which
+     * buffers can be sliced without copying.
+     */
+    static class PayloadInputStream extends ByteArrayInputStream {
+
+        PayloadInputStream(byte[] payload, int offset) {
+            super(payload, offset, payload.length - offset);
+        }
+
+        /**
+         * Returns the next bytes of the payload as a buffer which shares its content.
+         *
+         * @param len the number of bytes
+         * @return the buffer
+         * @throws StreamCorruptedException if there are not enough bytes left
+         */
+        ByteBuffer slice(int len) throws StreamCorruptedException {
+            if (len < 0 || len > available()) {
+                throw new StreamCorruptedException("invalid length " + len);
+            }
+            ByteBuffer slice = ByteBuffer.wrap(buf, pos, len).slice();
+            pos += len;
+            return slice;
+        }
+    }
+
+    /**
+     * Returns the call id of a {@link #CALL} or {@link #RESULT} frame.
+     *
+     * @param payload the frame payload
+     * @return the call id
+     */
+    static long callId(byte[] payload) {
+        return ByteBuffer.wrap(payload, 1, 8).getLong();
+    }
+
+    /**
+     * Returns whether a {@link #CALL} or {@link #RESULT} frame contains
+     * new class descriptor definitions.
+     *
+     * @param payload the frame payload
+     * @return whether the frame defines class descriptors
+     */
+    static boolean hasDefinitions(byte[] payload) {
+        return payload.length >= CALL_HEADER_SIZE && (payload[CALL_HEADER_SIZE - 1] & FLAG_DEFINITIONS) != 0;
+    }
+
+    /**
+     * Returns whether a {@link #CALL} or {@link #RESULT} frame uses the binary format.
+     *
+     * @param payload the frame payload
+     * @return whether the frame is binary
+     */
+    static boolean isBinary(byte[] payload) {
+        return (payload[CALL_HEADER_SIZE - 1] & FLAG_BINARY) != 0;
+    }
+
+    /**
+     * Returns whether a {@link #CALL} frame accepts a streamed result.
+     *
+     * @param payload the frame payload
+     * @return whether the result may be streamed
+     */
+    static boolean isStream(byte[] payload) {
+        return (payload[CALL_HEADER_SIZE - 1] & FLAG_STREAM) != 0;
+    }
+
+    /**
+     * Returns whether the values of a type are streamed in chunks when returned by a method,
+     * rather than sent as a whole.
+     *
+     * @param type the method return type
+     * @return whether the type is streamed
+     */
+    static boolean isStreamed(Class<?> type) {
+        return type == Stream.class || type == Iterator.class || type == InputStream.class;
+    }
+
+    /**
+     * Creates a {@link #CREDIT} frame, which allows the server to send more chunks of a
+     * streamed result.
+     *
+     * @param callId the id of the streaming call
+     * @param credit the number of additional chunks the server may send,
+     *               or a negative number to cancel the stream
+     * @return the frame
+     */
+    static ByteBuffer creditFrame(long callId, int credit) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(CREDIT, callId, false);
+        new DataOutputStream(fos).writeInt(credit);
+        return fos.toFrame();
+    }
+
+    /**
+     * Returns the credit granted by a {@link #CREDIT} frame.
+     *
+     * @param payload the frame payload
+     * @return the credit
+     * @throws IOException if the frame is invalid
+     */
+    static int parseCredit(byte[] payload) throws IOException {
+        return callInput(payload).readInt();
+    }
+
+    /**
+     * Creates a {@link #CANCEL} frame, which tells the server that the client
+     * is no longer waiting for the result of a call.
+     *
+     * @param callId the id of the cancelled call
+     * @return the frame
+     */
+    static ByteBuffer cancelFrame(long callId) {
+        return new FrameOutputStream(CANCEL, callId, false).toFrame();
+    }
+
+    /**
+     * Creates a {@link #PING} frame, which is sent by a client and echoed by the server.
+     *
+     * @param id the ping id
+     * @return the frame
+     */
+    static ByteBuffer pingFrame(long id) {
+        return new FrameOutputStream(PING, id, false).toFrame();
+    }
+
+    /**
+     * Returns the time remaining until the client stops waiting for the result of
+     * a {@link #CALL} or {@link #BATCH} frame, as of when it was sent.
+     *
+     * @param payload the frame payload
+     * @return the remaining time in millis, or 0 if the client waits indefinitely
+     * @throws IOException if the frame is too short
+     */
+    static int callTimeout(byte[] payload) throws IOException {
+        if (payload.length < CALL_HEADER_SIZE + 8) {
+            throw new StreamCorruptedException("invalid call frame");
+        }
+        return ByteBuffer.wrap(payload, CALL_HEADER_SIZE + 4, 4).getInt();
+    }
+
+    /**
+     * Returns the handle of the endpoint invoked by a {@link #CALL} or {@link #BATCH} frame.
+     *
+     * @param payload the frame payload
+     * @return the endpoint handle
+     * @throws IOException if the frame is too short
+     */
+    static int endpointHandle(byte[] payload) throws IOException {
+        if (payload.length < CALL_HEADER_SIZE + 4) {
+            throw new StreamCorruptedException("invalid call frame");
+        }
+        return ByteBuffer.wrap(payload, CALL_HEADER_SIZE, 4).getInt();
+    }
+
+    /**
+     * A call, as seen by the server.
+     */
+    static class Call {
+
+        final int methodId;
+        final String methodName;
+        final Object[] args;
+
+        Call(int methodId, String methodName, Object[] args) {
+            this.methodId = methodId;
+            this.methodName = methodName;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            return methodName != null ? methodName : "method #" + methodId;
+        }
+    }
+
+    /**
+     * A chunk of a streamed result, as seen by the client.
+     */
+    static class Chunk {
+
+        final byte status;
+        final Object[] elements; // or the error, if the status is CHUNK_ERROR
+
+        Chunk(byte status, Object[] elements) {
+            this.status = status;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * A batch of calls, as seen by the server.
+     */
+    static class Batch {
+
+        final boolean parallel;
+        final Call[] calls;
+
+        Batch(boolean parallel, Call[] calls) {
+            this.parallel = parallel;
+            this.calls = calls;
+        }
+
+        @Override
+        public String toString() {
+            return "batch of " + calls.length + " calls";
+        }
+    }
+
+    /**
+     * Creates the {@link #HELLO} frame sent by a client.
+     *
+     * @param compression the requested compression
+     * @param pingIntervalMillis the interval at which the client pings the connection while it is idle,
+     *                           or 0 if it does not
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    static ByteBuffer clientHelloFrame(Compression compression, int pingIntervalMillis) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(HELLO);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(compression.algorithm);
+        out.writeInt(compression.threshold);
+        out.writeInt(pingIntervalMillis);
+        return fos.toFrame();
+    }
+
+    /**
+     * Creates the {@link #HELLO} frame sent by a server.
+     *
+     * @param instanceId the id of the server instance
+     * @param compression the accepted compression
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    static ByteBuffer serverHelloFrame(long instanceId, Compression compression) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(HELLO);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(instanceId);
+        out.writeByte(compression.algorithm);
+        return fos.toFrame();
+    }
+
+    /**
+     * Creates the {@link #DESCRIBE} frame sent by a client.
+     *
+     * @param callId the call id
+     * @param endpointId the id of the endpoint to describe
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    static ByteBuffer describeFrame(long callId, String endpointId) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(DESCRIBE, callId, false);
+        new DataOutputStream(fos).writeUTF(endpointId);
+        return fos.toFrame();
+    }
+
+    /**
+     * Parses the {@link #DESCRIBE} frame sent by a client.
+     *
+     * @param payload the frame payload
+     * @return the id of the endpoint to describe
+     * @throws IOException if the frame is invalid
+     */
+    static String parseDescribe(byte[] payload) throws IOException {
+        return callInput(payload).readUTF();
+    }
+
+    /**
+     * Creates the {@link #DESCRIBE} frame sent by a server for an existing endpoint.
+     *
+     * @param callId the call id of the request
+     * @param handle the endpoint handle
+     * @param serializer the name of the endpoint's serializer
+     * @param signatures the signatures of the endpoint's methods (in method id order)
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    static ByteBuffer describeReplyFrame(long callId, int handle, String serializer, String[] signatures)
+            throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(DESCRIBE, callId, false);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeByte(DESCRIBE_OK);
+        out.writeInt(handle);
+        out.writeUTF(serializer);
+        out.writeInt(signatures.length);
+        for (String signature : signatures) {
+            out.writeUTF(signature);
+        }
+        return fos.toFrame();
+    }
+
+    /**
+     * Creates the {@link #DESCRIBE} frame sent by a server for an invalid endpoint.
+     *
+     * @param callId the call id of the request
+     * @param message the error message
+     * @return the frame
+     * @throws IOException if an error occurs
+     */
+    static ByteBuffer describeErrorFrame(long callId, String message) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(DESCRIBE, callId, false);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeByte(DESCRIBE_ERROR);
+        out.writeUTF(message);
+        return fos.toFrame();
+    }
+
+    /**
+     * Parses the {@link #DESCRIBE} frame sent by a server.
+     *
+     * @param payload the frame payload
+     * @param instanceId the id of the server instance which sent the frame
+     * @return the described endpoint
+     * @throws IOException if the frame is invalid or the server reported an error
+     */
+    static RemoteEndpoint parseDescribeReply(byte[] payload, long instanceId) throws IOException {
+        if (payload[0] != DESCRIBE) {
+            throw new IOException("unexpected frame type " + payload[0]);
+        }
+        DataInputStream in = callInput(payload);
+        if (in.readByte() != DESCRIBE_OK) {
+            throw new IOException(in.readUTF());
+        }
+        int handle = in.readInt();
+        String serializer = in.readUTF();
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new StreamCorruptedException("invalid method count " + count);
+        }
+        Map<String, Integer> methodIds = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            methodIds.put(in.readUTF(), i);
+        }
+        return new RemoteEndpoint(instanceId, handle, serializer, methodIds);
+    }
+
+    private static DataInputStream callInput(byte[] payload) throws IOException {
+        if (payload.length < CALL_HEADER_SIZE) {
+            throw new StreamCorruptedException("invalid frame");
+        }
+        return new DataInputStream(new ByteArrayInputStream(payload, CALL_HEADER_SIZE, payload.length - CALL_HEADER_SIZE));
+    }
+
+    /**
+     * Returns the name of the given serializer.
+     *
+     * @param serializer a serializer, or null for Java serialization
+     * @return the serializer name
+     */
+    static String serializerName(Serializer serializer) {
+        return serializer == null ? Config.DEFAULT_SERIALIZER : serializer.name();
+    }
+
+    static ByteBuffer errorFrame(String message) throws IOException {
+        FrameOutputStream fos = new FrameOutputStream(ERROR);
+        new DataOutputStream(fos).writeUTF(message);
+        return fos.toFrame();
+    }
+
+    private static DataInputStream helloInput(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+        if (payload[0] == ERROR) {
+            throw new IOException("Connection rejected: " + in.readUTF());
+        }
+        if (payload[0] != HELLO || in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("invalid protocol handshake");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new ProtocolException("unsupported protocol version " + version);
+        }
+        return in;
+    }
+
+    /**
+     * The {@link #HELLO} sent by a client.
+     */
+    static class ClientHello {
+
+        final Compression compression;
+        final int pingIntervalMillis;
+
+        ClientHello(Compression compression, int pingIntervalMillis) {
+            this.compression = compression;
+            this.pingIntervalMillis = pingIntervalMillis;
+        }
+    }
+
+    /**
+     * Parses the {@link #HELLO} frame sent by a client, validating its magic and version.
+     *
+     * @param payload the frame payload
+     * @return the client hello, whose compression is the one accepted by the server
+     *         (the requested one if it is supported)
+     * @throws IOException if the frame is invalid
+     */
+    static ClientHello parseClientHello(byte[] payload) throws IOException {
+        DataInputStream in = helloInput(payload);
+        if (in.available() < 5) {
+            return new ClientHello(Compression.NONE, 0); // not requested
+        }
+        Compression compression = Compression.of(in.readByte(), in.readInt());
+        int pingIntervalMillis = in.available() >= 4 ? Math.max(0, in.readInt()) : 0;
+        return new ClientHello(compression, pingIntervalMillis);
+    }
+
+    /**
+     * The {@link #HELLO} sent by a server.
+     */
+    static class ServerHello {
+
+        final long instanceId;
+        final Compression compression;
+
+        ServerHello(long instanceId, Compression compression) {
+            this.instanceId = instanceId;
+            this.compression = compression;
+        }
+    }
+
+    /**
+     * Parses the {@link #HELLO} frame sent by a server, validating its magic and version.
+     *
+     * @param payload the frame payload
+     * @param requested the compression requested by the client
+     * @return the server hello
+     * @throws IOException if the frame is invalid or the server reported an error
+     */
+    static ServerHello parseServerHello(byte[] payload, Compression requested) throws IOException {
+        DataInputStream in = helloInput(payload);
+        long instanceId = in.readLong();
+        boolean accepted = in.available() > 0 && in.readByte() == requested.algorithm;
+        return new ServerHello(instanceId, accepted ? requested : Compression.NONE);
+    }
+
+    /**
+     * Performs the client side of the handshake over a blocking connection.
+     *
+     * @param out the stream to write to
+     * @param in the stream to read from
+     * @param compression the requested compression
+     * @param pingIntervalMillis the interval at which the client pings the connection while it is idle,
+     *                           or 0 if it does not
+     * @return the server hello
+     * @throws IOException if an error occurs
+     */
+    static ServerHello handshake(OutputStream out, DataInputStream in, Compression compression,
+            int pingIntervalMillis) throws IOException {
+        writeFrame(out, clientHelloFrame(compression, pingIntervalMillis));
+        return parseServerHello(readFrame(in), compression);
+    }
+
+    static void checkFrameSize(int size) throws ProtocolException {
+        if (size < 1 || size > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame size " + size + " (maximum is " + MAX_FRAME_SIZE
+                + ", which can be configured with the system property aries.tcp.maxFrameSize)");
+        }
+    }
+
+    /**
+     * Reads a frame from a blocking stream.
+     *
+     * @param in the stream to read from
+     * @return the frame payload (without the length prefix)
+     * @throws IOException if an error occurs
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        checkFrameSize(size);
+        byte[] payload = new byte[size];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes a frame to a blocking stream and flushes it.
+     *
+     * @param out the stream to write to
+     * @param frame the buffers containing the frame to write
+     * @throws IOException if an error occurs
+     */
+    static void writeFrame(OutputStream out, ByteBuffer... frame) throws IOException {
+        for (ByteBuffer buffer : frame) {
+            if (buffer.hasArray()) {
+                // large arrays are written through to the socket without being buffered
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                ByteBuffer data = buffer.duplicate();
+                byte[] chunk = new byte[Math.min(data.remaining(), SEGMENT_THRESHOLD)];
+                while (data.hasRemaining()) {
+                    int len = Math.min(data.remaining(), chunk.length);
+                    data.get(chunk, 0, len);
+                    out.write(chunk, 0, len);
+                }
+            }
+        }
+        out.flush();
+    }
+}
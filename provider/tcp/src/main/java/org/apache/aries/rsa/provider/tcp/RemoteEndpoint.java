@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An endpoint as described by a server in reply to a {@link Protocol#DESCRIBE} frame.
+ * Calls refer to the endpoint by its handle, and to its methods by their ids, which are
+ * valid on all connections to the same server instance.
+ */
+class RemoteEndpoint {
+
+    final long instanceId;
+    final int handle;
+    final String serializer;
+    private final Map<String, Integer> methodIds;
+    private final Map<Method, Integer> methodIdCache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a remote endpoint.
+     *
+     * @param instanceId the id of the server instance which described the endpoint
+     * @param handle the handle of the endpoint at the server
+     * @param serializer the name of the endpoint's serializer
+     * @param methodIds the ids of the endpoint's methods by their signature
+     */
+    RemoteEndpoint(long instanceId, int handle, String serializer, Map<String, Integer> methodIds) {
+        this.instanceId = instanceId;
+        this.handle = handle;
+        this.serializer = serializer;
+        this.methodIds = methodIds;
+    }
+
+    /**
+     * Returns the id of the given method at the server.
+     *
+     * @param method the method
+     * @return the method id, or -1 if the server has no such method,
+     *         in which case it must be called by name
+     */
+    int getMethodId(Method method) {
+        Integer id = methodIdCache.get(method);
+        if (id == null) {
+            id = methodIds.getOrDefault(MethodInvoker.signature(method), -1);
+            methodIdCache.put(method, id);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of a call (or batch) received by the server, which lets it skip calls
+ * whose caller is no longer waiting for their result.
+ * <p>
+ * A call expires once the time remaining until its caller's timeout (which is sent
+ * along with it) has passed, so that a call which waited in the queue for too long
+ * is not executed at all. A call is cancelled when its caller gives up on it (and sends
+ * a {@link Protocol#CANCEL} frame) or its connection is closed: if it is still queued,
+ * it is not executed, if it is executing, its thread is interrupted, and if it returned
+ * a Future or CompletionStage that is not yet done, that is cancelled.
+ */
+class ServerCall {
+
+    private final long deadline; // in System.nanoTime() terms, or 0 if there is none
+    private boolean cancelled;
+    private Thread thread; // while the call is executing
+    private Object asyncResult; // the returned Future or CompletionStage
+
+    /**
+     * Creates a call.
+     *
+     * @param timeoutMillis the time remaining until the caller's timeout when the call
+     *                      was sent, in millis, or 0 if the caller waits indefinitely
+     */
+    ServerCall(int timeoutMillis) {
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+    }
+
+    /**
+     * Returns whether the caller has stopped waiting for the call's result due to its timeout.
+     *
+     * @return whether the call expired
+     */
+    boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline > 0;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Marks the call as executing on the current thread, unless it was cancelled.
+     *
+     * @return whether the call should be executed
+     */
+    synchronized boolean start() {
+        if (cancelled) {
+            return false;
+        }
+        thread = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * Marks the call as no longer executing on the current thread.
+     */
+    synchronized void finish() {
+        thread = null;
+        if (cancelled) {
+            Thread.interrupted(); // the interrupt must not leak into the thread's next task
+        }
+    }
+
+    /**
+     * Sets the value returned by the call, which is cancelled if the call is
+     * (or was already) cancelled, if it is a Future or CompletionStage.
+     *
+     * @param result the returned value
+     */
+    void setAsyncResult(Object result) {
+        if (!(result instanceof Future || result instanceof CompletionStage)) {
+            return;
+        }
+        synchronized (this) {
+            if (!cancelled) {
+                asyncResult = result;
+                return;
+            }
+        }
+        cancel(result);
+    }
+
+    /**
+     * Cancels the call.
+     *
+     * @return whether the call was cancelled by this invocation (rather than before)
+     */
+    boolean cancel() {
+        Object result;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            if (thread != null) {
+                thread.interrupt(); // while holding the lock, so that the thread is still executing the call
+            }
+            result = asyncResult;
+        }
+        cancel(result);
+        return true;
+    }
+
+    private static void cancel(Object result) {
+        if (result instanceof Future) {
+            ((Future<?>) result).cancel(true);
+        } else if (result instanceof CompletionStage) {
+            try {
+                ((CompletionStage<?>) result).toCompletableFuture().cancel(true);
+            } catch (UnsupportedOperationException ignore) {
+                // the stage cannot be cancelled, so its result will just be dropped
+            }
+        }
+    }
+}
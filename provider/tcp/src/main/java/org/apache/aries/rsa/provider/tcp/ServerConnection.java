@@ -0,0 +1,367 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The server side of a single client connection.
+ * <p>
+ * A connection receives frames and passes them on to a {@link FrameHandler},
+ * and allows responses to be sent back from any thread.
+ */
+abstract class ServerConnection implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ServerConnection.class);
+
+    /**
+     * Handles frames received on a connection.
+     */
+    interface FrameHandler {
+        void onFrame(ServerConnection conn, byte[] payload) throws IOException;
+
+        void onClose(ServerConnection conn);
+    }
+
+    protected final FrameHandler handler;
+
+    /**
+     * The codec used for all calls received on this connection,
+     * or null if the handshake has not been completed yet.
+     */
+    volatile CallCodec codec;
+
+    /**
+     * The compression of the frames sent and received on this connection.
+     */
+    volatile Compression compression = Compression.NONE;
+
+    /**
+     * Counts calls that were received but not yet responded to.
+     */
+    final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * The results that are being streamed on this connection, by call id.
+     */
+    final Map<Long, ServerStream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * The calls and batches received on this connection which are queued or executing
+     * (or awaiting an asynchronous result), by call id, so that they can be cancelled.
+     */
+    final Map<Long, ServerCall> calls = new ConcurrentHashMap<>();
+
+    volatile long lastActive = System.currentTimeMillis();
+
+    /**
+     * The time at which the last frame was received from the client.
+     */
+    volatile long lastReceived = lastActive;
+
+    /**
+     * The interval at which the client pings this connection while it is idle, or 0 if it does not.
+     */
+    volatile int pingInterval;
+
+    private volatile boolean closed;
+
+    ServerConnection(FrameHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sends a frame to the client. This method may be called from any thread.
+     *
+     * @param frame the buffers containing the frame to send
+     * @throws IOException if an error occurs
+     */
+    abstract void send(ByteBuffer... frame) throws IOException;
+
+    protected abstract void closeTransport() throws IOException;
+
+    boolean isIdle(long now, int timeout) {
+        return timeout > 0 && pending.get() == 0 && now - lastActive > timeout;
+    }
+
+    /**
+     * Returns whether a client which pings this connection while it is idle missed
+     * several pings in a row, in which case it is considered gone (e.g. its host vanished
+     * without closing the connection).
+     *
+     * @param now the current time
+     * @return whether the connection is dead
+     */
+    boolean isDead(long now) {
+        int interval = pingInterval;
+        return interval > 0 && pending.get() == 0 && now - lastReceived > 3L * interval;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeTransport();
+        } catch (IOException ignore) {
+            // we want it closed - nothing else to do
+        }
+        handler.onClose(this);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * A connection over a non-blocking socket channel, which is read by a selector loop.
+     */
+    static class ChannelConnection extends ServerConnection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer body;
+        private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+        ChannelConnection(SocketChannel channel, FrameHandler handler) {
+            super(handler);
+            this.channel = channel;
+        }
+
+        SocketChannel channel() {
+            return channel;
+        }
+
+        void setKey(SelectionKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Reads all currently available data from the channel, and passes on
+         * all frames that were completely received.
+         *
+         * @param buffer a (shared) buffer to read the data into
+         * @throws IOException if an error occurs or the channel was closed
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            boolean more;
+            do {
+                if (body != null && body.remaining() >= buffer.capacity()) {
+                    // the rest of a large frame is read directly into place, rather than through the buffer
+                    int count = channel.read(body);
+                    if (count < 0) {
+                        throw new EOFException("Connection closed by client");
+                    }
+                    if (!body.hasRemaining()) {
+                        received();
+                    }
+                    more = count > 0;
+                    continue;
+                }
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    throw new EOFException("Connection closed by client");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining() && !isClosed()) {
+                    consume(buffer);
+                }
+                more = count == buffer.capacity();
+            } while (more && !isClosed());
+        }
+
+        private void consume(ByteBuffer buffer) throws IOException {
+            if (body == null) {
+                transfer(buffer, header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+                int size = header.getInt(0);
+                Protocol.checkFrameSize(size);
+                header.clear();
+                body = ByteBuffer.allocate(size);
+            }
+            transfer(buffer, body);
+            if (!body.hasRemaining()) {
+                received();
+            }
+        }
+
+        private void received() throws IOException {
+            byte[] payload = body.array();
+            body = null;
+            lastActive = lastReceived = System.currentTimeMillis();
+            handler.onFrame(this, payload);
+        }
+
+        private static void transfer(ByteBuffer src, ByteBuffer dst) {
+            int len = Math.min(src.remaining(), dst.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + len);
+            dst.put(src);
+            src.limit(limit);
+        }
+
+        @Override
+        void send(ByteBuffer... frame) throws IOException {
+            synchronized (outbound) {
+                lastActive = System.currentTimeMillis();
+                boolean idle = outbound.isEmpty();
+                if (idle) {
+                    // fast path - write directly from the calling thread (gathering the frame's segments)
+                    channel.write(frame);
+                }
+                // if the socket buffer is full, let the selector loop write the rest when possible
+                for (ByteBuffer buffer : frame) {
+                    if (buffer.hasRemaining()) {
+                        outbound.add(buffer);
+                    }
+                }
+                if (idle && !outbound.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+            }
+        }
+
+        /**
+         * Writes pending outbound data to the channel, as much as possible without blocking.
+         *
+         * @throws IOException if an error occurs
+         */
+        void flush() throws IOException {
+            synchronized (outbound) {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer frame = outbound.peek();
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        return; // socket buffer is full again
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        protected void closeTransport() throws IOException {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(channel);
+        }
+    }
+
+    /**
+     * A connection over a blocking socket (e.g. TLS), which is read by its own thread.
+     */
+    static class SocketConnection extends ServerConnection implements Runnable {
+
+        private final Socket socket;
+        private final int timeout;
+        private OutputStream out;
+
+        SocketConnection(Socket socket, int timeout, FrameHandler handler) {
+            super(handler);
+            this.socket = socket;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int readTimeout = timeout;
+                while (!isClosed()) {
+                    byte[] payload;
+                    try {
+                        payload = Protocol.readFrame(in);
+                    } catch (SocketTimeoutException ste) {
+                        long now = System.currentTimeMillis();
+                        if (isIdle(now, timeout) || isDead(now)) {
+                            throw ste;
+                        }
+                        continue; // calls are still in progress
+                    }
+                    lastActive = lastReceived = System.currentTimeMillis();
+                    handler.onFrame(this, payload);
+                    int interval = pingInterval; // set by the handshake
+                    if (interval > 0 && interval != readTimeout && (timeout == 0 || interval < timeout)) {
+                        readTimeout = interval;
+                        socket.setSoTimeout(readTimeout); // to notice missed pings
+                    }
+                }
+            } catch (IOException ioe) {
+                LOG.trace("Socket closed", ioe);
+                // e.g. connection closed by client or read timeout due to inactivity
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        void send(ByteBuffer... frame) throws IOException {
+            synchronized (this) {
+                lastActive = System.currentTimeMillis();
+                Protocol.writeFrame(out, frame);
+            }
+        }
+
+        @Override
+        protected void closeTransport() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(socket);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a result which is returned as a {@link Stream}, {@link Iterator} or
+ * {@link InputStream} in {@link Protocol#CHUNK chunks}, as the client grants
+ * credit for them.
+ * <p>
+ * Chunks are produced by a worker thread only while there is credit, so a slow
+ * client does not occupy a thread (or cause chunks to pile up in memory) - once
+ * the credit is used up, the stream is resumed by the next {@link Protocol#CREDIT}
+ * frame.
+ */
+class ServerStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ServerStream.class);
+
+    private final ServerConnection conn;
+    private final long callId;
+    private final boolean binary;
+    private final CallFormat format;
+    private final Object source;
+    private final Iterator<?> iterator; // or null for an InputStream
+    private final Executor executor;
+    private final AtomicInteger credit = new AtomicInteger(Protocol.STREAM_WINDOW);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    /**
+     * Creates a stream.
+     *
+     * @param conn the connection the call was received on
+     * @param callId the call id
+     * @param binary whether the call used the binary format
+     * @param format the invoked endpoint's call format
+     * @param source the returned Stream, Iterator or InputStream
+     * @param executor the executor which produces the chunks
+     */
+    ServerStream(ServerConnection conn, long callId, boolean binary, CallFormat format,
+            Object source, Executor executor) {
+        this.conn = conn;
+        this.callId = callId;
+        this.binary = binary;
+        this.format = format;
+        this.source = source;
+        this.iterator = source instanceof Stream ? ((Stream<?>) source).iterator()
+            : source instanceof Iterator ? (Iterator<?>) source
+            : null;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns whether a returned value is streamed.
+     *
+     * @param result the value returned by the invoked method
+     * @return whether the value is streamed
+     */
+    static boolean isStreamed(Object result) {
+        return result instanceof Stream || result instanceof Iterator || result instanceof InputStream;
+    }
+
+    /**
+     * Sends chunks until the initial credit is used up or the stream ends,
+     * on the calling thread.
+     */
+    void start() {
+        scheduled.set(true);
+        run();
+    }
+
+    /**
+     * Grants credit for more chunks (by a {@link Protocol#CREDIT} frame).
+     *
+     * @param chunks the number of additional chunks that may be sent
+     */
+    void grant(int chunks) {
+        credit.addAndGet(chunks);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!done.get() && credit.get() > 0 && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException ree) { // server is closed
+                cancel();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (!done.get() && credit.get() > 0) {
+                credit.decrementAndGet();
+                sendChunk();
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        schedule(); // credit may have been granted just before we stopped
+    }
+
+    private void sendChunk() {
+        byte status;
+        Object[] elements;
+        try {
+            elements = iterator != null ? nextElements() : nextBytes();
+            boolean more = iterator != null
+                ? iterator.hasNext()
+                : elements.length == 1 && ((byte[]) elements[0]).length == Protocol.CHUNK_BYTES;
+            status = more ? Protocol.CHUNK_MORE : Protocol.CHUNK_END;
+        } catch (Throwable t) {
+            // reported just like an exception thrown by the invoked method
+            status = Protocol.CHUNK_ERROR;
+            elements = new Object[] { new InvocationTargetException(t) };
+        }
+        try {
+            Protocol.FrameOutputStream frame;
+            try {
+                frame = conn.codec.chunkFrame(callId, binary, format, status, elements);
+            } catch (IOException e) {
+                LOG.warn("Error serializing chunk of streamed result", e);
+                status = Protocol.CHUNK_ERROR;
+                frame = conn.codec.chunkFrame(callId, binary, format, status, new Object[] { e });
+            }
+            conn.send(conn.compression.compress(frame));
+            frame.sent();
+        } catch (IOException e) {
+            LOG.trace("Error sending chunk", e);
+            conn.close(); // e.g. connection closed by client, which cancels the stream
+            return;
+        }
+        if (status != Protocol.CHUNK_MORE) {
+            finish();
+        }
+    }
+
+    private Object[] nextElements() {
+        List<Object> elements = new ArrayList<>();
+        while (elements.size() < Protocol.CHUNK_ELEMENTS && iterator.hasNext()) {
+            elements.add(iterator.next());
+        }
+        return elements.toArray();
+    }
+
+    private Object[] nextBytes() throws IOException {
+        // a partial chunk is the last one, but a full one may be followed by an empty one
+        byte[] buf = new byte[Protocol.CHUNK_BYTES];
+        int len = ((InputStream) source).readNBytes(buf, 0, buf.length);
+        return len == 0 ? new Object[0] : new Object[] { len == buf.length ? buf : Arrays.copyOf(buf, len) };
+    }
+
+    /**
+     * Stops sending the stream (when the client cancels it or the connection is closed).
+     */
+    void cancel() {
+        finish();
+    }
+
+    private void finish() {
+        if (done.compareAndSet(false, true)) {
+            conn.streams.remove(callId);
+            conn.pending.decrementAndGet();
+            try {
+                if (source instanceof AutoCloseable) {
+                    ((AutoCloseable) source).close();
+                }
+            } catch (Exception e) {
+                LOG.debug("Error closing streamed result", e);
+            }
+        }
+    }
+}
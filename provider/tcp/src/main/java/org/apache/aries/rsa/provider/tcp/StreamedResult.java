@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.osgi.framework.ServiceException;
+
+/**
+ * The client side of a result which is streamed in {@link Protocol#CHUNK chunks}.
+ * <p>
+ * The chunks are queued by the connection's reader thread as they arrive, and decoded
+ * by the consuming thread, which grants the server credit for more chunks as it
+ * consumes them - so at most {@link Protocol#STREAM_WINDOW} chunks are buffered,
+ * however slowly the result is consumed. Closing the result before it is fully
+ * consumed cancels the stream on the server.
+ * <p>
+ * The result is presented to the caller as an {@link Iterator} (which is also
+ * {@link AutoCloseable}), a {@link Stream} or an {@link InputStream},
+ * according to the invoked method's return type.
+ */
+class StreamedResult implements Iterator<Object>, AutoCloseable {
+
+    private final MultiplexedConnection conn;
+    private final CallFormat format;
+    private final int timeoutMillis;
+    private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<>(); // encoded chunks or a failure
+    private volatile long callId;
+    private Object[] elements;
+    private int index;
+    private int consumed; // chunks for which no credit was granted yet
+    private boolean ended;
+
+    /**
+     * Creates a streamed result.
+     *
+     * @param conn the connection the call is sent on
+     * @param format the invoked endpoint's call format
+     * @param timeoutMillis the maximum time to wait for each chunk
+     */
+    StreamedResult(MultiplexedConnection conn, CallFormat format, int timeoutMillis) {
+        this.conn = conn;
+        this.format = format;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    CallFormat getFormat() {
+        return format;
+    }
+
+    void setCallId(long callId) {
+        this.callId = callId;
+    }
+
+    long getCallId() {
+        return callId;
+    }
+
+    /**
+     * Queues a received chunk (on the connection's reader thread).
+     *
+     * @param chunk the chunk, whose definitions were already read
+     */
+    void received(CallCodec.EncodedResult chunk) {
+        chunks.add(chunk);
+    }
+
+    /**
+     * Fails the result when its connection fails.
+     *
+     * @param e the connection failure
+     */
+    void failed(IOException e) {
+        chunks.add(e);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (elements == null || index == elements.length) {
+            if (ended) {
+                return false;
+            }
+            nextChunk();
+        }
+        return true;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object element = elements[index];
+        elements[index++] = null; // consumed elements can be collected right away
+        return element;
+    }
+
+    private void nextChunk() {
+        Protocol.Chunk chunk;
+        try {
+            Object item = timeoutMillis > 0
+                ? chunks.poll(timeoutMillis, TimeUnit.MILLISECONDS)
+                : chunks.take();
+            if (item == null) {
+                throw new IOException("Timed out waiting for a streamed result");
+            } else if (item instanceof IOException) {
+                throw (IOException) item;
+            }
+            chunk = ((CallCodec.EncodedResult) item).decodeChunk();
+        } catch (Exception e) {
+            close();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new ServiceException("Error reading streamed result", ServiceException.REMOTE, e);
+        }
+        elements = chunk.elements;
+        index = 0;
+        if (chunk.status == Protocol.CHUNK_MORE) {
+            grant();
+            return;
+        }
+        ended = true;
+        conn.endStream(callId);
+        if (chunk.status == Protocol.CHUNK_ERROR) {
+            elements = null;
+            Throwable error = (Throwable) chunk.elements[0];
+            Throwable cause = error instanceof InvocationTargetException ? error.getCause() : null;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause; // thrown by the remote stream (not our problem)
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServiceException("Error reading streamed result", ServiceException.REMOTE,
+                cause != null ? cause : error);
+        }
+    }
+
+    private void grant() {
+        // granting credit in batches saves frames, while keeping the server ahead of us
+        if (++consumed >= Protocol.STREAM_WINDOW / 2) {
+            try {
+                conn.credit(callId, consumed);
+            } catch (IOException e) {
+                close();
+                throw new ServiceException("Error reading streamed result", ServiceException.REMOTE, e);
+            }
+            consumed = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!ended) {
+            ended = true;
+            elements = null;
+            conn.cancelStream(callId);
+            chunks.clear();
+        }
+    }
+
+    /**
+     * Returns this result as an instance of a method's return type.
+     *
+     * @param type a {@link Protocol#isStreamed streamed} type
+     * @return the result
+     */
+    Object as(Class<?> type) {
+        if (type == Stream.class) {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(this::close);
+        } else if (type == InputStream.class) {
+            return new ChunkInputStream();
+        }
+        return this;
+    }
+
+    /**
+     * Reads a result which is streamed as chunks of bytes.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private byte[] buf = new byte[0];
+        private int pos;
+
+        private boolean fill() throws IOException {
+            try {
+                while (pos == buf.length) {
+                    if (!hasNext()) {
+                        return false;
+                    }
+                    buf = (byte[]) next();
+                    pos = 0;
+                }
+                return true;
+            } catch (ServiceException e) {
+                throw new IOException(e.getMessage(), e.getCause());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buf[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.length - pos;
+        }
+
+        @Override
+        public void close() {
+            StreamedResult.this.close();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import javax.net.SocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connections from an importing provider to a single server (host and port),
+ * which are shared by all of the endpoints imported from that server
+ * (and by all of the bundles importing them).
+ * <p>
+ * Connections are not bound to an endpoint - each call carries the handle of
+ * the endpoint it invokes (see {@link Protocol}), so that importing many endpoints
+ * from the same server does not multiply the number of connections to it.
+ * A client is reference counted by the {@link TcpInvocationHandler}s using it,
+ * and is closed along with the last of them.
+ * <p>
+ * If the server listens on a Unix domain socket that is reachable from this host,
+ * connections are opened on it rather than over TCP.
+ */
+class TcpClient implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TcpClient.class);
+
+    private final String host;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private volatile Path unixSocket; // or null to use TCP
+    private final long unixSocketInstance; // the id of the server instance named by the socket file
+    private final int timeoutMillis;
+    private final Compression compression;
+    private final int pingIntervalMillis;
+    private final Consumer<TcpClient> onClose;
+
+    /**
+     * The pool of connections used exclusively by synchronous calls.
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * The shared (multiplexed) connections, which are used by all asynchronous
+     * calls, as well as by synchronous calls if multiplexing is enabled.
+     */
+    private final MultiplexedConnection[] shared;
+
+    /**
+     * The slots of the shared connections that are being opened (guarded by {@link #shared}).
+     */
+    private final boolean[] opening;
+
+    /**
+     * Whether the shared connections' readers run on virtual threads.
+     */
+    private final boolean virtualThreads;
+
+    private int references;
+    private volatile boolean closed;
+
+    /**
+     * Creates a client.
+     *
+     * @param socketFactory the factory used to create sockets
+     * @param host the server host
+     * @param port the server port
+     * @param unixSocket the path of the server's Unix domain socket, or null to connect over TCP
+     * @param timeoutMillis the socket timeout used by the handshake and the shared connections' readers
+     * @param compression the compression requested for all connections
+     * @param sharedConnections the maximum number of shared connections
+     * @param virtualThreads whether the shared connections' readers run on virtual threads
+     * @param maxConnections the maximum number of pooled connections, or 0 for unlimited
+     * @param maxWaitMillis the time to wait for a pooled connection when all are in use
+     * @param minIdleConnections the number of idle pooled connections to keep open
+     * @param idleTimeoutMillis the time after which idle pooled connections are closed, or 0 for never
+     * @param pingIntervalMillis the interval at which idle connections are pinged, or 0 to not ping them
+     * @param scheduler the scheduler used to maintain the pool, or null to not maintain it
+     * @param onClose invoked when the client is closed
+     */
+    TcpClient(SocketFactory socketFactory, String host, int port, Path unixSocket,
+            int timeoutMillis, Compression compression,
+            int sharedConnections, boolean virtualThreads,
+            int maxConnections, long maxWaitMillis, int minIdleConnections, long idleTimeoutMillis,
+            int pingIntervalMillis, ScheduledExecutorService scheduler, Consumer<TcpClient> onClose) {
+        this.socketFactory = socketFactory;
+        this.host = host;
+        this.port = port;
+        Long instance = unixSocket == null ? null : UnixDomainSockets.instanceId(unixSocket, port);
+        this.unixSocket = instance == null ? null : unixSocket;
+        this.unixSocketInstance = instance == null ? 0 : instance;
+        this.timeoutMillis = timeoutMillis;
+        this.compression = compression;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.shared = new MultiplexedConnection[sharedConnections];
+        this.opening = new boolean[sharedConnections];
+        this.virtualThreads = virtualThreads;
+        this.onClose = onClose;
+        this.pool = new ConnectionPool(this::connect, maxConnections, maxWaitMillis,
+            minIdleConnections, idleTimeoutMillis, pingIntervalMillis, scheduler);
+    }
+
+    /**
+     * Adds a reference to this client.
+     *
+     * @return whether the reference was added, or false if the client is already closed
+     */
+    synchronized boolean retain() {
+        if (closed) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Removes a reference to this client, and closes it when no references remain.
+     *
+     * @throws IOException if an error occurs
+     */
+    void release() throws IOException {
+        synchronized (this) {
+            if (closed || --references > 0) {
+                return;
+            }
+            closed = true; // no longer retainable
+        }
+        close();
+    }
+
+    /**
+     * Opens a new connection for the pool.
+     *
+     * @return the connection
+     * @throws IOException if an error occurs
+     */
+    private ConnectionPool.Connection connect() throws IOException {
+        ConnectionPool.Connection conn = new ConnectionPool.Connection(openSocket());
+        try {
+            conn.socket.setSoTimeout(timeoutMillis);
+            conn.socket.setTcpNoDelay(true);
+            Protocol.ServerHello hello = Protocol.handshake(conn.out, conn.in, compression, pingIntervalMillis);
+            conn.serverInstance = hello.instanceId;
+            conn.compression = hello.compression;
+            conn.codec = new CallCodec();
+        } catch (IOException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+        if (!isExpectedServer(conn.socket instanceof UnixDomainSockets.ChannelSocket, conn.serverInstance)) {
+            conn.close();
+            return connect();
+        }
+        return conn;
+    }
+
+    /**
+     * Checks that a server reached over the Unix domain socket is the instance named by the
+     * socket file, and otherwise stops using the socket (the file may have been left over by
+     * a server that was not closed, and reused by another process).
+     *
+     * @param unix whether a new connection uses the Unix domain socket
+     * @param serverInstance the id of the server instance given by its handshake
+     * @return whether the connection can be used
+     */
+    private boolean isExpectedServer(boolean unix, long serverInstance) {
+        if (unix && serverInstance != unixSocketInstance) {
+            LOG.warn("Unexpected server instance on {}, using TCP instead", unixSocket);
+            unixSocket = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Acquires a pooled connection for exclusive use by a single call.
+     *
+     * @return the connection
+     * @throws IOException if an error occurs
+     */
+    ConnectionPool.Connection acquire() throws IOException {
+        return pool.acquire();
+    }
+
+    /**
+     * Returns a connection acquired from the pool.
+     *
+     * @param conn the connection
+     * @param reusable whether the connection can be reused, or must be closed
+     */
+    void release(ConnectionPool.Connection conn, boolean reusable) {
+        pool.release(conn, reusable);
+    }
+
+    /**
+     * Checks right away whether the idle pooled connections are still alive (if they are
+     * pinged), e.g. after a call timed out because the server may be gone.
+     */
+    void checkConnections() {
+        pool.check();
+    }
+
+    /**
+     * Returns the number of pooled connections.
+     *
+     * @return the number of open pooled connections (idle or acquired)
+     */
+    int getPoolSize() {
+        return pool.size();
+    }
+
+    /**
+     * Returns the maximum number of shared connections.
+     *
+     * @return the maximum number of shared connections
+     */
+    int getSharedConnections() {
+        return shared.length;
+    }
+
+    /**
+     * Returns an open shared connection, preferring the one with the fewest pending calls.
+     * A new connection is opened if there is a free slot and all open connections are busy.
+     * The slot is reserved while the connection is opened, which happens outside the lock,
+     * so that a slow connect does not hold up the callers using the open connections.
+     *
+     * @return a shared connection
+     * @throws IOException if an error occurs
+     */
+    MultiplexedConnection acquireSharedConnection() throws IOException {
+        MultiplexedConnection best;
+        int free;
+        synchronized (shared) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                best = null;
+                free = -1;
+                for (int i = 0; i < shared.length; i++) {
+                    MultiplexedConnection conn = shared[i];
+                    if (opening[i]) {
+                        continue;
+                    }
+                    if (conn == null || !conn.isOpen()) {
+                        if (free < 0) {
+                            free = i;
+                        }
+                    } else if (best == null || conn.getPending() < best.getPending()) {
+                        best = conn;
+                    }
+                }
+                if (free >= 0 && (best == null || best.getPending() > 0)) {
+                    opening[free] = true;
+                    break;
+                }
+                if (best != null) {
+                    return best;
+                }
+                // all slots are being opened by other callers
+                try {
+                    shared.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a shared connection");
+                }
+            }
+        }
+        MultiplexedConnection conn;
+        try {
+            conn = new MultiplexedConnection(openSocket(), timeoutMillis, compression, pingIntervalMillis);
+            if (!isExpectedServer(conn.isUnixSocket(), conn.getServerInstance())) {
+                conn.close();
+                conn = new MultiplexedConnection(openSocket(), timeoutMillis, compression, pingIntervalMillis);
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (shared) {
+                opening[free] = false;
+                shared.notifyAll();
+            }
+            if (best != null && best.isOpen()) {
+                LOG.warn("Error opening another connection to {}, using an open one instead", this, e);
+                return best;
+            }
+            throw e;
+        }
+        String name = TcpInvocationHandler.class.getSimpleName() + " [" + host + ":" + port + "]-reader";
+        Thread reader;
+        if (virtualThreads) {
+            reader = VirtualThreads.factory(name).newThread(conn); // always a daemon
+        } else {
+            reader = new Thread(conn, name);
+            reader.setDaemon(true);
+        }
+        reader.start();
+        synchronized (shared) {
+            opening[free] = false;
+            shared.notifyAll();
+            if (closed) {
+                conn.close();
+                throw new IOException("Connection pool is closed");
+            }
+            shared[free] = conn;
+        }
+        return conn;
+    }
+
+    private Socket openSocket() throws IOException {
+        Path unixSocket = this.unixSocket;
+        if (unixSocket != null) {
+            try {
+                return UnixDomainSockets.connect(unixSocket);
+            } catch (IOException | RuntimeException e) {
+                // e.g. the socket file belongs to another host's server that happens to be mounted here
+                LOG.debug("Error connecting to {}, using TCP instead", unixSocket, e);
+                this.unixSocket = null;
+            }
+        }
+        return AccessController.doPrivileged(new PrivilegedAction<Socket>() {
+
+            @Override
+            public Socket run() {
+                try {
+                    return socketFactory.createSocket(host, port);
+                } catch (Exception e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (shared) {
+            closed = true; // first prevent opening new connections
+            for (MultiplexedConnection conn : shared) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+        pool.close();
+        if (onClose != null) {
+            onClose.accept(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
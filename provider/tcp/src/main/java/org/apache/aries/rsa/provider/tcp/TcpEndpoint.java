@@ -37,7 +37,13 @@ public class TcpEndpoint implements Endpoint {
     private String bindAddress;
     private int port;
     private int numThreads;
+    private boolean virtualThreads;
+    private int maxConcurrency;
+    private int queueSize;
     private int timeout;
+    private boolean unixSocket;
+    private String unixSocketDir;
+    private String unixSocketPath;
     private Consumer<TcpEndpoint> closeCallback;
 
     private EndpointDescription epd;
@@ -52,7 +58,12 @@ public class TcpEndpoint implements Endpoint {
         hostname = config.getHostname();
         bindAddress = config.getBindAddress();
         numThreads =  config.getNumThreads();
+        virtualThreads = config.isVirtualThreads();
+        maxConcurrency = config.getMaxConcurrency();
+        queueSize = config.getQueueSize();
         timeout = config.getTimeoutMillis();
+        unixSocket = config.isUnixSocket();
+        unixSocketDir = config.getUnixSocketDir();
         updateEndpointDescription(effectiveProperties);
     }
 
@@ -66,7 +77,12 @@ public class TcpEndpoint implements Endpoint {
         // we have the uri to cover that. it also tests that we throw IllegalArgumentException when any
         // config-type property value is garbage, so we validate it here even though it's not used
         config.getUri(); // validate for TCK
+        config.isBinaryFormat(); // validate before it is used by importers
+        config.getCompression();
         effectiveProperties.put(Config.URI, uri);
+        if (unixSocketPath != null) {
+            effectiveProperties.put(Config.UNIX_SOCKET_PATH, unixSocketPath);
+        }
         this.epd = new EndpointDescription(effectiveProperties);
     }
 
@@ -93,10 +109,40 @@ public class TcpEndpoint implements Endpoint {
         return numThreads;
     }
 
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
     public int getTimeout() {
         return timeout;
     }
 
+    public boolean isUnixSocket() {
+        return unixSocket;
+    }
+
+    public String getUnixSocketDir() {
+        return unixSocketDir;
+    }
+
+    /**
+     * Publishes the path of the Unix domain socket that the endpoint's server listens on.
+     *
+     * @param unixSocketPath the socket path
+     */
+    public void setUnixSocketPath(String unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+        updateEndpointDescription(epd.getProperties());
+    }
+
     @Override
     public EndpointDescription description() {
         return this.epd;
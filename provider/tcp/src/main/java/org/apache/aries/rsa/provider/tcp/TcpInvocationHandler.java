@@ -19,167 +19,118 @@
 package org.apache.aries.rsa.provider.tcp;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.net.SocketTimeoutException;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
-import org.apache.aries.rsa.provider.tcp.ser.BasicObjectInputStream;
-import org.apache.aries.rsa.provider.tcp.ser.BasicObjectOutputStream;
+import org.apache.aries.rsa.provider.tcp.batch.BatchInvoker;
 import org.apache.aries.rsa.provider.tcp.ser.VersionMarker;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
 import org.osgi.framework.ServiceException;
 import org.osgi.framework.Version;
 import org.osgi.util.promise.Deferred;
 import org.osgi.util.promise.Promise;
 
-import javax.net.SocketFactory;
-
 /**
  * The InvocationHandler backing the client-side service proxy,
  * which sends the details of the method invocations
  * over a TCP connection, to be executed by the remote service.
+ * <p>
+ * The connections are provided by a {@link TcpClient}, which is shared
+ * by all of the endpoints imported from the same server.
+ * <p>
+ * A {@link org.apache.aries.rsa.provider.tcp.batch.Batch Batch} of calls is sent
+ * in a single frame over the shared connections, like an asynchronous call.
  */
-public class TcpInvocationHandler implements InvocationHandler, Closeable {
+public class TcpInvocationHandler implements InvocationHandler, BatchInvoker, Closeable {
 
-    private static class Connection {
-        Socket socket;
-        BasicObjectOutputStream out;
-        BasicObjectInputStream in;
+    private final TcpClient client;
+    private final String endpointId;
+    private final int timeoutMillis;
 
-        public Connection(Socket socket) throws IOException {
-            this.socket = socket;
-            out = new BasicObjectOutputStream(socket.getOutputStream());
-            in = new BasicObjectInputStream(socket.getInputStream());
-        }
-    }
+    /**
+     * The format of the calls to the endpoint.
+     */
+    private final CallFormat format;
 
-    private String host;
-    private int port;
-    private String endpointId;
-    private SocketFactory socketFactory;
-    private ClassLoader cl;
-    private int timeoutMillis;
+    /**
+     * The endpoint as described by the server instance it was last invoked on.
+     * It is described again (on whichever connection is used) when the server is restarted.
+     */
+    private volatile RemoteEndpoint remote;
 
     /**
-     * The available (idle) pool of connections.
+     * Whether synchronous calls use the client's shared (multiplexed) connections
+     * rather than exclusively acquired pool connections.
      */
-    private final Deque<Connection> pool = new ArrayDeque<>();
+    private final boolean multiplex;
 
     /**
-     * Counts connections currently in use (not in pool).
+     * The executor used to complete the futures returned by asynchronous calls,
+     * so that user callbacks never run on a connection's reader thread.
      */
-    private int acquired;
+    private final Executor callbackExecutor;
 
-    private boolean closed;
-
-    TcpInvocationHandler(SocketFactory socketFactory, ClassLoader cl,
-            String host, int port, String endpointId, int timeoutMillis) {
-        this.socketFactory = socketFactory;
-        this.cl = cl;
-        this.host = host;
-        this.port = port;
-        this.endpointId = endpointId;
-        this.timeoutMillis = timeoutMillis;
-    }
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
-     * Acquires a connection - either from the pool if there is
-     * one available, or creates a new one if the pool is empty.
-     * <p>
-     * For each invocation of this method, the {@link #releaseConnection}
-     * method must be called exactly once (even if there was an error!)
+     * Creates an invocation handler.
      *
-     * @return a connection
-     * @throws IOException if an error occurs
+     * @param client the client connected to the endpoint's server, which is released when the handler is closed
+     * @param cl the primary class loader used to resolve classes
+     * @param endpointId the id of the invoked endpoint
+     * @param timeoutMillis the call timeout
+     * @param binary whether to use the binary call format
+     * @param serializer the serializer used for objects, or null to use Java serialization
+     * @param multiplex whether synchronous calls use the shared connections
+     * @param callbackExecutor the executor used to complete asynchronous calls
      */
-    private Connection acquireConnection() throws IOException {
-        Connection conn;
-        synchronized (pool) {
-            acquired++; // must be first
-            if (closed) {
-                throw new IOException("Connection pool is closed");
-            }
-            conn = pool.pollFirst(); // reuse most recently used connection
-        }
-        // if the pool is empty, create a new connection
-        if (conn == null) {
-            conn = new Connection(openSocket());
-            conn.socket.setSoTimeout(timeoutMillis);
-            conn.socket.setTcpNoDelay(true);
-            conn.in.addClassLoader(cl);
-            conn.out.writeUTF(endpointId); // select endpoint for this connection
-        }
-        return conn;
+    TcpInvocationHandler(TcpClient client, ClassLoader cl, String endpointId, int timeoutMillis,
+            boolean binary, Serializer serializer, boolean multiplex, Executor callbackExecutor) {
+        this.client = client;
+        this.endpointId = endpointId;
+        this.timeoutMillis = timeoutMillis;
+        // the classes resolved by the class loader are shared by all connections
+        this.format = new CallFormat(binary, serializer, cl, new ConcurrentHashMap<>());
+        this.multiplex = multiplex;
+        this.callbackExecutor = callbackExecutor;
     }
 
     /**
-     * Releases the given connection and returns it to the pool.
-     * <p>
-     * This method must be called exactly once for each invocation
-     * of {@link #acquireConnection()}, regardless of the outcome -
-     * if there was an error, it should be invoked with a null parameter.
+     * Returns the description of this handler's endpoint received
+     * from a server instance, after validating it.
      *
-     * @param conn the released connection, or null if there
-     *             was an error when attempting to acquire one
+     * @param payload the {@link Protocol#DESCRIBE} reply
+     * @param serverInstance the id of the server instance which sent it
+     * @return the remote endpoint
+     * @throws IOException if the description is invalid or the server reported an error
      */
-    private void releaseConnection(Connection conn) {
-        synchronized (pool) {
-            acquired--; // must be first
-            if (conn != null) {
-                pool.offerFirst(conn); // add to front of queue so old idle ones can expire
-            }
-            pool.notifyAll();
-        }
-    }
-
-    private void closeConnection(Connection conn) {
-        if (conn != null) {
-            try {
-                conn.socket.close();
-            } catch (IOException ignore) {
-                // we want it closed - nothing else to do
-            }
-        }
-    }
-
-    private void closeConnections() throws IOException {
-        synchronized (pool) {
-            closed = true; // first prevent acquiring new connections
-            while (true) {
-                // close all idle connections
-                for (Iterator<Connection> it = pool.iterator(); it.hasNext(); ) {
-                    closeConnection(it.next());
-                    it.remove();
-                }
-                if (acquired == 0) {
-                    break; // all closed
-                }
-                // wait for additional active connections to be released
-                try {
-                    pool.wait();
-                } catch (InterruptedException ie) {
-                    throw new IOException("interrupted while closing connections", ie);
-                }
-            }
-        }
-    }
-
-    private int getPoolSize() {
-        synchronized (pool) {
-            return pool.size() + acquired; // both idle and active
+    private RemoteEndpoint described(byte[] payload, long serverInstance) throws IOException {
+        RemoteEndpoint remote = Protocol.parseDescribeReply(payload, serverInstance);
+        String serializer = Protocol.serializerName(format.serializer);
+        if (!remote.serializer.equals(serializer)) {
+            throw new IOException("serializer " + serializer + " does not match the endpoint's " + remote.serializer);
         }
+        this.remote = remote;
+        return remote;
     }
 
     @Override
@@ -199,21 +150,81 @@ public class TcpInvocationHandler implements InvocationHandler, Closeable {
             return createFutureResult(method, args);
         } else if (Promise.class.isAssignableFrom(method.getReturnType())) {
             return createPromiseResult(method, args);
+        } else if (Protocol.isStreamed(method.getReturnType())) {
+            return handleStreamCall(method, args);
         } else {
             return handleSyncCall(method, args);
         }
     }
 
+    /**
+     * Sends an asynchronous call. No thread is blocked while waiting for the result -
+     * it is read by the connection's reader thread, and the returned future
+     * is then completed by the callback executor.
+     *
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return a future that will be completed with the method result
+     */
     private Object createFutureResult(final Method method, final Object[] args) {
-        return CompletableFuture.supplyAsync(() -> {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        long deadline = deadline();
+        // once the returned future is done (e.g. cancelled or timed out) the call is abandoned
+        sendAsync((conn, remote) -> conn.call(remote, format, method, args, remainingMillis(deadline)),
+                client.getSharedConnections() + 1, future.handle((result, t) -> null))
+                .whenCompleteAsync((encoded, t) -> {
             try {
-                return handleSyncCall(method, args);
-            } catch (RuntimeException e) {
-                throw e;
+                if (t != null) {
+                    t = t instanceof CompletionException ? t.getCause() : t;
+                    throw t instanceof TimeoutException ? new SocketTimeoutException("Read timed out") : t;
+                }
+                future.complete(readResult(method, encoded.decode()));
+            } catch (ServiceException | InvocationTargetException e) {
+                future.completeExceptionally(e instanceof InvocationTargetException ? e.getCause() : e);
             } catch (Throwable e) {
-                throw new RuntimeException(e);
+                future.completeExceptionally(new ServiceException("Error invoking " + method.getName()
+                    + " on " + endpointId, ServiceException.REMOTE, e));
+            }
+        }, callbackExecutor);
+        return future;
+    }
+
+    /**
+     * Sends a call (or batch) over one of the shared connections, and retries it on
+     * another connection if the connection fails.
+     *
+     * @param call sends the call
+     * @param attempts the maximum number of connections to try
+     * @param abandoned completes when the caller is no longer waiting for the result
+     * @return a future that is completed with the (still encoded) result
+     */
+    private CompletableFuture<CallCodec.EncodedResult> sendAsync(SharedCall call, int attempts,
+            CompletionStage<?> abandoned) {
+        CompletableFuture<CallCodec.EncodedResult> future;
+        try {
+            future = sendShared(client.acquireSharedConnection(), call, abandoned);
+        } catch (IOException e) {
+            if (attempts > 1 && e instanceof SocketException) {
+                return sendAsync(call, attempts - 1, abandoned);
             }
-        });
+            CompletableFuture<CallCodec.EncodedResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (timeoutMillis > 0) {
+            future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (attempts == 1) {
+            return future;
+        }
+        // if the connection was closed (e.g. idle timeout) retry with another connection
+        return future.handle((result, t) -> {
+                Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+                return cause instanceof SocketException || cause instanceof EOFException
+                    ? sendAsync(call, attempts - 1, abandoned)
+                    : future;
+            })
+            .thenCompose(Function.identity());
     }
 
     private Object createPromiseResult(final Method method, final Object[] args) {
@@ -231,66 +242,308 @@ public class TcpInvocationHandler implements InvocationHandler, Closeable {
     }
 
     private Object handleSyncCall(Method method, Object[] args) throws Throwable {
-        Connection conn = null;
-        Throwable error = null;
-        Object result = null;
+        Object[] values;
+        try {
+            values = multiplex
+                ? sendSharedCall(method, args)
+                : sendPooledCall(method, args);
+        } catch (Exception e) {
+            // a communications error (e.g. timeout) or invalid result
+            throw new ServiceException("Error invoking " + method.getName() + " on " + endpointId, ServiceException.REMOTE, e);
+        }
+        try {
+            return readResult(method, values);
+        } catch (InvocationTargetException e) {
+            throw e.getCause(); // exception thrown from remotely invoked method (not our problem)
+        }
+    }
 
+    /**
+     * Sends a call to a method returning a Stream, Iterator or InputStream, which
+     * always uses the shared connections, and waits for the first chunk of its result
+     * (or for the whole result, if the server did not stream it).
+     *
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return the result, which is consumed as it is received
+     * @throws Throwable if an error occurs
+     */
+    private Object handleStreamCall(Method method, Object[] args) throws Throwable {
+        AtomicReference<StreamedResult> stream = new AtomicReference<>();
+        long deadline = deadline();
+        Object[] values;
         try {
-             // try at most all existing connections (which may be stale) plus one new
-            for (int attempts = getPoolSize() + 1; attempts > 0; attempts--) {
-                conn = acquireConnection(); // get or create pool connection
+            CallCodec.EncodedResult first = sendSharedCall((conn, remote) -> {
+                stream.set(new StreamedResult(conn, format, timeoutMillis)); // for each attempt
+                return conn.stream(remote, format, method, args, remainingMillis(deadline), stream.get());
+            });
+            if (first.getPayload()[0] == Protocol.CHUNK) {
+                return stream.get().as(method.getReturnType());
+            }
+            values = first.decode();
+        } catch (Exception e) {
+            throw new ServiceException("Error invoking " + method.getName() + " on " + endpointId, ServiceException.REMOTE, e);
+        }
+        try {
+            return readResult(method, values);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns the result of a call.
+     *
+     * @param method the invoked method
+     * @param values the decoded result values
+     * @return the result returned by the remotely invoked method
+     * @throws InvocationTargetException wrapping the exception thrown by the remotely invoked method
+     * @throws ServiceException if the remote provider failed to invoke the method
+     */
+    private Object readResult(Method method, Object[] values) throws InvocationTargetException {
+        Throwable error = (Throwable) values[0];
+        Object result = readReplaceVersion(values[1]);
+
+        if (error == null)
+            return result;
+        else if (error instanceof InvocationTargetException)
+            throw (InvocationTargetException) error; // exception thrown from remotely invoked method
+        else if (error instanceof RejectedExecutionException) // the call was not executed, so it can be retried
+            throw new ServiceException("Call to " + method.getName() + " on " + endpointId
+                + " was rejected by the overloaded server", ServiceException.REMOTE, error);
+        else // exception thrown by provider itself
+            throw new ServiceException("Error invoking " + method.getName() + " on " + endpointId, ServiceException.REMOTE, error);
+    }
+
+    /**
+     * Sends a call over an exclusively acquired pool connection and waits for its result.
+     *
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return the decoded result values
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class in the result cannot be resolved
+     */
+    private Object[] sendPooledCall(Method method, Object[] args) throws IOException, ClassNotFoundException {
+        long deadline = deadline(); // including the time spent waiting for a connection
+        // try at most all existing connections (which may be stale) plus one new
+        for (int attempts = client.getPoolSize() + 1; ; attempts--) {
+            ConnectionPool.Connection conn = client.acquire(); // get or create pool connection
+            // on a communications error (e.g. timeout) we don't know
+            // what was written or not, so we must abort the connection
+            boolean reusable = false;
+            try {
+                byte[] payload;
                 try {
+                    conn.socket.setSoTimeout(timeoutMillis); // the connection is shared with other endpoints
+                    RemoteEndpoint remote = this.remote;
+                    if (remote == null || remote.instanceId != conn.serverInstance) {
+                        Protocol.writeFrame(conn.out, Protocol.describeFrame(0, endpointId));
+                        remote = described(Protocol.readFrame(conn.in), conn.serverInstance);
+                    }
                     // write invocation data
-                    conn.out.writeObject(method.getName());
-                    conn.out.writeObject(args);
-                    conn.out.flush();
-                    conn.out.reset();
+                    Protocol.FrameOutputStream frame = conn.codec.callFrame(0, remote, format, method, args,
+                        remainingMillis(deadline));
+                    Protocol.writeFrame(conn.out, conn.compression.compress(frame));
+                    frame.sent();
                     // read result data
-                    error = (Throwable) conn.in.readObject();
-                    result = readReplaceVersion(conn.in.readObject());
-                    break; // transaction completed
-                } catch (SocketException se) { // catch only read/write exceptions here - only stale connections
+                    payload = Compression.decompress(Protocol.readFrame(conn.in));
+                } catch (SocketTimeoutException ste) {
+                    // the call may have been executed, so it is not retried, but if the server is gone
+                    // its idle connections are purged before further calls are sent over them
+                    client.checkConnections();
+                    throw ste;
+                } catch (SocketException | EOFException se) { // catch only read/write exceptions here - only stale connections
                     if (attempts == 1) {
                         throw se; // failed last attempt - propagate the error
                     }
                     // the server socket was previously open, but now failed -
                     // communication error or server socket was closed (e.g. idle timeout)
                     // so we retry with another connection
-                    releaseConnection(null); // dispose of it before next attempt
+                    continue;
+                }
+                // the result must be decoded before the connection is reused, since
+                // the connection's class descriptor definitions are read in order
+                Object[] values;
+                try {
+                    values = conn.codec.readResult(payload, format);
+                } catch (ClassNotFoundException e) {
+                    reusable = true; // the result was read in full, but could not be resolved
+                    throw e;
+                }
+                reusable = true;
+                return values; // transaction completed
+            } finally {
+                client.release(conn, reusable);
+            }
+        }
+    }
+
+    /**
+     * Sends a call over a connection that is shared with concurrent callers and waits for its result.
+     *
+     * @param method the invoked method
+     * @param args the method arguments
+     * @return the decoded result values
+     * @throws Exception if an error occurs
+     */
+    private Object[] sendSharedCall(Method method, Object[] args) throws Exception {
+        long deadline = deadline();
+        return sendSharedCall((conn, remote) -> conn.call(remote, format, method, args, remainingMillis(deadline)))
+            .decode();
+    }
+
+    /**
+     * Sends a call over a connection that is shared with concurrent callers and waits
+     * for its (still encoded) result, retrying it on another connection if the connection fails.
+     *
+     * @param call sends the call
+     * @return the encoded result
+     * @throws Exception if an error occurs
+     */
+    private CallCodec.EncodedResult sendSharedCall(SharedCall call) throws Exception {
+        CompletableFuture<Void> abandoned = new CompletableFuture<>();
+        // try at most all existing connections (which may be stale) plus one new
+        for (int attempts = client.getSharedConnections() + 1; ; attempts--) {
+            MultiplexedConnection conn = client.acquireSharedConnection();
+            CompletableFuture<CallCodec.EncodedResult> future;
+            CallCodec.EncodedResult result;
+            try {
+                future = sendShared(conn, call, abandoned);
+                result = timeoutMillis > 0
+                    ? future.get(timeoutMillis, TimeUnit.MILLISECONDS)
+                    : future.get();
+            } catch (TimeoutException te) {
+                abandoned.complete(null); // a late result will be ignored, the connection remains usable
+                throw new SocketTimeoutException("Read timed out");
+            } catch (InterruptedException ie) {
+                abandoned.complete(null);
+                throw ie;
+            } catch (ExecutionException | SocketException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                if (attempts == 1 || !(cause instanceof SocketException || cause instanceof EOFException)) {
+                    throw cause instanceof Exception ? (Exception) cause : e; // failed last attempt
                 }
+                // connection was closed (e.g. idle timeout) - retry with another connection
+                continue;
             }
+            return result;
+        }
+    }
 
-            if (error == null)
-                return result;
-            else if (error instanceof InvocationTargetException)
-                error = error.getCause(); // exception thrown from remotely invoked method (not our problem)
-            else
-                throw error; // exception thrown by provider itself
-        } catch (Throwable e) {
-            // this can be an unexpected error from remote (not from the invoked method itself
-            // but somewhere in the provider processing), or a communications error (e.g. timeout) -
-            // in either case we don't know what was written or not, so we must abort the connection
-            closeConnection(conn);
-            conn = null; // don't return it to the pool
-            throw new ServiceException("Error invoking " + method.getName() + " on " + endpointId, ServiceException.REMOTE, e);
-        } finally {
-            releaseConnection(conn);
+    /**
+     * Sends a call (or batch) over a given shared connection to the endpoint.
+     */
+    private interface SharedCall {
+        CompletableFuture<CallCodec.EncodedResult> send(MultiplexedConnection conn, RemoteEndpoint remote)
+            throws IOException;
+    }
+
+    /**
+     * Sends a call over a shared connection, first describing the endpoint if needed.
+     *
+     * @param conn the shared connection
+     * @param call sends the call once the endpoint is described
+     * @param abandoned completes when the caller is no longer waiting for the result,
+     *                  which cancels the sent call (on the server as well)
+     * @return a future that is completed with the (still encoded) result
+     * @throws IOException if an error occurs
+     */
+    private CompletableFuture<CallCodec.EncodedResult> sendShared(MultiplexedConnection conn,
+            SharedCall call, CompletionStage<?> abandoned) throws IOException {
+        RemoteEndpoint remote = this.remote;
+        long serverInstance = conn.getServerInstance();
+        if (remote != null && remote.instanceId == serverInstance) {
+            return cancelWhen(call.send(conn, remote), abandoned);
         }
-        throw error;
+        // the call is sent once the description arrives, without blocking the reader thread
+        return conn.describe(endpointId).thenComposeAsync(described -> {
+            try {
+                return cancelWhen(call.send(conn, described(described.getPayload(), serverInstance)), abandoned);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, callbackExecutor);
+    }
+
+    /**
+     * Cancels a sent call once its caller abandons it, which lets the server know.
+     */
+    private static <T> CompletableFuture<T> cancelWhen(CompletableFuture<T> sent, CompletionStage<?> abandoned) {
+        abandoned.thenRun(() -> sent.cancel(false)); // does nothing once the result was received
+        return sent;
+    }
+
+    /**
+     * Returns the deadline of a call starting now, which is the time at which
+     * the caller stops waiting for its result.
+     *
+     * @return the deadline in {@link System#nanoTime()} terms, or 0 if calls do not time out
+     */
+    private long deadline() {
+        return timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
     }
 
-    private Socket openSocket() throws UnknownHostException, IOException {
-        return AccessController.doPrivileged(new PrivilegedAction<Socket>() {
+    /**
+     * Returns the time remaining until a call's deadline, which is sent along with
+     * the call so that the server can skip it once the caller is no longer waiting.
+     *
+     * @param deadline the deadline (see {@link #deadline()})
+     * @return the remaining time in millis (at least 1), or 0 if the call does not time out
+     */
+    private static int remainingMillis(long deadline) {
+        if (deadline == 0) {
+            return 0;
+        }
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
 
-            @Override
-            public Socket run() {
+    /**
+     * Sends a batch of calls in a single frame. As with asynchronous calls,
+     * no thread is blocked while waiting for the results, and the result futures
+     * are completed by the callback executor.
+     */
+    @Override
+    public CompletionStage<Void> invokeBatch(List<Method> methods, List<Object[]> args, boolean parallel,
+            List<CompletableFuture<Object>> results) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        long deadline = deadline();
+        SharedCall batch = (conn, remote) -> conn.batch(remote, format, methods, args, parallel, remainingMillis(deadline));
+        sendAsync(batch, client.getSharedConnections() + 1, done.handle((result, t) -> null))
+                .whenCompleteAsync((encoded, t) -> {
+            int count = methods.size();
+            Object[] values;
+            try {
+                if (t != null) {
+                    t = t instanceof CompletionException ? t.getCause() : t;
+                    throw t instanceof TimeoutException ? new SocketTimeoutException("Read timed out") : t;
+                }
+                values = encoded.decode(count);
+            } catch (Throwable e) {
+                ServiceException error = new ServiceException("Error invoking batch of " + count
+                    + " calls on " + endpointId, ServiceException.REMOTE, e);
+                results.forEach(result -> result.completeExceptionally(error));
+                done.completeExceptionally(error);
+                return;
+            }
+            // a single error answers a batch which failed as a whole (e.g. it was rejected)
+            boolean failed = values.length != 2 * count;
+            for (int i = 0; i < count; i++) {
+                int offset = failed ? 0 : 2 * i;
                 try {
-                    return socketFactory.createSocket(host, port);
-                } catch (Exception e) {
-                    throw new RuntimeException(e.getMessage(), e);
+                    results.get(i).complete(readResult(methods.get(i), new Object[] { values[offset], values[offset + 1] }));
+                } catch (ServiceException | InvocationTargetException e) {
+                    results.get(i).completeExceptionally(e instanceof InvocationTargetException ? e.getCause() : e);
                 }
             }
-        });
+            if (failed) {
+                done.completeExceptionally(new ServiceException("Error invoking batch of " + count
+                    + " calls on " + endpointId, ServiceException.REMOTE, (Throwable) values[0]));
+            } else {
+                done.complete(null);
+            }
+        }, callbackExecutor);
+        return done;
     }
 
     private Object readReplaceVersion(Object readObject) {
@@ -303,6 +556,8 @@ public class TcpInvocationHandler implements InvocationHandler, Closeable {
 
     @Override
     public void close() throws IOException {
-        closeConnections();
+        if (closed.compareAndSet(false, true)) {
+            client.release();
+        }
     }
 }
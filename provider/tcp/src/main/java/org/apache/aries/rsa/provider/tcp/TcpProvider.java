@@ -18,22 +18,38 @@
  */
 package org.apache.aries.rsa.provider.tcp;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.aries.rsa.annotations.RSADistributionProvider;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
 import org.apache.aries.rsa.spi.DistributionProvider;
 import org.apache.aries.rsa.spi.Endpoint;
 import org.apache.aries.rsa.spi.ImportedService;
@@ -42,6 +58,10 @@ import org.apache.aries.rsa.util.StringPlus;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.remoteserviceadmin.EndpointDescription;
 import org.osgi.service.remoteserviceadmin.RemoteConstants;
 import org.slf4j.Logger;
@@ -50,6 +70,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * The main TCP distribution provider class, which can import remote endpoints
@@ -57,6 +78,9 @@ import javax.net.ssl.SSLContext;
  * services via a TcpInvocationHandler) and export local services (by adding the
  * service to a TcpServer that can handle client connections and dispatch the
  * method invocations to the service instance.)
+ * <p>
+ * Endpoints exported in the same JVM can optionally be invoked directly,
+ * via a LocalInvocationHandler, rather than over a connection.
  */
 @SuppressWarnings("rawtypes")
 @RSADistributionProvider(configs=TcpProvider.TCP_CONFIG_TYPE)
@@ -74,9 +98,15 @@ public class TcpProvider implements DistributionProvider {
     private static final Logger LOG = LoggerFactory.getLogger(TcpProvider.class);
 
     private Map<Integer, TcpServer> servers = new HashMap<>();
+    private final Map<String, TcpClient> clients = new HashMap<>(); // by host:port
+    private final Map<TcpClient, Map<String, Object>> clientSettings = new HashMap<>(); // guarded by clients
     private SocketFactory socketFactory;
     private ServerSocketFactory serverSocketFactory;
     private boolean mtls;
+    private ThreadPoolExecutor callbackExecutor;
+    private ScheduledExecutorService scheduler;
+    private Map<String, Object> providerProperties = new HashMap<>();
+    private final Map<String, Serializer> serializers = new ConcurrentHashMap<>();
 
     @Override
     public String[] getSupportedTypes() {
@@ -133,7 +163,56 @@ public class TcpProvider implements DistributionProvider {
 
     @Activate
     public void activate(Map<String, Object> props) {
-        initSocketFactories(new Config(props));
+        providerProperties = new HashMap<>(props);
+        Config config = new Config(props);
+        initSocketFactories(config);
+        int callbackThreads = config.getCallbackThreads();
+        AtomicInteger counter = new AtomicInteger();
+        callbackExecutor = new ThreadPoolExecutor(callbackThreads, callbackThreads,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, getClass().getSimpleName() + "-callback-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        callbackExecutor.allowCoreThreadTimeOut(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, getClass().getSimpleName() + "-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Deactivate
+    public void deactivate() {
+        callbackExecutor.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    public void addSerializer(Serializer serializer) {
+        serializers.put(serializer.name(), serializer);
+    }
+
+    public void removeSerializer(Serializer serializer) {
+        serializers.remove(serializer.name(), serializer);
+    }
+
+    /**
+     * Returns the serializer with the given name.
+     *
+     * @param name the serializer name
+     * @return the serializer, or null if the name is that of the built-in Java serialization
+     * @throws IllegalArgumentException if there is no such serializer
+     */
+    private Serializer getSerializer(String name) {
+        if (name.equals(Config.DEFAULT_SERIALIZER)) {
+            return null;
+        }
+        Serializer serializer = serializers.get(name);
+        if (serializer == null) {
+            throw new IllegalArgumentException("serializer " + name + " is not available");
+        }
+        return serializer;
     }
 
     @Override
@@ -150,27 +229,91 @@ public class TcpProvider implements DistributionProvider {
             LOG.warn("Unsupported intents found: {}. Not exporting service", intents);
             return null;
         }
+        Serializer serializer = getSerializer(new Config(effectiveProperties).getSerializer());
         TcpEndpoint endpoint = new TcpEndpoint(serviceO, effectiveProperties, this::removeServer);
-        addServer(serviceO, endpoint);
+        addServer(serviceO, endpoint, serializer);
         return endpoint;
     }
 
-    private synchronized void addServer(Object serviceO, TcpEndpoint endpoint) {
+    private synchronized void addServer(Object serviceO, TcpEndpoint endpoint, Serializer serializer) {
         // port 0 means dynamically allocated free port
         int port = endpoint.getPort();
         TcpServer server = servers.get(port);
         if (server == null || port == 0) {
             server = new TcpServer(serverSocketFactory, endpoint.getBindAddress(), port,
-                endpoint.getNumThreads(), endpoint.getTimeout());
+                endpoint.getNumThreads(), endpoint.getTimeout(),
+                useVirtualThreads(endpoint.isVirtualThreads()), endpoint.getMaxConcurrency());
+            server.setQueueSize(endpoint.getQueueSize());
             port = server.getPort(); // get the real port
             endpoint.setPort(port);
             servers.put(port, server);
+        } else if (server.getQueueSize() > 0
+                && (endpoint.getQueueSize() == 0 || endpoint.getQueueSize() > server.getQueueSize())) {
+            server.setQueueSize(endpoint.getQueueSize()); // likewise for the queue size (where 0 is unlimited)
         }
         // different services may configure different number of threads - we pick the max
         if (endpoint.getNumThreads() > server.getNumThreads()) {
             server.setNumThreads(endpoint.getNumThreads());
         }
-        server.addService(endpoint.description(), serviceO);
+        server.setMaxConcurrency(endpoint.getMaxConcurrency()); // likewise, if using virtual threads
+        if (endpoint.isUnixSocket()) {
+            Path path = bindUnixSocket(server, endpoint);
+            if (path != null) {
+                endpoint.setUnixSocketPath(path.toString());
+            }
+        }
+        server.addService(endpoint.description(), serviceO, serializer);
+    }
+
+    private static Path bindUnixSocket(TcpServer server, TcpEndpoint endpoint) {
+        if (!UnixDomainSockets.isSupported()) {
+            LOG.warn("Unix domain sockets are not supported by this JVM, using TCP only");
+            return null;
+        }
+        try {
+            return server.bindUnixSocket(Paths.get(endpoint.getUnixSocketDir()));
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Error listening on a unix domain socket, using TCP only", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the Unix domain socket that an imported endpoint's server listens on,
+     * if it can be used instead of TCP.
+     * <p>
+     * The socket path comes from the endpoint description, so it is only used if the
+     * endpoint's host is this machine and the path is named like the socket file of a server
+     * listening on the endpoint's port. The client also checks that the server answering on
+     * the socket is the instance named by the file before sending it any calls.
+     *
+     * @param config the configuration of the imported endpoint
+     * @param host the endpoint's host
+     * @param port the endpoint's port
+     * @return the socket path, or null to use TCP
+     */
+    private Path unixSocket(Config config, String host, int port) {
+        String path = config.getUnixSocketPath();
+        if (path == null || !UnixDomainSockets.isSupported() || socketFactory instanceof SSLSocketFactory) {
+            return null; // TLS is not supported on unix domain sockets
+        }
+        Path unixSocket = Paths.get(path);
+        if (UnixDomainSockets.instanceId(unixSocket, port) == null) {
+            LOG.warn("Ignoring unix domain socket {} of {}:{}, which is not a server socket file", path, host, port);
+            return null;
+        }
+        if (!NetUtil.isLocalHost(host)) {
+            return null; // the server is on another host
+        }
+        return Files.exists(unixSocket) ? unixSocket : null; // e.g. the server was restarted
+    }
+
+    private static boolean useVirtualThreads(boolean requested) {
+        if (requested && !VirtualThreads.isSupported()) {
+            LOG.warn("Virtual threads are not supported by this JVM, using platform threads instead");
+            return false;
+        }
+        return requested;
     }
 
     private synchronized void removeServer(TcpEndpoint endpoint) {
@@ -185,6 +328,99 @@ public class TcpProvider implements DistributionProvider {
         }
     }
 
+    /**
+     * Returns the client connected to the given server, which is shared by all endpoints
+     * imported from it. The client's connection settings are those of the first
+     * endpoint which is imported while no client exists, and a warning is logged
+     * if a later endpoint asks for different ones.
+     *
+     * @param host the server host
+     * @param port the server port
+     * @param config the configuration of the imported endpoint
+     * @return the client, which must be released when no longer used
+     */
+    private TcpClient acquireClient(String host, int port, Config config) {
+        // all clients use the provider's socket factory (and TLS identity), so the address identifies them
+        String key = host + ":" + port;
+        Map<String, Object> settings = clientSettings(config);
+        synchronized (clients) {
+            TcpClient client = clients.get(key);
+            if (client != null && client.retain()) {
+                List<String> ignored = new ArrayList<>();
+                clientSettings.get(client).forEach((name, value) -> {
+                    if (!value.equals(settings.get(name))) {
+                        ignored.add(name);
+                    }
+                });
+                if (!ignored.isEmpty()) {
+                    LOG.warn("Ignoring {} of {}, which differ from those of the endpoints already imported from {}",
+                        ignored, config.getUri(), key);
+                }
+            } else {
+                client = new TcpClient(socketFactory, host, port, unixSocket(config, host, port),
+                    config.getTimeoutMillis(), config.getCompression(),
+                    config.getMultiplexConnections(), useVirtualThreads(config.isVirtualThreads()),
+                    config.getMaxConnections(), config.getMaxWaitMillis(),
+                    config.getMinIdleConnections(), config.getIdleTimeoutMillis(), config.getPingIntervalMillis(),
+                    scheduler, closed -> removeClient(key, closed));
+                client.retain();
+                clients.put(key, client);
+                clientSettings.put(client, settings);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Returns the settings of an imported endpoint which apply to its client,
+     * i.e. to all the endpoints imported from the same server.
+     *
+     * @param config the configuration of the imported endpoint
+     * @return the settings, by property name
+     */
+    private static Map<String, Object> clientSettings(Config config) {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        Compression compression = config.getCompression();
+        settings.put(Config.COMPRESSION, compression.algorithm);
+        settings.put(Config.COMPRESSION_THRESHOLD, compression.threshold);
+        settings.put(Config.MULTIPLEX_CONNECTIONS, config.getMultiplexConnections());
+        settings.put(Config.EXECUTOR, config.isVirtualThreads());
+        settings.put(Config.MAX_CONNECTIONS, config.getMaxConnections());
+        settings.put(Config.MAX_WAIT, config.getMaxWaitMillis());
+        settings.put(Config.MIN_IDLE_CONNECTIONS, config.getMinIdleConnections());
+        settings.put(Config.IDLE_TIMEOUT, config.getIdleTimeoutMillis());
+        settings.put(Config.PING_INTERVAL, config.getPingIntervalMillis());
+        return settings;
+    }
+
+    private void removeClient(String key, TcpClient client) {
+        synchronized (clients) {
+            clients.remove(key, client);
+            clientSettings.remove(client);
+        }
+    }
+
+    /**
+     * Returns the number of clients, i.e. servers that endpoints are imported from.
+     *
+     * @return the number of clients
+     */
+    int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    /**
+     * Returns the server listening on the given port.
+     *
+     * @param port the port
+     * @return the server, or null if there is none
+     */
+    synchronized TcpServer getServer(int port) {
+        return servers.get(port);
+    }
+
     @Override
     public ImportedService importEndpoint(ClassLoader cl,
                                           BundleContext consumerContext,
@@ -192,12 +428,35 @@ public class TcpProvider implements DistributionProvider {
                                           EndpointDescription endpoint)
         throws IntentUnsatisfiedException {
         try {
-            Config config = new Config(endpoint.getProperties());
-            URI uri = new URI(config.getUri());
-            int timeout = config.getTimeoutMillis();
-            TcpInvocationHandler handler = new TcpInvocationHandler(
-                socketFactory, cl, uri.getHost(), uri.getPort(), endpoint.getId(), timeout);
-            Object service = Proxy.newProxyInstance(cl, interfaces, handler);
+            // the provider configuration can set defaults for the client side properties
+            Map<String, Object> props = new HashMap<>(providerProperties);
+            props.putAll(endpoint.getProperties());
+            Config config = new Config(props);
+            Serializer serializer = getSerializer(config.getSerializer());
+            String localCalls = config.getLocalCalls();
+            Closeable handler;
+            if (!localCalls.equals(Config.LOCAL_CALLS_NONE) && LocalEndpoints.contains(endpoint, serializer)) {
+                // the endpoint is exported in this JVM, so it is invoked directly
+                handler = new LocalInvocationHandler(cl, endpoint.getId(), serializer,
+                    localCalls.equals(Config.LOCAL_CALLS_COPY), callbackExecutor);
+            } else {
+                URI uri = new URI(config.getUri());
+                TcpClient client = acquireClient(uri.getHost(), uri.getPort(), config);
+                try {
+                    handler = new TcpInvocationHandler(client, cl, endpoint.getId(), config.getTimeoutMillis(),
+                        config.isBinaryFormat(), serializer, config.isMultiplex(), callbackExecutor);
+                } catch (RuntimeException | Error e) {
+                    client.release();
+                    throw e;
+                }
+            }
+            Object service;
+            try {
+                service = Proxy.newProxyInstance(cl, interfaces, (InvocationHandler) handler);
+            } catch (RuntimeException | Error e) {
+                handler.close(); // releases the shared client
+                throw e;
+            }
             return new ImportedService() {
                 @Override
                 public Object getService() {
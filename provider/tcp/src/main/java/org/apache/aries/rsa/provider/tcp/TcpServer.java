@@ -19,98 +19,380 @@
 package org.apache.aries.rsa.provider.tcp;
 
 import java.io.Closeable;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.aries.rsa.provider.tcp.ser.BasicObjectOutputStream;
-import org.apache.aries.rsa.provider.tcp.ser.BasicObjectInputStream;
+import org.apache.aries.rsa.provider.tcp.ServerConnection.ChannelConnection;
+import org.apache.aries.rsa.provider.tcp.ServerConnection.SocketConnection;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
 import org.osgi.service.remoteserviceadmin.EndpointDescription;
 import org.osgi.util.promise.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLServerSocketFactory;
 
 /**
  * A server listening on a single TCP port, which accepts connections
  * and dispatches method invocation requests to one or more MethodInvokers
- * (according to the target endpoint ID).
+ * (according to the target endpoint handle).
+ * <p>
+ * Connections are not bound to an endpoint: a client first asks for the description
+ * of an endpoint by its ID, which includes a handle that is assigned to the endpoint
+ * when it is added, and each call then refers to the endpoint by its handle, so that
+ * a client can use the same connections for all the endpoints it imports from this server.
+ * <p>
+ * Plain connections are multiplexed onto a few I/O threads using non-blocking
+ * channels and a {@link Selector}, so that idle connections do not occupy any
+ * thread. A plain server can also listen on a Unix domain socket, for clients
+ * running on the same host, whose connections are served the same way. TLS
+ * connections are read by a dedicated (mostly idle) reader thread each.
+ * In both cases, only fully received calls are dispatched to the worker threads,
+ * so the number of connections does not limit the number of calls that can be
+ * served concurrently. Similarly, calls returning a CompletionStage or Promise
+ * only occupy a worker thread until the method returns, and their result is sent
+ * once it is resolved.
+ * <p>
+ * The number of calls waiting to be executed, as well as the number of concurrent
+ * calls to each endpoint, can be limited. Calls exceeding these limits are answered
+ * right away with a {@link RejectedExecutionException}, rather than piling up until
+ * their callers time out.
+ * <p>
+ * A batch of calls is executed either one after the other by the same worker thread,
+ * in which case it is admitted as a single call, or concurrently by several of them,
+ * in which case each of its calls is admitted (and the whole batch rejected if they do
+ * not all fit). Their results are sent together once all of them are done.
+ * <p>
+ * Results returned as a Stream, Iterator or InputStream to a caller that expects them
+ * are sent in chunks (see {@link ServerStream}), with the client controlling the pace.
+ * <p>
+ * Calls whose caller stopped waiting for them are not executed: each call carries the
+ * time remaining until its caller times out, and is skipped if that passed while it
+ * was queued, and a call that its caller cancels (see {@link ServerCall}) is skipped
+ * or interrupted. Such calls are still answered, with the reason they were not completed.
  */
-public class TcpServer implements Closeable, Runnable {
+public class TcpServer implements Closeable, ServerConnection.FrameHandler {
     private static final Logger LOG = LoggerFactory.getLogger(TcpServer.class);
-    private ServerSocket serverSocket;
-    private Map<String, MethodInvoker> invokers = new ConcurrentHashMap<>();
+    private static final int NUM_IO_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String addressStr;
+    private ServerSocketChannel serverChannel; // plain connections
+    private ServerSocket serverSocket; // TLS connections
+    private ServerSocketChannel unixChannel; // plain connections from the same host
+    private Path unixSocketPath;
+    private final Map<String, ServerEndpoint> endpoints = new ConcurrentHashMap<>(); // by id
+    private final Map<Integer, ServerEndpoint> handles = new ConcurrentHashMap<>(); // by handle
+    private final AtomicInteger nextHandle = new AtomicInteger();
+    private final long instanceId = ThreadLocalRandom.current().nextLong(); // distinguishes restarted servers
+    private final AtomicInteger queued = new AtomicInteger(); // calls waiting to be executed
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private volatile int queueSize; // 0 for unlimited
+    private final Map<ClassLoader, Map<String, Class<?>>> classCaches = new ConcurrentHashMap<>();
+    private final Set<ServerConnection> connections = ConcurrentHashMap.newKeySet();
     private int timeout;
     private volatile boolean running;
-    private ThreadPoolExecutor executor;
+    private ExecutorService executor;
+    private ExecutorService ioExecutor;
+    private ExecutorService connectionExecutor; // runs the TLS connection readers
+    private Semaphore permits; // limits concurrent calls when using virtual threads
+    private int maxConcurrency;
+    private IoLoop[] loops;
+    private int nextLoop;
+
+    /**
+     * An endpoint served by this server.
+     */
+    private static class ServerEndpoint {
+
+        final String id;
+        final int handle;
+        final MethodInvoker invoker;
+        final CallFormat format; // results use the format of their call
+        final int maxConcurrency; // 0 for unlimited
+        final AtomicInteger active = new AtomicInteger(); // calls queued or executing
+
+        ServerEndpoint(String id, int handle, MethodInvoker invoker, CallFormat format, int maxConcurrency) {
+            this.id = id;
+            this.handle = handle;
+            this.invoker = invoker;
+            this.format = format;
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
 
     public TcpServer(ServerSocketFactory serverSocketFactory, String bindAddress,
             int port, int numThreads, int timeout) {
-        String addressStr;
+        this(serverSocketFactory, bindAddress, port, numThreads, timeout, false, 0);
+    }
+
+    /**
+     * Creates a server.
+     *
+     * @param serverSocketFactory the factory used to create the server socket
+     * @param bindAddress the address to listen on (or null for the wildcard address)
+     * @param port the port to listen on (or 0 for a free port)
+     * @param numThreads the number of worker threads (when not using virtual threads)
+     * @param timeout the connection read timeout
+     * @param virtualThreads whether to run each call and TLS connection on a virtual thread
+     *                       (which must be supported by the JVM)
+     * @param maxConcurrency the maximum number of concurrent calls when using virtual threads
+     */
+    public TcpServer(ServerSocketFactory serverSocketFactory, String bindAddress,
+            int port, int numThreads, int timeout, boolean virtualThreads, int maxConcurrency) {
+        InetSocketAddress address = bindAddress == null || bindAddress.isEmpty()
+            ? new InetSocketAddress(port)
+            : new InetSocketAddress(bindAddress, port);
+        addressStr = (address.getAddress() == null ? address.getHostName() : address.getAddress().getHostAddress())
+            + ":" + address.getPort();
+        this.timeout = timeout;
+        this.running = true;
+        if (virtualThreads) {
+            // virtual threads are cheap to block, so calls wait for a permit rather than a pooled thread
+            this.executor = VirtualThreads.newExecutor(getClass().getSimpleName() + " [" + addressStr + "]-");
+            this.permits = new Semaphore(maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(numThreads, numThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, getClass().getSimpleName() + " [" + addressStr + "]-" + counter.incrementAndGet()));
+        }
+        AtomicInteger ioCounter = new AtomicInteger();
+        this.ioExecutor = Executors.newCachedThreadPool(
+                r -> new Thread(r, getClass().getSimpleName() + "-io [" + addressStr + "]-" + ioCounter.incrementAndGet()));
+        this.connectionExecutor = virtualThreads ? executor : ioExecutor;
         try {
-            InetSocketAddress address = bindAddress == null || bindAddress.isEmpty()
-                ? new InetSocketAddress(port)
-                : new InetSocketAddress(bindAddress, port);
-            addressStr = (address.getAddress() == null ? address.getHostName() : address.getAddress().getHostAddress())
-                + ":" + address.getPort();
-            this.serverSocket = serverSocketFactory.createServerSocket();
-            this.serverSocket.setReuseAddress(true);
-            this.serverSocket.bind(address);
+            if (serverSocketFactory instanceof SSLServerSocketFactory) {
+                // TLS is not supported by non-blocking channels, so we read each connection on its own thread
+                this.serverSocket = serverSocketFactory.createServerSocket();
+                this.serverSocket.setReuseAddress(true);
+                this.serverSocket.bind(address);
+                this.ioExecutor.execute(this::acceptSockets);
+            } else {
+                this.serverChannel = ServerSocketChannel.open();
+                this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                this.serverChannel.bind(address);
+                this.serverChannel.configureBlocking(false);
+                this.loops = new IoLoop[NUM_IO_THREADS];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new IoLoop();
+                }
+                this.serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                for (IoLoop loop : loops) {
+                    this.ioExecutor.execute(loop);
+                }
+            }
         } catch (IOException e) {
+            closeQuietly();
             throw new RuntimeException(e);
         }
-        this.timeout = timeout;
-        this.running = true;
-        numThreads++; // plus one for server socket accepting thread
-        AtomicInteger counter = new AtomicInteger();
-        this.executor = new ThreadPoolExecutor(numThreads, numThreads,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
-                r -> new Thread(r, getClass().getSimpleName() + " [" + addressStr + "]-" + counter.incrementAndGet()));
-        this.executor.execute(this); // server socket thread
     }
 
     int getPort() {
-        return this.serverSocket.getLocalPort();
+        return serverChannel != null
+            ? serverChannel.socket().getLocalPort()
+            : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts listening on a Unix domain socket as well, unless already listening on one.
+     * The socket file is named after the port and server instance, and is deleted when
+     * the server is closed.
+     *
+     * @param dir the directory in which the socket file is created
+     * @return the path of the socket file
+     * @throws IOException if an error occurs
+     * @throws UnsupportedOperationException if the server uses TLS (which is not supported
+     *         on Unix domain sockets), or the JVM does not support Unix domain sockets
+     */
+    public synchronized Path bindUnixSocket(Path dir) throws IOException {
+        if (unixSocketPath != null) {
+            return unixSocketPath;
+        }
+        if (serverChannel == null) {
+            throw new UnsupportedOperationException("unix domain sockets are not used by TLS servers");
+        }
+        Path path = dir.resolve(UnixDomainSockets.socketName(getPort(), instanceId));
+        Files.deleteIfExists(path); // left over by a server which was not closed
+        unixChannel = UnixDomainSockets.bind(path);
+        unixChannel.configureBlocking(false);
+        unixSocketPath = path;
+        loops[0].accept(unixChannel);
+        return path;
+    }
+
+    /**
+     * Returns the path of the Unix domain socket this server listens on.
+     *
+     * @return the socket path, or null if it does not listen on one
+     */
+    public synchronized Path getUnixSocketPath() {
+        return unixSocketPath;
     }
 
     public void addService(EndpointDescription endpoint, Object service) {
-        invokers.put(endpoint.getId(), new MethodInvoker(service, endpoint.getInterfaces()));
+        addService(endpoint, service, null);
     }
 
-    public void removeService(String endpointId) {
-        invokers.remove(endpointId);
+    /**
+     * Adds a service.
+     *
+     * @param endpoint the service's endpoint
+     * @param service the service
+     * @param serializer the serializer selected by the endpoint, or null to use Java serialization
+     */
+    public synchronized void addService(EndpointDescription endpoint, Object service, Serializer serializer) {
+        ClassLoader loader = service.getClass().getClassLoader();
+        Map<String, Class<?>> classCache = loader == null ? null
+            : classCaches.computeIfAbsent(loader, l -> new ConcurrentHashMap<>());
+        ServerEndpoint ep = new ServerEndpoint(endpoint.getId(), nextHandle.incrementAndGet(),
+            new MethodInvoker(service, endpoint.getInterfaces()),
+            new CallFormat(false, serializer, loader, classCache),
+            new Config(endpoint.getProperties()).getEndpointConcurrency());
+        ServerEndpoint old = endpoints.put(endpoint.getId(), ep);
+        if (old != null) {
+            handles.remove(old.handle);
+        }
+        handles.put(ep.handle, ep);
+        LocalEndpoints.add(endpoint, ep.invoker, ep.format);
+    }
+
+    public synchronized void removeService(String endpointId) {
+        ServerEndpoint ep = endpoints.remove(endpointId);
+        if (ep != null) {
+            handles.remove(ep.handle);
+            LocalEndpoints.remove(endpointId, ep.invoker);
+            // classes are resolved and cached per exporting bundle's class loader,
+            // so the cache is discarded along with the bundle's last service
+            ClassLoader loader = ep.format.loader;
+            boolean used = endpoints.values().stream()
+                .anyMatch(e -> e.format.loader == loader);
+            if (!used && loader != null) {
+                classCaches.remove(loader);
+            }
+        }
     }
 
     public boolean isEmpty() {
-        return invokers.isEmpty();
+        return endpoints.isEmpty();
     }
 
     public void setNumThreads(int numThreads) {
-        numThreads++; // plus one for server socket accepting thread
-        executor.setMaximumPoolSize(numThreads); // first the max
-        executor.setCorePoolSize(numThreads); // then the size
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+            pool.setMaximumPoolSize(numThreads); // first the max
+            pool.setCorePoolSize(numThreads); // then the size
+        }
     }
 
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return the number of worker threads, or 0 if calls run on virtual threads
+     */
     public int getNumThreads() {
-        return executor.getMaximumPoolSize() - 1; // excluding socket accepting thread
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getMaximumPoolSize() : 0;
+    }
+
+    /**
+     * Raises the maximum number of concurrent calls when using virtual threads.
+     *
+     * @param maxConcurrency the maximum number of concurrent calls
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        if (permits != null && maxConcurrency > this.maxConcurrency) {
+            permits.release(maxConcurrency - this.maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
+
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of received calls that wait to be executed.
+     * Calls that are received while the queue is full are rejected.
+     *
+     * @param queueSize the maximum number of queued calls, or 0 for unlimited
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Returns the number of received calls that are waiting to be executed.
+     *
+     * @return the number of queued calls
+     */
+    public int getQueuedCalls() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of calls that were rejected because the queue was full,
+     * or their endpoint's concurrency limit was reached.
+     *
+     * @return the number of rejected calls
+     */
+    public long getRejectedCalls() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of calls that were not executed because their caller's
+     * timeout passed while they were queued.
+     *
+     * @return the number of expired calls
+     */
+    public long getExpiredCalls() {
+        return expired.get();
     }
 
-    public void run() {
+    /**
+     * Returns the number of calls that were cancelled before they completed, because their
+     * caller gave up on them or their connection was closed.
+     *
+     * @return the number of cancelled calls
+     */
+    public long getCancelledCalls() {
+        return cancelled.get();
+    }
+
+    private void acceptSockets() {
         while (running) {
             try {
                 Socket socket = serverSocket.accept();
-                executor.execute(() -> handleConnection(socket));
+                SocketConnection conn = new SocketConnection(socket, timeout, this);
+                connections.add(conn);
+                connectionExecutor.execute(conn);
             } catch (SocketException e) { // server socket is closed
                 running = false;
             } catch (Exception e) {
@@ -119,83 +401,614 @@ public class TcpServer implements Closeable, Runnable {
         }
     }
 
-    private void handleConnection(Socket socket) {
-        try (Socket sock = socket; // socket will be closed when done
-             ObjectOutputStream out = new BasicObjectOutputStream(socket.getOutputStream());
-             BasicObjectInputStream in = new BasicObjectInputStream(socket.getInputStream())) {
-            socket.setTcpNoDelay(true);
-            sock.setSoTimeout(timeout);
-            String endpointId = in.readUTF();
-            MethodInvoker invoker = invokers.get(endpointId);
-            if (invoker == null)
-                throw new IllegalArgumentException("invalid endpoint: " + endpointId);
-            in.addClassLoader(invoker.getService().getClass().getClassLoader());
-            while (running) {
-                handleCall(invoker, in, out);
+    private void acceptChannels(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            if (server == serverChannel) { // not applicable to unix domain sockets
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
             }
-        } catch (SocketException | SocketTimeoutException | EOFException se) {
-            LOG.trace("Socket closed", se);
-            return; // e.g. connection closed by client or read timeout due to inactivity
-        } catch (Throwable t) {
-            LOG.warn("Error processing service call", t);
+            // spread connections among the I/O threads
+            loops[Math.floorMod(nextLoop++, loops.length)].add(new ChannelConnection(channel, this));
+        }
+    }
+
+    @Override
+    public void onFrame(ServerConnection conn, byte[] payload) throws IOException {
+        payload = Compression.decompress(payload);
+        if (conn.codec == null) {
+            handleHello(conn, payload);
+        } else if (payload[0] == Protocol.CALL) {
+            handleCall(conn, payload);
+        } else if (payload[0] == Protocol.CREDIT) {
+            handleCredit(conn, payload);
+        } else if (payload[0] == Protocol.CANCEL) {
+            handleCancel(conn, payload);
+        } else if (payload[0] == Protocol.PING) {
+            conn.send(Protocol.pingFrame(Protocol.callId(payload))); // answered right away, even if busy
+        } else if (payload[0] == Protocol.BATCH) {
+            handleBatch(conn, payload);
+        } else if (payload[0] == Protocol.DESCRIBE) {
+            handleDescribe(conn, payload);
+        } else {
+            throw new IOException("unexpected frame type " + payload[0]);
+        }
+    }
+
+    @Override
+    public void onClose(ServerConnection conn) {
+        connections.remove(conn);
+        for (ServerStream stream : conn.streams.values()) {
+            stream.cancel();
+        }
+        for (ServerCall call : conn.calls.values()) {
+            cancel(call); // nobody can receive the result anymore
+        }
+    }
+
+    private void handleHello(ServerConnection conn, byte[] payload) throws IOException {
+        Protocol.ClientHello hello = Protocol.parseClientHello(payload);
+        conn.compression = hello.compression;
+        conn.pingInterval = hello.pingIntervalMillis;
+        conn.codec = new CallCodec();
+        conn.send(Protocol.serverHelloFrame(instanceId, conn.compression));
+    }
+
+    private void handleDescribe(ServerConnection conn, byte[] payload) throws IOException {
+        long callId = Protocol.callId(payload);
+        String endpointId = Protocol.parseDescribe(payload);
+        ServerEndpoint ep = endpoints.get(endpointId);
+        conn.send(ep == null
+            ? Protocol.describeErrorFrame(callId, "invalid endpoint: " + endpointId)
+            : Protocol.describeReplyFrame(callId, ep.handle, Protocol.serializerName(ep.format.serializer),
+                ep.invoker.getSignatures()));
+    }
+
+    private void handleCall(ServerConnection conn, byte[] payload) throws IOException {
+        ServerEndpoint ep = handles.get(Protocol.endpointHandle(payload));
+        ServerCall state = new ServerCall(Protocol.callTimeout(payload)); // the deadline starts when it is received
+        conn.pending.incrementAndGet();
+        long callId = Protocol.callId(payload);
+        boolean binary = Protocol.isBinary(payload);
+        boolean stream = Protocol.isStream(payload);
+        CallFormat format = ep == null ? CallFormat.DEFAULT : ep.format;
+        Protocol.Call call;
+        try {
+            call = conn.codec.readCall(payload, format); // decoded in order, as required by the codec
+        } catch (Exception e) {
+            // the call could not be decoded, but the framing is intact so the connection can still be used
+            sendResult(conn, callId, binary, format, null, ep == null ? invalidHandle(payload) : e, null);
+            return;
+        }
+        if (ep == null) { // decoded anyway, to read its class descriptor definitions
+            sendResult(conn, callId, binary, format, call, invalidHandle(payload), null);
+            return;
+        }
+        // rejected calls are answered right away, so that the caller can back off rather than time out
+        String rejection = admit(ep);
+        if (rejection != null) {
+            rejected.incrementAndGet();
+            sendResult(conn, callId, binary, format, call, new RejectedExecutionException(rejection), null);
+            return;
+        }
+        MethodInvoker invoker = ep.invoker;
+        conn.calls.put(callId, state);
+        try {
+            executor.execute(() -> {
+                Object result;
+                try {
+                    try {
+                        if (permits != null) {
+                            permits.acquire(); // with virtual threads, calls are queued until they get a permit
+                        }
+                    } finally {
+                        queued.decrementAndGet();
+                    }
+                    try {
+                        result = invoke(invoker, call, state);
+                    } finally {
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                } catch (Throwable t) {
+                    sendResult(conn, callId, binary, format, call, t, null);
+                    return;
+                } finally {
+                    ep.active.decrementAndGet();
+                }
+                if (stream && ServerStream.isStreamed(result)) {
+                    // the call remains pending until the stream is done
+                    ServerStream sender = new ServerStream(conn, callId, binary, format, result, executor);
+                    conn.streams.put(callId, sender);
+                    conn.calls.remove(callId); // from now on it is cancelled as a stream
+                    sender.start();
+                } else {
+                    state.setAsyncResult(result);
+                    handleResult(conn, callId, binary, format, call, result);
+                }
+            });
+        } catch (RejectedExecutionException ree) { // server is closed
+            conn.calls.remove(callId);
+            queued.decrementAndGet();
+            ep.active.decrementAndGet();
+            throw ree;
         }
-        // connection is now closed and thread is done
     }
 
-    private void handleCall(MethodInvoker invoker, ObjectInputStream in, ObjectOutputStream out) throws Exception {
-        String methodName = (String)in.readObject();
-        Object[] args = (Object[])in.readObject();
-        Throwable error = null;
-        Object result = null;
+    private void handleCredit(ServerConnection conn, byte[] payload) throws IOException {
+        ServerStream stream = conn.streams.get(Protocol.callId(payload));
+        int credit = Protocol.parseCredit(payload);
+        if (stream == null) {
+            return; // the stream already ended
+        }
+        if (credit < 0) {
+            stream.cancel();
+        } else {
+            stream.grant(credit);
+        }
+    }
+
+    private void handleCancel(ServerConnection conn, byte[] payload) {
+        long callId = Protocol.callId(payload);
+        ServerCall call = conn.calls.get(callId);
+        if (call != null) {
+            cancel(call);
+            return;
+        }
+        ServerStream stream = conn.streams.get(callId);
+        if (stream != null) {
+            stream.cancel();
+        } // otherwise the call already completed
+    }
+
+    private void cancel(ServerCall call) {
+        if (call.cancel()) {
+            cancelled.incrementAndGet();
+        }
+    }
+
+    private void handleBatch(ServerConnection conn, byte[] payload) throws IOException {
+        ServerEndpoint ep = handles.get(Protocol.endpointHandle(payload));
+        ServerCall state = new ServerCall(Protocol.callTimeout(payload));
+        conn.pending.incrementAndGet();
+        long callId = Protocol.callId(payload);
+        boolean binary = Protocol.isBinary(payload);
+        CallFormat format = ep == null ? CallFormat.DEFAULT : ep.format;
+        Protocol.Batch batch;
+        try {
+            batch = conn.codec.readBatch(payload, format); // decoded in order, as required by the codec
+        } catch (Exception e) {
+            sendResult(conn, callId, binary, format, null, ep == null ? invalidHandle(payload) : e, null);
+            return;
+        }
+        if (ep == null) { // decoded anyway, to read its class descriptor definitions
+            sendResult(conn, callId, binary, format, batch, invalidHandle(payload), null);
+            return;
+        }
+        Protocol.Call[] calls = batch.calls;
+        boolean parallel = batch.parallel && calls.length > 1;
+        // a sequential batch takes a single place in the queue, a parallel one a place for each call
+        int places = parallel ? calls.length : 1;
+        String rejection = admit(ep, places);
+        if (rejection != null) {
+            rejected.incrementAndGet();
+            sendResult(conn, callId, binary, format, batch, new RejectedExecutionException(rejection), null);
+            return;
+        }
+        conn.calls.put(callId, state);
+        Object[] results = new Object[2 * calls.length]; // the error and value of each call
+        AtomicInteger remaining = new AtomicInteger(calls.length);
+        Runnable done = () -> {
+            if (!parallel) {
+                ep.active.decrementAndGet();
+            }
+            sendResults(conn, callId, binary, format, batch, results);
+        };
         try {
-            result = resolveAsync(invoker.invoke(methodName, args));
+            executor.execute(() -> {
+                queued.decrementAndGet(); // the place of the batch, or of its last parallel call
+                if (calls.length == 0) {
+                    done.run();
+                    return;
+                }
+                for (int i = 0; i < calls.length; i++) {
+                    int index = i;
+                    boolean forked = parallel && i < calls.length - 1; // the last parallel call runs on this thread
+                    Runnable task = () -> {
+                        if (forked) {
+                            queued.decrementAndGet();
+                        }
+                        invoke(ep.invoker, calls[index], state, results, index);
+                        if (parallel) {
+                            ep.active.decrementAndGet();
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            done.run();
+                        }
+                    };
+                    if (!forked) {
+                        task.run();
+                        continue;
+                    }
+                    try {
+                        executor.execute(task); // the other tasks never block waiting for this one
+                    } catch (RejectedExecutionException ree) { // server is closed
+                        queued.decrementAndGet();
+                        ep.active.decrementAndGet();
+                        results[2 * i] = ree;
+                        if (remaining.decrementAndGet() == 0) {
+                            done.run();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) { // server is closed
+            conn.calls.remove(callId);
+            queued.addAndGet(-places);
+            ep.active.addAndGet(-places);
+            throw ree;
+        }
+    }
+
+    /**
+     * Invokes a call of a batch, and stores its error and result at the call's
+     * position in the batch results. The calls of a batch that expired or was
+     * cancelled are skipped, but those that are already executing are not interrupted.
+     */
+    private void invoke(MethodInvoker invoker, Protocol.Call call, ServerCall state, Object[] results, int index) {
+        try {
+            if (permits != null) {
+                permits.acquire();
+            }
+            try {
+                checkAbandoned(state);
+                results[2 * index + 1] = invoke(invoker, call);
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
         } catch (Throwable t) {
-            error = t;
+            results[2 * index] = t;
+        }
+    }
+
+    /**
+     * Invokes a call unless its caller is no longer waiting for it. While the call is executing,
+     * cancelling it interrupts the thread.
+     */
+    private Object invoke(MethodInvoker invoker, Protocol.Call call, ServerCall state) throws Exception {
+        checkAbandoned(state);
+        if (!state.start()) {
+            throw cancelled();
+        }
+        try {
+            return invoke(invoker, call);
+        } finally {
+            state.finish();
+        }
+    }
+
+    private void checkAbandoned(ServerCall state) throws Exception {
+        if (state.isExpired()) {
+            expired.incrementAndGet();
+            throw new TimeoutException("call expired before it was executed");
+        }
+        if (state.isCancelled()) {
+            throw cancelled();
+        }
+    }
+
+    private static CancellationException cancelled() {
+        return new CancellationException("call was cancelled by the caller");
+    }
+
+    private static Object invoke(MethodInvoker invoker, Protocol.Call call) throws Exception {
+        return call.methodName != null
+            ? invoker.invoke(call.methodName, call.args)
+            : invoker.invoke(call.methodId, call.args);
+    }
+
+    /**
+     * Admits a call to be queued for execution.
+     *
+     * @param ep the invoked endpoint
+     * @return null if the call was admitted, or the reason it was rejected
+     */
+    private String admit(ServerEndpoint ep) {
+        return admit(ep, 1);
+    }
+
+    /**
+     * Admits a number of calls to be queued for execution, either all of them or none.
+     *
+     * @param ep the invoked endpoint
+     * @param count the number of calls
+     * @return null if the calls were admitted, or the reason they were rejected
+     */
+    private String admit(ServerEndpoint ep, int count) {
+        if (ep.active.addAndGet(count) > ep.maxConcurrency && ep.maxConcurrency > 0) {
+            ep.active.addAndGet(-count);
+            return "endpoint " + ep.id + " reached its limit of " + ep.maxConcurrency + " concurrent calls";
+        }
+        int queueSize = this.queueSize;
+        if (queued.addAndGet(count) > queueSize && queueSize > 0) {
+            queued.addAndGet(-count);
+            ep.active.addAndGet(-count);
+            return "server queue is full (" + queueSize + " calls)";
         }
-        out.writeObject(error);
-        out.writeObject(result);
-        out.flush();
-        out.reset();
+        return null;
+    }
+
+    private static IOException invalidHandle(byte[] payload) throws IOException {
+        // e.g. the endpoint was removed since the client described it
+        return new IOException("invalid endpoint handle: " + Protocol.endpointHandle(payload));
     }
 
+    /**
+     * Sends the result of an invocation. If the result is asynchronous, a callback
+     * is registered to send it once it is resolved, freeing up the worker thread
+     * in the meantime.
+     *
+     * @param conn the connection to send the result on
+     * @param callId the call id
+     * @param binary whether the call used the binary format
+     * @param format the invoked endpoint's call format
+     * @param call the invoked call
+     * @param result the value returned by the invoked method
+     */
     @SuppressWarnings("unchecked")
-    private Object resolveAsync(Object result) throws InterruptedException, Throwable {
+    private void handleResult(ServerConnection conn, long callId, boolean binary, CallFormat format,
+            Protocol.Call call, Object result) {
         // exceptions are wrapped in an InvocationTargetException just like in a sync invoke
-        if (result instanceof Future) {
-            Future<Object> fu = (Future<Object>) result;
-            try {
-                result = fu.get();
-            } catch (ExecutionException e) {
-                throw new InvocationTargetException(e.getCause());
-            }
-        } else if (result instanceof CompletionStage) {
+        if (result instanceof CompletionStage) {
             CompletionStage<Object> fu = (CompletionStage<Object>) result;
+            fu.whenComplete((value, t) -> {
+                Throwable error = t instanceof CompletionException ? t.getCause() : t;
+                sendResultAsync(conn, callId, binary, format, call,
+                    error == null ? null : new InvocationTargetException(error), value);
+            });
+        } else if (result instanceof Promise) {
+            Promise<Object> fu = (Promise<Object>) result;
+            fu.onResolve(() -> {
+                try {
+                    Throwable error = fu.getFailure();
+                    sendResultAsync(conn, callId, binary, format, call,
+                        error == null ? null : new InvocationTargetException(error),
+                        error == null ? fu.getValue() : null);
+                } catch (InterruptedException | InvocationTargetException e) {
+                    sendResultAsync(conn, callId, binary, format, call, e, null); // never happens once resolved
+                }
+            });
+        } else if (result instanceof Future) {
+            // a plain Future has no completion callback, so we have no choice but to wait for it
+            Future<Object> fu = (Future<Object>) result;
             try {
-                result = fu.toCompletableFuture().get();
+                sendResult(conn, callId, binary, format, call, null, fu.get());
             } catch (ExecutionException e) {
-                throw new InvocationTargetException(e.getCause());
+                sendResult(conn, callId, binary, format, call, new InvocationTargetException(e.getCause()), null);
+            } catch (Throwable t) {
+                sendResult(conn, callId, binary, format, call, t, null);
             }
-        } else if (result instanceof Promise) {
-            Promise<Object> fu = (Promise<Object>) result;
+        } else {
+            sendResult(conn, callId, binary, format, call, null, result);
+        }
+    }
+
+    /**
+     * Sends a result from a worker thread rather than the thread that completed
+     * an asynchronous result, which may belong to the service implementation.
+     */
+    private void sendResultAsync(ServerConnection conn, long callId, boolean binary, CallFormat format,
+            Protocol.Call call, Throwable error, Object result) {
+        try {
+            executor.execute(() -> sendResult(conn, callId, binary, format, call, error, result));
+        } catch (RejectedExecutionException ree) { // server is closed
+            conn.pending.decrementAndGet();
+            conn.close();
+        }
+    }
+
+    private void sendResult(ServerConnection conn, long callId, boolean binary, CallFormat format,
+            Object call, Throwable error, Object result) {
+        sendResults(conn, callId, binary, format, call, new Object[] { error, result });
+    }
+
+    /**
+     * Sends the results of a call or batch (see {@link CallCodec#resultsFrame}).
+     * If they cannot be serialized, the serialization error is sent instead.
+     */
+    private void sendResults(ServerConnection conn, long callId, boolean binary, CallFormat format,
+            Object call, Object[] values) {
+        conn.calls.remove(callId);
+        try {
+            Protocol.FrameOutputStream frame;
             try {
-                result = fu.getValue();
-            } catch (InvocationTargetException e) {
-                throw e;
+                frame = conn.codec.resultsFrame(callId, binary, format, values);
+            } catch (IOException e) {
+                LOG.warn("Error serializing result of {}", call, e);
+                frame = conn.codec.resultFrame(callId, binary, format, e, null);
             }
+            conn.send(conn.compression.compress(frame));
+            frame.sent();
+        } catch (IOException e) {
+            LOG.trace("Error sending result", e);
+            conn.close(); // e.g. connection closed by client
+        } finally {
+            conn.pending.decrementAndGet();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignore) {
         }
-        return result;
     }
 
     @Override
     public void close() throws IOException {
-        this.serverSocket.close();
         this.running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        synchronized (this) {
+            if (unixChannel != null) {
+                unixChannel.close();
+                Files.deleteIfExists(unixSocketPath);
+            }
+            for (ServerEndpoint ep : endpoints.values()) {
+                LocalEndpoints.remove(ep.id, ep.invoker);
+            }
+        }
+        if (loops != null) {
+            for (IoLoop loop : loops) {
+                if (loop != null) {
+                    loop.selector.wakeup();
+                }
+            }
+        }
+        for (ServerConnection conn : connections) {
+            conn.close();
+        }
+        this.ioExecutor.shutdown();
         this.executor.shutdown();
         try {
             this.executor.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
         }
         this.executor.shutdownNow();
+        this.ioExecutor.shutdownNow();
     }
 
+    /**
+     * A selector loop which reads from and writes to a set of non-blocking connections,
+     * (and accepts new connections, if the server channel is registered with it).
+     */
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<ChannelConnection> added = new ConcurrentLinkedQueue<>();
+        private final Queue<ServerSocketChannel> addedServers = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(ChannelConnection conn) {
+            connections.add(conn);
+            added.add(conn);
+            selector.wakeup(); // registration must be done on the selector thread
+        }
+
+        void accept(ServerSocketChannel server) {
+            addedServers.add(server);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            // clients that ping their connections are checked even without a timeout
+            long checkInterval = timeout > 0 ? Math.max(10, Math.min(timeout / 4, 1000)) : 1000;
+            long nextIdleCheck = System.currentTimeMillis() + checkInterval;
+            try {
+                while (running) {
+                    selector.select(checkInterval);
+                    registerAdded();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handleKey(key);
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.currentTimeMillis();
+                    if (now >= nextIdleCheck) {
+                        closeIdle(now);
+                        nextIdleCheck = now + checkInterval;
+                    }
+                }
+            } catch (ClosedSelectorException | IOException e) {
+                LOG.warn("Error in I/O loop", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ServerConnection) {
+                        ((ServerConnection)key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private void registerAdded() {
+            ServerSocketChannel server;
+            while ((server = addedServers.poll()) != null) {
+                try {
+                    server.register(selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    LOG.warn("Error listening on {}", server, e);
+                }
+            }
+            ChannelConnection conn;
+            while ((conn = added.poll()) != null) {
+                try {
+                    conn.setKey(conn.channel().register(selector, SelectionKey.OP_READ, conn));
+                } catch (IOException e) {
+                    conn.close();
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    acceptChannels((ServerSocketChannel)key.channel());
+                } catch (IOException e) {
+                    if (running) {
+                        LOG.warn("Error accepting connection", e);
+                    }
+                }
+                return;
+            }
+            ChannelConnection conn = (ChannelConnection)key.attachment();
+            try {
+                if (key.isWritable()) {
+                    conn.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    conn.read(readBuffer);
+                }
+            } catch (IOException e) {
+                LOG.trace("Socket closed", e); // e.g. connection closed by client
+                conn.close();
+            } catch (RuntimeException e) {
+                LOG.warn("Error processing connection", e);
+                conn.close();
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof ServerConnection)) {
+                    continue;
+                }
+                ServerConnection conn = (ServerConnection)key.attachment();
+                if (conn.isIdle(now, timeout)) {
+                    LOG.trace("Closing idle connection {}", conn);
+                    conn.close(); // read timeout due to inactivity
+                } else if (conn.isDead(now)) {
+                    LOG.debug("Closing connection {} whose client stopped pinging it", conn);
+                    conn.close();
+                }
+            }
+        }
+    }
 }
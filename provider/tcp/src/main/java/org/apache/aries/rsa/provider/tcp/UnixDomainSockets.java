@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates Unix domain socket channels when running on a JDK that supports them (16 or later),
+ * while the provider itself is still compiled for older JDKs.
+ * <p>
+ * The server accepts Unix domain socket connections just like TCP connections (their
+ * channels are served by the same selector loops), while the client side, which uses
+ * blocking sockets, wraps them in a {@link ChannelSocket}.
+ */
+final class UnixDomainSockets {
+
+    private static final ProtocolFamily UNIX = unixFamily();
+    private static final Method ADDRESS_OF = addressOf();
+    private static final Pattern SOCKET_NAME = Pattern.compile("aries-tcp-(\\d+)-([0-9a-f]{1,16})\\.sock");
+
+    private UnixDomainSockets() {
+        // utility class
+    }
+
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Method addressOf() {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether Unix domain sockets are supported by the running JDK.
+     *
+     * @return whether Unix domain sockets are supported
+     */
+    static boolean isSupported() {
+        return UNIX != null && ADDRESS_OF != null;
+    }
+
+    private static SocketAddress address(Path path) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("unix domain sockets require Java 16 or later");
+        }
+        try {
+            return (SocketAddress)ADDRESS_OF.invoke(null, path);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the name of the socket file of a server.
+     *
+     * @param port the server's TCP port
+     * @param instanceId the id of the server instance
+     * @return the file name
+     */
+    static String socketName(int port, long instanceId) {
+        return "aries-tcp-" + port + "-" + Long.toHexString(instanceId) + ".sock";
+    }
+
+    /**
+     * Returns the id of the server instance listening on a socket file, as given by its
+     * {@link #socketName name}.
+     *
+     * @param path the path of the socket file
+     * @param port the server's TCP port
+     * @return the server instance id, or null if the file is not named like the socket
+     *         file of a server listening on the given port
+     */
+    static Long instanceId(Path path, int port) {
+        Path name = path.getFileName();
+        Matcher matcher = name == null ? null : SOCKET_NAME.matcher(name.toString());
+        if (matcher == null || !matcher.matches() || !matcher.group(1).equals(String.valueOf(port))) {
+            return null;
+        }
+        return Long.parseUnsignedLong(matcher.group(2), 16);
+    }
+
+    /**
+     * Opens a server channel listening on a Unix domain socket.
+     *
+     * @param path the path of the socket file, which must not exist
+     * @return the bound channel
+     * @throws IOException if an error occurs
+     * @throws UnsupportedOperationException if Unix domain sockets are not supported
+     */
+    static ServerSocketChannel bind(Path path) throws IOException {
+        SocketAddress address = address(path);
+        ServerSocketChannel channel;
+        try {
+            channel = (ServerSocketChannel)ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                .invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Connects to a Unix domain socket.
+     *
+     * @param path the path of the socket file
+     * @return a socket wrapping the connected channel
+     * @throws IOException if an error occurs
+     * @throws UnsupportedOperationException if Unix domain sockets are not supported
+     */
+    static Socket connect(Path path) throws IOException {
+        return new ChannelSocket(SocketChannel.open(address(path)), path);
+    }
+
+    /**
+     * A socket backed by a connected Unix domain socket channel (which cannot be adapted
+     * to a socket by the JDK itself). Only the operations used by the client connections are
+     * supported: its streams, closing it, and the read timeout, which is implemented using
+     * a non-blocking channel and a selector.
+     */
+    static class ChannelSocket extends Socket {
+
+        private final SocketChannel channel;
+        private final Path path;
+        private final Selector readSelector;
+        private final Selector writeSelector; // reads and writes may be waiting concurrently
+        private final InputStream in = new ChannelInputStream();
+        private final OutputStream out = new ChannelOutputStream();
+        private volatile int timeout;
+
+        ChannelSocket(SocketChannel channel, Path path) throws IOException {
+            super((SocketImpl)null);
+            this.channel = channel;
+            this.path = path;
+            try {
+                channel.configureBlocking(false);
+                readSelector = Selector.open();
+                writeSelector = Selector.open();
+                channel.register(readSelector, SelectionKey.OP_READ);
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            checkOpen();
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            checkOpen();
+            return out;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            checkOpen();
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            checkOpen();
+            return timeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // not applicable - there is no send delay on a unix domain socket
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                // wakes up any thread waiting to read or write
+                if (readSelector != null) {
+                    readSelector.close();
+                }
+                if (writeSelector != null) {
+                    writeSelector.close();
+                }
+            }
+        }
+
+        private void checkOpen() throws SocketException {
+            if (!channel.isOpen()) {
+                throw new SocketException("Socket is closed");
+            }
+        }
+
+        /**
+         * Waits until the channel is ready.
+         *
+         * @param selector the selector which selects the awaited operation
+         * @param millis the time to wait, or 0 to wait indefinitely
+         */
+        private void await(Selector selector, long millis) throws IOException {
+            try {
+                selector.select(millis);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                // closed by another thread
+            }
+            checkOpen();
+        }
+
+        @Override
+        public String toString() {
+            return "Socket[unix=" + path + "]";
+        }
+
+        private class ChannelInputStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                int timeout = ChannelSocket.this.timeout;
+                long deadline = System.nanoTime() + timeout * 1_000_000L;
+                while (true) {
+                    checkOpen();
+                    int read = channel.read(buffer);
+                    if (read != 0) {
+                        return read;
+                    }
+                    long wait = 0;
+                    if (timeout > 0) {
+                        wait = (deadline - System.nanoTime()) / 1_000_000L;
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    await(readSelector, wait);
+                }
+            }
+        }
+
+        private class ChannelOutputStream extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    checkOpen();
+                    if (channel.write(buffer) == 0) {
+                        await(writeSelector, 0);
+                    }
+                }
+            }
+        }
+    }
+}
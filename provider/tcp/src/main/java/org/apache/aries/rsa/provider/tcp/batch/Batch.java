@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.batch;
+
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.osgi.util.promise.Promise;
+
+/**
+ * A batch of calls to an imported service, which are sent to the server together
+ * and answered together, in a single round trip.
+ * <p>
+ * The calls are added by invoking a method on the service within a function, which
+ * records the invocation rather than sending it, and returns a future that is
+ * completed with its result once the batch is sent and answered:
+ * <pre>
+ * Batch&lt;MyService&gt; batch = Batch.of(myService);
+ * CompletableFuture&lt;String&gt; name = batch.call(s -&gt; s.getName(id));
+ * CompletableFuture&lt;Integer&gt; count = batch.call(s -&gt; s.getCount(id));
+ * batch.run(s -&gt; s.touch(id));
+ * batch.execute();
+ * </pre>
+ * By default, the server executes the calls one after the other, in the order
+ * they were added, even if some of them fail. A {@link #parallel parallel} batch
+ * is executed concurrently instead. Methods returning a {@code Future},
+ * {@code CompletionStage} or {@code Promise}, or a streamed {@code Stream},
+ * {@code Iterator} or {@code InputStream}, cannot be batched.
+ * <p>
+ * A batch is not thread safe, and can only be sent once.
+ *
+ * @param <T> the service type
+ */
+public final class Batch<T> {
+
+    private final BatchInvoker invoker;
+    private final T recorder;
+    private final List<Method> methods = new ArrayList<>();
+    private final List<Object[]> args = new ArrayList<>();
+    private final List<CompletableFuture<Object>> results = new ArrayList<>();
+    private boolean parallel;
+    private boolean recording;
+    private boolean sent;
+
+    private Batch(BatchInvoker invoker, Object proxy) {
+        this.invoker = invoker;
+        this.recorder = createRecorder(proxy);
+    }
+
+    /**
+     * Creates a batch of calls to an imported service.
+     *
+     * @param proxy the service proxy created by the aries.tcp provider
+     * @param <T> the service type
+     * @return the batch
+     * @throws IllegalArgumentException if the proxy was not created by the aries.tcp provider
+     */
+    public static <T> Batch<T> of(T proxy) {
+        InvocationHandler handler = proxy != null && Proxy.isProxyClass(proxy.getClass())
+            ? Proxy.getInvocationHandler(proxy)
+            : null;
+        if (!(handler instanceof BatchInvoker)) {
+            throw new IllegalArgumentException("not an aries.tcp service proxy: " + proxy);
+        }
+        return new Batch<>((BatchInvoker) handler, proxy);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T createRecorder(Object proxy) {
+        Class<?> type = proxy.getClass();
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), type.getInterfaces(), this::record);
+    }
+
+    private Object record(Object proxy, Method method, Object[] args) {
+        if (!recording || methods.size() > results.size()) {
+            throw new IllegalStateException("exactly one method must be invoked by a batched call");
+        }
+        Class<?> returnType = method.getReturnType();
+        if (method.getDeclaringClass() == Object.class) {
+            throw new IllegalArgumentException("method " + method.getName() + " cannot be batched");
+        }
+        if (Future.class.isAssignableFrom(returnType) || CompletionStage.class.isAssignableFrom(returnType)
+                || Promise.class.isAssignableFrom(returnType)) {
+            throw new IllegalArgumentException("asynchronous method " + method.getName() + " cannot be batched");
+        }
+        if (returnType == Stream.class || returnType == Iterator.class || returnType == InputStream.class) {
+            throw new IllegalArgumentException("streaming method " + method.getName() + " cannot be batched");
+        }
+        methods.add(method);
+        this.args.add(args);
+        // the returned value is discarded, but must be assignable to a primitive
+        return returnType.isPrimitive() && returnType != void.class
+            ? Array.get(Array.newInstance(returnType, 1), 0)
+            : null;
+    }
+
+    /**
+     * Sets whether the calls may be executed concurrently by the server,
+     * rather than one after the other in the order they were added.
+     *
+     * @param parallel whether the calls are executed concurrently
+     * @return this batch
+     */
+    public Batch<T> parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Adds a call to the batch.
+     *
+     * @param call a function which invokes exactly one method on the given service
+     *             and returns its result (which is a placeholder)
+     * @param <R> the result type
+     * @return a future which is completed with the actual result of the call once the batch
+     *         is answered, or exceptionally with the exception thrown by the call
+     * @throws IllegalArgumentException if the invoked method cannot be batched
+     * @throws IllegalStateException if the function does not invoke exactly one method,
+     *         or the batch was already sent
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Function<? super T, R> call) {
+        if (sent) {
+            throw new IllegalStateException("batch was already sent");
+        }
+        int size = methods.size();
+        recording = true;
+        try {
+            call.apply(recorder);
+        } catch (RuntimeException e) {
+            truncate(size);
+            throw e;
+        } finally {
+            recording = false;
+        }
+        if (methods.size() != size + 1) {
+            truncate(size);
+            throw new IllegalStateException("exactly one method must be invoked by a batched call");
+        }
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        results.add(result);
+        return (CompletableFuture<R>) (CompletableFuture<?>) result;
+    }
+
+    /**
+     * Adds a call whose result is not used to the batch.
+     *
+     * @param call a consumer which invokes exactly one method on the given service
+     * @return a future which is completed once the call is done, or exceptionally
+     *         with the exception thrown by the call
+     * @throws IllegalArgumentException if the invoked method cannot be batched
+     * @throws IllegalStateException if the consumer does not invoke exactly one method,
+     *         or the batch was already sent
+     */
+    public CompletableFuture<Void> run(Consumer<? super T> call) {
+        return call(service -> {
+            call.accept(service);
+            return null;
+        }).thenApply(result -> null);
+    }
+
+    private void truncate(int size) {
+        methods.subList(size, methods.size()).clear();
+        args.subList(size, args.size()).clear();
+    }
+
+    /**
+     * Returns the number of calls in the batch.
+     *
+     * @return the number of calls
+     */
+    public int size() {
+        return methods.size();
+    }
+
+    /**
+     * Sends the batch without waiting for its results.
+     *
+     * @return a stage which is completed once the results of all calls are completed,
+     *         or exceptionally if the batch as a whole failed (in which case the results
+     *         of all calls are completed exceptionally as well)
+     * @throws IllegalStateException if the batch was already sent
+     */
+    public CompletionStage<Void> send() {
+        if (sent) {
+            throw new IllegalStateException("batch was already sent");
+        }
+        sent = true;
+        if (methods.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return invoker.invokeBatch(methods, args, parallel, results);
+    }
+
+    /**
+     * Sends the batch and waits for its results. The calls that failed are reported
+     * by their futures, and do not cause this method to fail.
+     *
+     * @throws RuntimeException if the batch as a whole failed, such as a
+     *         {@link org.osgi.framework.ServiceException} on a communications error
+     * @throws IllegalStateException if the batch was already sent
+     */
+    public void execute() {
+        try {
+            send().toCompletableFuture().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+}
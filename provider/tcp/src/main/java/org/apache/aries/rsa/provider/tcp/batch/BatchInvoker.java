@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.batch;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Sends a batch of calls to a remote endpoint in a single request.
+ * <p>
+ * This interface is implemented by the invocation handlers of the proxies
+ * created by the aries.tcp provider, and is used by {@link Batch} -
+ * it is not meant to be implemented or invoked by applications.
+ */
+public interface BatchInvoker {
+
+    /**
+     * Sends a batch of calls.
+     *
+     * @param methods the invoked methods
+     * @param args the arguments of each invoked method
+     * @param parallel whether the calls may be executed concurrently,
+     *                 rather than one after the other in the given order
+     * @param results the futures which are completed with the result of each call
+     * @return a stage which is completed once all of the results are completed,
+     *         or exceptionally if the batch as a whole failed
+     */
+    CompletionStage<Void> invokeBatch(List<Method> methods, List<Object[]> args, boolean parallel,
+            List<CompletableFuture<Object>> results);
+}
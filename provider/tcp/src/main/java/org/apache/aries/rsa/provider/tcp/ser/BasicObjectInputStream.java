@@ -25,6 +25,7 @@ import java.io.ObjectStreamClass;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.osgi.framework.Version;
@@ -34,10 +35,35 @@ import org.slf4j.LoggerFactory;
 public class BasicObjectInputStream extends ObjectInputStream {
     private static final Logger LOG = LoggerFactory.getLogger(BasicObjectInputStream.class);
 
+    /**
+     * The maximum number of classes in a resolved class cache.
+     */
+    private static final int MAX_CACHED_CLASSES = 4096;
+
     private final Set<ClassLoader> loaders = new LinkedHashSet<>(); // retains insertion order
+    private final ClassDescriptorTable table;
+    private final Map<String, Class<?>> classCache;
 
     public BasicObjectInputStream(InputStream in) throws IOException {
+        this(in, null, null);
+    }
+
+    /**
+     * Creates a stream which reads class descriptors using the given table,
+     * and caches the resolved classes.
+     *
+     * @param in the underlying input stream
+     * @param table the class descriptor table shared by the streams read
+     *              from the same connection, or null to read full class descriptors
+     * @param classCache a thread-safe cache of resolved classes by name, which may be shared
+     *                   by streams that use the same primary class loader, or null
+     * @throws IOException if an error occurs
+     */
+    public BasicObjectInputStream(InputStream in, ClassDescriptorTable table,
+            Map<String, Class<?>> classCache) throws IOException {
         super(in);
+        this.table = table;
+        this.classCache = classCache;
         AccessController.doPrivileged(new PrivilegedAction<Void>() {
             public Void run() {
                 enableResolveObject(true);
@@ -50,8 +76,40 @@ public class BasicObjectInputStream extends ObjectInputStream {
         loaders.add(loader); // the original classloader goes first
     }
 
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+        if (table == null) {
+            return super.readClassDescriptor();
+        }
+        int id = readInt();
+        if (id >= 0) {
+            return table.get(id);
+        }
+        ObjectStreamClass desc = super.readClassDescriptor();
+        if (id != ClassDescriptorTable.NO_ID) {
+            table.define(-id - 1, desc);
+        }
+        return desc;
+    }
+
     @Override
     protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        if (classCache == null) {
+            return loadClass(desc);
+        }
+        Class<?> cls = classCache.get(desc.getName());
+        if (cls == null) {
+            cls = loadClass(desc);
+            if (classCache.size() < MAX_CACHED_CLASSES) {
+                classCache.put(desc.getName(), cls);
+            }
+        } else {
+            loaders.add(cls.getClassLoader()); // save transitive classloaders for other transitive classes
+        }
+        return cls;
+    }
+
+    private Class<?> loadClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
         String className = desc.getName();
         ClassNotFoundException exception = null;
         for (ClassLoader loader : loaders) {
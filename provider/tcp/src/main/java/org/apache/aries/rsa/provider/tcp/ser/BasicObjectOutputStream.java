@@ -20,17 +20,36 @@ package org.apache.aries.rsa.provider.tcp.ser;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.osgi.framework.Version;
 
 public class BasicObjectOutputStream extends ObjectOutputStream {
 
+    private final ClassDescriptorTable table;
+    private List<ClassDescriptorTable.Entry> definitions;
+
     public BasicObjectOutputStream(OutputStream out) throws IOException {
+        this(out, null);
+    }
+
+    /**
+     * Creates a stream which writes class descriptors using the given table.
+     *
+     * @param out the underlying output stream
+     * @param table the class descriptor table shared by the streams written
+     *              to the same connection, or null to write full class descriptors
+     * @throws IOException if an error occurs
+     */
+    public BasicObjectOutputStream(OutputStream out, ClassDescriptorTable table) throws IOException {
         super(out);
+        this.table = table;
         AccessController.doPrivileged(new PrivilegedAction<Void>() {
             public Void run() {
                 enableReplaceObject(true);
@@ -45,10 +64,56 @@ public class BasicObjectOutputStream extends ObjectOutputStream {
             return obj;
         } else if (obj instanceof Version) {
             return new VersionMarker((Version) obj);
-        } else if (DTOUtil.isDTOType(obj.getClass())){
-            return new DTOMarker(obj);
+        } else if (DTOPlan.forClass(obj.getClass()) != null) {
+            return new DTOData(obj);
+        } else if (DTOUtil.isDTOType(obj.getClass())) {
+            return new DTOMarker(obj); // a DTO that cannot be accessed directly
         } else {
             return obj;
         }
     }
+
+    @Override
+    protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+        ClassDescriptorTable.Entry entry = table == null ? null : table.getEntry(desc);
+        if (entry == null) {
+            if (table != null) {
+                writeInt(ClassDescriptorTable.NO_ID);
+            }
+            super.writeClassDescriptor(desc);
+        } else if (entry.published) {
+            writeInt(entry.id);
+        } else {
+            writeInt(-entry.id - 1); // a definition
+            super.writeClassDescriptor(desc);
+            if (definitions == null) {
+                definitions = new ArrayList<>();
+            }
+            definitions.add(entry);
+        }
+    }
+
+    /**
+     * Returns whether this stream contains definitions of class descriptors
+     * that were not yet published.
+     *
+     * @return whether this stream defines new class descriptors
+     */
+    public boolean hasDefinitions() {
+        return definitions != null;
+    }
+
+    /**
+     * Publishes the class descriptor definitions written by this stream,
+     * so that subsequent streams can refer to them by id alone.
+     * This must be called only after this stream's content is sent (or queued
+     * to be sent) ahead of any content that is written later.
+     */
+    public void publishDefinitions() {
+        if (definitions != null) {
+            for (ClassDescriptorTable.Entry entry : definitions) {
+                entry.published = true;
+            }
+        }
+    }
 }
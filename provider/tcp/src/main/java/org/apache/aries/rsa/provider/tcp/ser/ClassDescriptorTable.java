@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A table of class descriptors that is shared by the consecutive object streams
+ * sent over a connection in one direction, so that each class descriptor only needs
+ * to be sent once per connection, and is subsequently referred to by an id.
+ * <p>
+ * A table is used either for writing by {@link BasicObjectOutputStream}s,
+ * or for reading by {@link BasicObjectInputStream}s.
+ * <p>
+ * When writing, a descriptor is assigned an id the first time it is written,
+ * and it is then written in full along with its id (i.e. defined) by every stream
+ * until the definition is {@link BasicObjectOutputStream#publishDefinitions published},
+ * which must only be done once the stream that defined it was sent, so that any
+ * stream referring to it by id alone is guaranteed to be received after its definition.
+ * Object handles are still reset with every stream.
+ */
+public class ClassDescriptorTable {
+
+    /**
+     * The maximum number of descriptors in a table, beyond which
+     * descriptors are always written in full.
+     */
+    static final int MAX_SIZE = 4096;
+
+    /**
+     * The id written before a descriptor that is not in the table.
+     */
+    static final int NO_ID = Integer.MIN_VALUE;
+
+    static class Entry {
+        final int id;
+        volatile boolean published;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Map<ObjectStreamClass, Entry> entries = new ConcurrentHashMap<>(); // for writing
+    private final Map<Integer, ObjectStreamClass> descriptors = new ConcurrentHashMap<>(); // for reading
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Returns the entry of a descriptor that is being written, assigning it an id if it is new.
+     *
+     * @param desc the descriptor
+     * @return the entry, or null if the table is full
+     */
+    Entry getEntry(ObjectStreamClass desc) {
+        Entry entry = entries.get(desc);
+        if (entry == null && entries.size() < MAX_SIZE) {
+            entry = entries.computeIfAbsent(desc, d -> new Entry(nextId.getAndIncrement()));
+        }
+        return entry;
+    }
+
+    /**
+     * Adds a descriptor definition that was read.
+     *
+     * @param id the descriptor id
+     * @param desc the descriptor
+     * @throws StreamCorruptedException if the id is invalid
+     */
+    void define(int id, ObjectStreamClass desc) throws StreamCorruptedException {
+        if (id < 0 || id >= MAX_SIZE) {
+            throw new StreamCorruptedException("invalid class descriptor id " + id);
+        }
+        descriptors.put(id, desc);
+    }
+
+    /**
+     * Returns a descriptor that was previously defined.
+     *
+     * @param id the descriptor id
+     * @return the descriptor
+     * @throws StreamCorruptedException if there is no descriptor with the given id
+     */
+    ObjectStreamClass get(int id) throws StreamCorruptedException {
+        ObjectStreamClass desc = descriptors.get(id);
+        if (desc == null) {
+            throw new StreamCorruptedException("undefined class descriptor id " + id);
+        }
+        return desc;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Replaces a DTO in a serialized stream, writing it using its {@link DTOPlan}.
+ * <p>
+ * Only the DTO's class object is written before its field values, so along with the
+ * stream's class descriptor handling, the class metadata is not repeated for every object.
+ */
+public class DTOData implements Externalizable {
+    private static final long serialVersionUID = -4006498127640427150L;
+
+    private Object dto;
+
+    public DTOData() {
+        // for deserialization
+    }
+
+    DTOData(Object dto) {
+        this.dto = dto;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeObject(dto.getClass());
+        DTOPlan.forClass(dto.getClass()).write(dto, out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        Class<?> cls = (Class<?>)in.readObject();
+        DTOPlan plan = DTOPlan.forClass(cls);
+        if (plan == null) {
+            throw new InvalidClassException(cls.getName(), "not a DTO type");
+        }
+        dto = plan.read(in);
+    }
+
+    protected Object readResolve() {
+        return dto;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A field access plan for a DTO class, which writes and reads the DTO's public
+ * fields in a fixed order (by name) using method handles, without any per-object
+ * metadata such as field names or types.
+ * <p>
+ * The plan for a class is created once, when its first instance is written or read,
+ * and is cached along with the class - including the outcome for non-DTO classes, so
+ * that classes are not repeatedly inspected. Both ends are assumed to use the same
+ * version of a DTO class, just like with Java serialization.
+ */
+final class DTOPlan {
+
+    private static final ClassValue<Optional<DTOPlan>> PLANS = new ClassValue<Optional<DTOPlan>>() {
+        @Override
+        protected Optional<DTOPlan> computeValue(Class<?> type) {
+            return Optional.ofNullable(create(type));
+        }
+    };
+
+    /**
+     * The access to a single field.
+     */
+    private static class FieldAccess {
+        final char type; // the primitive type code, or 'L' for objects
+        final MethodHandle getter; // (Object)T
+        final MethodHandle setter; // (Object,T)void
+
+        FieldAccess(Field field) throws IllegalAccessException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> fieldType = field.getType().isPrimitive() ? field.getType() : Object.class;
+            this.type = fieldType.isPrimitive() ? typeCode(fieldType) : 'L';
+            this.getter = lookup.unreflectGetter(field)
+                .asType(MethodType.methodType(fieldType, Object.class));
+            this.setter = lookup.unreflectSetter(field)
+                .asType(MethodType.methodType(void.class, Object.class, fieldType));
+        }
+
+        private static char typeCode(Class<?> type) {
+            return type == boolean.class ? 'Z' : type == long.class ? 'J'
+                : Character.toUpperCase(type.getName().charAt(0));
+        }
+    }
+
+    private final MethodHandle constructor; // ()Object
+    private final FieldAccess[] fields;
+
+    private DTOPlan(MethodHandle constructor, FieldAccess[] fields) {
+        this.constructor = constructor;
+        this.fields = fields;
+    }
+
+    /**
+     * Returns the plan for the given class.
+     *
+     * @param cls a class
+     * @return the plan, or null if the class is not a (public) DTO type
+     */
+    static DTOPlan forClass(Class<?> cls) {
+        return PLANS.get(cls).orElse(null);
+    }
+
+    private static DTOPlan create(Class<?> cls) {
+        if (!Modifier.isPublic(cls.getModifiers()) || cls.isArray() || cls.isInterface() || !DTOUtil.isDTOType(cls)) {
+            return null;
+        }
+        try {
+            MethodHandle constructor = MethodHandles.publicLookup()
+                .findConstructor(cls, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+            Field[] fields = Arrays.stream(cls.getFields())
+                .filter(f -> !Modifier.isStatic(f.getModifiers()))
+                .sorted(Comparator.comparing(Field::getName)
+                    .thenComparing(f -> f.getDeclaringClass().getName()))
+                .toArray(Field[]::new);
+            FieldAccess[] access = new FieldAccess[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                access[i] = new FieldAccess(fields[i]);
+            }
+            return new DTOPlan(constructor, access);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null; // e.g. final fields or non-public constructor
+        }
+    }
+
+    void write(Object dto, ObjectOutput out) throws IOException {
+        try {
+            for (FieldAccess field : fields) {
+                MethodHandle getter = field.getter;
+                switch (field.type) {
+                    case 'Z': out.writeBoolean((boolean)getter.invokeExact(dto)); break;
+                    case 'B': out.writeByte((byte)getter.invokeExact(dto)); break;
+                    case 'C': out.writeChar((char)getter.invokeExact(dto)); break;
+                    case 'S': out.writeShort((short)getter.invokeExact(dto)); break;
+                    case 'I': out.writeInt((int)getter.invokeExact(dto)); break;
+                    case 'J': out.writeLong((long)getter.invokeExact(dto)); break;
+                    case 'F': out.writeFloat((float)getter.invokeExact(dto)); break;
+                    case 'D': out.writeDouble((double)getter.invokeExact(dto)); break;
+                    default: out.writeObject((Object)getter.invokeExact(dto));
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException("Error writing DTO " + dto.getClass().getName(), t);
+        }
+    }
+
+    /**
+     * Copies a DTO field by field (see {@link ObjectCopier}).
+     *
+     * @param dto the DTO
+     * @param copier copies the values of the object fields
+     * @param copies the objects copied so far, to which the copy is added before its fields are copied
+     * @return the copy, or {@link ObjectCopier#NOT_COPYABLE} if a field value cannot be copied
+     */
+    Object copy(Object dto, ObjectCopier copier, Map<Object, Object> copies) {
+        try {
+            Object copy = (Object)constructor.invokeExact();
+            copies.put(dto, copy);
+            for (FieldAccess field : fields) {
+                MethodHandle getter = field.getter;
+                MethodHandle setter = field.setter;
+                switch (field.type) {
+                    case 'Z': setter.invokeExact(copy, (boolean)getter.invokeExact(dto)); break;
+                    case 'B': setter.invokeExact(copy, (byte)getter.invokeExact(dto)); break;
+                    case 'C': setter.invokeExact(copy, (char)getter.invokeExact(dto)); break;
+                    case 'S': setter.invokeExact(copy, (short)getter.invokeExact(dto)); break;
+                    case 'I': setter.invokeExact(copy, (int)getter.invokeExact(dto)); break;
+                    case 'J': setter.invokeExact(copy, (long)getter.invokeExact(dto)); break;
+                    case 'F': setter.invokeExact(copy, (float)getter.invokeExact(dto)); break;
+                    case 'D': setter.invokeExact(copy, (double)getter.invokeExact(dto)); break;
+                    default:
+                        Object value = copier.copy((Object)getter.invokeExact(dto), copies);
+                        if (value == ObjectCopier.NOT_COPYABLE) {
+                            return value;
+                        }
+                        setter.invokeExact(copy, value);
+                }
+            }
+            return copy;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) { // e.g. the constructor failed - leave it to serialization to report
+            return ObjectCopier.NOT_COPYABLE;
+        }
+    }
+
+    Object read(ObjectInput in) throws IOException, ClassNotFoundException {
+        try {
+            Object dto = (Object)constructor.invokeExact();
+            for (FieldAccess field : fields) {
+                MethodHandle setter = field.setter;
+                switch (field.type) {
+                    case 'Z': setter.invokeExact(dto, in.readBoolean()); break;
+                    case 'B': setter.invokeExact(dto, in.readByte()); break;
+                    case 'C': setter.invokeExact(dto, in.readChar()); break;
+                    case 'S': setter.invokeExact(dto, in.readShort()); break;
+                    case 'I': setter.invokeExact(dto, in.readInt()); break;
+                    case 'J': setter.invokeExact(dto, in.readLong()); break;
+                    case 'F': setter.invokeExact(dto, in.readFloat()); break;
+                    case 'D': setter.invokeExact(dto, in.readDouble()); break;
+                    default: setter.invokeExact(dto, in.readObject());
+                }
+            }
+            return dto;
+        } catch (IOException | ClassNotFoundException | Error e) {
+            throw e;
+        } catch (Throwable t) { // e.g. a field value of the wrong type
+            InvalidObjectException ioe = new InvalidObjectException("Error reading DTO: " + t);
+            ioe.initCause(t);
+            throw ioe;
+        }
+    }
+}
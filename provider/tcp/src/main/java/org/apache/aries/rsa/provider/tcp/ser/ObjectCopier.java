@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.Period;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Version;
+
+/**
+ * Copies object graphs in memory, which is much cheaper than serializing and
+ * deserializing them, for calls between endpoints exported and imported in the same JVM.
+ * <p>
+ * Immutable values (such as strings, boxed primitives and enums) are shared rather than
+ * copied, arrays, dates and the common collection and map implementations are copied
+ * element by element, and DTOs are copied field by field using their access plan.
+ * References shared within the copied values (including cycles) are preserved,
+ * as with serialization.
+ * <p>
+ * Objects of any other type, or whose classes are not the ones that the target class
+ * loader resolves, cannot be copied this way, and have to be serialized instead.
+ */
+public final class ObjectCopier {
+
+    /**
+     * Returned (internally) for a value that cannot be copied.
+     */
+    static final Object NOT_COPYABLE = new Object();
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<>(Arrays.asList(
+        String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+        Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class,
+        URI.class, Version.class, Instant.class, Duration.class, Period.class, LocalDate.class,
+        LocalTime.class, LocalDateTime.class, OffsetDateTime.class, ZonedDateTime.class,
+        Collections.emptyList().getClass(), Collections.emptySet().getClass(),
+        Collections.emptyMap().getClass()));
+
+    private static final String IMMUTABLE_COLLECTIONS = "java.util.ImmutableCollections$";
+
+    private final ClassLoader loader;
+    private final Map<Class<?>, Boolean> visible = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a copier.
+     *
+     * @param loader the class loader resolving the classes of the copies
+     */
+    public ObjectCopier(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Copies a number of values.
+     *
+     * @param values the values
+     * @return the copies, or null if any of the values cannot be copied
+     */
+    public Object[] copy(Object... values) {
+        Map<Object, Object> copies = new IdentityHashMap<>();
+        Object[] result = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = copy(values[i], copies);
+            if (result[i] == NOT_COPYABLE) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies a value.
+     *
+     * @param value the value
+     * @param copies the objects copied so far, and their copies
+     * @return the copy, or {@link #NOT_COPYABLE}
+     */
+    Object copy(Object value, Map<Object, Object> copies) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> cls = value.getClass();
+        if (IMMUTABLE_TYPES.contains(cls)) {
+            return isVisible(cls) ? value : NOT_COPYABLE;
+        }
+        if (value instanceof Enum) {
+            return isVisible(((Enum<?>)value).getDeclaringClass()) ? value : NOT_COPYABLE;
+        }
+        Object copy = copies.get(value);
+        if (copy != null) {
+            return copy;
+        }
+        if (cls.isArray()) {
+            return copyArray(value, cls.getComponentType(), copies);
+        }
+        if (cls == Date.class) {
+            copy = new Date(((Date)value).getTime());
+            copies.put(value, copy);
+            return copy;
+        }
+        if (value instanceof Collection) {
+            return copyCollection((Collection<?>)value, cls, copies);
+        }
+        if (value instanceof Map) {
+            return copyMap((Map<?, ?>)value, cls, copies);
+        }
+        DTOPlan plan = DTOPlan.forClass(cls);
+        return plan != null && isVisible(cls) ? plan.copy(value, this, copies) : NOT_COPYABLE;
+    }
+
+    private Object copyArray(Object array, Class<?> componentType, Map<Object, Object> copies) {
+        if (!componentType.isPrimitive() && !isVisible(componentType)) {
+            return NOT_COPYABLE;
+        }
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(componentType, length);
+        copies.put(array, copy);
+        if (componentType.isPrimitive()) {
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+        Object[] from = (Object[])array;
+        Object[] to = (Object[])copy;
+        for (int i = 0; i < length; i++) {
+            to[i] = copy(from[i], copies);
+            if (to[i] == NOT_COPYABLE) {
+                return NOT_COPYABLE;
+            }
+        }
+        return copy;
+    }
+
+    private Object copyCollection(Collection<?> collection, Class<?> cls, Map<Object, Object> copies) {
+        Collection<Object> copy;
+        if (cls == ArrayList.class) {
+            copy = new ArrayList<>(collection.size());
+        } else if (cls == LinkedList.class) {
+            copy = new LinkedList<>();
+        } else if (cls == HashSet.class) {
+            copy = new HashSet<>(Math.max(16, 2 * collection.size()));
+        } else if (cls == LinkedHashSet.class) {
+            copy = new LinkedHashSet<>(Math.max(16, 2 * collection.size()));
+        } else if (cls == TreeSet.class && ((TreeSet<?>)collection).comparator() == null) {
+            copy = new TreeSet<>();
+        } else if (cls.getName().startsWith(IMMUTABLE_COLLECTIONS)) {
+            // the copy is created from its elements, so it cannot be referenced from within them
+            copies.put(collection, NOT_COPYABLE);
+            Object[] elements = copyElements(collection.toArray(), copies);
+            if (elements == null) {
+                return NOT_COPYABLE;
+            }
+            Object immutable = collection instanceof List ? List.of(elements) : Set.of(elements);
+            copies.put(collection, immutable);
+            return immutable;
+        } else {
+            return NOT_COPYABLE;
+        }
+        copies.put(collection, copy);
+        for (Object element : collection) {
+            Object value = copy(element, copies);
+            if (value == NOT_COPYABLE) {
+                return NOT_COPYABLE;
+            }
+            copy.add(value);
+        }
+        return copy;
+    }
+
+    private Object[] copyElements(Object[] values, Map<Object, Object> copies) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = copy(values[i], copies);
+            if (values[i] == NOT_COPYABLE) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    private Object copyMap(Map<?, ?> map, Class<?> cls, Map<Object, Object> copies) {
+        Map<Object, Object> copy;
+        if (cls == HashMap.class) {
+            copy = new HashMap<>(Math.max(16, 2 * map.size()));
+        } else if (cls == LinkedHashMap.class) {
+            copy = new LinkedHashMap<>(Math.max(16, 2 * map.size()));
+        } else if (cls == TreeMap.class && ((TreeMap<?, ?>)map).comparator() == null) {
+            copy = new TreeMap<>();
+        } else if (cls.getName().startsWith(IMMUTABLE_COLLECTIONS)) {
+            copies.put(map, NOT_COPYABLE);
+            copy = new HashMap<>(Math.max(16, 2 * map.size()));
+            if (!copyEntries(map, copy, copies)) {
+                return NOT_COPYABLE;
+            }
+            copy = Map.copyOf(copy);
+            copies.put(map, copy);
+            return copy;
+        } else {
+            return NOT_COPYABLE;
+        }
+        copies.put(map, copy);
+        return copyEntries(map, copy, copies) ? copy : NOT_COPYABLE;
+    }
+
+    private boolean copyEntries(Map<?, ?> from, Map<Object, Object> to, Map<Object, Object> copies) {
+        for (Map.Entry<?, ?> entry : from.entrySet()) {
+            Object key = copy(entry.getKey(), copies);
+            Object value = copy(entry.getValue(), copies);
+            if (key == NOT_COPYABLE || value == NOT_COPYABLE) {
+                return false;
+            }
+            to.put(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a class is the one that the target class loader resolves by its name,
+     * so that its instances can be shared or copied as they are.
+     */
+    private boolean isVisible(Class<?> cls) {
+        if (cls.getClassLoader() == null) {
+            return true; // a JDK class
+        }
+        return visible.computeIfAbsent(cls, c -> {
+            try {
+                return loader != null && Class.forName(c.getName(), false, loader) == c;
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+        });
+    }
+}
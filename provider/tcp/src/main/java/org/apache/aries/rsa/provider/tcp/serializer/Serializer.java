@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A pluggable serializer for the objects passed to and returned from remote calls.
+ * <p>
+ * Serializers are registered as services, and an exported service selects one by its
+ * {@link #name() name} using the {@code aries.tcp.serializer} endpoint property
+ * (both the exporting and importing frameworks must provide it). By default, the
+ * built-in Java serialization is used, which sends class descriptors only once per
+ * connection and writes DTOs directly from their fields.
+ * <p>
+ * In the binary call format, values which the format encodes directly (primitive
+ * wrappers, strings and byte arrays) are not passed to the serializer.
+ * Serializers must be thread safe.
+ */
+public interface Serializer {
+
+    /**
+     * Returns the name by which endpoints select this serializer.
+     *
+     * @return the serializer name
+     */
+    String name();
+
+    /**
+     * Writes a number of objects.
+     *
+     * @param out the stream to write to
+     * @param objects the objects to write (which may contain nulls)
+     * @throws IOException if an error occurs
+     */
+    void writeObjects(OutputStream out, Object[] objects) throws IOException;
+
+    /**
+     * Reads the objects written by {@link #writeObjects}.
+     *
+     * @param in the stream to read from, which contains only the written objects
+     * @param count the number of objects
+     * @param loader the class loader used to resolve classes
+     * @return the objects
+     * @throws IOException if an error occurs
+     * @throws ClassNotFoundException if a class cannot be resolved
+     */
+    Object[] readObjects(InputStream in, int count, ClassLoader loader) throws IOException, ClassNotFoundException;
+}
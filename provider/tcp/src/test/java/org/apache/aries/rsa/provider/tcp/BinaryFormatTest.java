@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.aries.rsa.provider.tcp.Protocol.FrameOutputStream;
+import org.junit.Test;
+
+public class BinaryFormatTest {
+
+    private final CallCodec codec = new CallCodec();
+    private final CallFormat format = new CallFormat(true, null, getClass().getClassLoader(), null);
+
+    private Object[] roundTrip(Object... values) throws Exception {
+        FrameOutputStream frame = new FrameOutputStream(Protocol.RESULT, 1, true);
+        BinaryFormat.writeValues(frame, codec, format, values);
+        ByteBuffer buf = frame.toFrame();
+        int offset = 4 + Protocol.CALL_HEADER_SIZE;
+        return BinaryFormat.readValues(new ByteArrayInputStream(buf.array(), offset, buf.limit() - offset), codec, format);
+    }
+
+    @Test
+    public void testDirectValues() throws Exception {
+        Object[] values = { null, true, false, (byte)1, (short)2, 'c', 3, 4L, 5.5f, 6.5d, "", "h\u00e9llo" };
+        assertArrayEquals(values, roundTrip(values));
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        byte[] bytes = { 1, 2, 3 };
+        Object[] values = roundTrip(bytes, new byte[0]);
+        assertArrayEquals(bytes, (byte[])values[0]);
+        assertEquals(0, ((byte[])values[1]).length);
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        byte[] large = new byte[Protocol.SEGMENT_THRESHOLD];
+        Arrays.fill(large, (byte) 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.SEGMENT_THRESHOLD + 1);
+        FrameOutputStream frame = new FrameOutputStream(Protocol.RESULT, 1, true);
+        BinaryFormat.writeValues(frame, codec, format, large, "x", buffer, new Date(1));
+        ByteBuffer[] buffers = frame.toBuffers();
+        assertEquals(5, buffers.length); // the two segments are not copied into the frame
+        assertTrue(buffers[1].array() == large);
+
+        ByteBuffer buf = frame.toFrame(); // the same frame, in a single buffer
+        assertEquals(frame.frameSize(), buf.remaining());
+        assertEquals(buf.remaining() - 4, buf.getInt(0));
+        byte[] payload = Arrays.copyOfRange(buf.array(), 4, buf.limit());
+        Object[] values = BinaryFormat.readValues(new Protocol.PayloadInputStream(payload, Protocol.CALL_HEADER_SIZE), codec, format);
+        assertArrayEquals(large, (byte[])values[0]);
+        assertEquals("x", values[1]);
+        assertEquals(buffer, values[2]);
+        assertTrue(((ByteBuffer)values[2]).array() == payload); // received buffers are not copied
+        assertEquals(new Date(1), values[3]);
+    }
+
+    @Test
+    public void testSerializedObjectsInterleaved() throws Exception {
+        Date date = new Date();
+        List<String> list = Arrays.asList("a", "b");
+        Object[] values = roundTrip(1, date, "x", list, list);
+        assertEquals(1, values[0]);
+        assertEquals(date, values[1]);
+        assertEquals("x", values[2]);
+        assertEquals(list, values[3]);
+        assertTrue(values[3] == values[4]); // references are shared within the serialized section
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(0, roundTrip().length);
+        assertEquals(0, roundTrip((Object[])null).length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testInvalidTag() throws Exception {
+        byte[] data = { 0, 0, 0, 1, 99 };
+        BinaryFormat.readValues(new ByteArrayInputStream(data), codec, format);
+    }
+}
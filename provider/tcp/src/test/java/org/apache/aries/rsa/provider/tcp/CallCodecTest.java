@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.aries.rsa.provider.tcp.Protocol.FrameOutputStream;
+import org.apache.aries.rsa.provider.tcp.myservice.DTOType;
+import org.apache.aries.rsa.provider.tcp.myservice.StreamService;
+import org.junit.Test;
+
+public class CallCodecTest {
+
+    private static byte[] payload(FrameOutputStream frame) {
+        ByteBuffer buf = frame.toFrame();
+        return Arrays.copyOfRange(buf.array(), 4, buf.limit());
+    }
+
+    private static CallFormat format(Map<String, Class<?>> classCache) {
+        return new CallFormat(true, null, CallCodecTest.class.getClassLoader(), classCache);
+    }
+
+    private static void testDescriptorsSentOnce(boolean binary) throws Exception {
+        Map<String, Class<?>> classCache = new ConcurrentHashMap<>();
+        CallFormat format = format(classCache);
+        CallCodec sender = new CallCodec();
+        CallCodec receiver = new CallCodec();
+        Object result = new Date[] { new Date(1), new Date(2) };
+
+        FrameOutputStream first = sender.resultFrame(1, binary, format, null, result);
+        byte[] firstPayload = payload(first);
+        first.sent();
+        byte[] secondPayload = payload(sender.resultFrame(2, binary, format, null, result));
+
+        assertTrue(Protocol.hasDefinitions(firstPayload));
+        assertFalse(Protocol.hasDefinitions(secondPayload));
+        assertTrue(secondPayload.length < firstPayload.length);
+
+        // the second frame can only be decoded after the first frame's definitions were read
+        assertThrows(StreamCorruptedException.class, () -> receiver.readResult(secondPayload, format));
+        receiver.readDefinitions(firstPayload, format);
+        Object[] values = receiver.readResult(secondPayload, format);
+        assertNull(values[0]);
+        assertEquals(Arrays.asList((Date[])result), Arrays.asList((Date[])values[1]));
+        assertTrue(classCache.containsKey(Date.class.getName()));
+    }
+
+    @Test
+    public void testDescriptorsSentOnceBinary() throws Exception {
+        testDescriptorsSentOnce(true);
+    }
+
+    @Test
+    public void testDescriptorsSentOnceJava() throws Exception {
+        testDescriptorsSentOnce(false);
+    }
+
+    @Test
+    public void testUnpublishedDescriptorsAreRedefined() throws Exception {
+        CallFormat format = format(null);
+        CallCodec sender = new CallCodec();
+        CallCodec receiver = new CallCodec();
+        payload(sender.resultFrame(1, true, format, null, new Date())); // never sent
+        byte[] payload = payload(sender.resultFrame(2, true, format, null, new Date(2)));
+        assertTrue(Protocol.hasDefinitions(payload));
+        assertEquals(new Date(2), receiver.readResult(payload, format)[1]);
+    }
+
+    @Test
+    public void testCall() throws Exception {
+        Method method = Map.class.getMethod("put", Object.class, Object.class);
+        Map<String, Integer> methodIds = new HashMap<>();
+        methodIds.put(MethodInvoker.signature(method), 7);
+        RemoteEndpoint endpoint = new RemoteEndpoint(1, 42, Config.DEFAULT_SERIALIZER, methodIds);
+        CallFormat format = format(null);
+        CallCodec client = new CallCodec();
+        CallCodec server = new CallCodec();
+        DTOType dto = new DTOType();
+        dto.value = "dto";
+
+        byte[] payload = payload(client.callFrame(1, endpoint, format, method, new Object[] { "key", dto }, 500));
+        assertEquals(42, Protocol.endpointHandle(payload));
+        assertEquals(500, Protocol.callTimeout(payload));
+        assertTrue(Protocol.isBinary(payload));
+        Protocol.Call call = server.readCall(payload, format);
+        assertEquals(7, call.methodId);
+        assertNull(call.methodName);
+        assertEquals("key", call.args[0]);
+        assertEquals("dto", ((DTOType)call.args[1]).value);
+
+        Method unknown = Map.class.getMethod("get", Object.class);
+        call = server.readCall(payload(client.callFrame(2, endpoint, format, unknown, new Object[] { "key" }, 0)), format);
+        assertEquals("get", call.methodName);
+
+        CallFormat javaFormat = new CallFormat(false, null, getClass().getClassLoader(), null);
+        payload = payload(client.callFrame(3, endpoint, javaFormat, method, new Object[] { "key", 1 }, 0));
+        assertFalse(Protocol.isBinary(payload));
+        call = server.readCall(payload, javaFormat);
+        assertEquals("put", call.methodName);
+        assertEquals(1, call.args[1]);
+    }
+
+    private static void testBatch(boolean binary) throws Exception {
+        Method put = Map.class.getMethod("put", Object.class, Object.class);
+        Method get = Map.class.getMethod("get", Object.class);
+        Map<String, Integer> methodIds = new HashMap<>();
+        methodIds.put(MethodInvoker.signature(put), 7);
+        RemoteEndpoint endpoint = new RemoteEndpoint(1, 42, Config.DEFAULT_SERIALIZER, methodIds);
+        CallFormat format = new CallFormat(binary, null, CallCodecTest.class.getClassLoader(), null);
+        CallCodec client = new CallCodec();
+        CallCodec server = new CallCodec();
+
+        byte[] payload = payload(client.batchFrame(1, endpoint, format, Arrays.asList(put, get, get),
+            Arrays.asList(new Object[] { "key", new Date(1) }, new Object[] { "key" }, null), true, 500));
+        assertEquals(Protocol.BATCH, payload[0]);
+        assertEquals(42, Protocol.endpointHandle(payload));
+        assertEquals(500, Protocol.callTimeout(payload));
+        Protocol.Batch batch = server.readBatch(payload, format);
+        assertTrue(batch.parallel);
+        assertEquals(3, batch.calls.length);
+        assertEquals(binary ? null : "put", batch.calls[0].methodName);
+        assertEquals("get", batch.calls[1].methodName);
+        assertEquals(new Date(1), batch.calls[0].args[1]);
+        assertEquals("key", batch.calls[1].args[0]);
+        assertTrue(batch.calls[2].args == null || batch.calls[2].args.length == 0);
+
+        Exception error = new IllegalStateException("failed");
+        payload = payload(server.resultsFrame(1, binary, format, null, "a", error, null, null, new Date(2)));
+        Object[] values = client.readResults(payload, format, 3);
+        assertEquals(6, values.length);
+        assertEquals("a", values[1]);
+        assertEquals("failed", ((Exception)values[2]).getMessage());
+        assertEquals(new Date(2), values[5]);
+
+        // a batch which failed as a whole is answered with a single error
+        payload = payload(server.resultFrame(2, binary, format, error, null));
+        values = client.readResults(payload, format, 3);
+        assertEquals(2, values.length);
+        assertEquals("failed", ((Exception)values[0]).getMessage());
+        assertThrows(StreamCorruptedException.class, () -> client.readResults(
+            payload(server.resultsFrame(3, binary, format, null, "a", null, "b")), format, 3));
+    }
+
+    @Test
+    public void testBatchBinary() throws Exception {
+        testBatch(true);
+    }
+
+    @Test
+    public void testBatchJava() throws Exception {
+        testBatch(false);
+    }
+
+    @Test
+    public void testChunk() throws Exception {
+        Method method = StreamService.class.getMethod("range", int.class);
+        RemoteEndpoint endpoint = new RemoteEndpoint(1, 42, Config.DEFAULT_SERIALIZER, new HashMap<>());
+        CallFormat format = format(null);
+        CallCodec client = new CallCodec();
+        CallCodec server = new CallCodec();
+        assertTrue(Protocol.isStream(payload(client.callFrame(1, endpoint, format, method, new Object[] { 1 }, 0))));
+
+        byte[] payload = payload(server.chunkFrame(1, true, format, Protocol.CHUNK_MORE, new Object[] { "a", new Date(1) }));
+        Protocol.Chunk chunk = client.readChunk(payload, format);
+        assertEquals(Protocol.CHUNK_MORE, chunk.status);
+        assertEquals(Arrays.asList("a", new Date(1)), Arrays.asList(chunk.elements));
+
+        payload = payload(server.chunkFrame(1, false, format, Protocol.CHUNK_ERROR, new Object[] { new Exception("failed") }));
+        chunk = client.readChunk(payload, format);
+        assertEquals(Protocol.CHUNK_ERROR, chunk.status);
+        assertEquals("failed", ((Exception)chunk.elements[0]).getMessage());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.aries.rsa.provider.tcp.Protocol.FrameOutputStream;
+import org.apache.aries.rsa.provider.tcp.myservice.DTOType;
+import org.junit.Test;
+
+public class CompressionTest {
+
+    private static final int BENCHMARK_ITERATIONS = 200; // increase this manually for more stable numbers
+
+    private final CallFormat format = new CallFormat(true, null, getClass().getClassLoader(), null);
+
+    private static byte[] payload(ByteBuffer frame) {
+        return Arrays.copyOfRange(frame.array(), frame.position() + 4, frame.limit());
+    }
+
+    private ByteBuffer resultFrame(Object result) throws Exception {
+        FrameOutputStream frame = new CallCodec().resultFrame(1, true, format, null, result);
+        return frame.toFrame();
+    }
+
+    private static List<DTOType> dtos(int count) {
+        List<DTOType> dtos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DTOType dto = new DTOType();
+            dto.value = "value-" + i;
+            dtos.add(dto);
+        }
+        return dtos;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Compression compression = Compression.of(Compression.ALGORITHM_DEFLATE, 0);
+        ByteBuffer frame = resultFrame(dtos(100));
+        byte[] raw = payload(frame);
+        ByteBuffer compressed = compression.compress(frame);
+        assertTrue(compressed.remaining() < frame.remaining());
+        assertEquals(compressed.remaining() - 4, compressed.getInt(0));
+        byte[] payload = payload(compressed);
+        assertEquals(Protocol.callId(raw), Protocol.callId(payload)); // the header is readable as is
+        assertArrayEquals(raw, Compression.decompress(payload));
+        assertEquals(100, ((List<?>)new CallCodec().readResult(Compression.decompress(payload), format)[1]).size());
+    }
+
+    @Test
+    public void testConcurrentRoundTrips() throws Exception {
+        // more threads than pooled compressors, so that some are created and ended on the fly
+        Compression compression = Compression.of(Compression.ALGORITHM_DEFLATE, 0);
+        byte[] raw = payload(resultFrame(dtos(100)));
+        ExecutorService executor = Executors.newFixedThreadPool(4 * Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> Compression.decompress(payload(compression.compress(resultFrame(dtos(100)))))));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(raw, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotCompressed() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        ByteBuffer incompressible = resultFrame(random);
+        assertSame(incompressible, Compression.of(Compression.ALGORITHM_DEFLATE, 0).compress(incompressible));
+        ByteBuffer small = resultFrame("small");
+        assertSame(small, Compression.of(Compression.ALGORITHM_DEFLATE, 1024).compress(small));
+        ByteBuffer large = resultFrame(dtos(100));
+        assertSame(large, Compression.NONE.compress(large));
+        byte[] payload = payload(large);
+        assertSame(payload, Compression.decompress(payload));
+    }
+
+    @Test
+    public void testUnsupportedAlgorithm() {
+        assertSame(Compression.NONE, Compression.of((byte)99, 0));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        byte[] payload = payload(Compression.of(Compression.ALGORITHM_DEFLATE, 0).compress(resultFrame(dtos(100))));
+        byte[] truncated = Arrays.copyOf(payload, payload.length - 10);
+        assertThrows(StreamCorruptedException.class, () -> Compression.decompress(truncated));
+    }
+
+    /**
+     * Compares the size and encoding latency of a large result with and without compression.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Compression compression = Compression.of(Compression.ALGORITHM_DEFLATE, Config.DEFAULT_COMPRESSION_THRESHOLD);
+        List<DTOType> result = dtos(2000);
+        int rawBytes = resultFrame(result).remaining();
+        int compressedBytes = compression.compress(resultFrame(result)).remaining();
+
+        measure(Compression.NONE, result); // warm up
+        measure(compression, result);
+        long rawNanos = measure(Compression.NONE, result);
+        long compressedNanos = measure(compression, result);
+
+        System.out.println("raw: " + rawBytes + " bytes, " + rawNanos / 1000 + " us per round trip");
+        System.out.println("deflate: " + compressedBytes + " bytes, " + compressedNanos / 1000 + " us per round trip");
+        assertTrue(compressedBytes < rawBytes / 2);
+    }
+
+    /**
+     * Returns the average time it takes to encode, (de)compress and decode a result.
+     */
+    private long measure(Compression compression, Object result) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            byte[] payload = payload(compression.compress(resultFrame(result)));
+            new CallCodec().readResult(Compression.decompress(payload), format);
+        }
+        return (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+    }
+}
@@ -77,6 +77,61 @@ public class ConfigTest {
         getParser().getTimeoutMillis();
     }
 
+    @Test
+    public void testFormat() {
+        Assert.assertTrue(getParser().isBinaryFormat());
+        props.put(Config.FORMAT, Config.FORMAT_JAVA);
+        Assert.assertFalse(getParser().isBinaryFormat());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testFormatInvalid() {
+        props.put(Config.FORMAT, "xml");
+        getParser().isBinaryFormat();
+    }
+
+    @Test
+    public void testExecutor() {
+        Assert.assertFalse(getParser().isVirtualThreads());
+        Assert.assertEquals(Config.DEFAULT_MAX_CONCURRENCY, getParser().getMaxConcurrency());
+        props.put(Config.EXECUTOR, Config.EXECUTOR_VIRTUAL);
+        props.put(Config.MAX_CONCURRENCY, 5000);
+        Assert.assertTrue(getParser().isVirtualThreads());
+        Assert.assertEquals(5000, getParser().getMaxConcurrency());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testExecutorInvalid() {
+        props.put(Config.EXECUTOR, "green");
+        getParser().isVirtualThreads();
+    }
+
+    @Test
+    public void testAdmission() {
+        Assert.assertEquals(Config.DEFAULT_QUEUE_SIZE, getParser().getQueueSize());
+        Assert.assertEquals(0, getParser().getEndpointConcurrency());
+        props.put(Config.QUEUE_SIZE, "0");
+        props.put(Config.ENDPOINT_CONCURRENCY, 20);
+        Assert.assertEquals(0, getParser().getQueueSize());
+        Assert.assertEquals(20, getParser().getEndpointConcurrency());
+    }
+
+    @Test
+    public void testCompression() {
+        Assert.assertSame(Compression.NONE, getParser().getCompression());
+        props.put(Config.COMPRESSION, Config.COMPRESSION_DEFLATE);
+        Assert.assertEquals(Compression.ALGORITHM_DEFLATE, getParser().getCompression().algorithm);
+        Assert.assertEquals(Config.DEFAULT_COMPRESSION_THRESHOLD, getParser().getCompression().threshold);
+        props.put(Config.COMPRESSION_THRESHOLD, 100);
+        Assert.assertEquals(100, getParser().getCompression().threshold);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCompressionInvalid() {
+        props.put(Config.COMPRESSION, "lz4");
+        getParser().getCompression();
+    }
+
     private Config getParser() {
         return new Config(new EndpointDescription(props).getProperties());
     }
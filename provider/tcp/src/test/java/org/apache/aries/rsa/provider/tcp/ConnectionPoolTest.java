@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    private ServerSocket server;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(server.accept());
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    private ConnectionPool.Connection connect() throws IOException {
+        Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        socket.setSoTimeout(1000);
+        return new ConnectionPool.Connection(socket);
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && accepted.size() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, accepted.size());
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 0, 0, null)) {
+            ConnectionPool.Connection conn = pool.acquire();
+            pool.release(conn, true);
+            assertSame(conn, pool.acquire());
+            pool.release(conn, false); // e.g. after an error
+            assertTrue(conn.socket.isClosed());
+            ConnectionPool.Connection conn2 = pool.acquire();
+            assertNotSame(conn, conn2);
+            pool.release(conn2, true);
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsFailFast() throws IOException {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 2, 0, 0, 0, null)) {
+            ConnectionPool.Connection conn1 = pool.acquire();
+            ConnectionPool.Connection conn2 = pool.acquire();
+            assertThrows(IOException.class, pool::acquire);
+            pool.release(conn1, true);
+            assertSame(conn1, pool.acquire());
+            pool.release(conn1, true);
+            pool.release(conn2, true);
+            assertEquals(2, pool.size());
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsWait() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 1, 5000, 0, 0, null)) {
+            ConnectionPool.Connection conn = pool.acquire();
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            executor.schedule(() -> pool.release(conn, true), 100, TimeUnit.MILLISECONDS);
+            executor.shutdown();
+            assertSame(conn, pool.acquire()); // waits for the release
+            pool.release(conn, true);
+        }
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 1, 100, 0, 0, null)) {
+            ConnectionPool.Connection conn = pool.acquire();
+            long start = System.nanoTime();
+            assertThrows(IOException.class, pool::acquire);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+            pool.release(conn, true);
+        }
+    }
+
+    @Test
+    public void testMinIdle() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 2, 0, null)) {
+            pool.maintain();
+            assertEquals(2, pool.size());
+            awaitAccepted(2);
+            ConnectionPool.Connection conn = pool.acquire();
+            pool.maintain(); // replaces the acquired connection
+            assertEquals(3, pool.size());
+            pool.release(conn, true);
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 0, 50, null)) {
+            ConnectionPool.Connection conn = pool.acquire();
+            pool.release(conn, true);
+            pool.maintain();
+            assertEquals(1, pool.size());
+            Thread.sleep(100);
+            pool.maintain();
+            assertEquals(0, pool.size());
+            assertTrue(conn.socket.isClosed());
+        }
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 1, 0, null)) {
+            pool.maintain();
+            awaitAccepted(1);
+            ConnectionPool.Connection conn = pool.acquire();
+            pool.release(conn, true);
+            accepted.get(0).close(); // the server closes the idle connection
+            Thread.sleep(50);
+            pool.maintain();
+            assertTrue(conn.socket.isClosed());
+            assertEquals(1, pool.size()); // replaced by a new connection
+            conn = pool.acquire();
+            assertFalse(conn.socket.isClosed());
+            pool.release(conn, true);
+        }
+    }
+
+    @Test
+    public void testBackgroundMaintenance() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 1, 50, scheduler)) {
+            awaitAccepted(1); // opened eagerly
+            Thread.sleep(200);
+            assertTrue(accepted.size() > 1); // the idle connection expired and was replaced
+            assertEquals(1, pool.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPingPurgesDeadServer() throws Exception {
+        // the accepted connections stay open, but are never answered (as if the server vanished)
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 0, 0, 50, null)) {
+            ConnectionPool.Connection conn1 = pool.acquire();
+            ConnectionPool.Connection conn2 = pool.acquire();
+            pool.release(conn1, true);
+            pool.release(conn2, true);
+            pool.maintain();
+            assertEquals(2, pool.size()); // not idle long enough to be pinged
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            pool.maintain();
+            assertEquals(0, pool.size());
+            assertTrue(conn1.socket.isClosed());
+            assertTrue(conn2.socket.isClosed());
+            // only the first ping is waited for
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsAvailableDuringValidation() throws Exception {
+        // the server never answers, so each ping takes the whole interval
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 2, 0, 0, 0, 300, null)) {
+            ConnectionPool.Connection conn1 = pool.acquire();
+            ConnectionPool.Connection conn2 = pool.acquire();
+            pool.release(conn1, true);
+            pool.release(conn2, true);
+            Thread.sleep(350);
+            CompletableFuture<Void> maintenance = CompletableFuture.runAsync(pool::maintain);
+            for (int i = 0; i < 100 && pool.size() == 2; i++) {
+                Thread.sleep(5); // until the connection being pinged is taken out of the pool
+            }
+            assertEquals(1, pool.size());
+            // only the least recently used connection is being pinged, the other one is available
+            long start = System.nanoTime();
+            ConnectionPool.Connection conn = pool.acquire();
+            assertSame(conn2, conn);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+            // the limit is reached only due to the connection being pinged, which is waited for
+            ConnectionPool.Connection other = pool.acquire();
+            assertNotSame(conn1, other);
+            maintenance.get();
+            assertTrue(conn1.socket.isClosed());
+            pool.release(conn, true);
+            pool.release(other, true);
+            assertEquals(2, pool.size());
+        }
+    }
+
+    @Test
+    public void testPingAnswered() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 0, 0, 0, 0, 50, null)) {
+            ConnectionPool.Connection conn = pool.acquire();
+            pool.release(conn, true);
+            awaitAccepted(1);
+            Socket socket = accepted.get(0);
+            Thread responder = new Thread(() -> {
+                try {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    while (true) {
+                        byte[] payload = Protocol.readFrame(in);
+                        Protocol.writeFrame(out, Protocol.pingFrame(Protocol.callId(payload)));
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            responder.setDaemon(true);
+            responder.start();
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(100);
+                pool.maintain();
+                assertEquals(1, pool.size());
+                assertFalse(conn.socket.isClosed());
+            }
+            assertSame(conn, pool.acquire());
+            pool.release(conn, true);
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.aries.rsa.provider.tcp;
 import org.junit.Test;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.function.Function;
 
 import static org.junit.Assert.*;
@@ -128,4 +129,52 @@ public class MethodInvokerTest {
         assertThrows(NoSuchMethodException.class, () -> invoker.invoke("f", new Object[]{ "" }));
     }
 
+    @Test
+    public void testOverloadedMostSpecific() throws Exception {
+        class Tester {
+            public String f(Object o) { return "object"; }
+            public String f(CharSequence s) { return "chars"; }
+            public String f(String s) { return "string"; }
+        }
+        MethodInvoker invoker = new MethodInvoker(new Tester());
+        // invoke each signature twice to cover the memoized resolution
+        for (int i = 0; i < 2; i++) {
+            assertEquals("string", invoker.invoke("f", new Object[]{ "" }));
+            assertEquals("chars", invoker.invoke("f", new Object[]{ new StringBuilder() }));
+            assertEquals("object", invoker.invoke("f", new Object[]{ 1 }));
+        }
+    }
+
+    @Test
+    public void testPrimitiveParamsAndVoidReturn() throws Exception {
+        class Tester {
+            long total;
+            public void add(long l, boolean negate) { total += negate ? -l : l; }
+            public long getTotal() { return total; }
+        }
+        Tester tester = new Tester();
+        MethodInvoker invoker = new MethodInvoker(tester);
+        assertNull(invoker.invoke("add", new Object[]{ 5L, false }));
+        assertNull(invoker.invoke("add", new Object[]{ 2L, true }));
+        assertEquals(3L, invoker.invoke("getTotal", null));
+        assertThrows(NoSuchMethodException.class, () -> invoker.invoke("add", new Object[]{ 5, false }));
+    }
+
+    @Test
+    public void testInvokeById() throws Exception {
+        class Tester implements Function<String, Integer> {
+            public int f(String s) { return s == null ? 0 : s.length(); }
+
+            @Override
+            public Integer apply(String s) { return f(s); }
+        }
+        MethodInvoker invoker = new MethodInvoker(new Tester(), Tester.class.getInterfaces());
+        int id = Arrays.asList(invoker.getSignatures()).indexOf("apply(java.lang.Object,)");
+        assertEquals(3, invoker.invoke(id, new Object[]{ "abc" }));
+        assertThrows(NoSuchMethodException.class, () -> invoker.invoke(id, new Object[]{ "abc", "def" }));
+        assertThrows(NoSuchMethodException.class, () -> invoker.invoke(-1, new Object[]{ "abc" }));
+        assertThrows(NoSuchMethodException.class,
+            () -> invoker.invoke(invoker.getSignatures().length, new Object[]{ "abc" }));
+    }
+
 }
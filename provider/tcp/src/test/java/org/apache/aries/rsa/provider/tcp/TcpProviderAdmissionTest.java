@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.aries.rsa.provider.tcp.batch.Batch;
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceException;
+
+public class TcpProviderAdmissionTest {
+
+    private static final int SLOW = 500;
+
+    private TcpProvider provider;
+    private Endpoint ep;
+    private ImportedService importedService;
+    private MyService proxy;
+
+    private void export(Map<String, Object> props) throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Class<?>[] interfaces = new Class[] {MyService.class};
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", 5000);
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new MyServiceImpl("service1"), bc, props, interfaces);
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, interfaces, ep.description());
+        proxy = (MyService)importedService.getService();
+    }
+
+    @After
+    public void close() throws IOException {
+        importedService.close();
+        ep.close();
+    }
+
+    private TcpServer server() {
+        return provider.getServer(Integer.parseInt(ep.description().getProperties().get(Config.PORT).toString()));
+    }
+
+    private static void assertRejected(Runnable call) {
+        ServiceException e = assertThrows(ServiceException.class, call::run);
+        assertEquals(ServiceException.REMOTE, e.getType());
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void testEndpointConcurrency() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.ENDPOINT_CONCURRENCY, 1);
+        export(props);
+        CompletableFuture<Void> slow = CompletableFuture.runAsync(() -> proxy.callSlow(SLOW));
+        Thread.sleep(SLOW / 5);
+        assertRejected(() -> proxy.echo("rejected"));
+        assertEquals(1, server().getRejectedCalls());
+        slow.get();
+        assertEquals("accepted", proxy.echo("accepted"));
+    }
+
+    @Test
+    public void testQueueSize() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.THREADS, 1);
+        props.put(Config.QUEUE_SIZE, 1);
+        export(props);
+        CompletableFuture<Void> running = CompletableFuture.runAsync(() -> proxy.callSlow(SLOW));
+        Thread.sleep(SLOW / 5);
+        CompletableFuture<Void> queued = CompletableFuture.runAsync(() -> proxy.callSlow(1));
+        Thread.sleep(SLOW / 5);
+        assertEquals(1, server().getQueuedCalls());
+        assertRejected(() -> proxy.echo("rejected"));
+        assertEquals(1, server().getRejectedCalls());
+        running.get();
+        queued.get();
+        assertEquals(0, server().getQueuedCalls());
+        assertEquals("accepted", proxy.echo("accepted"));
+    }
+
+    @Test
+    public void testParallelBatchIsAdmittedPerCall() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.THREADS, 4);
+        props.put(Config.QUEUE_SIZE, 3);
+        props.put(Config.ENDPOINT_CONCURRENCY, 3);
+        export(props);
+        Batch<MyService> tooLarge = Batch.of(proxy).parallel(true);
+        for (int i = 0; i < 4; i++) {
+            tooLarge.call(s -> s.echo("rejected"));
+        }
+        assertRejected(tooLarge::execute);
+        assertEquals(1, server().getRejectedCalls());
+
+        Batch<MyService> batch = Batch.of(proxy).parallel(true);
+        for (int i = 0; i < 3; i++) {
+            batch.run(s -> s.callSlow(SLOW));
+        }
+        CompletionStage<Void> running = batch.send();
+        Thread.sleep(SLOW / 5);
+        assertRejected(() -> proxy.echo("rejected")); // each of the batch's calls is active
+        assertEquals(2, server().getRejectedCalls());
+        running.toCompletableFuture().get();
+        assertEquals(0, server().getQueuedCalls());
+        assertEquals("accepted", proxy.echo("accepted"));
+    }
+
+    @Test
+    public void testSequentialBatchIsAdmittedAsOneCall() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.ENDPOINT_CONCURRENCY, 1);
+        export(props);
+        Batch<MyService> batch = Batch.of(proxy);
+        CompletableFuture<String> first = batch.call(s -> s.echo("first"));
+        CompletableFuture<String> second = batch.call(s -> s.echo("second"));
+        batch.execute();
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+        assertEquals(0, server().getRejectedCalls());
+    }
+}
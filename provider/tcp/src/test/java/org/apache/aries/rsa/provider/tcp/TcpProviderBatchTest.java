@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.aries.rsa.provider.tcp.batch.Batch;
+import org.apache.aries.rsa.provider.tcp.myservice.ExpectedTestException;
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceException;
+
+public class TcpProviderBatchTest {
+
+    private static final int SLOW = 300;
+
+    private TcpProvider provider;
+    private Endpoint ep;
+    private ImportedService importedService;
+    private MyService proxy;
+
+    private void export(Map<String, Object> props) throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Class<?>[] interfaces = new Class[] {MyService.class};
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", 5000);
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new MyServiceImpl("service1"), bc, props, interfaces);
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, interfaces, ep.description());
+        proxy = (MyService)importedService.getService();
+    }
+
+    @After
+    public void close() throws IOException {
+        importedService.close();
+        ep.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        export(new HashMap<>());
+        Batch<MyService> batch = Batch.of(proxy);
+        CompletableFuture<String> id = batch.call(MyService::getId);
+        CompletableFuture<String> echo = batch.call(s -> s.echo("hello"));
+        CompletableFuture<Void> exception = batch.run(MyService::callException);
+        CompletableFuture<String> after = batch.call(s -> s.echo("after"));
+        assertEquals(4, batch.size());
+        batch.execute();
+        assertEquals("service1", id.get());
+        assertEquals("hello", echo.get());
+        ExecutionException e = assertThrows(ExecutionException.class, exception::get);
+        assertTrue(e.getCause() instanceof ExpectedTestException);
+        assertEquals("after", after.get()); // the failed call did not abort the batch
+        assertThrows(IllegalStateException.class, batch::send);
+    }
+
+    @Test
+    public void testBatchJavaFormat() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.FORMAT, Config.FORMAT_JAVA);
+        export(props);
+        Batch<MyService> batch = Batch.of(proxy);
+        CompletableFuture<String> first = batch.call(s -> s.echo("first"));
+        CompletableFuture<String> second = batch.call(s -> s.echo("second"));
+        batch.send().toCompletableFuture().get();
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+    }
+
+    @Test
+    public void testParallelBatch() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.THREADS, 4);
+        export(props);
+        Batch<MyService> batch = Batch.of(proxy).parallel(true);
+        for (int i = 0; i < 4; i++) {
+            batch.run(s -> s.callSlow(SLOW));
+        }
+        long start = System.currentTimeMillis();
+        batch.execute();
+        assertTrue(System.currentTimeMillis() - start < 3 * SLOW); // not 4 * SLOW as a sequential batch
+    }
+
+    @Test
+    public void testRejectedBatch() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.ENDPOINT_CONCURRENCY, 1);
+        export(props);
+        CompletableFuture<Void> slow = CompletableFuture.runAsync(() -> proxy.callSlow(SLOW));
+        Thread.sleep(SLOW / 5);
+        Batch<MyService> batch = Batch.of(proxy);
+        CompletableFuture<String> first = batch.call(s -> s.echo("first"));
+        CompletableFuture<String> second = batch.call(s -> s.echo("second"));
+        ServiceException e = assertThrows(ServiceException.class, batch::execute);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        for (CompletableFuture<String> result : Arrays.asList(first, second)) {
+            ExecutionException ee = assertThrows(ExecutionException.class, result::get);
+            assertTrue(ee.getCause() instanceof ServiceException);
+        }
+        slow.get();
+    }
+
+    @Test
+    public void testInvalidCalls() throws Exception {
+        export(new HashMap<>());
+        assertThrows(IllegalArgumentException.class, () -> Batch.of(new MyServiceImpl("local")));
+        Batch<MyService> batch = Batch.of(proxy);
+        assertThrows(IllegalStateException.class, () -> batch.call(s -> "nothing"));
+        assertThrows(IllegalStateException.class, () -> batch.call(s -> s.echo(s.getId())));
+        assertThrows(IllegalArgumentException.class, () -> batch.call(s -> s.callAsyncCompletionStage(1)));
+        assertThrows(IllegalArgumentException.class, () -> batch.call(Object::toString));
+        assertEquals(0, batch.size());
+        batch.execute(); // nothing to send
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongSupplier;
+
+import org.apache.aries.rsa.provider.tcp.batch.Batch;
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceException;
+
+public class TcpProviderDeadlineTest {
+
+    private static final int TIMEOUT = 300;
+    private static final int SLOW = 5000;
+
+    private TcpProvider provider;
+    private Endpoint ep;
+    private ImportedService importedService;
+    private MyService proxy;
+
+    private void export(boolean multiplex) throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Class<?>[] interfaces = new Class[] {MyService.class};
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", TIMEOUT);
+        props.put(Config.THREADS, 1);
+        props.put(Config.MULTIPLEX, multiplex);
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new MyServiceImpl("service1"), bc, props, interfaces);
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, interfaces, ep.description());
+        proxy = (MyService)importedService.getService();
+    }
+
+    @After
+    public void close() throws IOException {
+        importedService.close();
+        ep.close();
+    }
+
+    private TcpServer server() {
+        return provider.getServer(Integer.parseInt(ep.description().getProperties().get(Config.PORT).toString()));
+    }
+
+    private static void awaitCount(long expected, LongSupplier count) throws InterruptedException {
+        for (int i = 0; i < 100 && count.getAsLong() < expected; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, count.getAsLong());
+    }
+
+    private void assertTimedOutCallIsInterrupted() throws Exception {
+        // the only worker thread would be occupied for much longer than the timeout
+        ServiceException e = assertThrows(ServiceException.class, () -> proxy.callSlow(SLOW));
+        assertEquals(ServiceException.REMOTE, e.getType());
+        awaitCount(1, server()::getCancelledCalls);
+        assertEquals("free", proxy.echo("free"));
+    }
+
+    @Test
+    public void testTimedOutCallIsInterrupted() throws Exception {
+        export(true);
+        assertTimedOutCallIsInterrupted();
+    }
+
+    @Test
+    public void testTimedOutPooledCallIsInterrupted() throws Exception {
+        export(false); // the timed out connection is closed, which cancels its calls
+        assertTimedOutCallIsInterrupted();
+    }
+
+    @Test
+    public void testCancelledFuture() throws Exception {
+        export(true);
+        CompletableFuture<String> future = proxy.callAsyncCompletionStage(SLOW).toCompletableFuture();
+        Thread.sleep(TIMEOUT / 3);
+        future.cancel(false);
+        awaitCount(1, server()::getCancelledCalls);
+    }
+
+    @Test
+    public void testExpiredCallIsSkipped() throws Exception {
+        export(true);
+        // the calls of a batch are not interrupted, so this one occupies the only worker thread
+        Batch<MyService> batch = Batch.of(proxy);
+        CompletableFuture<Void> slow = batch.run(s -> s.callSlow(2 * TIMEOUT));
+        CompletableFuture<Void> skipped = batch.run(s -> s.callSlow(SLOW));
+        batch.send();
+        Thread.sleep(TIMEOUT / 3);
+        assertThrows(ServiceException.class, () -> proxy.echo("expired"));
+        ExecutionException e = assertThrows(ExecutionException.class, skipped::get);
+        assertTrue(e.getCause() instanceof ServiceException);
+        assertTrue(slow.isCompletedExceptionally());
+        // both the queued call and the rest of the batch expired while waiting
+        awaitCount(2, server()::getExpiredCalls);
+        assertEquals(0, server().getQueuedCalls());
+        assertEquals("free", proxy.echo("free"));
+    }
+}
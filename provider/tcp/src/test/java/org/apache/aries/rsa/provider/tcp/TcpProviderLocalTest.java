@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.aries.rsa.provider.tcp.myservice.DTOType;
+import org.apache.aries.rsa.provider.tcp.myservice.ExpectedTestException;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceException;
+import org.osgi.service.remoteserviceadmin.EndpointDescription;
+import org.osgi.service.remoteserviceadmin.RemoteConstants;
+
+public class TcpProviderLocalTest {
+
+    private static final int BENCHMARK_ITERATIONS = 500; // increase this manually for more stable numbers
+    private static final Class<?>[] INTERFACES = new Class[] {DTOService.class};
+
+    public interface DTOService {
+
+        DTOType update(DTOType dto);
+
+        List<DTOType> echo(List<DTOType> dtos);
+
+        DTOType last();
+
+        Stream<DTOType> stream(int count);
+
+        void fail();
+    }
+
+    public static class DTOServiceImpl implements DTOService {
+
+        volatile DTOType last;
+
+        @Override
+        public DTOType update(DTOType dto) {
+            dto.value = "updated";
+            last = dto;
+            return dto;
+        }
+
+        @Override
+        public List<DTOType> echo(List<DTOType> dtos) {
+            return dtos;
+        }
+
+        @Override
+        public DTOType last() {
+            return last;
+        }
+
+        @Override
+        public Stream<DTOType> stream(int count) {
+            return dtos(count).stream();
+        }
+
+        @Override
+        public void fail() {
+            throw new ExpectedTestException();
+        }
+    }
+
+    private TcpProvider provider;
+    private BundleContext bc;
+    private DTOServiceImpl service;
+    private Endpoint ep;
+    private final List<ImportedService> importedServices = new ArrayList<>();
+
+    @Before
+    public void export() throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {DTOService.class.getName()});
+        props.put(RemoteConstants.ENDPOINT_FRAMEWORK_UUID, "framework1");
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        bc = EasyMock.mock(BundleContext.class);
+        service = new DTOServiceImpl();
+        ep = provider.exportService(service, bc, props, INTERFACES);
+    }
+
+    @After
+    public void close() throws IOException {
+        for (ImportedService importedService : importedServices) {
+            importedService.close();
+        }
+        if (ep != null) {
+            ep.close();
+        }
+        provider.deactivate();
+    }
+
+    private DTOService importEndpoint(String localCalls) {
+        return importEndpoint(ep.description(), localCalls);
+    }
+
+    private DTOService importEndpoint(EndpointDescription description, String localCalls) {
+        Map<String, Object> props = new HashMap<>(description.getProperties());
+        props.put(Config.LOCAL_CALLS, localCalls);
+        ImportedService importedService = provider.importEndpoint(DTOService.class.getClassLoader(), bc, INTERFACES,
+            new EndpointDescription(props));
+        importedServices.add(importedService);
+        return (DTOService)importedService.getService();
+    }
+
+    private static DTOType dto(String value) {
+        DTOType dto = new DTOType();
+        dto.value = value;
+        return dto;
+    }
+
+    private static List<DTOType> dtos(int count) {
+        List<DTOType> dtos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            dtos.add(dto("value-" + i));
+        }
+        return dtos;
+    }
+
+    @Test
+    public void testSerialize() {
+        assertByValue(importEndpoint(Config.LOCAL_CALLS_SERIALIZE));
+        assertEquals(0, provider.getClientCount()); // no connection was used
+    }
+
+    @Test
+    public void testCopy() {
+        assertByValue(importEndpoint(Config.LOCAL_CALLS_COPY));
+        assertEquals(0, provider.getClientCount());
+    }
+
+    @Test
+    public void testNone() {
+        assertByValue(importEndpoint(Config.LOCAL_CALLS_NONE));
+        assertEquals(1, provider.getClientCount());
+    }
+
+    @Test
+    public void testOtherFramework() {
+        // an endpoint with the same id exported by a framework in another JVM is invoked remotely
+        Map<String, Object> props = new HashMap<>(ep.description().getProperties());
+        props.put(RemoteConstants.ENDPOINT_FRAMEWORK_UUID, "framework2");
+        importEndpoint(new EndpointDescription(props), Config.LOCAL_CALLS_COPY).update(dto("value"));
+        assertEquals(1, provider.getClientCount());
+    }
+
+    private void assertByValue(DTOService proxy) {
+        DTOType dto = dto("value");
+        DTOType result = proxy.update(dto);
+        assertEquals("value", dto.value); // the argument was copied
+        assertEquals("updated", result.value);
+        assertNotSame(service.last, result); // and so was the result
+        result.value = "changed";
+        assertEquals("updated", proxy.last().value);
+        assertEquals("value-9", proxy.echo(dtos(10)).get(9).value);
+        assertEquals(5, proxy.stream(5).filter(d -> d.value.startsWith("value-")).count());
+        assertThrows(ExpectedTestException.class, proxy::fail);
+    }
+
+    @Test
+    public void testUnexported() throws IOException {
+        DTOService proxy = importEndpoint(Config.LOCAL_CALLS_COPY);
+        ep.close();
+        ep = null;
+        assertThrows(ServiceException.class, () -> proxy.update(dto("value")));
+    }
+
+    /**
+     * Compares the latency of calls over a connection, and of local calls whose
+     * arguments and results are serialized or deep copied.
+     */
+    @Test
+    public void testBenchmark() {
+        List<DTOType> dtos = dtos(100);
+        DTOService tcp = importEndpoint(Config.LOCAL_CALLS_NONE);
+        DTOService serialize = importEndpoint(Config.LOCAL_CALLS_SERIALIZE);
+        DTOService copy = importEndpoint(Config.LOCAL_CALLS_COPY);
+
+        measure(tcp, dtos); // warm up
+        measure(serialize, dtos);
+        measure(copy, dtos);
+        long tcpNanos = measure(tcp, dtos);
+        long serializeNanos = measure(serialize, dtos);
+        long copyNanos = measure(copy, dtos);
+
+        System.out.println("tcp: " + tcpNanos / 1000 + " us per call");
+        System.out.println("local (serialize): " + serializeNanos / 1000 + " us per call");
+        System.out.println("local (copy): " + copyNanos / 1000 + " us per call");
+        assertTrue(copyNanos < tcpNanos);
+    }
+
+    /**
+     * Returns the average time it takes to call a method with a list of DTOs which it returns.
+     */
+    private static long measure(DTOService proxy, List<DTOType> dtos) {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            proxy.echo(dtos);
+        }
+        return (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Runs all provider tests with multiplexed connections.
+ */
+public class TcpProviderMultiplexTest extends TcpProviderTest {
+
+    @Override
+    protected void addProperties(Map<String, Object> props) {
+        props.put(Config.MULTIPLEX, "true");
+        props.put(Config.MULTIPLEX_CONNECTIONS, 1);
+    }
+
+    @Test
+    public void testFastCallNotBlockedBySlowCall() throws Exception {
+        assertEquals("init", myServiceProxy.echo("init")); // open the single shared connection
+        CompletableFuture<Void> slow = CompletableFuture.runAsync(() -> myServiceProxy.callSlow(TIMEOUT / 2));
+        Thread.sleep(10);
+        assertEquals("fast", myServiceProxy.echo("fast"));
+        assertFalse(slow.isDone());
+        slow.get();
+    }
+}
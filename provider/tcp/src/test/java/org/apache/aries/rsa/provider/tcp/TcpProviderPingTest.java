@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+public class TcpProviderPingTest {
+
+    private static final int TIMEOUT = 2000;
+    private static final int PING_INTERVAL = 50;
+
+    private TcpProvider provider;
+    private Endpoint ep;
+    private ImportedService importedService;
+    private MyService proxy;
+
+    private void export(boolean multiplex) throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Class<?>[] interfaces = new Class[] {MyService.class};
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", TIMEOUT);
+        props.put(Config.MULTIPLEX, multiplex);
+        props.put(Config.PING_INTERVAL, PING_INTERVAL);
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new MyServiceImpl("service1"), bc, props, interfaces);
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, interfaces, ep.description());
+        proxy = (MyService)importedService.getService();
+    }
+
+    @After
+    public void close() throws IOException {
+        if (importedService != null) {
+            importedService.close();
+        }
+        ep.close();
+    }
+
+    private void assertConnectionsSurvivePings() throws Exception {
+        assertEquals("first", proxy.echo("first"));
+        proxy.callSlow(6 * PING_INTERVAL); // pings are answered while the call executes
+        Thread.sleep(6 * PING_INTERVAL); // and while the connection is idle
+        assertEquals("second", proxy.echo("second"));
+    }
+
+    @Test
+    public void testSharedConnectionsSurvivePings() throws Exception {
+        export(true);
+        assertConnectionsSurvivePings();
+    }
+
+    @Test
+    public void testPooledConnectionsSurvivePings() throws Exception {
+        export(false);
+        assertConnectionsSurvivePings();
+    }
+
+    @Test
+    public void testServerClosesSilentConnection() throws Exception {
+        export(true);
+        int port = Integer.parseInt(ep.description().getProperties().get(Config.PORT).toString());
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(TIMEOUT);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // promises pings, but never sends any (as if the client's host vanished)
+            Protocol.handshake(out, in, Compression.NONE, PING_INTERVAL);
+            long start = System.currentTimeMillis();
+            assertEquals(-1, in.read());
+            assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        }
+    }
+}
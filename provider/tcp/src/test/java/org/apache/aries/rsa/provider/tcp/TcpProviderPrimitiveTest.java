@@ -28,6 +28,7 @@ import static org.hamcrest.core.StringStartsWith.startsWith;
 import static org.osgi.framework.Version.parseVersion;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -115,6 +116,24 @@ public class TcpProviderPrimitiveTest {
         Assert.assertArrayEquals(new byte[]{1}, myServiceProxy.callByteAr(new byte[]{1}));
     }
 
+    @Test
+    public void testLargeByteAr() {
+        byte[] bytes = new byte[4 * 1024 * 1024 + 1];
+        Arrays.fill(bytes, (byte) 7);
+        Assert.assertArrayEquals(bytes, myServiceProxy.callByteAr(bytes));
+    }
+
+    @Test
+    public void testByteBuffer() {
+        Assert.assertEquals(ByteBuffer.wrap(new byte[]{1, 2}), myServiceProxy.callByteBuffer(ByteBuffer.wrap(new byte[]{0, 1, 2}, 1, 2)));
+        ByteBuffer large = ByteBuffer.allocateDirect(1024 * 1024);
+        for (int i = 0; i < large.capacity(); i++) {
+            large.put(i, (byte) i);
+        }
+        Assert.assertEquals(large, myServiceProxy.callByteBuffer(large));
+        Assert.assertEquals(0, large.position()); // not consumed by the call
+    }
+
     @Test
     public void testVersion() {
         assertThat(myServiceProxy.callVersion(parseVersion("1.0.0")), equalTo(parseVersion("1.0.0")));
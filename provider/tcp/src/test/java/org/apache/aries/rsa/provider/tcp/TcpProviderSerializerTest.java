@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.provider.tcp.ser.BasicObjectInputStream;
+import org.apache.aries.rsa.provider.tcp.ser.BasicObjectOutputStream;
+import org.apache.aries.rsa.provider.tcp.serializer.Serializer;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Runs all provider tests with objects written by a registered serializer.
+ */
+public class TcpProviderSerializerTest extends TcpProviderTest {
+
+    private static final AtomicInteger written = new AtomicInteger();
+
+    static class TestSerializer implements Serializer {
+
+        @Override
+        public String name() {
+            return "test";
+        }
+
+        @Override
+        public void writeObjects(OutputStream out, Object[] objects) throws IOException {
+            written.addAndGet(objects.length);
+            BasicObjectOutputStream oos = new BasicObjectOutputStream(out);
+            for (Object o : objects) {
+                oos.writeObject(o);
+            }
+            oos.flush();
+        }
+
+        @Override
+        public Object[] readObjects(InputStream in, int count, ClassLoader loader)
+                throws IOException, ClassNotFoundException {
+            BasicObjectInputStream ois = new BasicObjectInputStream(in);
+            ois.addClassLoader(loader);
+            Object[] objects = new Object[count];
+            for (int i = 0; i < count; i++) {
+                objects[i] = ois.readObject();
+            }
+            return objects;
+        }
+    }
+
+    @Override
+    protected TcpProvider createProvider() {
+        TcpProvider provider = super.createProvider();
+        provider.addSerializer(new TestSerializer());
+        return provider;
+    }
+
+    @Override
+    protected void addProperties(Map<String, Object> props) {
+        props.put(Config.SERIALIZER, "test");
+    }
+
+    @Test
+    public void testSerializerUsed() {
+        int before = written.get();
+        myServiceProxy.callWithList(Collections.singletonList("a"));
+        assertTrue(written.get() > before);
+    }
+
+    @Test
+    public void testUnknownSerializer() {
+        TcpProvider provider = createProvider();
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put(Config.SERIALIZER, "unknown");
+        assertThrows(IllegalArgumentException.class, () -> provider.exportService(new MyServiceImpl("service"),
+            EasyMock.mock(BundleContext.class), props, new Class[] {MyService.class}));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.util.Map;
+
+/**
+ * Runs the streaming tests with chunks encoded using only Java serialization, and compressed.
+ */
+public class TcpProviderStreamJavaFormatTest extends TcpProviderStreamTest {
+
+    @Override
+    protected void addProperties(Map<String, Object> props) {
+        props.put(Config.FORMAT, Config.FORMAT_JAVA);
+        props.put(Config.COMPRESSION, Config.COMPRESSION_DEFLATE);
+        props.put(Config.COMPRESSION_THRESHOLD, 0);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.aries.rsa.provider.tcp.myservice.StreamServiceImpl;
+import org.junit.Test;
+
+/**
+ * Runs the streaming tests with the endpoint imported in the JVM that exports it,
+ * so that it is invoked directly and the streamed results are copied.
+ */
+public class TcpProviderStreamLocalTest extends TcpProviderStreamTest {
+
+    @Override
+    protected void addProperties(Map<String, Object> props) {
+        props.put(Config.LOCAL_CALLS, Config.LOCAL_CALLS_COPY);
+    }
+
+    @Test
+    public void testInputStreamIsNotShared() throws IOException {
+        try (InputStream in = proxy.bytes(1000)) {
+            assertFalse(in instanceof ByteArrayInputStream); // the service's own stream
+            assertFalse(in.markSupported());
+            assertArrayEquals(StreamServiceImpl.content(1000), in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.aries.rsa.provider.tcp.myservice.ExpectedTestException;
+import org.apache.aries.rsa.provider.tcp.myservice.StreamService;
+import org.apache.aries.rsa.provider.tcp.myservice.StreamServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+public class TcpProviderStreamTest {
+
+    private static final int COUNT = 10 * Protocol.CHUNK_ELEMENTS * Protocol.STREAM_WINDOW;
+
+    private TcpProvider provider;
+    private Endpoint ep;
+    private ImportedService importedService;
+    protected StreamService proxy;
+
+    protected void addProperties(Map<String, Object> props) {
+        // the defaults
+    }
+
+    @Before
+    public void export() throws IOException {
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Class<?>[] interfaces = new Class[] {StreamService.class};
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {StreamService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", 5000);
+        addProperties(props);
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new StreamServiceImpl(), bc, props, interfaces);
+        importedService = provider.importEndpoint(StreamService.class.getClassLoader(), bc, interfaces, ep.description());
+        proxy = (StreamService)importedService.getService();
+    }
+
+    @After
+    public void close() throws IOException {
+        importedService.close();
+        ep.close();
+    }
+
+    @Test
+    public void testStream() {
+        try (Stream<String> stream = proxy.range(COUNT)) {
+            List<String> expected = IntStream.range(0, COUNT).mapToObj(Integer::toString).collect(Collectors.toList());
+            assertEquals(expected, stream.collect(Collectors.toList()));
+        }
+        try (Stream<String> stream = proxy.range(0)) {
+            assertEquals(0, stream.count());
+        }
+    }
+
+    @Test
+    public void testIterator() {
+        Iterator<Integer> it = proxy.numbers(1000);
+        List<Integer> numbers = new ArrayList<>();
+        it.forEachRemaining(numbers::add);
+        assertEquals(IntStream.range(0, 1000).boxed().collect(Collectors.toList()), numbers);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testInputStream() throws IOException {
+        int[] sizes = { 0, 1000, Protocol.CHUNK_BYTES, 5 * Protocol.CHUNK_BYTES + 1 };
+        for (int size : sizes) {
+            try (InputStream in = proxy.bytes(size)) {
+                assertArrayEquals(StreamServiceImpl.content(size), in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testFlowControl() throws Exception {
+        try (Stream<String> stream = proxy.range(COUNT)) {
+            Iterator<String> it = stream.iterator();
+            assertEquals("0", it.next());
+            Thread.sleep(200);
+            // the server stays at most a window (and the chunk being sent) ahead of the consumer
+            assertTrue(proxy.getProduced() <= (Protocol.STREAM_WINDOW + 1) * Protocol.CHUNK_ELEMENTS);
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        try (Stream<String> stream = proxy.range(COUNT)) {
+            assertEquals(10, stream.limit(10).count());
+        }
+        assertTrue(proxy.awaitClosed(5000)); // the server closed its stream
+        assertTrue(proxy.getProduced() < COUNT);
+        assertEquals(5, proxy.range(5).count()); // the connection is still usable
+    }
+
+    @Test
+    public void testError() {
+        Iterator<String> it = proxy.failAfter(1000).iterator();
+        for (int i = 0; i < 1000 - Protocol.CHUNK_ELEMENTS; i++) {
+            assertEquals(Integer.toString(i), it.next()); // the chunks before the error are received
+        }
+        assertThrows(ExpectedTestException.class, () -> it.forEachRemaining(s -> { }));
+    }
+
+    @Test
+    public void testNull() {
+        assertNull(proxy.none());
+    }
+}
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -62,11 +63,12 @@ import org.osgi.util.promise.Success;
 
 public class TcpProviderTest {
 
-    private static final int TIMEOUT = 200;
+    protected static final int TIMEOUT = 200;
     private static final int NUM_CALLS = 2000; // increase this manually to find the max throughput
     private static final int NUM_THREADS = 10;
 
-    private MyService myServiceProxy;
+    private TcpProvider provider;
+    protected MyService myServiceProxy;
     private MyService myServiceProxy2;
     private Endpoint ep;
     private Endpoint ep2;
@@ -84,8 +86,7 @@ public class TcpProviderTest {
     @Before
     public void createServerAndProxy() throws IOException {
         Class<?>[] exportedInterfaces = new Class[] {MyService.class};
-        TcpProvider provider = new TcpProvider();
-        provider.activate(new HashMap<>());
+        provider = createProvider();
         Map<String, Object> props = new HashMap<>();
         props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
         int port = getFreePort();
@@ -93,6 +94,7 @@ public class TcpProviderTest {
         props.put("aries.tcp.port", port);
         props.put("aries.tcp.numThreads", NUM_THREADS);
         props.put("osgi.basic.timeout", TIMEOUT);
+        addProperties(props);
         BundleContext bc = EasyMock.mock(BundleContext.class);
         props.put("aries.tcp.id", "service1");
         ep = provider.exportService(new MyServiceImpl("service1"), bc, props, exportedInterfaces);
@@ -113,6 +115,25 @@ public class TcpProviderTest {
         myServiceProxy2 = (MyService)importedService2.getService();
     }
 
+    /**
+     * Creates the (activated) provider.
+     *
+     * @return the provider
+     */
+    protected TcpProvider createProvider() {
+        TcpProvider provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        return provider;
+    }
+
+    /**
+     * Allows subclasses to add endpoint properties to the exported services.
+     *
+     * @param props the endpoint properties
+     */
+    protected void addProperties(Map<String, Object> props) {
+    }
+
     @After
     public void close() throws IOException {
         importedService.close();
@@ -170,6 +191,46 @@ public class TcpProviderTest {
         assertEquals("service2", myServiceProxy2.getId());
     }
 
+    @Test
+    public void testSharedClient() throws IOException {
+        assertEquals(1, provider.getClientCount()); // both endpoints share the connections to their server
+        assertEquals("service1", myServiceProxy.getId());
+        assertEquals("service2", myServiceProxy2.getId());
+        importedService.close();
+        assertEquals(1, provider.getClientCount());
+        assertEquals("service2", myServiceProxy2.getId());
+        importedService2.close();
+        assertEquals(0, provider.getClientCount());
+    }
+
+    @Test
+    public void testFailedImportReleasesClient() throws IOException {
+        BundleContext bc = EasyMock.mock(BundleContext.class);
+        Class<?>[] notInterfaces = new Class[] {MyServiceImpl.class};
+        assertThrows(RuntimeException.class,
+            () -> provider.importEndpoint(MyService.class.getClassLoader(), bc, notInterfaces, ep.description()));
+        importedService.close();
+        importedService2.close();
+        assertEquals(0, provider.getClientCount()); // the failed import did not keep the client
+    }
+
+    @Test
+    public void testIdleConnectionsDoNotStarveCalls() throws IOException {
+        int port = Integer.parseInt(ep.description().getProperties().get("aries.tcp.port").toString());
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // more idle connections than there are worker threads
+            for (int i = 0; i < NUM_THREADS * 2; i++) {
+                idle.add(new Socket("localhost", port));
+            }
+            assertEquals("test", myServiceProxy.echo("test"));
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+
     /**
      * Test for ARIES-1515
      */
@@ -196,6 +257,48 @@ public class TcpProviderTest {
         }
     }
 
+    @Test
+    public void testManyAsyncCalls() throws Exception {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS * 2; i++) {
+            results.add(myServiceProxy.callAsyncFuture(0));
+        }
+        for (Future<String> result : results) {
+            assertEquals("Finished", result.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testManyPendingAsyncCalls() throws Exception {
+        // more pending calls than there are server worker threads
+        List<Promise<String>> results = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS * 3; i++) {
+            results.add(myServiceProxy.callAsyncPromise(TIMEOUT / 2));
+        }
+        for (Promise<String> result : results) {
+            assertEquals("Finished", result.getValue());
+        }
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        Future<String> result = myServiceProxy.callAsyncFuture(TIMEOUT + 100);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expecting timeout");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getClass().getName(), equalTo(ServiceException.class.getName()));
+            assertThat(e.getCause().getCause().getClass().getName(), equalTo(SocketTimeoutException.class.getName()));
+        }
+    }
+
+    @Test
+    public void testAsyncCallbackThread() throws Exception {
+        CompletionStage<String> result = myServiceProxy.callAsyncCompletionStage(100);
+        String thread = result.thenApply(x -> Thread.currentThread().getName()).toCompletableFuture().get(1, TimeUnit.SECONDS);
+        assertThat(thread, startsWith("TcpProvider-callback-"));
+    }
+
     @Test
     public void testAsyncCompletionStage() throws Exception {
         CompletionStage<String> result = myServiceProxy.callAsyncCompletionStage(100);
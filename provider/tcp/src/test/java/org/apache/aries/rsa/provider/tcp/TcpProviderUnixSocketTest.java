@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceException;
+import org.osgi.service.remoteserviceadmin.EndpointDescription;
+
+public class TcpProviderUnixSocketTest {
+
+    private static final Class<?>[] INTERFACES = new Class[] {MyService.class};
+
+    private TcpProvider provider;
+    private BundleContext bc;
+    private Endpoint ep;
+    private ImportedService importedService;
+
+    @Before
+    public void export() throws IOException {
+        assumeTrue(UnixDomainSockets.isSupported());
+        provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        Map<String, Object> props = new HashMap<>();
+        props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+        props.put("aries.tcp.hostname", "localhost");
+        props.put(Config.BIND_ADDRESS, "127.0.0.1");
+        props.put("aries.tcp.port", TcpProviderTest.getFreePort());
+        props.put("osgi.basic.timeout", 500);
+        props.put(Config.UNIX_SOCKET, true);
+        bc = EasyMock.mock(BundleContext.class);
+        ep = provider.exportService(new MyServiceImpl("service1"), bc, props, INTERFACES);
+    }
+
+    @After
+    public void close() throws IOException {
+        if (importedService != null) {
+            importedService.close();
+        }
+        if (ep != null) {
+            ep.close();
+        }
+    }
+
+    /**
+     * Imports the endpoint with a local TCP address that nothing listens on
+     * (the server is bound to 127.0.0.1), so calls only succeed over the unix domain socket.
+     */
+    private MyService importWithoutTcp(String unixSocketPath) throws IOException {
+        Map<String, Object> props = new HashMap<>(ep.description().getProperties());
+        int port = new Config(props).getPort();
+        props.put(Config.URI, "tcp://127.0.0.2:" + port + "/" + ep.description().getId());
+        props.put(Config.UNIX_SOCKET_PATH, unixSocketPath);
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, INTERFACES,
+            new EndpointDescription(props));
+        return (MyService)importedService.getService();
+    }
+
+    @Test
+    public void testUnixSocket() throws Exception {
+        String path = new Config(ep.description().getProperties()).getUnixSocketPath();
+        assertNotNull(path);
+        assertTrue(Files.exists(Paths.get(path)));
+        MyService proxy = importWithoutTcp(path);
+        assertEquals("test", proxy.echo("test"));
+        assertEquals("Finished", proxy.callAsyncCompletionStage(10).toCompletableFuture().get());
+        ServiceException e = assertThrows(ServiceException.class, () -> proxy.callSlow(1000));
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+        assertEquals("test2", proxy.echo("test2"));
+    }
+
+    @Test
+    public void testSocketWithUnexpectedNameIsNotUsed() throws IOException {
+        Path path = Paths.get(new Config(ep.description().getProperties()).getUnixSocketPath());
+        Path link = Files.createTempDirectory("aries-tcp").resolve("control.sock");
+        try {
+            Files.createSymbolicLink(link, path);
+            MyService proxy = importWithoutTcp(link.toString());
+            assertThrows(ServiceException.class, () -> proxy.echo("test")); // TCP is used instead
+        } finally {
+            Files.deleteIfExists(link);
+            Files.delete(link.getParent());
+        }
+    }
+
+    @Test
+    public void testSocketOfUnexpectedServerInstanceIsNotUsed() throws IOException {
+        Path path = Paths.get(new Config(ep.description().getProperties()).getUnixSocketPath());
+        int port = new Config(ep.description().getProperties()).getPort();
+        long instance = UnixDomainSockets.instanceId(path, port);
+        // named like the socket file of another instance of the server, e.g. a stale file
+        Path link = Files.createTempDirectory("aries-tcp").resolve(UnixDomainSockets.socketName(port, instance + 1));
+        try {
+            Files.createSymbolicLink(link, path);
+            MyService proxy = importWithoutTcp(link.toString());
+            assertThrows(ServiceException.class, () -> proxy.echo("test")); // TCP is used instead
+        } finally {
+            Files.deleteIfExists(link);
+            Files.delete(link.getParent());
+        }
+    }
+
+    @Test
+    public void testSocketFileDeleted() throws IOException {
+        Path path = Paths.get(new Config(ep.description().getProperties()).getUnixSocketPath());
+        ep.close();
+        ep = null;
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void testTcpFallback() {
+        // the socket is not on this host, so the (default) TCP address is used
+        importedService = provider.importEndpoint(MyService.class.getClassLoader(), bc, INTERFACES,
+            withUnixSocketPath(ep.description(), "/nonexistent/aries-tcp.sock"));
+        assertEquals("test", ((MyService)importedService.getService()).echo("test"));
+    }
+
+    private static EndpointDescription withUnixSocketPath(EndpointDescription description, String path) {
+        Map<String, Object> props = new HashMap<>(description.getProperties());
+        props.put(Config.UNIX_SOCKET_PATH, path);
+        return new EndpointDescription(props);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp;
+
+import java.util.Map;
+
+/**
+ * Runs all provider tests with calls executed on virtual threads
+ * (or on platform threads, if the JVM does not support virtual threads).
+ */
+public class TcpProviderVirtualThreadsTest extends TcpProviderTest {
+
+    @Override
+    protected void addProperties(Map<String, Object> props) {
+        props.put(Config.EXECUTOR, Config.EXECUTOR_VIRTUAL);
+        props.put(Config.MAX_CONCURRENCY, 20);
+    }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.aries.rsa.provider.tcp.myservice;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +43,8 @@ public interface PrimitiveService {
 
     byte[] callByteAr(byte[] byteAr);
 
+    ByteBuffer callByteBuffer(ByteBuffer buffer);
+
     Version callVersion(Version version);
 
     Version[] callVersionAr(Version[] version);
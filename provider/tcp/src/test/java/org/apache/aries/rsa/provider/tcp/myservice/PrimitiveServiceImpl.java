@@ -18,6 +18,7 @@
  */
 package org.apache.aries.rsa.provider.tcp.myservice;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -66,6 +67,11 @@ public class PrimitiveServiceImpl implements PrimitiveService {
         return byteAr;
     }
 
+    @Override
+    public ByteBuffer callByteBuffer(ByteBuffer buffer) {
+        return buffer;
+    }
+
     @Override
     public Version callVersion(Version version) {
         return version;
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.myservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class StreamServiceImpl implements StreamService {
+
+    private final AtomicInteger produced = new AtomicInteger();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public Stream<String> range(int count) {
+        return IntStream.range(0, count)
+            .peek(i -> produced.incrementAndGet())
+            .mapToObj(Integer::toString)
+            .onClose(closed::countDown);
+    }
+
+    @Override
+    public Iterator<Integer> numbers(int count) {
+        return IntStream.range(0, count).iterator();
+    }
+
+    @Override
+    public InputStream bytes(int size) {
+        return new ByteArrayInputStream(content(size));
+    }
+
+    public static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    @Override
+    public Stream<String> failAfter(int count) {
+        return IntStream.rangeClosed(0, count).mapToObj(i -> {
+            if (i == count) {
+                throw new ExpectedTestException();
+            }
+            return Integer.toString(i);
+        });
+    }
+
+    @Override
+    public Stream<String> none() {
+        return null;
+    }
+
+    @Override
+    public int getProduced() {
+        return produced.get();
+    }
+
+    @Override
+    public boolean awaitClosed(long millis) throws InterruptedException {
+        return closed.await(millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DTOPlanTest {
+
+    public static class NestedDTO {
+        public String name;
+    }
+
+    public static class AllTypesDTO {
+        public boolean z;
+        public byte b;
+        public char c;
+        public short s;
+        public int i;
+        public long j;
+        public float f;
+        public double d;
+        public String str;
+        public int[] ints;
+        public NestedDTO nested;
+        public List<NestedDTO> list;
+    }
+
+    public static class FinalFieldDTO {
+        public final String value = "x";
+    }
+
+    private static NestedDTO nested(String name) {
+        NestedDTO dto = new NestedDTO();
+        dto.name = name;
+        return dto;
+    }
+
+    private static byte[] write(Object obj, ClassDescriptorTable table) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (BasicObjectOutputStream out = new BasicObjectOutputStream(bos, table)) {
+            out.writeObject(obj);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Object read(byte[] bytes, ClassDescriptorTable table) throws Exception {
+        try (BasicObjectInputStream in = new BasicObjectInputStream(new ByteArrayInputStream(bytes), table, null)) {
+            in.addClassLoader(DTOPlanTest.class.getClassLoader());
+            return in.readObject();
+        }
+    }
+
+    @Test
+    public void testPlans() {
+        DTOPlan plan = DTOPlan.forClass(AllTypesDTO.class);
+        assertNotNull(plan);
+        assertSame(plan, DTOPlan.forClass(AllTypesDTO.class));
+        assertNull(DTOPlan.forClass(String.class));
+        assertNull(DTOPlan.forClass(FinalFieldDTO.class)); // cannot be set, so left to the converter
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        AllTypesDTO dto = new AllTypesDTO();
+        dto.z = true;
+        dto.b = -1;
+        dto.c = 'c';
+        dto.s = 1000;
+        dto.i = Integer.MIN_VALUE;
+        dto.j = Long.MAX_VALUE;
+        dto.f = 1.5f;
+        dto.d = -2.25;
+        dto.str = "hello";
+        dto.ints = new int[] { 1, 2, 3 };
+        dto.nested = nested("a");
+        dto.list = Arrays.asList(nested("b"), dto.nested);
+
+        ClassDescriptorTable outTable = new ClassDescriptorTable();
+        ClassDescriptorTable inTable = new ClassDescriptorTable();
+        AllTypesDTO copy = (AllTypesDTO)read(write(dto, outTable), inTable);
+
+        assertTrue(copy.z);
+        assertEquals(-1, copy.b);
+        assertEquals('c', copy.c);
+        assertEquals(1000, copy.s);
+        assertEquals(Integer.MIN_VALUE, copy.i);
+        assertEquals(Long.MAX_VALUE, copy.j);
+        assertEquals(1.5f, copy.f, 0);
+        assertEquals(-2.25, copy.d, 0);
+        assertEquals("hello", copy.str);
+        assertArrayEquals(new int[] { 1, 2, 3 }, copy.ints);
+        assertEquals("a", copy.nested.name);
+        assertEquals("b", copy.list.get(0).name);
+        assertSame(copy.nested, copy.list.get(1)); // references are preserved
+    }
+
+    @Test
+    public void testNoPerObjectMetadata() throws Exception {
+        NestedDTO[] one = { nested("a") };
+        NestedDTO[] many = new NestedDTO[11];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = nested("a" + i % 10);
+        }
+        // each additional DTO costs little more than its field value, rather than
+        // a map of its field names and values as written by the converter
+        int perObject = (write(many, new ClassDescriptorTable()).length - write(one, new ClassDescriptorTable()).length) / 10;
+        assertTrue("bytes per object: " + perObject, perObject < 32);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.ser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ObjectCopierTest {
+
+    public static class NodeDTO {
+        public String name;
+        public int[] values;
+        public NodeDTO next;
+        public List<NodeDTO> children;
+    }
+
+    private final ObjectCopier copier = new ObjectCopier(getClass().getClassLoader());
+
+    private static NodeDTO node(String name) {
+        NodeDTO dto = new NodeDTO();
+        dto.name = name;
+        dto.values = new int[] {1, 2, 3};
+        dto.children = new ArrayList<>();
+        return dto;
+    }
+
+    @Test
+    public void testImmutablesAreShared() {
+        String str = "str";
+        Object[] values = {str, 1, TimeUnit.SECONDS, null};
+        Object[] copies = copier.copy(values);
+        assertNotSame(values, copies);
+        for (int i = 0; i < values.length; i++) {
+            assertSame(values[i], copies[i]);
+        }
+    }
+
+    @Test
+    public void testDeepCopy() {
+        NodeDTO root = node("root");
+        NodeDTO child = node("child");
+        root.children.add(child);
+        root.next = child; // a shared reference
+        child.next = root; // and a cycle
+        Map<String, Object> map = new HashMap<>();
+        map.put("root", root);
+        map.put("list", List.of("a", "b"));
+        map.put("date", new Date(1000));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> copy = (Map<String, Object>) copier.copy(map)[0];
+        assertNotSame(map, copy);
+        assertEquals(List.of("a", "b"), copy.get("list"));
+        assertEquals(new Date(1000), copy.get("date"));
+        assertNotSame(map.get("date"), copy.get("date"));
+        NodeDTO rootCopy = (NodeDTO) copy.get("root");
+        assertNotSame(root, rootCopy);
+        assertEquals("root", rootCopy.name);
+        assertArrayEquals(root.values, rootCopy.values);
+        assertNotSame(root.values, rootCopy.values);
+        NodeDTO childCopy = rootCopy.children.get(0);
+        assertNotSame(child, childCopy);
+        assertSame(childCopy, rootCopy.next);
+        assertSame(rootCopy, childCopy.next);
+    }
+
+    @Test
+    public void testImmutableCollections() {
+        Object[] copies = copier.copy(List.of(node("a")), Set.of("b"), Map.of("c", node("c")));
+        assertEquals("a", ((NodeDTO) ((List<?>) copies[0]).get(0)).name);
+        assertEquals(Set.of("b"), copies[1]);
+        assertEquals("c", ((NodeDTO) ((Map<?, ?>) copies[2]).get("c")).name);
+    }
+
+    @Test
+    public void testNotCopyable() {
+        assertNull(copier.copy("str", new StringBuilder("serializable, but not copyable")));
+        assertNull(copier.copy(Arrays.asList(new Object())));
+        // the class of the copy would not be the one that the target class loader resolves
+        ObjectCopier isolated = new ObjectCopier(new URLClassLoader(new URL[0], null));
+        assertNull(isolated.copy(node("a")));
+        assertEquals("a", isolated.copy("a")[0]);
+    }
+}
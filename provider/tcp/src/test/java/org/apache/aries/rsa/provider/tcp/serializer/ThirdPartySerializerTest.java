@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.rsa.provider.tcp.serializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.rsa.provider.tcp.TcpProvider;
+import org.apache.aries.rsa.provider.tcp.myservice.MyService;
+import org.apache.aries.rsa.provider.tcp.myservice.MyServiceImpl;
+import org.apache.aries.rsa.spi.Endpoint;
+import org.apache.aries.rsa.spi.ImportedService;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Registers a serializer which, like one provided by another bundle, only uses the
+ * exported serializer API (and plain Java serialization).
+ */
+public class ThirdPartySerializerTest {
+
+    static class JdkSerializer implements Serializer {
+
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+
+        @Override
+        public String name() {
+            return "jdk";
+        }
+
+        @Override
+        public void writeObjects(OutputStream out, Object[] objects) throws IOException {
+            written.addAndGet(objects.length);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            for (Object o : objects) {
+                oos.writeObject(o);
+            }
+            oos.flush();
+        }
+
+        @Override
+        public Object[] readObjects(InputStream in, int count, ClassLoader loader)
+                throws IOException, ClassNotFoundException {
+            read.addAndGet(count);
+            ObjectInputStream ois = new ObjectInputStream(in) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    try {
+                        return Class.forName(desc.getName(), false, loader);
+                    } catch (ClassNotFoundException e) {
+                        return super.resolveClass(desc);
+                    }
+                }
+            };
+            Object[] objects = new Object[count];
+            for (int i = 0; i < count; i++) {
+                objects[i] = ois.readObject();
+            }
+            return objects;
+        }
+    }
+
+    @Test
+    public void testRegisteredSerializerIsUsed() throws IOException {
+        JdkSerializer serializer = new JdkSerializer();
+        TcpProvider provider = new TcpProvider();
+        provider.activate(new HashMap<>());
+        provider.addSerializer(serializer);
+        try {
+            Map<String, Object> props = new HashMap<>();
+            props.put(org.osgi.framework.Constants.OBJECTCLASS, new String[] {MyService.class.getName()});
+            props.put("aries.tcp.hostname", "localhost");
+            props.put("aries.tcp.serializer", "jdk");
+            BundleContext bc = EasyMock.mock(BundleContext.class);
+            Class<?>[] interfaces = new Class[] {MyService.class};
+            Endpoint ep = provider.exportService(new MyServiceImpl("service"), bc, props, interfaces);
+            try {
+                ImportedService imported = provider.importEndpoint(MyService.class.getClassLoader(), bc,
+                    interfaces, ep.description());
+                try {
+                    MyService proxy = (MyService) imported.getService();
+                    proxy.callWithList(Collections.singletonList("a"));
+                    assertEquals("test", proxy.echo("test"));
+                } finally {
+                    imported.close();
+                }
+            } finally {
+                ep.close();
+            }
+        } finally {
+            provider.deactivate();
+        }
+        assertTrue(serializer.written.get() > 0);
+        assertEquals(serializer.written.get(), serializer.read.get());
+    }
+}